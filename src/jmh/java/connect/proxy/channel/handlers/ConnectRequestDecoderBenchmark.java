@@ -0,0 +1,92 @@
+package connect.proxy.channel.handlers;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Cost of decoding a CONNECT request on a new connection.
+ *
+ * The httpServerCodec benchmark replays the previous pipeline: HttpServerCodec, then the target
+ * is validated with java.net.URI and split again to get host and port. Both benchmarks include
+ * the creation of the channel pipeline, as it happens once per connection.
+ *
+ * @author carlos
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectRequestDecoderBenchmark {
+    private static final String REQUEST = "CONNECT www.example.com:443 HTTP/1.1\r\n"
+        + "Host: www.example.com:443\r\n"
+        + "User-Agent: curl/7.68.0\r\n"
+        + "Proxy-Connection: Keep-Alive\r\n"
+        + "\r\n";
+
+    private ByteBuf request;
+
+    @Setup
+    public void setup() {
+        request = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes(REQUEST.getBytes(CharsetUtil.US_ASCII)));
+    }
+
+    @Benchmark
+    public Object connectRequestDecoder() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ConnectRequestDecoder());
+        channel.writeInbound(request.duplicate());
+        return channel.readInbound();
+    }
+
+    @Benchmark
+    public Object httpServerCodec() {
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpServerCodec(), new UriValidator());
+        channel.writeInbound(request.duplicate());
+        return channel.readInbound();
+    }
+
+    /**
+     * Validation done by the previous pipeline.
+     */
+    private static class UriValidator extends SimpleChannelInboundHandler<HttpObject> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+            if (!(msg instanceof HttpRequest)) {
+                return;
+            }
+            HttpRequest request = (HttpRequest) msg;
+            if (HttpUtil.isContentLengthSet(request) || HttpUtil.isTransferEncodingChunked(request)) {
+                return;
+            }
+            URI uri = new URI(null, request.uri(), null, null, null);
+            request.setUri(uri.getHost() + ":" + uri.getPort());
+            String[] uriParts = request.uri().split(":");
+            ctx.fireChannelRead(new ConnectRequest(uriParts[0], Integer.parseInt(uriParts[1]), null));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package connect.proxy.channel.handlers;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import connect.proxy.whitelist.HostWhitelist;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Throughput of CONNECT request validation.
+ *
+ * The validator runs once per connection, so each operation creates the channel pipeline.
+ * Whitelisted requests are fired to the next handler; rejected requests are answered with the
+ * pre-encoded 403 response and the channel is closed.
+ *
+ * @author carlos
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectRequestValidatorHandlerBenchmark {
+    private static final ConnectRequest WHITELISTED = new ConnectRequest("api.example.com", 443, null);
+    private static final ConnectRequest NOT_WHITELISTED = new ConnectRequest("www.example.org", 443, null);
+
+    private HostWhitelist whitelist;
+
+    @Setup
+    public void setup() {
+        whitelist = new HostWhitelist(Arrays.asList("localhost", "*.example.com:443"));
+    }
+
+    @Benchmark
+    public Object whitelisted() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ConnectRequestValidatorHandler(whitelist));
+        channel.writeInbound(WHITELISTED);
+        return channel.readInbound();
+    }
+
+    @Benchmark
+    public Object notWhitelisted() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ConnectRequestValidatorHandler(whitelist));
+        channel.writeInbound(NOT_WHITELISTED);
+        return channel.readOutbound();
+    }
+}
@@ -0,0 +1,79 @@
+package connect.proxy.channel.handlers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Forwarding throughput of a TunnelHandler, without network I/O.
+ *
+ * Each operation is one read burst of one buffer: the buffer is read from the primary channel,
+ * written and flushed to the coupled channel. The "bytes" counter reports forwarded bytes/s.
+ *
+ * @author carlos
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TunnelHandlerBenchmark {
+    @Param({ "1024", "16384" })
+    private int bufferSize;
+
+    private ByteBuf payload;
+    private EmbeddedChannel inChannel;
+    private EmbeddedChannel outChannel;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        payload = Unpooled.unreleasableBuffer(Unpooled.directBuffer(bufferSize).writeZero(bufferSize));
+        inChannel = new EmbeddedChannel(new TunnelHandler());
+        outChannel = new EmbeddedChannel();
+        inChannel.attr(TunnelHandler.COUPLE_CHANNEL).set(outChannel);
+    }
+
+    @TearDown
+    public void tearDown() {
+        inChannel.finishAndReleaseAll();
+        outChannel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public Object forward(Bytes counter) {
+        inChannel.writeInbound(payload.duplicate());
+        ByteBuf forwarded = outChannel.readOutbound();
+        counter.bytes += forwarded.readableBytes();
+        return forwarded;
+    }
+}
@@ -0,0 +1,160 @@
+package connect.proxy.channel.handlers;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import connect.proxy.ProxyServer;
+import connect.proxy.ProxyServerConfig;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Tunnel throughput over loopback sockets.
+ *
+ * A plain-text proxy tunnels a client to an echo server. Each operation writes one buffer and
+ * reads it back, so every byte crosses the tunnel in both directions. The "bytes" counter reports
+ * echoed bytes/s. With splice=true and the epoll transport, tunnels use splice() instead of
+ * TunnelHandlers.
+ *
+ * @author carlos
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TunnelLoopbackBenchmark {
+    @Param({ "16384", "262144" })
+    private int bufferSize;
+
+    @Param({ "false", "true" })
+    private boolean splice;
+
+    private EventLoopGroup echoEvLoopGroup;
+    private Channel echoChannel;
+    private ProxyServer proxy;
+    private Socket client;
+    private OutputStream out;
+    private DataInputStream in;
+    private byte[] writeBuffer;
+    private byte[] readBuffer;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        echoEvLoopGroup = new NioEventLoopGroup(1);
+        echoChannel = new ServerBootstrap()
+            .group(echoEvLoopGroup)
+            .channel(NioServerSocketChannel.class)
+            .childHandler(new EchoHandler())
+            .bind("localhost", 0).sync().channel();
+        int echoPort = ((InetSocketAddress) echoChannel.localAddress()).getPort();
+
+        int proxyPort = getFreePort();
+        proxy = new ProxyServer(new ProxyServerConfig()
+            .setPort(proxyPort)
+            .setHostWhitelist("localhost")
+            .setSsl(false)
+            .setSplice(splice));
+        proxy.start();
+
+        client = new Socket("localhost", proxyPort);
+        client.setTcpNoDelay(true);
+        out = client.getOutputStream();
+        in = new DataInputStream(client.getInputStream());
+
+        out.write(("CONNECT localhost:" + echoPort + " HTTP/1.1\r\n\r\n").getBytes(CharsetUtil.US_ASCII));
+        out.flush();
+        readResponseHeader(in);
+
+        writeBuffer = new byte[bufferSize];
+        readBuffer = new byte[bufferSize];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        proxy.close();
+        echoChannel.close().sync();
+        echoEvLoopGroup.shutdownGracefully().sync();
+    }
+
+    @Benchmark
+    public int echo(Bytes counter) throws IOException {
+        out.write(writeBuffer);
+        in.readFully(readBuffer);
+        counter.bytes += bufferSize;
+        return readBuffer[0];
+    }
+
+    private static void readResponseHeader(InputStream in) throws IOException {
+        // Read until the empty line ending the response header: CR LF CR LF.
+        int last4Bytes = 0;
+        while (last4Bytes != 0x0D0A0D0A) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Proxy closed the connection");
+            }
+            last4Bytes = (last4Bytes << 8) | b;
+        }
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Sharable
+    private static class EchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.write(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+    }
+}
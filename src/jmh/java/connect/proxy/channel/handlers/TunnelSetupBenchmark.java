@@ -0,0 +1,44 @@
+package connect.proxy.channel.handlers;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Cost of re-arranging the pipeline of a new connection for tunneling.
+ *
+ * Each operation creates the pipeline of a proxy connection (decoder, validator and
+ * ConnectRequestHandler) and switches it to a TunnelHandler coupled to an upstream channel.
+ *
+ * @author carlos
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TunnelSetupBenchmark {
+    @Benchmark
+    public Object setupTunnelPipeline() {
+        ConnectRequestHandler handler = new ConnectRequestHandler(Collections.emptyList());
+        EmbeddedChannel inChannel = new EmbeddedChannel(new ConnectRequestDecoder(),
+            new ConnectRequestValidatorHandler(Collections.singleton("localhost")), handler);
+        EmbeddedChannel outChannel = new EmbeddedChannel();
+
+        handler.setupTunnelPipeline(inChannel, outChannel);
+        return inChannel.pipeline().first();
+    }
+}
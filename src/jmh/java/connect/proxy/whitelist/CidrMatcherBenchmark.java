@@ -0,0 +1,82 @@
+package connect.proxy.whitelist;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import connect.proxy.whitelist.CidrMatcher.Action;
+
+/**
+ * Address ACL lookup cost with large rule sets.
+ *
+ * Rules are IPv4 /24 ranges and IPv6 /48 ranges, a tenth of them denied. Lookups alternate
+ * between an IPv4 literal, an IPv6 literal and an accepted client address, matching or not.
+ *
+ * @author carlos
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CidrMatcherBenchmark {
+    @Param({ "100", "100000" })
+    private int rules;
+
+    private CidrMatcher matcher;
+    private String[] literals;
+    private InetAddress[] addresses;
+    private int next;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        List<String> ruleList = new ArrayList<>(2 * rules);
+        for (int i = 0; i < rules; i++) {
+            String deny = i % 10 == 0 ? "!" : "";
+            ruleList.add(deny + "10." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + ".0/24");
+            ruleList.add(deny + "2001:db8:" + Integer.toHexString(i & 0xFFFF) + "::/48");
+        }
+        matcher = CidrMatcher.compile(ruleList);
+
+        literals = new String[2 * 64];
+        addresses = new InetAddress[64];
+        for (int i = 0; i < 64; i++) {
+            int rule = i * 7919 % rules;
+            literals[2 * i] = i % 2 == 0 ? "10." + (rule >> 8 & 0xFF) + "." + (rule & 0xFF) + ".7"
+                : "192.0.2." + i;
+            literals[2 * i + 1] = i % 2 == 0 ? "[2001:db8:" + Integer.toHexString(rule & 0xFFFF) + ":1::7]"
+                : "2001:db9::" + i;
+            addresses[i] = InetAddress.getByName(literals[2 * i]);
+        }
+    }
+
+    @Benchmark
+    public Action literal() {
+        String literal = literals[next];
+        next = next + 1 == literals.length ? 0 : next + 1;
+        return matcher.match(literal);
+    }
+
+    @Benchmark
+    public Action address() {
+        InetAddress address = addresses[next];
+        next = next + 1 == addresses.length ? 0 : next + 1;
+        return matcher.match(address);
+    }
+}
@@ -0,0 +1,81 @@
+package connect.proxy.whitelist;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whitelist lookup cost with large rule sets.
+ *
+ * Half of the rules are exact hosts and half are wildcards. Lookups alternate between a host
+ * matching an exact rule, a host matching a wildcard rule and a host that is not whitelisted.
+ * The HashSet baseline is the exact-match lookup used before wildcard rules were supported.
+ *
+ * @author carlos
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HostMatcherBenchmark {
+    @Param({ "100", "100000" })
+    private int rules;
+
+    private HostMatcher matcher;
+    private Set<String> hashSet;
+    private String[] hosts;
+    private int next;
+
+    @Setup
+    public void setup() {
+        List<String> ruleList = new ArrayList<>(rules);
+        for (int i = 0; i < rules; i++) {
+            ruleList.add(i % 2 == 0 ? "host" + i + ".example" + (i % 100) + ".com"
+                : "*.domain" + i + ".example" + (i % 100) + ".org:443");
+        }
+        matcher = HostMatcher.compile(ruleList);
+        hashSet = new HashSet<>(ruleList);
+
+        hosts = new String[3 * 64];
+        for (int i = 0; i < 64; i++) {
+            int exact = (i * 7919 % rules) & ~1;
+            int wildcard = (i * 7919 % rules) | 1;
+            hosts[3 * i] = "HOST" + exact + ".example" + (exact % 100) + ".com";
+            hosts[3 * i + 1] = "www.api.domain" + wildcard + ".example" + (wildcard % 100) + ".org";
+            hosts[3 * i + 2] = "unknown" + i + ".example" + i + ".net";
+        }
+    }
+
+    private String nextHost() {
+        String host = hosts[next];
+        next = next + 1 == hosts.length ? 0 : next + 1;
+        return host;
+    }
+
+    @Benchmark
+    public boolean hostMatcher() {
+        return matcher.matches(nextHost(), 443);
+    }
+
+    @Benchmark
+    public boolean hashSet() {
+        return hashSet.contains(nextHost().toLowerCase());
+    }
+}
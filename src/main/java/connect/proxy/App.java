@@ -1,36 +1,40 @@
 package connect.proxy;
 
+import java.nio.file.Paths;
 import java.util.Arrays;
 
 /**
  * The Entry Point of the App
- * 
+ *
  * @author carlos
  *
  */
 public class App {
-    // Configuration
-    // NEXT: Store as external configuration
-    private static int DEFAULT_PORT = 8443;
-    private static String[] DEFAULT_HOST_WHITELIST = new String[] { "localhost" };
+    // Configuration file can be set with -Dconnect.proxy.config=<path>
+    private static String CONFIG_PROPERTY = "connect.proxy.config";
 
     // Main
     public static void main(String[] args) throws Exception {
-        int port = DEFAULT_PORT;
-        String[] hostWhitelist = null;
+        ProxyServerConfig config;
 
+        String configPath = System.getProperty(CONFIG_PROPERTY);
+        if (configPath != null) {
+            config = ProxyServerConfig.load(Paths.get(configPath));
+        } else {
+            config = new ProxyServerConfig();
+        }
+
+        // CLI arguments override the configuration file.
         if (args.length > 0) {
-            port = Integer.parseInt(args[0]);
+            config.setPort(Integer.parseInt(args[0]));
         }
 
         if (args.length > 1) {
-        	hostWhitelist = Arrays.copyOfRange(args, 1, args.length);
-        } else {
-        	hostWhitelist = DEFAULT_HOST_WHITELIST;
+        	config.setHostWhitelist(Arrays.copyOfRange(args, 1, args.length));
         }
 
-        ProxyServer proxyServer = new ProxyServer(port, hostWhitelist);
+        ProxyServer proxyServer = new ProxyServer(config);
         proxyServer.start();
         proxyServer.waitForClose();
     }
-}
\ No newline at end of file
+}
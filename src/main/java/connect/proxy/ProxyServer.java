@@ -1,29 +1,88 @@
 package connect.proxy;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import connect.proxy.admin.AdminServer;
+import connect.proxy.admission.AdmissionController;
+import connect.proxy.admission.AdmissionController.Rejection;
+import connect.proxy.accesslog.AccessLog;
+import connect.proxy.auth.Credentials;
+import connect.proxy.auth.ProxyAuthenticator;
+import connect.proxy.channel.EventLoopLagMonitor;
+import connect.proxy.channel.MemoryBudget;
+import connect.proxy.channel.SpliceRecvByteBufAllocator;
+import connect.proxy.channel.Transport;
+import connect.proxy.channel.TunnelShaper;
+import connect.proxy.channel.TunnelRegistry;
+import connect.proxy.channel.TunnelTimeouts;
+import connect.proxy.channel.UpstreamConnector;
+import connect.proxy.channel.UpstreamLoopPolicy;
+import connect.proxy.channel.UpstreamLoopSelector;
+import connect.proxy.channel.UpstreamPool;
+import connect.proxy.channel.handlers.AdmissionHandler;
+import connect.proxy.channel.handlers.ClientAclHandler;
+import connect.proxy.channel.handlers.ConnectRequestDecoder;
 import connect.proxy.channel.handlers.ConnectRequestHandler;
 import connect.proxy.channel.handlers.ConnectRequestValidatorHandler;
+import connect.proxy.channel.handlers.Http2ConnectRequestDecoder;
+import connect.proxy.channel.handlers.Http2DataCodec;
+import connect.proxy.channel.handlers.Http2FrontendHandler;
+import connect.proxy.channel.handlers.ProxyAuthorizationHandler;
+import connect.proxy.dns.BoundedDnsCache;
+import connect.proxy.dns.HostsFileResolver;
+import connect.proxy.health.UpstreamHealth;
+import connect.proxy.metrics.MetricRegistry;
+import connect.proxy.metrics.ProxyMetrics;
+import connect.proxy.tls.HandshakeExecutor;
+import connect.proxy.tls.TicketKeyRotator;
+import connect.proxy.tls.TlsSessionStats;
+import connect.proxy.whitelist.CidrAcl;
+import connect.proxy.whitelist.CidrMatcher;
+import connect.proxy.whitelist.HostWhitelist;
+import connect.proxy.whitelist.HostWhitelistReloader;
+import connect.proxy.whitelist.RuleFileReloader;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.resolver.dns.DnsAddressResolverGroup;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.DnsServerAddressStreamProviders;
+import io.netty.resolver.dns.SequentialDnsServerAddressStreamProvider;
 
 /**
  * HTTPS CONNECT proxy server.
@@ -33,17 +92,45 @@ import io.netty.handler.ssl.util.SelfSignedCertificate;
  */
 public class ProxyServer {
     private static Logger LOG = LogManager.getLogger();
-    private static int DEFAULT_SO_BACKLOG = 128;
+    private static final long TLS_STATS_LOG_INTERVAL_SECONDS = 60;
 
     private int port;
-    private Set<String> hostWhitelist;
-    private Channel serverChannel;
+    private HostWhitelist hostWhitelist;
+    private HostWhitelistReloader hostWhitelistReloader;
+    private CidrAcl destinationAcl;
+    private CidrAcl clientAcl;
+    private final List<RuleFileReloader> ruleFileReloaders = new ArrayList<>();
+    private ProxyAuthenticator proxyAuthenticator;
+    private AccessLog accessLog;
+    private TicketKeyRotator ticketKeyRotator;
+    private HandshakeExecutor handshakeExecutor;
+    private final TlsSessionStats tlsSessionStats = new TlsSessionStats();
+    private long lastLoggedHandshakes;
+    private final ProxyMetrics metrics = new ProxyMetrics(new MetricRegistry());
+    private AdminServer adminServer;
+    private MemoryBudget memoryBudget;
+    private AdmissionController admissionController;
+    private EventLoopLagMonitor eventLoopLagMonitor;
+    private EventLoopLagMonitor acceptorLagMonitor;
+    private TunnelShaper tunnelShaper;
+    private TunnelTimeouts tunnelTimeouts;
+    private final TunnelRegistry tunnelRegistry = new TunnelRegistry();
+    private UpstreamHealth upstreamHealth;
+    private UpstreamPool upstreamPool;
+    private ProxyServerConfig config;
+    private final List<Channel> serverChannels = new CopyOnWriteArrayList<>();
+    private DnsAddressResolverGroup dnsResolverGroup;
     EventLoopGroup acceptorEvLoopGroup;
     EventLoopGroup workEvLoopGroup;
 
     public ProxyServer(int port, String[] hostWhitelist) {
-        this.port = port;
-        this.hostWhitelist = new HashSet<>(Arrays.asList(hostWhitelist));
+        this(new ProxyServerConfig().setPort(port).setHostWhitelist(hostWhitelist));
+    }
+
+    public ProxyServer(ProxyServerConfig config) {
+        this.config = config;
+        this.port = config.getPort();
+        this.hostWhitelist = new HostWhitelist(config.getHostWhitelist());
     }
 
     /**
@@ -52,60 +139,642 @@ public class ProxyServer {
      * @throws InterruptedException
      */
     public void start() throws Exception {
-        // This is a basic self-signed SSL/TLS implementation.
-        // NEXT: Strengthen secure layer.
-        SelfSignedCertificate ssc = new SelfSignedCertificate();
-        SslContext sslContext = SslContextBuilder
-            .forServer(ssc.certificate(), ssc.privateKey())
-            .build();
+        SslContext sslContext = null;
+        try {
+            if (config.isSsl()) {
+                sslContext = newSslContext();
+                if (TicketKeyRotator.isSupported(sslContext)) {
+                    ticketKeyRotator = new TicketKeyRotator(sslContext,
+                        config.getSslTicketKeyRotationMillis());
+                }
+                // Handshake tasks do not stall the event loops forwarding tunnel data.
+                if (config.getSslHandshakeThreads() > 0) {
+                    handshakeExecutor = new HandshakeExecutor(config.getSslHandshakeThreads(),
+                        config.getSslHandshakeQueueSize());
+                }
+            }
 
-        // A NioEventLoopGroup is a group of event loops. Each loop is executed in a different
-        // thread. By default, NioEventLoopGroup size is 2 times the number of processors.
-        acceptorEvLoopGroup = new NioEventLoopGroup(1);
-        workEvLoopGroup = new NioEventLoopGroup();
+            // Whitelist rules in a file are reloaded when the file changes.
+            if (config.getHostWhitelistFile() != null) {
+                hostWhitelistReloader = new HostWhitelistReloader(hostWhitelist,
+                    config.getHostWhitelistFile(), config.getHostWhitelist(),
+                    config.getHostWhitelistReloadIntervalMillis());
+            }
+            destinationAcl = newCidrAcl("Destination ACL", config.getDestinationAcl(),
+                config.getDestinationAclFile());
+            clientAcl = newCidrAcl("Client ACL", config.getClientAcl(), config.getClientAclFile());
+            // Clients must authenticate. Password hashes are verified off the event loops.
+            if (config.getAuthFile() != null) {
+                proxyAuthenticator = newProxyAuthenticator();
+                metrics.registerAuthenticator(proxyAuthenticator);
+            }
+            // One record per client connection, written off the event loops.
+            if (config.getAccessLogFile() != null) {
+                accessLog = new AccessLog(config.getAccessLogFile(), config.getAccessLogBufferSize(),
+                    config.getAccessLogMaxSize(), config.getAccessLogMaxFiles());
+                metrics.registerAccessLog(accessLog);
+            }
+
+            // Data can only be spliced if it does not need to go through the SSL layer or the
+            // bandwidth shaping handlers. Spliced data is not seen by the idle timeout either.
+            Transport transport = config.getTransport();
+            boolean splice = config.isSplice() && !config.isSsl() && !config.isShaping()
+                && config.getIdleTimeoutMillis() <= 0 && transport == Transport.EPOLL;
+            // Tunnels stop reading when the coupled channel has more pending data than the high watermark.
+            WriteBufferWaterMark writeBufferWaterMark = new WriteBufferWaterMark(
+                config.getWriteBufferLowWatermark(), config.getWriteBufferHighWatermark());
+
+            // Read buffers grow and shrink with the size of the reads, so idle tunnels hold small
+            // buffers and bulk tunnels read in large ones.
+            RecvByteBufAllocator recvBufAllocator = new AdaptiveRecvByteBufAllocator(
+                config.getRecvBufferMin(), config.getRecvBufferInitial(), config.getRecvBufferMax());
+            if (splice) {
+                // Once spliced, reads are sized for splice() and wait for the socket to be readable.
+                recvBufAllocator = new SpliceRecvByteBufAllocator(recvBufAllocator);
+            }
+            // 0 keeps the OS default (and its autotuning).
+            Integer socketRcvBuf = config.getSocketRcvBuf() > 0 ? config.getSocketRcvBuf() : null;
+            Integer socketSndBuf = config.getSocketSndBuf() > 0 ? config.getSocketSndBuf() : null;
+
+            // Handshake, connect and idle timeouts share one timer wheel.
+            tunnelTimeouts = new TunnelTimeouts()
+                .handshakeTimeout(config.getHandshakeTimeoutMillis())
+                .idleTimeout(config.getIdleTimeoutMillis());
+            metrics.registerTimeouts(tunnelTimeouts);
+
+            // Upstream host names are resolved asynchronously on the event loops.
+            dnsResolverGroup = newDnsResolverGroup(transport);
+
+            UpstreamConnector upstreamConnector = new UpstreamConnector(splice)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, recvBufAllocator)
+                .option(ChannelOption.SO_RCVBUF, socketRcvBuf)
+                .option(ChannelOption.SO_SNDBUF, socketSndBuf)
+                .option(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+                .option(ChannelOption.ALLOW_HALF_CLOSURE, config.isHalfClose())
+                .resolver(dnsResolverGroup)
+                .timer(tunnelTimeouts.getTimer())
+                .attemptDelayMillis(config.getConnectAttemptDelayMillis())
+                .connectTimeoutMillis(config.getConnectTimeoutMillis());
+            // Connections to destinations that keep failing fail fast for a while.
+            if (config.getCircuitFailureThreshold() > 0) {
+                upstreamHealth = new UpstreamHealth()
+                    .failureThreshold(config.getCircuitFailureThreshold())
+                    .openDurationMillis(config.getCircuitOpenDurationMillis())
+                    .maxDestinations(config.getCircuitMaxDestinations());
+                upstreamConnector.health(upstreamHealth);
+                metrics.registerUpstreamHealth(upstreamHealth);
+            }
+            if (config.isUpstreamFastOpen()) {
+                // The connect completes at once; the SYN goes out with the first write (the early data).
+                if (transport == Transport.EPOLL) {
+                    upstreamConnector.option(EpollChannelOption.TCP_FASTOPEN_CONNECT, true);
+                } else {
+                    LOG.warn("TCP Fast Open requires the EPOLL transport. "
+                        + "Upstream connections will not use it.");
+                }
+            }
+
+            // Tunnels stop reading while the buffer memory of the proxy is over budget.
+            if (config.getMemoryBudget() > 0) {
+                memoryBudget = new MemoryBudget(config.getMemoryBudget());
+            }
+
+            // Several listening sockets can share the port with SO_REUSEPORT; the kernel spreads
+            // incoming connections across them, and each one is accepted by its own thread.
+            int acceptors = config.getAcceptors();
+            if (acceptors > 1 && transport != Transport.EPOLL) {
+                LOG.warn("Multiple acceptors require SO_REUSEPORT (EPOLL transport). Using 1 acceptor.");
+                acceptors = 1;
+            }
+
+            // An EventLoopGroup is a group of event loops. Each loop is executed in a different
+            // thread. By default, its size is 2 times the number of processors.
+            acceptorEvLoopGroup = transport.newEventLoopGroup(acceptors);
+            workEvLoopGroup = transport.newEventLoopGroup(config.getWorkerThreads());
+            UpstreamLoopSelector upstreamLoopSelector =
+                config.getUpstreamLoopPolicy().newSelector(workEvLoopGroup);
+            metrics.registerEventLoops(acceptorEvLoopGroup, "acceptor");
+            metrics.registerEventLoops(workEvLoopGroup, "worker");
+            // A blocked loop delays all of its channels; its stack shows what blocked it.
+            eventLoopLagMonitor = newEventLoopLagMonitor(workEvLoopGroup);
+            acceptorLagMonitor = newEventLoopLagMonitor(acceptorEvLoopGroup);
+            metrics.registerEventLoopLag(acceptorLagMonitor, "acceptor");
+            metrics.registerEventLoopLag(eventLoopLagMonitor, "worker");
+            if (sslContext != null) {
+                metrics.registerTls(tlsSessionStats, handshakeExecutor);
+            }
+            if (memoryBudget != null) {
+                metrics.registerMemoryBudget(memoryBudget);
+            }
+
+            // Under overload, new connections and requests are rejected early, so tunnels already
+            // open keep their latency.
+            if (config.isAdmissionControl()) {
+                admissionController = newAdmissionController();
+                metrics.registerAdmission(admissionController);
+            }
+            // Idle upstream channels to hot destinations save the TCP handshake of new tunnels.
+            if (config.getPoolSize() > 0) {
+                upstreamPool = newUpstreamPool(upstreamConnector);
+                upstreamConnector.pool(upstreamPool);
+                metrics.registerUpstreamPool(upstreamPool);
+            }
+            if (config.isShaping()) {
+                tunnelShaper = new TunnelShaper(acceptorEvLoopGroup, config.getShapingCheckIntervalMillis())
+                    .globalLimits(config.getGlobalUploadLimit(), config.getGlobalDownloadLimit())
+                    .clientLimits(config.getClientUploadLimit(), config.getClientDownloadLimit())
+                    .tunnelLimits(config.getTunnelUploadLimit(), config.getTunnelDownloadLimit())
+                    .maxQueuedBytes(config.getWriteBufferHighWatermark());
+                metrics.registerShaping(tunnelShaper);
+            }
+            ConnectRequestHandler.Options requestOptions = new ConnectRequestHandler.Options()
+                .upstreamConnector(upstreamConnector)
+                .upstreamLoopSelector(upstreamLoopSelector)
+                .metrics(metrics)
+                .memoryBudget(memoryBudget)
+                .tunnelShaper(tunnelShaper)
+                .timeouts(tunnelTimeouts)
+                .tunnelRegistry(tunnelRegistry);
 
-        try {
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(acceptorEvLoopGroup, workEvLoopGroup)
-                .channel(NioServerSocketChannel.class)
-                .option(ChannelOption.SO_BACKLOG, DEFAULT_SO_BACKLOG)
+                .channel(transport.serverChannelClass())
+                .option(ChannelOption.SO_BACKLOG, config.getSoBacklog())
                 .childOption(ChannelOption.SO_KEEPALIVE, true)
-                .childHandler(new ChannelInitializer<SocketChannel>() {
-                     @Override
-                     public void initChannel(SocketChannel ch) throws Exception {
-                         // PIPELINE: SSL -> HTTP -> CONNECT Validator -> CONNECT handler
-                         SslHandler sslHandler = sslContext.newHandler(ch.alloc());
-                         ch.pipeline()
-                             .addLast(sslHandler)
-                             .addLast(new HttpServerCodec())
-                             .addLast(new ConnectRequestValidatorHandler(hostWhitelist))
-                             .addLast(new ConnectRequestHandler(Arrays.asList(sslHandler)));
-                     }
-                 });
-
-            serverChannel = bootstrap.bind(port).sync().channel();
-            serverChannel.closeFuture().addListener((future) -> {
-                acceptorEvLoopGroup.shutdownGracefully();
-                workEvLoopGroup.shutdownGracefully();
-            });
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark)
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, recvBufAllocator)
+                .childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+                .childOption(ChannelOption.ALLOW_HALF_CLOSURE, config.isHalfClose())
+                .childHandler(newChannelInitializer(sslContext, requestOptions));
+
+            if (clientAcl != null) {
+                // Denied clients are dropped on accept, before their channel is even registered.
+                bootstrap.handler(new ClientAclHandler(clientAcl, metrics));
+            }
+
+            if (socketRcvBuf != null) {
+                // Accepted sockets inherit the receive buffer of the listening socket. It must be
+                // set there, so the TCP window scale is negotiated in the handshake.
+                bootstrap.option(ChannelOption.SO_RCVBUF, socketRcvBuf);
+                bootstrap.childOption(ChannelOption.SO_RCVBUF, socketRcvBuf);
+            }
+            if (socketSndBuf != null) {
+                bootstrap.childOption(ChannelOption.SO_SNDBUF, socketSndBuf);
+            }
 
-            LOG.info("Server started. Port = {}.", port);
+            if (splice) {
+                // splice() requires level-triggered channels. It can only be set before registration.
+                bootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+            }
+
+            if (acceptors > 1) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+
+            // Each bind registers a new listening socket to the next acceptor loop.
+            for (int i = 0; i < acceptors; i++) {
+                serverChannels.add(bootstrap.bind(port).sync().channel());
+            }
+            if (sslContext != null) {
+                acceptorEvLoopGroup.scheduleAtFixedRate(this::logTlsSessionStats,
+                    TLS_STATS_LOG_INTERVAL_SECONDS, TLS_STATS_LOG_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            }
+            if (upstreamPool != null) {
+                acceptorEvLoopGroup.scheduleAtFixedRate(upstreamPool::check, 0,
+                    UpstreamPool.DEFAULT_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (memoryBudget != null) {
+                long interval = config.getMemoryBudgetCheckIntervalMillis();
+                acceptorEvLoopGroup.scheduleAtFixedRate(memoryBudget::update, interval, interval,
+                    TimeUnit.MILLISECONDS);
+            }
+
+            // Metrics and tunnels are served by a separate server, so admin requests never compete
+            // with tunnels.
+            if (config.getAdminPort() > 0) {
+                adminServer = new AdminServer(config.getAdminHost(), config.getAdminPort(), transport)
+                    .addMetrics(metrics.getRegistry())
+                    .addTunnels(tunnelRegistry);
+                adminServer.start();
+            }
+
+            // Closing any listening socket stops the server. Resources are released once all of
+            // them are closed.
+            AtomicInteger openServerChannels = new AtomicInteger(serverChannels.size());
+            for (Channel serverChannel : serverChannels) {
+                serverChannel.closeFuture().addListener((future) -> {
+                    close();
+                    if (openServerChannels.decrementAndGet() == 0) {
+                        closeAdminServer();
+                        closeEventLoopLagMonitor();
+                        closeTunnelShaper();
+                        closeUpstreamPool();
+                        tunnelTimeouts.close();
+                        closeHostWhitelistReloader();
+                        closeProxyAuthenticator();
+                        closeTlsResources();
+                        dnsResolverGroup.close();
+                        acceptorEvLoopGroup.shutdownGracefully();
+                        // Connections closed on shutdown are logged too.
+                        workEvLoopGroup.shutdownGracefully().addListener(f -> closeAccessLog());
+                    }
+                });
+            }
+
+            LOG.info("Server started. Port = {}. Transport = {}. Acceptors = {}. Upstream loop = {}. "
+                + "SSL = {}. HTTP/2 = {}. Splice = {}.", port, transport, acceptors,
+                config.getUpstreamLoopPolicy(), config.isSsl() ? config.getSslProvider() : "OFF",
+                sslContext != null && config.isHttp2(), splice);
         } catch (Throwable t) {
-            acceptorEvLoopGroup.shutdownGracefully();
-            workEvLoopGroup.shutdownGracefully();
+            // Startup may fail at any step (e.g. a malformed rule file): release what was started.
+            closeAdminServer();
+            closeEventLoopLagMonitor();
+            closeTunnelShaper();
+            closeUpstreamPool();
+            if (tunnelTimeouts != null) {
+                tunnelTimeouts.close();
+            }
+            closeHostWhitelistReloader();
+            closeProxyAuthenticator();
+            closeAccessLog();
+            closeTlsResources();
+            if (dnsResolverGroup != null) {
+                dnsResolverGroup.close();
+            }
+            if (acceptorEvLoopGroup != null) {
+                acceptorEvLoopGroup.shutdownGracefully();
+            }
+            if (workEvLoopGroup != null) {
+                workEvLoopGroup.shutdownGracefully();
+            }
 
             throw t;
         }
     }
 
-    public void close() throws InterruptedException {
-        if (serverChannel != null && serverChannel.isOpen()) {
-            serverChannel.close();
+    private void closeAdminServer() {
+        if (adminServer != null) {
+            adminServer.close();
+        }
+    }
+
+    private void closeEventLoopLagMonitor() {
+        if (eventLoopLagMonitor != null) {
+            eventLoopLagMonitor.close();
+        }
+        if (acceptorLagMonitor != null) {
+            acceptorLagMonitor.close();
+        }
+    }
+
+    private void closeUpstreamPool() {
+        if (upstreamPool != null) {
+            upstreamPool.close();
+        }
+    }
+
+    private void closeTunnelShaper() {
+        if (tunnelShaper != null) {
+            tunnelShaper.close();
+        }
+    }
+
+    private void closeHostWhitelistReloader() {
+        if (hostWhitelistReloader != null) {
+            hostWhitelistReloader.close();
+        }
+        for (RuleFileReloader ruleFileReloader : ruleFileReloaders) {
+            ruleFileReloader.close();
+        }
+    }
+
+    private void closeProxyAuthenticator() {
+        if (proxyAuthenticator != null) {
+            proxyAuthenticator.close();
+        }
+    }
+
+    private void closeAccessLog() {
+        if (accessLog != null) {
+            accessLog.close();
+        }
+    }
+
+    /**
+     * Create an address ACL from fixed rules and a rule file, reloaded when it changes.
+     * @return the ACL, or null if there are no rules.
+     * @throws IOException if the file cannot be loaded.
+     */
+    private CidrAcl newCidrAcl(String name, List<String> rules, Path file) throws IOException {
+        if (file == null) {
+            return rules.isEmpty() ? null : new CidrAcl(rules);
+        }
+        CidrAcl acl = new CidrAcl(CidrMatcher.empty());
+        ruleFileReloaders.add(new RuleFileReloader(name, fileRules -> {
+            CidrMatcher matcher = CidrMatcher.compile(fileRules);
+            acl.update(matcher);
+            return matcher.size();
+        }, file, rules, config.getHostWhitelistReloadIntervalMillis()));
+        return acl;
+    }
+
+    /**
+     * Create the authenticator of the clients, with the credentials of the auth file. The file is
+     * reloaded when it changes.
+     * @throws IOException if the file cannot be loaded.
+     */
+    private ProxyAuthenticator newProxyAuthenticator() throws IOException {
+        ProxyAuthenticator authenticator = new ProxyAuthenticator(Credentials.empty(),
+            config.getAuthThreads(), config.getAuthQueueSize())
+            .cacheSize(config.getAuthCacheSize())
+            .cacheTtlMillis(config.getAuthCacheTtlMillis());
+        try {
+            ruleFileReloaders.add(new RuleFileReloader("Credentials", entries -> {
+                Credentials credentials = Credentials.parse(entries);
+                authenticator.update(credentials);
+                return credentials.size();
+            }, config.getAuthFile(), Collections.emptyList(),
+                config.getHostWhitelistReloadIntervalMillis()));
+        } catch (IOException | RuntimeException e) {
+            authenticator.close();
+            throw e;
+        }
+        return authenticator;
+    }
+
+    private void closeTlsResources() {
+        if (ticketKeyRotator != null) {
+            ticketKeyRotator.close();
+        }
+        if (handshakeExecutor != null) {
+            handshakeExecutor.close();
+        }
+    }
+
+    private UpstreamPool newUpstreamPool(UpstreamConnector upstreamConnector) {
+        UpstreamPool pool = new UpstreamPool(upstreamConnector, workEvLoopGroup, config.getPoolSize())
+            .hotRequests(config.getPoolHotRequests())
+            .maxDestinations(config.getPoolMaxDestinations())
+            .idleTimeout(config.getPoolIdleTimeoutMillis())
+            // Upstream channels stay on the loop of their client, unless the policy spreads them.
+            .anyLoop(config.getUpstreamLoopPolicy() != UpstreamLoopPolicy.SAME);
+        for (InetSocketAddress destination : config.getPoolDestinations()) {
+            pool.destination(destination.getHostString(), destination.getPort());
+        }
+        return pool;
+    }
+
+    private EventLoopLagMonitor newEventLoopLagMonitor(EventLoopGroup group) {
+        return new EventLoopLagMonitor(group)
+            .stallLogInterval(config.getEventLoopStallLogIntervalMillis())
+            .stallThreshold(config.getEventLoopStallThresholdMillis());
+    }
+
+    private AdmissionController newAdmissionController() {
+        AdmissionController controller = new AdmissionController()
+            .maxTunnels(config.getMaxTunnels())
+            .maxTunnelsPerClient(config.getMaxTunnelsPerClient())
+            .connectRate(config.getConnectRate(), config.getConnectBurst())
+            .maxPendingConnects(metrics::getPendingUpstreamConnects, config.getMaxPendingConnects());
+        if (config.getMaxEventLoopLagMillis() > 0) {
+            controller.maxEventLoopLag(eventLoopLagMonitor, config.getMaxEventLoopLagMillis());
+        }
+        return controller;
+    }
+
+    /**
+     * Create the server SSL/TLS context. A self-signed certificate is used.
+     * Reconnecting clients resume their sessions from the session cache or from session tickets,
+     * avoiding full handshakes. With HTTP/2, it is offered with ALPN; clients without ALPN, or
+     * selecting HTTP/1.1, go on with HTTP/1.1.
+     * @return the context.
+     * @throws CertificateException
+     * @throws SSLException
+     */
+    private SslContext newSslContext() throws CertificateException, SSLException {
+        // NEXT: Load certificate from file.
+        SelfSignedCertificate ssc = new SelfSignedCertificate();
+        SslContextBuilder builder = SslContextBuilder
+            .forServer(ssc.certificate(), ssc.privateKey())
+            .sslProvider(config.getSslProvider().sslProvider())
+            .sessionCacheSize(config.getSslSessionCacheSize())
+            .sessionTimeout(config.getSslSessionTimeout());
+
+        if (!config.getSslProtocols().isEmpty()) {
+            builder.protocols(config.getSslProtocols());
+        }
+        if (!config.getSslCiphers().isEmpty()) {
+            builder.ciphers(config.getSslCiphers());
+        }
+        if (config.isHttp2()) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(Protocol.ALPN,
+                SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT,
+                ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1));
+        }
+
+        return builder.build();
+    }
+
+    private void logTlsSessionStats() {
+        long handshakes = tlsSessionStats.getHandshakes() + tlsSessionStats.getFailedHandshakes();
+        if (handshakes != lastLoggedHandshakes) {
+            lastLoggedHandshakes = handshakes;
+            LOG.info("TLS sessions. {}{}", tlsSessionStats,
+                handshakeExecutor != null ? " " + handshakeExecutor : "");
+        }
+    }
+
+    /**
+     * @return executor of SSL/TLS handshake tasks, or null if they run on the event loops.
+     */
+    public HandshakeExecutor getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    /**
+     * @return counters of client TLS handshakes.
+     */
+    public TlsSessionStats getTlsSessionStats() {
+        return tlsSessionStats;
+    }
+
+    /**
+     * @return memory budget of the tunnels, or null if there is no limit.
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return timeouts of client connections and tunnels.
+     */
+    public TunnelTimeouts getTunnelTimeouts() {
+        return tunnelTimeouts;
+    }
+
+    /**
+     * @return open tunnels.
+     */
+    public TunnelRegistry getTunnelRegistry() {
+        return tunnelRegistry;
+    }
+
+    /**
+     * @return health of the upstream destinations, or null if the circuit breaker is disabled.
+     */
+    public UpstreamHealth getUpstreamHealth() {
+        return upstreamHealth;
+    }
+
+    /**
+     * @return pool of upstream channels, or null if it is disabled.
+     */
+    public UpstreamPool getUpstreamPool() {
+        return upstreamPool;
+    }
+
+    /**
+     * @return authenticator of the clients, or null if authentication is not required.
+     */
+    public ProxyAuthenticator getProxyAuthenticator() {
+        return proxyAuthenticator;
+    }
+
+    /**
+     * @return access log, or null if it is disabled.
+     */
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * @return metrics of the proxy.
+     */
+    public ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Create the DNS resolvers for upstream connections. There is one resolver per event loop;
+     * all of them share the same cache, and concurrent resolutions of the same host name are
+     * coalesced into one query.
+     * @param transport transport of the event loops.
+     * @return the resolver group.
+     * @throws IOException
+     */
+    private DnsAddressResolverGroup newDnsResolverGroup(Transport transport) throws IOException {
+        DnsNameResolverBuilder builder = new DnsNameResolverBuilder()
+            .channelType(transport.datagramChannelClass())
+            .resolveCache(new BoundedDnsCache(config.getDnsCacheSize(), config.getDnsMinTtl(),
+                config.getDnsMaxTtl(), config.getDnsNegativeTtl()))
+            .queryTimeoutMillis(config.getDnsQueryTimeoutMillis());
+
+        if (config.getDnsServers().isEmpty()) {
+            builder.nameServerProvider(DnsServerAddressStreamProviders.platformDefault());
+        } else {
+            builder.nameServerProvider(
+                new SequentialDnsServerAddressStreamProvider(config.getDnsServers()));
+        }
+
+        if (config.getDnsHostsFile() != null) {
+            builder.hostsFileEntriesResolver(new HostsFileResolver(config.getDnsHostsFile().toFile()));
+        }
+
+        return new DnsAddressResolverGroup(builder);
+    }
+
+    private ChannelInitializer<SocketChannel> newChannelInitializer(SslContext sslContext,
+            ConnectRequestHandler.Options requestOptions) {
+        ChannelHandler streamInitializer = sslContext != null && config.isHttp2()
+            ? newStreamInitializer(requestOptions) : null;
+        return new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+                // PIPELINE: [SSL ->] [ALPN ->] CONNECT Decoder -> [Auth ->] CONNECT Validator ->
+                //           [Admission ->] CONNECT handler
+                // With HTTP/2, ALPN replaces the handlers after it: see newStreamInitializer.
+                metrics.connectionAccepted();
+                if (admissionController != null) {
+                    // Shed before spending a TLS handshake on the connection.
+                    Rejection rejection = admissionController.shed(ch);
+                    if (rejection != null) {
+                        LOG.debug("Connection {} shed. Reason: {}.", ch.id(), rejection);
+                        ch.close();
+                        return;
+                    }
+                }
+                if (accessLog != null) {
+                    accessLog.watch(ch);
+                }
+                List<ChannelHandler> mandatoryHandlers = Collections.emptyList();
+                SslHandler sslHandler = null;
+                if (sslContext != null) {
+                    sslHandler = handshakeExecutor != null
+                        ? sslContext.newHandler(ch.alloc(), handshakeExecutor)
+                        : sslContext.newHandler(ch.alloc());
+                    tlsSessionStats.track(sslHandler);
+                    ch.pipeline().addLast(sslHandler);
+                    mandatoryHandlers = Arrays.asList(sslHandler);
+                }
+                tunnelTimeouts.watchHandshake(ch, sslHandler);
+                if (streamInitializer != null) {
+                    ch.pipeline().addLast(new Http2FrontendHandler(streamInitializer,
+                        config.getHttp2MaxConcurrentStreams(), config.getHttp2InitialWindowSize(), metrics));
+                }
+
+                ch.pipeline().addLast(new ConnectRequestDecoder(config.getMaxHeaderSize(), metrics,
+                    config.getMaxEarlyData()));
+                addRequestHandlers(ch.pipeline(), mandatoryHandlers, requestOptions);
+            }
+        };
+    }
+
+    /**
+     * Create the initializer of HTTP/2 streams. Each stream carries a CONNECT request and, if it
+     * is accepted, its tunnel.
+     */
+    private ChannelInitializer<Http2StreamChannel> newStreamInitializer(
+            ConnectRequestHandler.Options requestOptions) {
+        return new ChannelInitializer<Http2StreamChannel>() {
+            @Override
+            public void initChannel(Http2StreamChannel ch) throws Exception {
+                // PIPELINE: HTTP/2 DATA codec -> CONNECT Decoder -> [Auth ->] CONNECT Validator ->
+                //           [Admission ->] CONNECT handler
+                // The connection has sent a request: it is no longer reaped by the handshake timeout.
+                tunnelTimeouts.requestReceived(ch.parent());
+                if (accessLog != null) {
+                    accessLog.watch(ch);
+                }
+                Http2DataCodec codec = new Http2DataCodec(config.isHalfClose());
+                ch.pipeline().addLast(codec, new Http2ConnectRequestDecoder(metrics));
+                addRequestHandlers(ch.pipeline(), Arrays.asList(codec), requestOptions);
+            }
+        };
+    }
+
+    private void addRequestHandlers(ChannelPipeline pipeline, List<ChannelHandler> mandatoryHandlers,
+            ConnectRequestHandler.Options requestOptions) {
+        if (proxyAuthenticator != null) {
+            pipeline.addLast(new ProxyAuthorizationHandler(proxyAuthenticator, metrics));
+        }
+        pipeline.addLast(new ConnectRequestValidatorHandler(hostWhitelist, destinationAcl, metrics));
+        if (admissionController != null) {
+            pipeline.addLast(new AdmissionHandler(admissionController, metrics));
+        }
+        pipeline.addLast(new ConnectRequestHandler(mandatoryHandlers, requestOptions));
+    }
+
+    public void close() {
+        for (Channel serverChannel : serverChannels) {
+            if (serverChannel.isOpen()) {
+                serverChannel.close();
+            }
         }
     }
 
     public void waitForClose() throws InterruptedException {
-        if (serverChannel != null && serverChannel.isOpen()) {
+        for (Channel serverChannel : serverChannels) {
             serverChannel.closeFuture().sync();
         }
     }
@@ -0,0 +1,1461 @@
+package connect.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import connect.proxy.accesslog.AccessLog;
+import connect.proxy.auth.ProxyAuthenticator;
+import connect.proxy.channel.EventLoopLagMonitor;
+import connect.proxy.channel.Transport;
+import connect.proxy.channel.TunnelShaper;
+import connect.proxy.channel.UpstreamLoopPolicy;
+import connect.proxy.channel.UpstreamPool;
+import connect.proxy.channel.UpstreamConnector;
+import connect.proxy.channel.handlers.ConnectRequestDecoder;
+import connect.proxy.health.UpstreamHealth;
+import connect.proxy.tls.TlsProvider;
+
+/**
+ * Configuration of the proxy server.
+ *
+ * It can be loaded from a properties file. Missing properties keep their default values.
+ *
+ * @author carlos
+ *
+ */
+public class ProxyServerConfig {
+    public static final int DEFAULT_PORT = 8443;
+    public static final String[] DEFAULT_HOST_WHITELIST = new String[] { "localhost" };
+    public static final int DEFAULT_ACCEPTORS = 1;
+    public static final int DEFAULT_SO_BACKLOG = 1024;
+    public static final long DEFAULT_SSL_SESSION_CACHE_SIZE = 20000;
+    public static final long DEFAULT_SSL_SESSION_TIMEOUT = 3600;
+    public static final long DEFAULT_SSL_TICKET_KEY_ROTATION_MILLIS = 3600 * 1000;
+    public static final int DEFAULT_SSL_HANDSHAKE_QUEUE_SIZE = 1024;
+    public static final int DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS = 100;
+    public static final int DEFAULT_HTTP2_INITIAL_WINDOW_SIZE = 65535;
+    public static final int DEFAULT_MAX_HEADER_SIZE = ConnectRequestDecoder.DEFAULT_MAX_HEADER_SIZE;
+    public static final int DEFAULT_MAX_EARLY_DATA = ConnectRequestDecoder.DEFAULT_MAX_EARLY_DATA;
+    public static final int DEFAULT_WRITE_BUFFER_LOW_WATERMARK = 64 * 1024;
+    public static final int DEFAULT_WRITE_BUFFER_HIGH_WATERMARK = 256 * 1024;
+    public static final int DEFAULT_RECV_BUFFER_MIN = 64;
+    public static final int DEFAULT_RECV_BUFFER_INITIAL = 2048;
+    public static final int DEFAULT_RECV_BUFFER_MAX = 64 * 1024;
+    public static final long DEFAULT_MEMORY_BUDGET_CHECK_INTERVAL_MILLIS = 100;
+    public static final long DEFAULT_HOST_WHITELIST_RELOAD_INTERVAL_MILLIS = 5000;
+    public static final int DEFAULT_DNS_CACHE_SIZE = 10000;
+    public static final int DEFAULT_DNS_MIN_TTL = 0;
+    public static final int DEFAULT_DNS_MAX_TTL = 3600;
+    public static final int DEFAULT_DNS_NEGATIVE_TTL = 10;
+    public static final long DEFAULT_DNS_QUERY_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_DNS_PORT = 53;
+    public static final long DEFAULT_CONNECT_ATTEMPT_DELAY_MILLIS =
+        UpstreamConnector.DEFAULT_ATTEMPT_DELAY_MILLIS;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS =
+        UpstreamConnector.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    public static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = UpstreamHealth.DEFAULT_FAILURE_THRESHOLD;
+    public static final long DEFAULT_CIRCUIT_OPEN_DURATION_MILLIS = UpstreamHealth.DEFAULT_OPEN_DURATION_MILLIS;
+    public static final int DEFAULT_CIRCUIT_MAX_DESTINATIONS = UpstreamHealth.DEFAULT_MAX_DESTINATIONS;
+    public static final long DEFAULT_POOL_IDLE_TIMEOUT_MILLIS = UpstreamPool.DEFAULT_IDLE_TIMEOUT_MILLIS;
+    public static final int DEFAULT_POOL_HOT_REQUESTS = UpstreamPool.DEFAULT_HOT_REQUESTS;
+    public static final int DEFAULT_POOL_MAX_DESTINATIONS = UpstreamPool.DEFAULT_MAX_DESTINATIONS;
+    public static final int DEFAULT_AUTH_THREADS = ProxyAuthenticator.DEFAULT_THREADS;
+    public static final int DEFAULT_AUTH_QUEUE_SIZE = ProxyAuthenticator.DEFAULT_QUEUE_SIZE;
+    public static final int DEFAULT_AUTH_CACHE_SIZE = ProxyAuthenticator.DEFAULT_CACHE_SIZE;
+    public static final long DEFAULT_AUTH_CACHE_TTL_MILLIS = ProxyAuthenticator.DEFAULT_CACHE_TTL_MILLIS;
+    public static final String DEFAULT_ADMIN_HOST = "127.0.0.1";
+    public static final long DEFAULT_ACCESS_LOG_MAX_SIZE = AccessLog.DEFAULT_MAX_FILE_SIZE;
+    public static final int DEFAULT_ACCESS_LOG_MAX_FILES = AccessLog.DEFAULT_MAX_FILES;
+    public static final int DEFAULT_ACCESS_LOG_BUFFER_SIZE = AccessLog.DEFAULT_BUFFER_SIZE;
+    public static final long DEFAULT_EVENT_LOOP_STALL_THRESHOLD_MILLIS = 500;
+    public static final long DEFAULT_EVENT_LOOP_STALL_LOG_INTERVAL_MILLIS =
+        EventLoopLagMonitor.DEFAULT_STALL_LOG_INTERVAL_MILLIS;
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    public static final long DEFAULT_SHAPING_CHECK_INTERVAL_MILLIS = TunnelShaper.DEFAULT_CHECK_INTERVAL_MILLIS;
+
+    private int port = DEFAULT_PORT;
+    private Set<String> hostWhitelist = new LinkedHashSet<>(Arrays.asList(DEFAULT_HOST_WHITELIST));
+    private Path hostWhitelistFile;
+    private long hostWhitelistReloadIntervalMillis = DEFAULT_HOST_WHITELIST_RELOAD_INTERVAL_MILLIS;
+    private List<String> destinationAcl = Collections.emptyList();
+    private Path destinationAclFile;
+    private List<String> clientAcl = Collections.emptyList();
+    private Path clientAclFile;
+    private Path authFile;
+    private int authThreads = DEFAULT_AUTH_THREADS;
+    private int authQueueSize = DEFAULT_AUTH_QUEUE_SIZE;
+    private int authCacheSize = DEFAULT_AUTH_CACHE_SIZE;
+    private long authCacheTtlMillis = DEFAULT_AUTH_CACHE_TTL_MILLIS;
+    private Transport transport = Transport.best();
+    private int acceptors = DEFAULT_ACCEPTORS;
+    private int workerThreads;
+    private int soBacklog = DEFAULT_SO_BACKLOG;
+    private UpstreamLoopPolicy upstreamLoopPolicy = UpstreamLoopPolicy.SAME;
+    private boolean ssl = true;
+    private TlsProvider sslProvider = TlsProvider.best();
+    private List<String> sslProtocols = Collections.emptyList();
+    private List<String> sslCiphers = Collections.emptyList();
+    private long sslSessionCacheSize = DEFAULT_SSL_SESSION_CACHE_SIZE;
+    private long sslSessionTimeout = DEFAULT_SSL_SESSION_TIMEOUT;
+    private long sslTicketKeyRotationMillis = DEFAULT_SSL_TICKET_KEY_ROTATION_MILLIS;
+    private int sslHandshakeThreads;
+    private int sslHandshakeQueueSize = DEFAULT_SSL_HANDSHAKE_QUEUE_SIZE;
+    private boolean http2 = true;
+    private int http2MaxConcurrentStreams = DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS;
+    private int http2InitialWindowSize = DEFAULT_HTTP2_INITIAL_WINDOW_SIZE;
+    private boolean splice = false;
+    private int maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+    private int maxEarlyData = DEFAULT_MAX_EARLY_DATA;
+    private int writeBufferLowWatermark = DEFAULT_WRITE_BUFFER_LOW_WATERMARK;
+    private int writeBufferHighWatermark = DEFAULT_WRITE_BUFFER_HIGH_WATERMARK;
+    private int recvBufferMin = DEFAULT_RECV_BUFFER_MIN;
+    private int recvBufferInitial = DEFAULT_RECV_BUFFER_INITIAL;
+    private int recvBufferMax = DEFAULT_RECV_BUFFER_MAX;
+    private int socketRcvBuf;
+    private int socketSndBuf;
+    private boolean tcpNoDelay = true;
+    private boolean upstreamFastOpen;
+    private long memoryBudget;
+    private long memoryBudgetCheckIntervalMillis = DEFAULT_MEMORY_BUDGET_CHECK_INTERVAL_MILLIS;
+    private int dnsCacheSize = DEFAULT_DNS_CACHE_SIZE;
+    private int dnsMinTtl = DEFAULT_DNS_MIN_TTL;
+    private int dnsMaxTtl = DEFAULT_DNS_MAX_TTL;
+    private int dnsNegativeTtl = DEFAULT_DNS_NEGATIVE_TTL;
+    private long dnsQueryTimeoutMillis = DEFAULT_DNS_QUERY_TIMEOUT_MILLIS;
+    private List<InetSocketAddress> dnsServers = Collections.emptyList();
+    private Path dnsHostsFile;
+    private long connectAttemptDelayMillis = DEFAULT_CONNECT_ATTEMPT_DELAY_MILLIS;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int circuitFailureThreshold = DEFAULT_CIRCUIT_FAILURE_THRESHOLD;
+    private long circuitOpenDurationMillis = DEFAULT_CIRCUIT_OPEN_DURATION_MILLIS;
+    private int circuitMaxDestinations = DEFAULT_CIRCUIT_MAX_DESTINATIONS;
+    private int poolSize;
+    private List<InetSocketAddress> poolDestinations = Collections.emptyList();
+    private int poolHotRequests = DEFAULT_POOL_HOT_REQUESTS;
+    private int poolMaxDestinations = DEFAULT_POOL_MAX_DESTINATIONS;
+    private long poolIdleTimeoutMillis = DEFAULT_POOL_IDLE_TIMEOUT_MILLIS;
+    private long handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+    private long idleTimeoutMillis;
+    private boolean halfClose = true;
+    private int adminPort;
+    private String adminHost = DEFAULT_ADMIN_HOST;
+    private Path accessLogFile;
+    private long accessLogMaxSize = DEFAULT_ACCESS_LOG_MAX_SIZE;
+    private int accessLogMaxFiles = DEFAULT_ACCESS_LOG_MAX_FILES;
+    private int accessLogBufferSize = DEFAULT_ACCESS_LOG_BUFFER_SIZE;
+    private long eventLoopStallThresholdMillis = DEFAULT_EVENT_LOOP_STALL_THRESHOLD_MILLIS;
+    private long eventLoopStallLogIntervalMillis = DEFAULT_EVENT_LOOP_STALL_LOG_INTERVAL_MILLIS;
+    private int maxTunnels;
+    private int maxTunnelsPerClient;
+    private int connectRate;
+    private int connectBurst;
+    private long maxEventLoopLagMillis;
+    private int maxPendingConnects;
+    private long globalUploadLimit;
+    private long globalDownloadLimit;
+    private long clientUploadLimit;
+    private long clientDownloadLimit;
+    private long tunnelUploadLimit;
+    private long tunnelDownloadLimit;
+    private long shapingCheckIntervalMillis = DEFAULT_SHAPING_CHECK_INTERVAL_MILLIS;
+
+    /**
+     * Load configuration from a properties file.
+     * @param path properties file path.
+     * @return the configuration.
+     * @throws IOException
+     */
+    public static ProxyServerConfig load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+        }
+        return fromProperties(properties);
+    }
+
+    /**
+     * Build configuration from properties.
+     * @param properties configuration properties.
+     * @return the configuration.
+     */
+    public static ProxyServerConfig fromProperties(Properties properties) {
+        ProxyServerConfig config = new ProxyServerConfig();
+
+        config.port = intProperty(properties, "port", config.port);
+        if (properties.containsKey("host.whitelist.file")) {
+            config.hostWhitelistFile = Paths.get(properties.getProperty("host.whitelist.file").trim());
+            // The file replaces the default whitelist.
+            config.setHostWhitelist();
+        }
+        if (properties.containsKey("host.whitelist")) {
+            config.setHostWhitelist(properties.getProperty("host.whitelist").split("\\s*,\\s*"));
+        }
+        config.hostWhitelistReloadIntervalMillis = longProperty(properties,
+            "host.whitelist.reload.interval", config.hostWhitelistReloadIntervalMillis);
+        if (properties.containsKey("destination.acl")) {
+            config.setDestinationAcl(properties.getProperty("destination.acl").trim().split("\\s*,\\s*"));
+        }
+        if (properties.containsKey("destination.acl.file")) {
+            config.destinationAclFile = Paths.get(properties.getProperty("destination.acl.file").trim());
+        }
+        if (properties.containsKey("client.acl")) {
+            config.setClientAcl(properties.getProperty("client.acl").trim().split("\\s*,\\s*"));
+        }
+        if (properties.containsKey("client.acl.file")) {
+            config.clientAclFile = Paths.get(properties.getProperty("client.acl.file").trim());
+        }
+        if (properties.containsKey("auth.file")) {
+            config.authFile = Paths.get(properties.getProperty("auth.file").trim());
+        }
+        config.authThreads = intProperty(properties, "auth.threads", config.authThreads);
+        config.authQueueSize = intProperty(properties, "auth.queue.size", config.authQueueSize);
+        config.authCacheSize = intProperty(properties, "auth.cache.size", config.authCacheSize);
+        config.authCacheTtlMillis = longProperty(properties, "auth.cache.ttl", config.authCacheTtlMillis);
+        if (properties.containsKey("transport")) {
+            config.transport = Transport.parse(properties.getProperty("transport").trim());
+        }
+        config.acceptors = intProperty(properties, "acceptors", config.acceptors);
+        config.workerThreads = intProperty(properties, "worker.threads", config.workerThreads);
+        config.soBacklog = intProperty(properties, "so.backlog", config.soBacklog);
+        if (properties.containsKey("upstream.event.loop")) {
+            config.upstreamLoopPolicy = UpstreamLoopPolicy.parse(properties.getProperty("upstream.event.loop"));
+        }
+        config.ssl = booleanProperty(properties, "ssl", config.ssl);
+        if (properties.containsKey("ssl.provider")) {
+            config.sslProvider = TlsProvider.parse(properties.getProperty("ssl.provider").trim());
+        }
+        if (properties.containsKey("ssl.protocols")) {
+            config.setSslProtocols(properties.getProperty("ssl.protocols").trim().split("\\s*,\\s*"));
+        }
+        if (properties.containsKey("ssl.ciphers")) {
+            config.setSslCiphers(properties.getProperty("ssl.ciphers").trim().split("\\s*,\\s*"));
+        }
+        config.sslSessionCacheSize = longProperty(properties, "ssl.session.cache.size",
+            config.sslSessionCacheSize);
+        config.sslSessionTimeout = longProperty(properties, "ssl.session.timeout",
+            config.sslSessionTimeout);
+        config.sslTicketKeyRotationMillis = longProperty(properties, "ssl.ticket.key.rotation",
+            config.sslTicketKeyRotationMillis);
+        config.sslHandshakeThreads = intProperty(properties, "ssl.handshake.threads",
+            config.sslHandshakeThreads);
+        config.sslHandshakeQueueSize = intProperty(properties, "ssl.handshake.queue.size",
+            config.sslHandshakeQueueSize);
+        config.http2 = booleanProperty(properties, "http2", config.http2);
+        config.http2MaxConcurrentStreams = intProperty(properties, "http2.max.concurrent.streams",
+            config.http2MaxConcurrentStreams);
+        config.http2InitialWindowSize = intProperty(properties, "http2.initial.window.size",
+            config.http2InitialWindowSize);
+        config.splice = booleanProperty(properties, "splice", config.splice);
+        config.maxHeaderSize = intProperty(properties, "http.max.header.size", config.maxHeaderSize);
+        config.maxEarlyData = intProperty(properties, "early.data.max", config.maxEarlyData);
+        config.writeBufferLowWatermark = intProperty(properties, "write.buffer.low.watermark",
+            config.writeBufferLowWatermark);
+        config.writeBufferHighWatermark = intProperty(properties, "write.buffer.high.watermark",
+            config.writeBufferHighWatermark);
+        config.recvBufferMin = intProperty(properties, "recv.buffer.min", config.recvBufferMin);
+        config.recvBufferInitial = intProperty(properties, "recv.buffer.initial", config.recvBufferInitial);
+        config.recvBufferMax = intProperty(properties, "recv.buffer.max", config.recvBufferMax);
+        config.socketRcvBuf = intProperty(properties, "socket.rcvbuf", config.socketRcvBuf);
+        config.socketSndBuf = intProperty(properties, "socket.sndbuf", config.socketSndBuf);
+        config.tcpNoDelay = booleanProperty(properties, "tcp.nodelay", config.tcpNoDelay);
+        config.upstreamFastOpen = booleanProperty(properties, "upstream.fast.open",
+            config.upstreamFastOpen);
+        config.memoryBudget = longProperty(properties, "memory.budget", config.memoryBudget);
+        config.memoryBudgetCheckIntervalMillis = longProperty(properties, "memory.budget.check.interval",
+            config.memoryBudgetCheckIntervalMillis);
+        config.dnsCacheSize = intProperty(properties, "dns.cache.size", config.dnsCacheSize);
+        config.dnsMinTtl = intProperty(properties, "dns.ttl.min", config.dnsMinTtl);
+        config.dnsMaxTtl = intProperty(properties, "dns.ttl.max", config.dnsMaxTtl);
+        config.dnsNegativeTtl = intProperty(properties, "dns.ttl.negative", config.dnsNegativeTtl);
+        config.dnsQueryTimeoutMillis = longProperty(properties, "dns.query.timeout",
+            config.dnsQueryTimeoutMillis);
+        if (properties.containsKey("dns.servers")) {
+            config.setDnsServers(properties.getProperty("dns.servers").trim().split("\\s*,\\s*"));
+        }
+        if (properties.containsKey("dns.hosts.file")) {
+            config.dnsHostsFile = Paths.get(properties.getProperty("dns.hosts.file").trim());
+        }
+        config.connectAttemptDelayMillis = longProperty(properties, "connect.attempt.delay",
+            config.connectAttemptDelayMillis);
+        config.connectTimeoutMillis = intProperty(properties, "connect.timeout",
+            config.connectTimeoutMillis);
+        config.circuitFailureThreshold = intProperty(properties, "circuit.failure.threshold",
+            config.circuitFailureThreshold);
+        config.circuitOpenDurationMillis = longProperty(properties, "circuit.open.duration",
+            config.circuitOpenDurationMillis);
+        config.circuitMaxDestinations = intProperty(properties, "circuit.max.destinations",
+            config.circuitMaxDestinations);
+        config.poolSize = intProperty(properties, "pool.size", config.poolSize);
+        if (properties.containsKey("pool.destinations")) {
+            config.setPoolDestinations(properties.getProperty("pool.destinations").trim().split("\\s*,\\s*"));
+        }
+        config.poolHotRequests = intProperty(properties, "pool.hot.requests", config.poolHotRequests);
+        config.poolMaxDestinations = intProperty(properties, "pool.max.destinations",
+            config.poolMaxDestinations);
+        config.poolIdleTimeoutMillis = longProperty(properties, "pool.idle.timeout",
+            config.poolIdleTimeoutMillis);
+        config.handshakeTimeoutMillis = longProperty(properties, "handshake.timeout",
+            config.handshakeTimeoutMillis);
+        config.idleTimeoutMillis = longProperty(properties, "idle.timeout", config.idleTimeoutMillis);
+        config.halfClose = booleanProperty(properties, "half.close", config.halfClose);
+        config.adminPort = intProperty(properties, "admin.port", config.adminPort);
+        if (properties.containsKey("admin.host")) {
+            config.adminHost = properties.getProperty("admin.host").trim();
+        }
+        if (properties.containsKey("access.log.file")) {
+            config.accessLogFile = Paths.get(properties.getProperty("access.log.file").trim());
+        }
+        config.accessLogMaxSize = longProperty(properties, "access.log.max.size", config.accessLogMaxSize);
+        config.accessLogMaxFiles = intProperty(properties, "access.log.max.files", config.accessLogMaxFiles);
+        config.accessLogBufferSize = intProperty(properties, "access.log.buffer.size",
+            config.accessLogBufferSize);
+        config.eventLoopStallThresholdMillis = longProperty(properties, "event.loop.stall.threshold",
+            config.eventLoopStallThresholdMillis);
+        config.eventLoopStallLogIntervalMillis = longProperty(properties, "event.loop.stall.log.interval",
+            config.eventLoopStallLogIntervalMillis);
+        config.maxTunnels = intProperty(properties, "admission.max.tunnels", config.maxTunnels);
+        config.maxTunnelsPerClient = intProperty(properties, "admission.max.tunnels.per.client",
+            config.maxTunnelsPerClient);
+        config.connectRate = intProperty(properties, "admission.connect.rate", config.connectRate);
+        config.connectBurst = intProperty(properties, "admission.connect.burst", config.connectBurst);
+        config.maxEventLoopLagMillis = longProperty(properties, "admission.max.event.loop.lag",
+            config.maxEventLoopLagMillis);
+        config.maxPendingConnects = intProperty(properties, "admission.max.pending.connects",
+            config.maxPendingConnects);
+        config.globalUploadLimit = longProperty(properties, "shaping.global.upload", config.globalUploadLimit);
+        config.globalDownloadLimit = longProperty(properties, "shaping.global.download",
+            config.globalDownloadLimit);
+        config.clientUploadLimit = longProperty(properties, "shaping.client.upload", config.clientUploadLimit);
+        config.clientDownloadLimit = longProperty(properties, "shaping.client.download",
+            config.clientDownloadLimit);
+        config.tunnelUploadLimit = longProperty(properties, "shaping.tunnel.upload", config.tunnelUploadLimit);
+        config.tunnelDownloadLimit = longProperty(properties, "shaping.tunnel.download",
+            config.tunnelDownloadLimit);
+        config.shapingCheckIntervalMillis = longProperty(properties, "shaping.check.interval",
+            config.shapingCheckIntervalMillis);
+
+        return config;
+    }
+
+    /**
+     * Parse a socket address in format host[:port] or [ipv6][:port].
+     * @param address socket address.
+     * @param defaultPort port used if the address does not have one.
+     * @return unresolved socket address.
+     */
+    public static InetSocketAddress parseSocketAddress(String address, int defaultPort) {
+        String host = address;
+        int port = defaultPort;
+
+        int portSeparator = address.lastIndexOf(':');
+        if (address.startsWith("[")) {
+            int hostEnd = address.indexOf(']');
+            host = address.substring(1, hostEnd);
+            if (portSeparator > hostEnd) {
+                port = Integer.parseInt(address.substring(portSeparator + 1));
+            }
+        } else if (portSeparator >= 0 && portSeparator == address.indexOf(':')) {
+            host = address.substring(0, portSeparator);
+            port = Integer.parseInt(address.substring(portSeparator + 1));
+        }
+
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    private static List<String> nonEmpty(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values) {
+            if (!value.isEmpty()) {
+                list.add(value);
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    private static long longProperty(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private static int intProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static boolean booleanProperty(Properties properties, String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ProxyServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public Set<String> getHostWhitelist() {
+        return hostWhitelist;
+    }
+
+    public ProxyServerConfig setHostWhitelist(String... hostWhitelist) {
+        this.hostWhitelist = new LinkedHashSet<>(Arrays.asList(hostWhitelist));
+        return this;
+    }
+
+    /**
+     * @return file with whitelist rules, one per line. It is reloaded when modified. Its rules are
+     *         added to the host whitelist. If null, only the host whitelist is used.
+     */
+    public Path getHostWhitelistFile() {
+        return hostWhitelistFile;
+    }
+
+    public ProxyServerConfig setHostWhitelistFile(Path hostWhitelistFile) {
+        this.hostWhitelistFile = hostWhitelistFile;
+        return this;
+    }
+
+    public long getHostWhitelistReloadIntervalMillis() {
+        return hostWhitelistReloadIntervalMillis;
+    }
+
+    public ProxyServerConfig setHostWhitelistReloadIntervalMillis(long hostWhitelistReloadIntervalMillis) {
+        this.hostWhitelistReloadIntervalMillis = hostWhitelistReloadIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @return address rules ([!]address[/prefix]) of IP literal destinations. A matching rule
+     *         overrides the host whitelist.
+     */
+    public List<String> getDestinationAcl() {
+        return destinationAcl;
+    }
+
+    public ProxyServerConfig setDestinationAcl(String... destinationAcl) {
+        this.destinationAcl = Arrays.asList(destinationAcl);
+        return this;
+    }
+
+    /**
+     * @return file with destination address rules, one per line. It is reloaded when modified, as
+     *         the whitelist file. Its rules are added to the destination ACL.
+     */
+    public Path getDestinationAclFile() {
+        return destinationAclFile;
+    }
+
+    public ProxyServerConfig setDestinationAclFile(Path destinationAclFile) {
+        this.destinationAclFile = destinationAclFile;
+        return this;
+    }
+
+    /**
+     * @return address rules ([!]address[/prefix]) of clients. If there is an allow rule, clients
+     *         that no rule matches are denied.
+     */
+    public List<String> getClientAcl() {
+        return clientAcl;
+    }
+
+    public ProxyServerConfig setClientAcl(String... clientAcl) {
+        this.clientAcl = Arrays.asList(clientAcl);
+        return this;
+    }
+
+    /**
+     * @return file with client address rules, one per line. It is reloaded when modified, as the
+     *         whitelist file. Its rules are added to the client ACL.
+     */
+    public Path getClientAclFile() {
+        return clientAclFile;
+    }
+
+    public ProxyServerConfig setClientAclFile(Path clientAclFile) {
+        this.clientAclFile = clientAclFile;
+        return this;
+    }
+
+    /**
+     * @return file with the credentials of the users (user:hash, one per line), or null to not
+     *         require authentication. It is reloaded when modified, as the whitelist file.
+     */
+    public Path getAuthFile() {
+        return authFile;
+    }
+
+    public ProxyServerConfig setAuthFile(Path authFile) {
+        this.authFile = authFile;
+        return this;
+    }
+
+    /**
+     * @return number of threads verifying password hashes.
+     */
+    public int getAuthThreads() {
+        return authThreads;
+    }
+
+    public ProxyServerConfig setAuthThreads(int authThreads) {
+        this.authThreads = authThreads;
+        return this;
+    }
+
+    /**
+     * @return password verifications waiting for a thread. Requests needing a verification beyond
+     *         this limit get 503.
+     */
+    public int getAuthQueueSize() {
+        return authQueueSize;
+    }
+
+    public ProxyServerConfig setAuthQueueSize(int authQueueSize) {
+        this.authQueueSize = authQueueSize;
+        return this;
+    }
+
+    /**
+     * @return maximum number of cached verified credentials, or 0 to verify every request.
+     */
+    public int getAuthCacheSize() {
+        return authCacheSize;
+    }
+
+    public ProxyServerConfig setAuthCacheSize(int authCacheSize) {
+        this.authCacheSize = authCacheSize;
+        return this;
+    }
+
+    /**
+     * @return time in milliseconds verified credentials are cached.
+     */
+    public long getAuthCacheTtlMillis() {
+        return authCacheTtlMillis;
+    }
+
+    public ProxyServerConfig setAuthCacheTtlMillis(long authCacheTtlMillis) {
+        this.authCacheTtlMillis = authCacheTtlMillis;
+        return this;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public ProxyServerConfig setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * @return number of listening sockets, each with its own acceptor thread. More than one
+     *         socket requires SO_REUSEPORT (EPOLL transport).
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public ProxyServerConfig setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+        return this;
+    }
+
+    /**
+     * @return threads of the worker event loops. If 0, the Netty default (2 * cores) is used.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public ProxyServerConfig setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * @return accept queue length of the listening sockets. The kernel caps it (somaxconn).
+     */
+    public int getSoBacklog() {
+        return soBacklog;
+    }
+
+    public ProxyServerConfig setSoBacklog(int soBacklog) {
+        this.soBacklog = soBacklog;
+        return this;
+    }
+
+    /**
+     * @return policy for choosing the event loop of upstream channels.
+     */
+    public UpstreamLoopPolicy getUpstreamLoopPolicy() {
+        return upstreamLoopPolicy;
+    }
+
+    public ProxyServerConfig setUpstreamLoopPolicy(UpstreamLoopPolicy upstreamLoopPolicy) {
+        this.upstreamLoopPolicy = upstreamLoopPolicy;
+        return this;
+    }
+
+    /**
+     * @return whether client connections to the proxy use SSL/TLS.
+     */
+    public boolean isSsl() {
+        return ssl;
+    }
+
+    public ProxyServerConfig setSsl(boolean ssl) {
+        this.ssl = ssl;
+        return this;
+    }
+
+    public TlsProvider getSslProvider() {
+        return sslProvider;
+    }
+
+    public ProxyServerConfig setSslProvider(TlsProvider sslProvider) {
+        this.sslProvider = sslProvider;
+        return this;
+    }
+
+    /**
+     * @return enabled TLS protocols (e.g. TLSv1.3). If empty, the provider defaults are used.
+     */
+    public List<String> getSslProtocols() {
+        return sslProtocols;
+    }
+
+    public ProxyServerConfig setSslProtocols(String... sslProtocols) {
+        this.sslProtocols = nonEmpty(sslProtocols);
+        return this;
+    }
+
+    /**
+     * @return enabled cipher suites in order of preference. If empty, the provider defaults are used.
+     */
+    public List<String> getSslCiphers() {
+        return sslCiphers;
+    }
+
+    public ProxyServerConfig setSslCiphers(String... sslCiphers) {
+        this.sslCiphers = nonEmpty(sslCiphers);
+        return this;
+    }
+
+    /**
+     * @return maximum number of sessions kept in the server session cache.
+     */
+    public long getSslSessionCacheSize() {
+        return sslSessionCacheSize;
+    }
+
+    public ProxyServerConfig setSslSessionCacheSize(long sslSessionCacheSize) {
+        this.sslSessionCacheSize = sslSessionCacheSize;
+        return this;
+    }
+
+    /**
+     * @return seconds a session can be resumed after it was created.
+     */
+    public long getSslSessionTimeout() {
+        return sslSessionTimeout;
+    }
+
+    public ProxyServerConfig setSslSessionTimeout(long sslSessionTimeout) {
+        this.sslSessionTimeout = sslSessionTimeout;
+        return this;
+    }
+
+    /**
+     * @return time between rotations of the session ticket keys. Only used with OPENSSL.
+     */
+    public long getSslTicketKeyRotationMillis() {
+        return sslTicketKeyRotationMillis;
+    }
+
+    public ProxyServerConfig setSslTicketKeyRotationMillis(long sslTicketKeyRotationMillis) {
+        this.sslTicketKeyRotationMillis = sslTicketKeyRotationMillis;
+        return this;
+    }
+
+    /**
+     * @return threads running SSL/TLS handshake tasks. If 0, they run on the event loops.
+     */
+    public int getSslHandshakeThreads() {
+        return sslHandshakeThreads;
+    }
+
+    public ProxyServerConfig setSslHandshakeThreads(int sslHandshakeThreads) {
+        this.sslHandshakeThreads = sslHandshakeThreads;
+        return this;
+    }
+
+    /**
+     * @return maximum number of handshake tasks waiting for a handshake thread.
+     */
+    public int getSslHandshakeQueueSize() {
+        return sslHandshakeQueueSize;
+    }
+
+    public ProxyServerConfig setSslHandshakeQueueSize(int sslHandshakeQueueSize) {
+        this.sslHandshakeQueueSize = sslHandshakeQueueSize;
+        return this;
+    }
+
+    /**
+     * @return whether clients can negotiate HTTP/2 with ALPN, and send CONNECT requests on
+     *         multiplexed streams. It requires SSL/TLS on client connections.
+     */
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    public ProxyServerConfig setHttp2(boolean http2) {
+        this.http2 = http2;
+        return this;
+    }
+
+    /**
+     * @return streams (tunnels) an HTTP/2 client connection can open at once.
+     */
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+
+    public ProxyServerConfig setHttp2MaxConcurrentStreams(int http2MaxConcurrentStreams) {
+        this.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+        return this;
+    }
+
+    /**
+     * @return flow control window in bytes of each HTTP/2 stream: data a client can send to a
+     *         tunnel before the proxy forwards it.
+     */
+    public int getHttp2InitialWindowSize() {
+        return http2InitialWindowSize;
+    }
+
+    public ProxyServerConfig setHttp2InitialWindowSize(int http2InitialWindowSize) {
+        this.http2InitialWindowSize = http2InitialWindowSize;
+        return this;
+    }
+
+    /**
+     * @return whether splice() is used for tunnels when possible. It requires the EPOLL transport
+     *         and no SSL/TLS on client connections. It is off by default: the end of a spliced
+     *         stream is found by checking the TCP state each time the socket is readable.
+     */
+    public boolean isSplice() {
+        return splice;
+    }
+
+    public ProxyServerConfig setSplice(boolean splice) {
+        this.splice = splice;
+        return this;
+    }
+
+    /**
+     * @return maximum size in bytes of a CONNECT request line plus headers.
+     */
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    public ProxyServerConfig setMaxHeaderSize(int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+        return this;
+    }
+
+    /**
+     * @return maximum bytes read after a CONNECT request while the upstream connection is opened.
+     */
+    public int getMaxEarlyData() {
+        return maxEarlyData;
+    }
+
+    public ProxyServerConfig setMaxEarlyData(int maxEarlyData) {
+        this.maxEarlyData = maxEarlyData;
+        return this;
+    }
+
+    /**
+     * @return pending outbound bytes under which a tunnel channel becomes writable again.
+     */
+    public int getWriteBufferLowWatermark() {
+        return writeBufferLowWatermark;
+    }
+
+    public ProxyServerConfig setWriteBufferLowWatermark(int writeBufferLowWatermark) {
+        this.writeBufferLowWatermark = writeBufferLowWatermark;
+        return this;
+    }
+
+    /**
+     * @return pending outbound bytes over which a tunnel channel stops reading from its couple.
+     */
+    public int getWriteBufferHighWatermark() {
+        return writeBufferHighWatermark;
+    }
+
+    public ProxyServerConfig setWriteBufferHighWatermark(int writeBufferHighWatermark) {
+        this.writeBufferHighWatermark = writeBufferHighWatermark;
+        return this;
+    }
+
+    /**
+     * @return minimum size of the buffers a tunnel channel reads into.
+     */
+    public int getRecvBufferMin() {
+        return recvBufferMin;
+    }
+
+    public ProxyServerConfig setRecvBufferMin(int recvBufferMin) {
+        this.recvBufferMin = recvBufferMin;
+        return this;
+    }
+
+    /**
+     * @return size of the first buffer a channel reads into. It adapts to the read sizes.
+     */
+    public int getRecvBufferInitial() {
+        return recvBufferInitial;
+    }
+
+    public ProxyServerConfig setRecvBufferInitial(int recvBufferInitial) {
+        this.recvBufferInitial = recvBufferInitial;
+        return this;
+    }
+
+    /**
+     * @return maximum size of the buffers a tunnel channel reads into.
+     */
+    public int getRecvBufferMax() {
+        return recvBufferMax;
+    }
+
+    public ProxyServerConfig setRecvBufferMax(int recvBufferMax) {
+        this.recvBufferMax = recvBufferMax;
+        return this;
+    }
+
+    /**
+     * @return SO_RCVBUF of client and upstream sockets in bytes, or 0 for the OS default.
+     */
+    public int getSocketRcvBuf() {
+        return socketRcvBuf;
+    }
+
+    public ProxyServerConfig setSocketRcvBuf(int socketRcvBuf) {
+        this.socketRcvBuf = socketRcvBuf;
+        return this;
+    }
+
+    /**
+     * @return SO_SNDBUF of client and upstream sockets in bytes, or 0 for the OS default.
+     */
+    public int getSocketSndBuf() {
+        return socketSndBuf;
+    }
+
+    public ProxyServerConfig setSocketSndBuf(int socketSndBuf) {
+        this.socketSndBuf = socketSndBuf;
+        return this;
+    }
+
+    /**
+     * @return whether Nagle's algorithm is disabled on client and upstream sockets.
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public ProxyServerConfig setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * @return whether upstream connections use TCP Fast Open, so early data is sent in the SYN.
+     *         It requires the EPOLL transport.
+     */
+    public boolean isUpstreamFastOpen() {
+        return upstreamFastOpen;
+    }
+
+    public ProxyServerConfig setUpstreamFastOpen(boolean upstreamFastOpen) {
+        this.upstreamFastOpen = upstreamFastOpen;
+        return this;
+    }
+
+    /**
+     * @return bytes in flight in the tunnels over which they stop reading, or 0 for no limit.
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public ProxyServerConfig setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * @return interval between checks of the bytes in flight in milliseconds.
+     */
+    public long getMemoryBudgetCheckIntervalMillis() {
+        return memoryBudgetCheckIntervalMillis;
+    }
+
+    public ProxyServerConfig setMemoryBudgetCheckIntervalMillis(long memoryBudgetCheckIntervalMillis) {
+        this.memoryBudgetCheckIntervalMillis = memoryBudgetCheckIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @return maximum number of host names in the DNS cache.
+     */
+    public int getDnsCacheSize() {
+        return dnsCacheSize;
+    }
+
+    public ProxyServerConfig setDnsCacheSize(int dnsCacheSize) {
+        this.dnsCacheSize = dnsCacheSize;
+        return this;
+    }
+
+    /**
+     * @return minimum time in seconds a DNS answer is cached, regardless of its TTL.
+     */
+    public int getDnsMinTtl() {
+        return dnsMinTtl;
+    }
+
+    public ProxyServerConfig setDnsMinTtl(int dnsMinTtl) {
+        this.dnsMinTtl = dnsMinTtl;
+        return this;
+    }
+
+    /**
+     * @return maximum time in seconds a DNS answer is cached, regardless of its TTL.
+     */
+    public int getDnsMaxTtl() {
+        return dnsMaxTtl;
+    }
+
+    public ProxyServerConfig setDnsMaxTtl(int dnsMaxTtl) {
+        this.dnsMaxTtl = dnsMaxTtl;
+        return this;
+    }
+
+    /**
+     * @return time in seconds a failed resolution (e.g. NXDOMAIN) is cached.
+     */
+    public int getDnsNegativeTtl() {
+        return dnsNegativeTtl;
+    }
+
+    public ProxyServerConfig setDnsNegativeTtl(int dnsNegativeTtl) {
+        this.dnsNegativeTtl = dnsNegativeTtl;
+        return this;
+    }
+
+    public long getDnsQueryTimeoutMillis() {
+        return dnsQueryTimeoutMillis;
+    }
+
+    public ProxyServerConfig setDnsQueryTimeoutMillis(long dnsQueryTimeoutMillis) {
+        this.dnsQueryTimeoutMillis = dnsQueryTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return DNS servers. If empty, the system DNS servers are used.
+     */
+    public List<InetSocketAddress> getDnsServers() {
+        return dnsServers;
+    }
+
+    /**
+     * Set DNS servers.
+     * @param dnsServers addresses in format host[:port]. The default port is 53.
+     * @return this config.
+     */
+    public ProxyServerConfig setDnsServers(String... dnsServers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String dnsServer : dnsServers) {
+            if (!dnsServer.isEmpty()) {
+                InetSocketAddress address = parseSocketAddress(dnsServer, DEFAULT_DNS_PORT);
+                addresses.add(new InetSocketAddress(address.getHostString(), address.getPort()));
+            }
+        }
+        this.dnsServers = addresses;
+        return this;
+    }
+
+    /**
+     * @return file with static host name entries. If null, the system hosts file is used.
+     */
+    public Path getDnsHostsFile() {
+        return dnsHostsFile;
+    }
+
+    public ProxyServerConfig setDnsHostsFile(Path dnsHostsFile) {
+        this.dnsHostsFile = dnsHostsFile;
+        return this;
+    }
+
+    /**
+     * @return delay in milliseconds between connection attempts to the addresses of a host.
+     */
+    public long getConnectAttemptDelayMillis() {
+        return connectAttemptDelayMillis;
+    }
+
+    public ProxyServerConfig setConnectAttemptDelayMillis(long connectAttemptDelayMillis) {
+        this.connectAttemptDelayMillis = connectAttemptDelayMillis;
+        return this;
+    }
+
+    /**
+     * @return timeout in milliseconds to resolve and connect to a remote host.
+     */
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public ProxyServerConfig setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return consecutive connection failures that open the circuit of a destination, or 0 to
+     *         disable the circuit breaker.
+     */
+    public int getCircuitFailureThreshold() {
+        return circuitFailureThreshold;
+    }
+
+    public ProxyServerConfig setCircuitFailureThreshold(int circuitFailureThreshold) {
+        this.circuitFailureThreshold = circuitFailureThreshold;
+        return this;
+    }
+
+    /**
+     * @return time in milliseconds an open circuit fails connections before a probe is allowed.
+     */
+    public long getCircuitOpenDurationMillis() {
+        return circuitOpenDurationMillis;
+    }
+
+    public ProxyServerConfig setCircuitOpenDurationMillis(long circuitOpenDurationMillis) {
+        this.circuitOpenDurationMillis = circuitOpenDurationMillis;
+        return this;
+    }
+
+    /**
+     * @return maximum number of destinations whose health is tracked.
+     */
+    public int getCircuitMaxDestinations() {
+        return circuitMaxDestinations;
+    }
+
+    public ProxyServerConfig setCircuitMaxDestinations(int circuitMaxDestinations) {
+        this.circuitMaxDestinations = circuitMaxDestinations;
+        return this;
+    }
+
+    /**
+     * @return idle upstream channels kept per hot destination, or 0 to disable the pool.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public ProxyServerConfig setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    /**
+     * @return destinations always pooled, as unresolved addresses.
+     */
+    public List<InetSocketAddress> getPoolDestinations() {
+        return poolDestinations;
+    }
+
+    /**
+     * Set the destinations always pooled.
+     * @param poolDestinations addresses in format host[:port]. The default port is 443.
+     * @return this config.
+     */
+    public ProxyServerConfig setPoolDestinations(String... poolDestinations) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String poolDestination : poolDestinations) {
+            if (!poolDestination.isEmpty()) {
+                addresses.add(parseSocketAddress(poolDestination, ConnectRequestDecoder.DEFAULT_HTTPS_REMOTE_PORT));
+            }
+        }
+        this.poolDestinations = addresses;
+        return this;
+    }
+
+    /**
+     * @return requests per second to a destination that make it hot, or 0 to only pool the
+     *         configured destinations.
+     */
+    public int getPoolHotRequests() {
+        return poolHotRequests;
+    }
+
+    public ProxyServerConfig setPoolHotRequests(int poolHotRequests) {
+        this.poolHotRequests = poolHotRequests;
+        return this;
+    }
+
+    /**
+     * @return maximum number of hot destinations learned from the requests.
+     */
+    public int getPoolMaxDestinations() {
+        return poolMaxDestinations;
+    }
+
+    public ProxyServerConfig setPoolMaxDestinations(int poolMaxDestinations) {
+        this.poolMaxDestinations = poolMaxDestinations;
+        return this;
+    }
+
+    /**
+     * @return time in milliseconds after which idle pooled channels are closed, and hot
+     *         destinations without requests are no longer pooled.
+     */
+    public long getPoolIdleTimeoutMillis() {
+        return poolIdleTimeoutMillis;
+    }
+
+    public ProxyServerConfig setPoolIdleTimeoutMillis(long poolIdleTimeoutMillis) {
+        this.poolIdleTimeoutMillis = poolIdleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return time in milliseconds a client has to complete the TLS handshake and send the
+     *         CONNECT request, or 0 for no limit.
+     */
+    public long getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public ProxyServerConfig setHandshakeTimeoutMillis(long handshakeTimeoutMillis) {
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return time in milliseconds without data after which a tunnel is closed, or 0 for no limit.
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public ProxyServerConfig setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return whether a peer shutting down its output is propagated to the other side of the tunnel,
+     *         instead of closing the tunnel.
+     */
+    public boolean isHalfClose() {
+        return halfClose;
+    }
+
+    public ProxyServerConfig setHalfClose(boolean halfClose) {
+        this.halfClose = halfClose;
+        return this;
+    }
+
+    /**
+     * @return port of the admin server (e.g. metrics). If 0, the admin server is disabled.
+     */
+    public int getAdminPort() {
+        return adminPort;
+    }
+
+    public ProxyServerConfig setAdminPort(int adminPort) {
+        this.adminPort = adminPort;
+        return this;
+    }
+
+    /**
+     * @return address the admin server listens on.
+     */
+    public String getAdminHost() {
+        return adminHost;
+    }
+
+    public ProxyServerConfig setAdminHost(String adminHost) {
+        this.adminHost = adminHost;
+        return this;
+    }
+
+    /**
+     * @return file of the access log (one JSON line per client connection), or null to disable it.
+     */
+    public Path getAccessLogFile() {
+        return accessLogFile;
+    }
+
+    public ProxyServerConfig setAccessLogFile(Path accessLogFile) {
+        this.accessLogFile = accessLogFile;
+        return this;
+    }
+
+    /**
+     * @return size in bytes over which the access log file is rotated.
+     */
+    public long getAccessLogMaxSize() {
+        return accessLogMaxSize;
+    }
+
+    public ProxyServerConfig setAccessLogMaxSize(long accessLogMaxSize) {
+        this.accessLogMaxSize = accessLogMaxSize;
+        return this;
+    }
+
+    /**
+     * @return number of rotated access log files kept.
+     */
+    public int getAccessLogMaxFiles() {
+        return accessLogMaxFiles;
+    }
+
+    public ProxyServerConfig setAccessLogMaxFiles(int accessLogMaxFiles) {
+        this.accessLogMaxFiles = accessLogMaxFiles;
+        return this;
+    }
+
+    /**
+     * @return access log records waiting to be written. Records beyond it are dropped, so the
+     *         event loops never wait for the file.
+     */
+    public int getAccessLogBufferSize() {
+        return accessLogBufferSize;
+    }
+
+    public ProxyServerConfig setAccessLogBufferSize(int accessLogBufferSize) {
+        this.accessLogBufferSize = accessLogBufferSize;
+        return this;
+    }
+
+    /**
+     * @return event loop lag in milliseconds over which the loop is stalled: the stall is counted
+     *         and the stack of the loop thread is logged. If 0, stalls are not detected.
+     */
+    public long getEventLoopStallThresholdMillis() {
+        return eventLoopStallThresholdMillis;
+    }
+
+    public ProxyServerConfig setEventLoopStallThresholdMillis(long eventLoopStallThresholdMillis) {
+        this.eventLoopStallThresholdMillis = eventLoopStallThresholdMillis;
+        return this;
+    }
+
+    /**
+     * @return minimum time in milliseconds between stack traces of stalled event loops in the log.
+     */
+    public long getEventLoopStallLogIntervalMillis() {
+        return eventLoopStallLogIntervalMillis;
+    }
+
+    public ProxyServerConfig setEventLoopStallLogIntervalMillis(long eventLoopStallLogIntervalMillis) {
+        this.eventLoopStallLogIntervalMillis = eventLoopStallLogIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @return maximum concurrent tunnels, or 0 for no limit.
+     */
+    public int getMaxTunnels() {
+        return maxTunnels;
+    }
+
+    public ProxyServerConfig setMaxTunnels(int maxTunnels) {
+        this.maxTunnels = maxTunnels;
+        return this;
+    }
+
+    /**
+     * @return maximum concurrent tunnels of a client IP address, or 0 for no limit.
+     */
+    public int getMaxTunnelsPerClient() {
+        return maxTunnelsPerClient;
+    }
+
+    public ProxyServerConfig setMaxTunnelsPerClient(int maxTunnelsPerClient) {
+        this.maxTunnelsPerClient = maxTunnelsPerClient;
+        return this;
+    }
+
+    /**
+     * @return admitted CONNECT requests per second, or 0 for no limit.
+     */
+    public int getConnectRate() {
+        return connectRate;
+    }
+
+    public ProxyServerConfig setConnectRate(int connectRate) {
+        this.connectRate = connectRate;
+        return this;
+    }
+
+    /**
+     * @return CONNECT requests admitted at once after an idle period, or 0 to use the rate.
+     */
+    public int getConnectBurst() {
+        return connectBurst;
+    }
+
+    public ProxyServerConfig setConnectBurst(int connectBurst) {
+        this.connectBurst = connectBurst;
+        return this;
+    }
+
+    /**
+     * @return event loop lag in milliseconds over which its new connections are shed, or 0.
+     */
+    public long getMaxEventLoopLagMillis() {
+        return maxEventLoopLagMillis;
+    }
+
+    public ProxyServerConfig setMaxEventLoopLagMillis(long maxEventLoopLagMillis) {
+        this.maxEventLoopLagMillis = maxEventLoopLagMillis;
+        return this;
+    }
+
+    /**
+     * @return upstream connections in progress at which new connections are shed, or 0.
+     */
+    public int getMaxPendingConnects() {
+        return maxPendingConnects;
+    }
+
+    public ProxyServerConfig setMaxPendingConnects(int maxPendingConnects) {
+        this.maxPendingConnects = maxPendingConnects;
+        return this;
+    }
+
+    /**
+     * @return whether any admission limit is set.
+     */
+    public boolean isAdmissionControl() {
+        return maxTunnels > 0 || maxTunnelsPerClient > 0 || connectRate > 0 || maxEventLoopLagMillis > 0
+            || maxPendingConnects > 0;
+    }
+
+    /**
+     * @return upload (client to upstream) bytes per second of all tunnels, or 0 for no limit.
+     */
+    public long getGlobalUploadLimit() {
+        return globalUploadLimit;
+    }
+
+    public ProxyServerConfig setGlobalUploadLimit(long globalUploadLimit) {
+        this.globalUploadLimit = globalUploadLimit;
+        return this;
+    }
+
+    /**
+     * @return download (upstream to client) bytes per second of all tunnels, or 0 for no limit.
+     */
+    public long getGlobalDownloadLimit() {
+        return globalDownloadLimit;
+    }
+
+    public ProxyServerConfig setGlobalDownloadLimit(long globalDownloadLimit) {
+        this.globalDownloadLimit = globalDownloadLimit;
+        return this;
+    }
+
+    /**
+     * @return upload bytes per second of the tunnels of a client IP address, or 0 for no limit.
+     */
+    public long getClientUploadLimit() {
+        return clientUploadLimit;
+    }
+
+    public ProxyServerConfig setClientUploadLimit(long clientUploadLimit) {
+        this.clientUploadLimit = clientUploadLimit;
+        return this;
+    }
+
+    /**
+     * @return download bytes per second of the tunnels of a client IP address, or 0 for no limit.
+     */
+    public long getClientDownloadLimit() {
+        return clientDownloadLimit;
+    }
+
+    public ProxyServerConfig setClientDownloadLimit(long clientDownloadLimit) {
+        this.clientDownloadLimit = clientDownloadLimit;
+        return this;
+    }
+
+    /**
+     * @return upload bytes per second of each tunnel, or 0 for no limit.
+     */
+    public long getTunnelUploadLimit() {
+        return tunnelUploadLimit;
+    }
+
+    public ProxyServerConfig setTunnelUploadLimit(long tunnelUploadLimit) {
+        this.tunnelUploadLimit = tunnelUploadLimit;
+        return this;
+    }
+
+    /**
+     * @return download bytes per second of each tunnel, or 0 for no limit.
+     */
+    public long getTunnelDownloadLimit() {
+        return tunnelDownloadLimit;
+    }
+
+    public ProxyServerConfig setTunnelDownloadLimit(long tunnelDownloadLimit) {
+        this.tunnelDownloadLimit = tunnelDownloadLimit;
+        return this;
+    }
+
+    /**
+     * @return interval between checks of the shaping traffic counters in milliseconds.
+     */
+    public long getShapingCheckIntervalMillis() {
+        return shapingCheckIntervalMillis;
+    }
+
+    public ProxyServerConfig setShapingCheckIntervalMillis(long shapingCheckIntervalMillis) {
+        this.shapingCheckIntervalMillis = shapingCheckIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @return whether any bandwidth limit is set.
+     */
+    public boolean isShaping() {
+        return globalUploadLimit > 0 || globalDownloadLimit > 0 || clientUploadLimit > 0
+            || clientDownloadLimit > 0 || tunnelUploadLimit > 0 || tunnelDownloadLimit > 0;
+    }
+}
@@ -0,0 +1,228 @@
+package connect.proxy.accesslog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.channel.Tunnel;
+import io.netty.channel.Channel;
+
+/**
+ * Access log with one JSON line per client connection (see AccessRecord).
+ *
+ * Event loops hand completed records to a lock-free ring buffer and go on: they never format,
+ * write or wait. A dedicated thread drains the ring in batches, formats the records and writes
+ * each batch with one write call. If the ring is full (e.g. the disk is slow), new records are
+ * dropped and counted.
+ *
+ * The file is rotated by size: access.log is renamed to access.log.1, access.log.1 to
+ * access.log.2 and so on, up to the maximum number of rotated files.
+ *
+ * @author carlos
+ *
+ */
+public class AccessLog implements AutoCloseable {
+    private static Logger LOG = LogManager.getLogger();
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final long DEFAULT_MAX_FILE_SIZE = 100 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Path file;
+    private final RecordRing<AccessRecord> ring;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final Thread writer;
+    private final LongAdder writtenRecords = new LongAdder();
+    private final LongAdder droppedRecords = new LongAdder();
+    private final StringBuilder batch = new StringBuilder(64 * 1024);
+    private OutputStream out;
+    private long fileSize;
+    private volatile boolean closed;
+
+    /**
+     * Constructor. The file is opened for appending.
+     * @param file log file.
+     * @param bufferSize records waiting to be written. Records beyond it are dropped.
+     * @param maxFileSize size in bytes over which the file is rotated.
+     * @param maxFiles number of rotated files kept. If 0, the file is truncated instead.
+     * @throws IOException if the file cannot be opened.
+     */
+    public AccessLog(Path file, int bufferSize, long maxFileSize, int maxFiles) throws IOException {
+        this.file = file;
+        this.ring = new RecordRing<>(bufferSize);
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        open();
+
+        this.writer = new Thread(this::run, "access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Start a record for an accepted client channel. It is logged when the channel is closed,
+     * unless it is multiplexed by then (see AccessRecord.multiplexed).
+     * @param channel client channel, or HTTP/2 stream.
+     */
+    public void watch(Channel channel) {
+        AccessRecord record = new AccessRecord(channel.remoteAddress());
+        channel.attr(AccessRecord.ACCESS_RECORD).set(record);
+        channel.closeFuture().addListener(f -> {
+            if (channel.attr(AccessRecord.ACCESS_RECORD).get() != record) {
+                return;
+            }
+            record.closed(channel.hasAttr(Tunnel.TUNNEL) ? channel.attr(Tunnel.TUNNEL).get() : null);
+            log(record);
+        });
+    }
+
+    /**
+     * Queue a record. It never blocks.
+     * @param record completed record.
+     * @return false if the record was dropped because the buffer is full.
+     */
+    public boolean log(AccessRecord record) {
+        if (closed || !ring.offer(record)) {
+            droppedRecords.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private void run() {
+        while (!closed) {
+            if (writeBatch() == 0) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+        // Records queued before closing.
+        while (writeBatch() > 0) {
+        }
+        closeFile();
+    }
+
+    /**
+     * Format and write up to a batch of queued records.
+     * @return number of records taken from the ring.
+     */
+    private int writeBatch() {
+        batch.setLength(0);
+        int records = 0;
+        AccessRecord record;
+        while (records < BATCH_SIZE && (record = ring.poll()) != null) {
+            record.appendJson(batch);
+            records++;
+        }
+        if (records == 0) {
+            return 0;
+        }
+
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (fileSize > 0 && fileSize + bytes.length > maxFileSize) {
+                rotate();
+            }
+            out.write(bytes);
+            out.flush();
+            fileSize += bytes.length;
+            writtenRecords.add(records);
+        } catch (IOException e) {
+            LOG.warn("Access log records could not be written to {}. Dropped records = {}.", file, records,
+                e);
+            droppedRecords.add(records);
+            reopen();
+        }
+        return records;
+    }
+
+    private void open() throws IOException {
+        out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileSize = Files.size(file);
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        if (maxFiles > 0) {
+            for (int i = maxFiles - 1; i > 0; i--) {
+                Path rotated = rotatedFile(i);
+                if (Files.exists(rotated)) {
+                    Files.move(rotated, rotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rotatedFile(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void reopen() {
+        closeFile();
+        try {
+            open();
+        } catch (IOException e) {
+            LOG.warn("Access log {} could not be reopened.", file, e);
+        }
+    }
+
+    private void closeFile() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.warn("Access log {} could not be closed.", file, e);
+        }
+    }
+
+    /**
+     * @return records written to the file.
+     */
+    public long getWrittenRecords() {
+        return writtenRecords.sum();
+    }
+
+    /**
+     * @return records dropped because the buffer was full or the file could not be written.
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.sum();
+    }
+
+    /**
+     * @return records waiting to be written.
+     */
+    public int getQueuedRecords() {
+        return ring.size();
+    }
+
+    /**
+     * Stop accepting records and write the queued ones. It waits for the writer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
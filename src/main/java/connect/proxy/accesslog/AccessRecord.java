@@ -0,0 +1,229 @@
+package connect.proxy.accesslog;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import connect.proxy.channel.Tunnel;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * Access log record of a client connection: one per connection, so one per tunnel. On HTTP/2
+ * connections, there is one record per CONNECT stream instead.
+ *
+ * It is set as an attribute (ACCESS_RECORD) of the client channel when it is accepted, filled in
+ * as the CONNECT request goes through the pipeline and logged when the channel is closed. The
+ * record is formatted by the access log writer thread, not by the event loops.
+ *
+ * Close reasons:
+ * <ul>
+ *   <li>client, upstream: the peer closed its connection first.</li>
+ *   <li>rejected: the proxy answered the request with an error.</li>
+ *   <li>handshake_timeout, request_timeout, idle_timeout: closed by a timeout.</li>
+ *   <li>admin: closed through the admin API.</li>
+ *   <li>error: I/O error, such as a connection reset.</li>
+ *   <li>closed: none of the above (e.g. the client left before sending a request).</li>
+ * </ul>
+ *
+ * @author carlos
+ *
+ */
+public final class AccessRecord {
+    public static final AttributeKey<AccessRecord> ACCESS_RECORD = AttributeKey.valueOf("ACCESS_RECORD");
+
+    private static final AtomicReferenceFieldUpdater<AccessRecord, String> CLOSE_REASON =
+        AtomicReferenceFieldUpdater.newUpdater(AccessRecord.class, String.class, "closeReason");
+
+    private final long acceptMillis = System.currentTimeMillis();
+    private final long acceptNanos = System.nanoTime();
+    private final SocketAddress clientAddress;
+    // Written by the event loop of the client channel, and read once the record is logged.
+    private String host;
+    private int port;
+    private long requestNanos;
+    private int status;
+    private long setupNanos = -1;
+    private long durationNanos;
+    private long tunnelId;
+    private long bytesToUpstream;
+    private long bytesToClient;
+    private boolean spliced;
+    // Set by the first closer, from any thread.
+    private volatile String closeReason;
+
+    /**
+     * Constructor.
+     * @param clientAddress remote address of the client.
+     */
+    public AccessRecord(SocketAddress clientAddress) {
+        this.clientAddress = clientAddress;
+    }
+
+    /**
+     * Stop recording a client connection that carries several tunnels (HTTP/2). Its streams are
+     * recorded instead, so the connection itself is not logged.
+     * @param channel client channel.
+     */
+    public static void multiplexed(Channel channel) {
+        if (channel.hasAttr(ACCESS_RECORD)) {
+            channel.attr(ACCESS_RECORD).set(null);
+        }
+    }
+
+    /**
+     * Record the CONNECT request of a client channel.
+     * @param channel client channel.
+     * @param host target host.
+     * @param port target port.
+     */
+    public static void requested(Channel channel, String host, int port) {
+        AccessRecord record = channel.hasAttr(ACCESS_RECORD) ? channel.attr(ACCESS_RECORD).get() : null;
+        if (record != null) {
+            record.host = host;
+            record.port = port;
+            record.requestNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Record the response to the CONNECT request of a client channel. The time since the request
+     * is the setup latency.
+     * @param channel client channel.
+     * @param status response status.
+     */
+    public static void responded(Channel channel, int status) {
+        AccessRecord record = channel.hasAttr(ACCESS_RECORD) ? channel.attr(ACCESS_RECORD).get() : null;
+        if (record != null && record.status == 0) {
+            record.status = status;
+            if (record.requestNanos != 0) {
+                record.setupNanos = System.nanoTime() - record.requestNanos;
+            }
+        }
+    }
+
+    /**
+     * Record why a channel is being closed by the proxy, unless a reason has been recorded
+     * already. It can be called from any thread.
+     * @param channel client channel, or a channel of its tunnel.
+     * @param reason close reason.
+     */
+    public static void closing(Channel channel, String reason) {
+        AccessRecord record = of(channel);
+        if (record != null) {
+            CLOSE_REASON.compareAndSet(record, null, reason);
+        }
+    }
+
+    private static AccessRecord of(Channel channel) {
+        if (channel.hasAttr(ACCESS_RECORD)) {
+            return channel.attr(ACCESS_RECORD).get();
+        }
+        Tunnel tunnel = channel.hasAttr(Tunnel.TUNNEL) ? channel.attr(Tunnel.TUNNEL).get() : null;
+        if (tunnel != null && tunnel.getClientChannel().hasAttr(ACCESS_RECORD)) {
+            return tunnel.getClientChannel().attr(ACCESS_RECORD).get();
+        }
+        return null;
+    }
+
+    /**
+     * Complete the record once the client channel is closed.
+     * @param tunnel tunnel of the channel, or null.
+     */
+    void closed(Tunnel tunnel) {
+        durationNanos = System.nanoTime() - acceptNanos;
+        if (tunnel != null) {
+            tunnelId = tunnel.getId();
+            bytesToUpstream = tunnel.getBytesToUpstream();
+            bytesToClient = tunnel.getBytesToClient();
+            spliced = tunnel.isSpliced();
+        }
+
+        String reason;
+        if (status >= 400) {
+            reason = "rejected";
+        } else if (tunnel != null) {
+            // The side closed first. The other one is closed once its pending data is written.
+            reason = tunnel.getUpstreamChannel().isOpen() ? "client" : "upstream";
+        } else {
+            reason = "closed";
+        }
+        CLOSE_REASON.compareAndSet(this, null, reason);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getCloseReason() {
+        return closeReason;
+    }
+
+    /**
+     * Append the record as a JSON object, followed by a new line.
+     * @param out output.
+     */
+    void appendJson(StringBuilder out) {
+        out.append("{\"time\":\"");
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(acceptMillis), out);
+        out.append("\",\"client\":");
+        appendString(out, clientAddress instanceof InetSocketAddress
+            ? ((InetSocketAddress) clientAddress).getAddress().getHostAddress() : null);
+        out.append(",\"host\":");
+        appendString(out, host);
+        out.append(",\"port\":");
+        appendNumber(out, port);
+        out.append(",\"status\":");
+        appendNumber(out, status);
+        out.append(",\"setup_us\":");
+        if (setupNanos >= 0) {
+            out.append(TimeUnit.NANOSECONDS.toMicros(setupNanos));
+        } else {
+            out.append("null");
+        }
+        out.append(",\"duration_ms\":").append(TimeUnit.NANOSECONDS.toMillis(durationNanos))
+            .append(",\"bytes_up\":").append(bytesToUpstream)
+            .append(",\"bytes_down\":").append(bytesToClient)
+            .append(",\"spliced\":").append(spliced)
+            .append(",\"tunnel\":");
+        appendNumber(out, tunnelId);
+        out.append(",\"close\":");
+        appendString(out, closeReason);
+        out.append("}\n");
+    }
+
+    // 0 is written as null: the value is not known.
+    private static void appendNumber(StringBuilder out, long value) {
+        if (value == 0) {
+            out.append("null");
+        } else {
+            out.append(value);
+        }
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,84 @@
+package connect.proxy.accesslog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer with many producers and a single consumer.
+ *
+ * Producers claim a slot by incrementing the tail with a CAS, then publish the element in it. The
+ * consumer takes elements in order and frees their slots. When the ring is full, offers fail
+ * instead of waiting.
+ *
+ * @author carlos
+ *
+ */
+final class RecordRing<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only written by the consumer.
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param capacity minimum number of elements. It is rounded up to a power of 2.
+     */
+    RecordRing(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Add an element. It can be called from any thread.
+     * @param element element.
+     * @return false if the ring is full.
+     */
+    boolean offer(T element) {
+        long claimed;
+        do {
+            claimed = tail.get();
+            // The slot is free once the consumer has moved past it.
+            if (claimed - head.get() > mask) {
+                return false;
+            }
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+        slots.lazySet((int) claimed & mask, element);
+        return true;
+    }
+
+    /**
+     * Take the oldest element. It MUST only be called from the consumer thread.
+     * @return the element, or null if the ring is empty or the next element is not published yet.
+     */
+    T poll() {
+        long next = head.get();
+        int index = (int) next & mask;
+        T element = slots.get(index);
+        if (element == null) {
+            return null;
+        }
+        // The slot is freed before the head moves, so a producer never overwrites an element.
+        slots.lazySet(index, null);
+        head.lazySet(next + 1);
+        return element;
+    }
+
+    /**
+     * @return number of elements, including claimed slots that are not published yet.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,23 @@
+package connect.proxy.admin;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+
+/**
+ * Endpoint of the admin server, bound to a path.
+ *
+ * Endpoints run on the admin event loop; they must not block.
+ *
+ * @author carlos
+ *
+ */
+@FunctionalInterface
+public interface AdminEndpoint {
+    /**
+     * Handle a request.
+     * @param request request. It is released after the call.
+     * @return the response.
+     * @throws Exception the request failed. A 500 response is sent.
+     */
+    FullHttpResponse handle(FullHttpRequest request) throws Exception;
+}
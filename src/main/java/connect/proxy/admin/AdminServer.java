@@ -0,0 +1,245 @@
+package connect.proxy.admin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.channel.Transport;
+import connect.proxy.channel.TunnelRegistry;
+import connect.proxy.metrics.MetricRegistry;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+
+/**
+ * HTTP server for operating the proxy (e.g. scraping metrics, listing and closing tunnels).
+ *
+ * It runs on its own event loop, so admin requests never compete with tunnels. It should only
+ * listen on a private address.
+ *
+ * @author carlos
+ *
+ */
+public class AdminServer {
+    private static Logger LOG = LogManager.getLogger();
+
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+    private static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final Transport transport;
+    // Endpoints by path and method.
+    private final Map<String, Map<HttpMethod, AdminEndpoint>> endpoints = new ConcurrentHashMap<>();
+    private EventLoopGroup evLoopGroup;
+    private Channel serverChannel;
+
+    /**
+     * Constructor.
+     * @param host listening address.
+     * @param port listening port.
+     * @param transport transport of the event loop.
+     */
+    public AdminServer(String host, int port, Transport transport) {
+        this.host = host;
+        this.port = port;
+        this.transport = transport;
+    }
+
+    /**
+     * Bind an endpoint to the GET requests of a path.
+     * @param path request path (e.g. "/metrics").
+     * @param endpoint endpoint.
+     * @return this server.
+     */
+    public AdminServer addEndpoint(String path, AdminEndpoint endpoint) {
+        return addEndpoint(HttpMethod.GET, path, endpoint);
+    }
+
+    /**
+     * Bind an endpoint to the requests of a path with a method. Requests with other methods get
+     * 405 (Method Not Allowed).
+     * @param method request method (e.g. POST for requests that change the state).
+     * @param path request path.
+     * @param endpoint endpoint.
+     * @return this server.
+     */
+    public AdminServer addEndpoint(HttpMethod method, String path, AdminEndpoint endpoint) {
+        endpoints.computeIfAbsent(path, p -> new ConcurrentHashMap<>()).put(method, endpoint);
+        return this;
+    }
+
+    /**
+     * Serve the metrics of a registry in Prometheus text format on "/metrics".
+     * @param registry metrics.
+     * @return this server.
+     */
+    public AdminServer addMetrics(MetricRegistry registry) {
+        return addEndpoint("/metrics", request -> {
+            StringBuilder out = new StringBuilder(4096);
+            registry.writePrometheus(out);
+            return textResponse(HttpResponseStatus.OK, PROMETHEUS_CONTENT_TYPE, out);
+        });
+    }
+
+    /**
+     * Serve the open tunnels of a registry:
+     *
+     * <ul>
+     * <li>GET "/tunnels" lists the tunnels that match the query (see TunnelQuery) in JSON.</li>
+     * <li>POST "/tunnels/close" closes the tunnels that match the query. A filter is required.</li>
+     * </ul>
+     *
+     * @param registry open tunnels.
+     * @return this server.
+     */
+    public AdminServer addTunnels(TunnelRegistry registry) {
+        addEndpoint("/tunnels", request -> {
+            TunnelQuery query;
+            try {
+                query = TunnelQuery.parse(request.uri());
+            } catch (IllegalArgumentException e) {
+                return errorResponse(HttpResponseStatus.BAD_REQUEST, e.getMessage());
+            }
+            return textResponse(HttpResponseStatus.OK, JSON_CONTENT_TYPE, query.toJson(registry.getTunnels()));
+        });
+        return addEndpoint(HttpMethod.POST, "/tunnels/close", request -> {
+            TunnelQuery query;
+            try {
+                query = TunnelQuery.parse(request.uri());
+            } catch (IllegalArgumentException e) {
+                return errorResponse(HttpResponseStatus.BAD_REQUEST, e.getMessage());
+            }
+            if (!query.hasFilter()) {
+                return errorResponse(HttpResponseStatus.BAD_REQUEST, "A filter is required.");
+            }
+            int closed = registry.close(query);
+            return textResponse(HttpResponseStatus.OK, JSON_CONTENT_TYPE, "{\"closed\": " + closed + "}\n");
+        });
+    }
+
+    /**
+     * Start listening. It does not block.
+     * @throws InterruptedException
+     */
+    public void start() throws InterruptedException {
+        evLoopGroup = transport.newEventLoopGroup(1);
+        try {
+            serverChannel = new ServerBootstrap()
+                .group(evLoopGroup)
+                .channel(transport.serverChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) {
+                        ch.pipeline()
+                            .addLast(new HttpServerCodec())
+                            .addLast(new HttpObjectAggregator(MAX_REQUEST_SIZE))
+                            .addLast(new AdminHandler());
+                    }
+                })
+                .bind(host, port).sync().channel();
+        } catch (Throwable t) {
+            evLoopGroup.shutdownGracefully();
+            throw t;
+        }
+        serverChannel.closeFuture().addListener(f -> evLoopGroup.shutdownGracefully());
+
+        LOG.info("Admin server started. Address = {}:{}. Endpoints = {}.", host, port, endpoints.keySet());
+    }
+
+    public void close() {
+        if (serverChannel != null && serverChannel.isOpen()) {
+            serverChannel.close();
+        }
+    }
+
+    /**
+     * Create a text response.
+     * @param status response status.
+     * @param contentType value of the Content-Type header.
+     * @param text content.
+     * @return the response.
+     */
+    public static FullHttpResponse textResponse(HttpResponseStatus status, String contentType,
+            CharSequence text) {
+        ByteBuf content = ByteBufUtil.writeUtf8(ByteBufAllocator.DEFAULT, text);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+        response.headers()
+            .set(HttpHeaderNames.CONTENT_TYPE, contentType)
+            .setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        return response;
+    }
+
+    private static FullHttpResponse errorResponse(HttpResponseStatus status) {
+        return errorResponse(status, null);
+    }
+
+    private static FullHttpResponse errorResponse(HttpResponseStatus status, String detail) {
+        return textResponse(status, TEXT_CONTENT_TYPE, status.toString() + "\n"
+            + (detail != null ? detail + "\n" : ""));
+    }
+
+    private class AdminHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            FullHttpResponse response;
+            Map<HttpMethod, AdminEndpoint> methods = endpoints.get(new QueryStringDecoder(request.uri()).path());
+            AdminEndpoint endpoint = methods != null ? methods.get(request.method()) : null;
+
+            if (!request.decoderResult().isSuccess()) {
+                response = errorResponse(HttpResponseStatus.BAD_REQUEST);
+            } else if (methods == null) {
+                response = errorResponse(HttpResponseStatus.NOT_FOUND);
+            } else if (endpoint == null) {
+                response = errorResponse(HttpResponseStatus.METHOD_NOT_ALLOWED);
+            } else {
+                try {
+                    response = endpoint.handle(request);
+                } catch (Exception e) {
+                    LOG.warn("Admin request {} failed.", request.uri(), e);
+                    response = errorResponse(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                }
+            }
+
+            boolean keepAlive = HttpUtil.isKeepAlive(request) && response.status().code() < 400;
+            if (keepAlive) {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+                ctx.writeAndFlush(response);
+            } else {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.warn("Exception: Admin channel {} will be closed.", ctx.channel().id(), cause);
+            ctx.close();
+        }
+    }
+}
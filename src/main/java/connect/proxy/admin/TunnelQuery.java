@@ -0,0 +1,179 @@
+package connect.proxy.admin;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import connect.proxy.channel.Tunnel;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * Filter of tunnels given by the query parameters of an admin request:
+ *
+ * <ul>
+ * <li>id: id of the tunnel.</li>
+ * <li>host, port: destination of the tunnel. The host is compared ignoring case.</li>
+ * <li>client: IP address of the client.</li>
+ * <li>min_bytes: minimum bytes forwarded in both directions.</li>
+ * <li>min_age: minimum age of the tunnel, in seconds.</li>
+ * <li>sort: "bytes" (default) lists the tunnels with most bytes first; "age", the oldest first.</li>
+ * <li>limit: maximum number of listed tunnels (default 100).</li>
+ * </ul>
+ *
+ * @author carlos
+ *
+ */
+public class TunnelQuery implements Predicate<Tunnel> {
+    public static final int DEFAULT_LIMIT = 100;
+
+    private static final Comparator<Tunnel> BY_BYTES = Comparator.comparingLong(
+        (Tunnel tunnel) -> tunnel.getBytesToUpstream() + tunnel.getBytesToClient()).reversed();
+    private static final Comparator<Tunnel> BY_AGE = Comparator.comparingLong(Tunnel::getStartMillis);
+
+    private Long id;
+    private String host;
+    private Integer port;
+    private String client;
+    private long minBytes;
+    private long minAgeMillis;
+    private Comparator<Tunnel> order = BY_BYTES;
+    private int limit = DEFAULT_LIMIT;
+    private final long nowMillis = System.currentTimeMillis();
+
+    /**
+     * Parse the query of a request URI.
+     * @param uri request URI.
+     * @return the query.
+     * @throws IllegalArgumentException a parameter is not valid.
+     */
+    public static TunnelQuery parse(String uri) {
+        TunnelQuery query = new TunnelQuery();
+        for (Map.Entry<String, List<String>> parameter : new QueryStringDecoder(uri).parameters().entrySet()) {
+            String value = parameter.getValue().get(0);
+            switch (parameter.getKey()) {
+            case "id":
+                query.id = Long.parseLong(value);
+                break;
+            case "host":
+                query.host = value;
+                break;
+            case "port":
+                query.port = Integer.parseInt(value);
+                break;
+            case "client":
+                query.client = value;
+                break;
+            case "min_bytes":
+                query.minBytes = Long.parseLong(value);
+                break;
+            case "min_age":
+                query.minAgeMillis = Long.parseLong(value) * 1000;
+                break;
+            case "sort":
+                if (value.equals("bytes")) {
+                    query.order = BY_BYTES;
+                } else if (value.equals("age")) {
+                    query.order = BY_AGE;
+                } else {
+                    throw new IllegalArgumentException("Unknown sort: " + value);
+                }
+                break;
+            case "limit":
+                query.limit = Integer.parseInt(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown parameter: " + parameter.getKey());
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @return whether the query filters any tunnel out. A query without filters matches every
+     *         tunnel.
+     */
+    public boolean hasFilter() {
+        return id != null || host != null || port != null || client != null || minBytes > 0
+            || minAgeMillis > 0;
+    }
+
+    @Override
+    public boolean test(Tunnel tunnel) {
+        if (id != null && tunnel.getId() != id) {
+            return false;
+        }
+        if (host != null && !host.equalsIgnoreCase(tunnel.getHost())) {
+            return false;
+        }
+        if (port != null && tunnel.getPort() != port) {
+            return false;
+        }
+        if (client != null) {
+            InetSocketAddress clientAddress = tunnel.getClientAddress();
+            if (clientAddress == null || !client.equals(clientAddress.getAddress().getHostAddress())) {
+                return false;
+            }
+        }
+        if (minBytes > 0 && tunnel.getBytesToUpstream() + tunnel.getBytesToClient() < minBytes) {
+            return false;
+        }
+        return nowMillis - tunnel.getStartMillis() >= minAgeMillis;
+    }
+
+    /**
+     * List the matching tunnels as a JSON object.
+     * @param tunnels open tunnels.
+     * @return JSON object with the number of open and matching tunnels, and the sorted list of
+     *         matching tunnels up to the limit.
+     */
+    public String toJson(Collection<Tunnel> tunnels) {
+        List<Tunnel> matched = tunnels.stream().filter(this).collect(Collectors.toList());
+        StringBuilder json = new StringBuilder(256 + 256 * Math.min(matched.size(), limit));
+        json.append("{\"open\": ").append(tunnels.size())
+            .append(", \"matched\": ").append(matched.size())
+            .append(", \"tunnels\": [");
+        String separator = "\n  ";
+        for (Tunnel tunnel : matched.stream().sorted(order).limit(limit).collect(Collectors.toList())) {
+            json.append(separator);
+            appendJson(json, tunnel);
+            separator = ",\n  ";
+        }
+        return json.append("\n]}\n").toString();
+    }
+
+    private void appendJson(StringBuilder json, Tunnel tunnel) {
+        json.append("{\"id\": ").append(tunnel.getId())
+            .append(", \"client\": ");
+        appendString(json, String.valueOf(tunnel.getClientAddress()));
+        json.append(", \"host\": ");
+        appendString(json, tunnel.getHost());
+        json.append(", \"port\": ").append(tunnel.getPort())
+            .append(", \"upstream\": ");
+        appendString(json, String.valueOf(tunnel.getUpstreamChannel().remoteAddress()));
+        json.append(", \"startMillis\": ").append(tunnel.getStartMillis())
+            .append(", \"ageMillis\": ").append(nowMillis - tunnel.getStartMillis())
+            .append(", \"bytesToUpstream\": ").append(tunnel.getBytesToUpstream())
+            .append(", \"bytesToClient\": ").append(tunnel.getBytesToClient())
+            .append(", \"spliced\": ").append(tunnel.isSpliced())
+            .append('}');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,258 @@
+package connect.proxy.admission;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import connect.proxy.channel.EventLoopLagMonitor;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+
+/**
+ * Decides whether the proxy takes more load. One instance is shared by all channels.
+ *
+ * Limits (each one is disabled if it is not set):
+ * <ul>
+ * <li>Concurrent tunnels, in total and per client IP address.</li>
+ * <li>Rate of new CONNECT requests (token bucket).</li>
+ * <li>Overload: lag of the event loop of the client channel, and upstream connections in
+ * progress.</li>
+ * </ul>
+ *
+ * New connections are checked when accepted, before the TLS handshake (shed()); they are closed
+ * if the proxy is overloaded or at a tunnel limit, without spending a handshake on them. CONNECT
+ * requests are checked again before dialing upstream (admit()); admitted requests hold a tunnel
+ * slot until the client channel is closed.
+ *
+ * @author carlos
+ *
+ */
+public class AdmissionController {
+    public enum Rejection {
+        OVERLOADED, RATE_LIMITED, TUNNEL_LIMIT, CLIENT_TUNNEL_LIMIT;
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private int maxTunnels;
+    private int maxTunnelsPerClient;
+    private TokenBucket connectRate;
+    private EventLoopLagMonitor lagMonitor;
+    private long maxEventLoopLagNanos;
+    private LongSupplier pendingConnects;
+    private int maxPendingConnects;
+
+    private final AtomicInteger tunnels = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, Integer> clientTunnels = new ConcurrentHashMap<>();
+    private final LongAdder[] shed = newCounters();
+    private final LongAdder[] rejected = newCounters();
+
+    /**
+     * Limit the concurrent tunnels.
+     * @param maxTunnels maximum tunnels, or 0 for no limit.
+     * @return this controller.
+     */
+    public AdmissionController maxTunnels(int maxTunnels) {
+        this.maxTunnels = maxTunnels;
+        return this;
+    }
+
+    /**
+     * Limit the concurrent tunnels of each client IP address.
+     * @param maxTunnelsPerClient maximum tunnels per client, or 0 for no limit.
+     * @return this controller.
+     */
+    public AdmissionController maxTunnelsPerClient(int maxTunnelsPerClient) {
+        this.maxTunnelsPerClient = maxTunnelsPerClient;
+        return this;
+    }
+
+    /**
+     * Limit the rate of CONNECT requests.
+     * @param ratePerSecond requests per second, or 0 for no limit.
+     * @param burst requests admitted at once after an idle period. If 0, the rate is used.
+     * @return this controller.
+     */
+    public AdmissionController connectRate(double ratePerSecond, int burst) {
+        this.connectRate = ratePerSecond > 0
+            ? new TokenBucket(ratePerSecond, burst > 0 ? burst : (int) Math.ceil(ratePerSecond))
+            : null;
+        return this;
+    }
+
+    /**
+     * Shed load while the event loop of a client channel lags.
+     * @param lagMonitor lag monitor of the worker event loops.
+     * @param maxLagMillis lag over which the loop is overloaded.
+     * @return this controller.
+     */
+    public AdmissionController maxEventLoopLag(EventLoopLagMonitor lagMonitor, long maxLagMillis) {
+        this.lagMonitor = lagMonitor;
+        this.maxEventLoopLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+        return this;
+    }
+
+    /**
+     * Shed load while there are too many upstream connections in progress.
+     * @param pendingConnects upstream connections in progress.
+     * @param maxPendingConnects connections in progress at which the proxy is overloaded.
+     * @return this controller.
+     */
+    public AdmissionController maxPendingConnects(LongSupplier pendingConnects, int maxPendingConnects) {
+        this.pendingConnects = pendingConnects;
+        this.maxPendingConnects = maxPendingConnects;
+        return this;
+    }
+
+    /**
+     * Check a new client connection. It reserves nothing.
+     * @param channel accepted channel, registered to its event loop.
+     * @return null if the connection can go on, or why it should be closed.
+     */
+    public Rejection shed(Channel channel) {
+        Rejection rejection = null;
+        if (isOverloaded(channel.eventLoop())) {
+            rejection = Rejection.OVERLOADED;
+        } else if (maxTunnels > 0 && tunnels.get() >= maxTunnels) {
+            rejection = Rejection.TUNNEL_LIMIT;
+        } else if (maxTunnelsPerClient > 0) {
+            InetAddress client = clientAddress(channel);
+            if (client != null && clientTunnels.getOrDefault(client, 0) >= maxTunnelsPerClient) {
+                rejection = Rejection.CLIENT_TUNNEL_LIMIT;
+            }
+        }
+
+        if (rejection != null) {
+            shed[rejection.ordinal()].increment();
+        }
+        return rejection;
+    }
+
+    /**
+     * Admit a CONNECT request. If admitted, the request holds a tunnel slot until the channel is
+     * closed.
+     * @param channel client channel.
+     * @return null if admitted, or why it was rejected.
+     */
+    public Rejection admit(Channel channel) {
+        Rejection rejection = tryAdmit(channel);
+        if (rejection != null) {
+            rejected[rejection.ordinal()].increment();
+        }
+        return rejection;
+    }
+
+    private Rejection tryAdmit(Channel channel) {
+        if (isOverloaded(channel.eventLoop())) {
+            return Rejection.OVERLOADED;
+        }
+        if (connectRate != null && !connectRate.tryAcquire()) {
+            return Rejection.RATE_LIMITED;
+        }
+        if (!acquireTunnel()) {
+            return Rejection.TUNNEL_LIMIT;
+        }
+        InetAddress client = maxTunnelsPerClient > 0 ? clientAddress(channel) : null;
+        if (client != null && !acquireClientTunnel(client)) {
+            tunnels.decrementAndGet();
+            return Rejection.CLIENT_TUNNEL_LIMIT;
+        }
+
+        channel.closeFuture().addListener(f -> {
+            tunnels.decrementAndGet();
+            if (client != null) {
+                releaseClientTunnel(client);
+            }
+        });
+        return null;
+    }
+
+    private boolean isOverloaded(EventLoop loop) {
+        return (lagMonitor != null && maxEventLoopLagNanos > 0
+                && lagMonitor.getLagNanos(loop) > maxEventLoopLagNanos)
+            || (pendingConnects != null && maxPendingConnects > 0
+                && pendingConnects.getAsLong() >= maxPendingConnects);
+    }
+
+    private boolean acquireTunnel() {
+        while (true) {
+            int current = tunnels.get();
+            if (maxTunnels > 0 && current >= maxTunnels) {
+                return false;
+            }
+            if (tunnels.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean acquireClientTunnel(InetAddress client) {
+        boolean[] acquired = new boolean[1];
+        clientTunnels.compute(client, (k, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= maxTunnelsPerClient) {
+                return count;
+            }
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    private void releaseClientTunnel(InetAddress client) {
+        // Clients without tunnels are removed, so the map does not grow with every address seen.
+        clientTunnels.computeIfPresent(client, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private static InetAddress clientAddress(Channel channel) {
+        return channel.remoteAddress() instanceof InetSocketAddress
+            ? ((InetSocketAddress) channel.remoteAddress()).getAddress()
+            : null;
+    }
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[Rejection.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * @return tunnels holding a slot.
+     */
+    public int getTunnels() {
+        return tunnels.get();
+    }
+
+    /**
+     * @param client client IP address.
+     * @return tunnels of the client holding a slot. Only tracked if there is a per-client limit.
+     */
+    public int getClientTunnels(InetAddress client) {
+        return clientTunnels.getOrDefault(client, 0);
+    }
+
+    /**
+     * @param rejection reason.
+     * @return connections closed on accept for the reason.
+     */
+    public long getShedConnections(Rejection rejection) {
+        return shed[rejection.ordinal()].sum();
+    }
+
+    /**
+     * @param rejection reason.
+     * @return CONNECT requests rejected for the reason.
+     */
+    public long getRejectedRequests(Rejection rejection) {
+        return rejected[rejection.ordinal()].sum();
+    }
+}
@@ -0,0 +1,57 @@
+package connect.proxy.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket rate limiter. Tokens are added at a fixed rate up to the bucket capacity (the
+ * burst); every admitted event takes one.
+ *
+ * Tokens are refilled lazily when a token is requested, so an idle bucket costs nothing.
+ *
+ * @author carlos
+ *
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private final LongSupplier nanoClock;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * Constructor. The bucket starts full.
+     * @param ratePerSecond tokens added per second.
+     * @param burst bucket capacity.
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        this(ratePerSecond, burst, System::nanoTime);
+    }
+
+    TokenBucket(double ratePerSecond, int burst, LongSupplier nanoClock) {
+        if (ratePerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = burst;
+        this.nanoClock = nanoClock;
+        this.tokens = burst;
+        this.lastRefillNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * Take a token, if there is one.
+     * @return whether a token was taken.
+     */
+    public synchronized boolean tryAcquire() {
+        long now = nanoClock.getAsLong();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+package connect.proxy.auth;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Users allowed to use the proxy, with their password hashes. It is immutable.
+ *
+ * Entries have the form user:hash, where hash is an encoded PasswordHash. User names cannot
+ * contain ':' (RFC 7617).
+ *
+ * @author carlos
+ *
+ */
+public final class Credentials {
+    private static final Credentials EMPTY = new Credentials(new HashMap<>(),
+        PasswordHash.unmatchable(PasswordHash.DEFAULT_ITERATIONS));
+
+    private final Map<String, PasswordHash> users;
+    private final PasswordHash unknownUser;
+
+    private Credentials(Map<String, PasswordHash> users, PasswordHash unknownUser) {
+        this.users = users;
+        this.unknownUser = unknownUser;
+    }
+
+    /**
+     * @return credentials without users. No one is authenticated.
+     */
+    public static Credentials empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Parse credential entries.
+     * @param entries entries in format user:hash.
+     * @return the credentials.
+     * @throws IllegalArgumentException if an entry is malformed or a user is repeated.
+     */
+    public static Credentials parse(Collection<String> entries) {
+        Map<String, PasswordHash> users = new HashMap<>();
+        int maxIterations = 1;
+        for (String entry : entries) {
+            String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int colon = trimmed.indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Credential entry not in format user:hash");
+            }
+            String user = trimmed.substring(0, colon);
+            PasswordHash hash;
+            try {
+                hash = PasswordHash.parse(trimmed.substring(colon + 1));
+            } catch (IllegalArgumentException e) {
+                // The message does not include the entry: it holds a hash.
+                throw new IllegalArgumentException("Invalid password hash of user " + user, e);
+            }
+            if (users.put(user, hash) != null) {
+                throw new IllegalArgumentException("Repeated user: " + user);
+            }
+            maxIterations = Math.max(maxIterations, hash.getIterations());
+        }
+        return new Credentials(users, PasswordHash.unmatchable(maxIterations));
+    }
+
+    /**
+     * @return number of users.
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Verify the password of a user. Unknown users take as long as known ones, so response times
+     * do not tell which users exist.
+     * @param user user name.
+     * @param password password.
+     * @return whether the user exists and the password matches.
+     */
+    public boolean verify(String user, char[] password) {
+        PasswordHash hash = users.get(user);
+        if (hash == null) {
+            unknownUser.matches(password);
+            return false;
+        }
+        return hash.matches(password);
+    }
+}
@@ -0,0 +1,161 @@
+package connect.proxy.auth;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hash. It is deliberately slow: verifying a password takes
+ * milliseconds, so it must never run on an event loop.
+ *
+ * Hashes are encoded as pbkdf2-sha256$iterations$salt$hash, with the salt and hash in Base64.
+ * Running this class prints a credential file entry: its arguments are the user name and,
+ * optionally, the iterations; the password is read from the console or the standard input.
+ *
+ * @author carlos
+ *
+ */
+public final class PasswordHash {
+    public static final String SCHEME = "pbkdf2-sha256";
+    public static final int DEFAULT_ITERATIONS = 310000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private PasswordHash(int iterations, byte[] salt, byte[] hash) {
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * Hash a password with a random salt.
+     * @param password password.
+     * @param iterations PBKDF2 iterations.
+     * @return the hash.
+     */
+    public static PasswordHash create(char[] password, int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("iterations must be positive: " + iterations);
+        }
+        byte[] salt = randomBytes(SALT_BYTES);
+        return new PasswordHash(iterations, salt, pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Create a hash that no password matches, but costs the same to verify as a real one. It
+     * stands for unknown users, so their verifications take as long as those of known users.
+     * @param iterations PBKDF2 iterations.
+     * @return the hash.
+     */
+    static PasswordHash unmatchable(int iterations) {
+        return new PasswordHash(iterations, randomBytes(SALT_BYTES), randomBytes(HASH_BYTES));
+    }
+
+    /**
+     * Parse an encoded hash.
+     * @param encoded hash in format pbkdf2-sha256$iterations$salt$hash.
+     * @return the hash.
+     * @throws IllegalArgumentException if it is malformed.
+     */
+    public static PasswordHash parse(String encoded) {
+        String[] parts = encoded.split("\\$");
+        if (parts.length != 4 || !parts[0].equals(SCHEME)) {
+            throw new IllegalArgumentException("Password hash not in format " + SCHEME
+                + "$iterations$salt$hash");
+        }
+        int iterations = Integer.parseInt(parts[1]);
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Invalid iterations in password hash: " + iterations);
+        }
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] hash = decoder.decode(parts[3]);
+        if (hash.length == 0) {
+            throw new IllegalArgumentException("Empty password hash");
+        }
+        return new PasswordHash(iterations, decoder.decode(parts[2]), hash);
+    }
+
+    /**
+     * Check a password. It takes as long as hashing it.
+     * @param password password.
+     * @return whether the password matches.
+     */
+    public boolean matches(char[] password) {
+        byte[] candidate = pbkdf2(password, salt, iterations, hash.length);
+        // Constant time comparison.
+        return MessageDigest.isEqual(candidate, hash);
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations) {
+        return pbkdf2(password, salt, iterations, HASH_BYTES);
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations, int bytes) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, bytes * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            // Every Java 8+ runtime has PBKDF2WithHmacSHA256.
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the hash in format pbkdf2-sha256$iterations$salt$hash.
+     */
+    @Override
+    public String toString() {
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return SCHEME + "$" + iterations + "$" + encoder.encodeToString(salt) + "$"
+            + encoder.encodeToString(hash);
+    }
+
+    // Print a credential file entry: user:hash
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2 || args[0].indexOf(':') >= 0) {
+            System.err.println("Arguments: user [iterations]. User names cannot contain ':'.");
+            System.exit(1);
+        }
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+        char[] password;
+        Console console = System.console();
+        if (console != null) {
+            password = console.readPassword("Password for %s: ", args[0]);
+        } else {
+            String line = new BufferedReader(new InputStreamReader(System.in)).readLine();
+            password = line != null ? line.toCharArray() : new char[0];
+        }
+
+        System.out.println(args[0] + ":" + create(password, iterations));
+        Arrays.fill(password, '\0');
+    }
+}
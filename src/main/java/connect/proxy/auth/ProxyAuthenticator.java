@@ -0,0 +1,265 @@
+package connect.proxy.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.metrics.Histogram;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * Authenticates CONNECT requests by their Proxy-Authorization header (Basic scheme, RFC 7617).
+ *
+ * Password hashes are slow on purpose, so they are verified by a small bounded pool of threads,
+ * never on the event loops. Headers that have been verified recently are cached: a client that
+ * opens many tunnels pays for one verification per cache TTL, and a cache hit costs one map
+ * lookup. The cache is bounded; when it is full, expired entries are dropped first, then
+ * arbitrary ones. Only successful verifications are cached, so guessed passwords cannot push
+ * valid credentials out of it. When the credentials are replaced, the cache is cleared.
+ *
+ * @author carlos
+ *
+ */
+public class ProxyAuthenticator implements AutoCloseable {
+    private static Logger LOG = LogManager.getLogger();
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final long DEFAULT_CACHE_TTL_MILLIS = 300000;
+
+    private static final String BASIC = "Basic ";
+
+    public enum Result {
+        AUTHENTICATED,
+        // Missing, malformed or wrong credentials.
+        UNAUTHORIZED,
+        // The verification queue is full.
+        UNAVAILABLE
+    }
+
+    private volatile Credentials credentials;
+    // Header value -> expiration time (nanos).
+    private final ConcurrentHashMap<String, Long> cache = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private final LongSupplier nanoClock;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder rejectedVerifications = new LongAdder();
+    private final Histogram verifyDuration = new Histogram();
+    private int maxCacheSize = DEFAULT_CACHE_SIZE;
+    private long cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CACHE_TTL_MILLIS);
+
+    /**
+     * Constructor.
+     * @param credentials users and password hashes.
+     * @param threads number of threads verifying passwords.
+     * @param queueSize maximum number of verifications waiting for a thread.
+     */
+    public ProxyAuthenticator(Credentials credentials, int threads, int queueSize) {
+        this(credentials, threads, queueSize, System::nanoTime);
+    }
+
+    ProxyAuthenticator(Credentials credentials, int threads, int queueSize, LongSupplier nanoClock) {
+        this.credentials = credentials;
+        this.nanoClock = nanoClock;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize), new DefaultThreadFactory("proxy-auth", true));
+    }
+
+    /**
+     * Set the maximum number of cached credentials.
+     * @param maxCacheSize number of credentials.
+     * @return this object.
+     */
+    public ProxyAuthenticator cacheSize(int maxCacheSize) {
+        if (maxCacheSize < 0) {
+            throw new IllegalArgumentException("maxCacheSize must not be negative: " + maxCacheSize);
+        }
+        this.maxCacheSize = maxCacheSize;
+        return this;
+    }
+
+    /**
+     * Set the time verified credentials are cached.
+     * @param cacheTtlMillis time in milliseconds.
+     * @return this object.
+     */
+    public ProxyAuthenticator cacheTtlMillis(long cacheTtlMillis) {
+        this.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+        return this;
+    }
+
+    /**
+     * Authenticate a request without verifying a password. It can be called from an event loop.
+     * @param proxyAuthorization value of the Proxy-Authorization header, or null if missing.
+     * @return AUTHENTICATED if the header was verified recently, UNAUTHORIZED if there is no
+     *         header, or null if it has to be verified.
+     */
+    public Result cached(String proxyAuthorization) {
+        if (proxyAuthorization == null) {
+            return Result.UNAUTHORIZED;
+        }
+        Long expiration = cache.get(proxyAuthorization);
+        if (expiration != null) {
+            if (nanoClock.getAsLong() - expiration < 0) {
+                cacheHits.increment();
+                return Result.AUTHENTICATED;
+            }
+            cache.remove(proxyAuthorization, expiration);
+        }
+        cacheMisses.increment();
+        return null;
+    }
+
+    /**
+     * Verify the credentials of a request on the verification threads. Successful verifications
+     * are cached.
+     * @param proxyAuthorization value of the Proxy-Authorization header.
+     * @param listenerExecutor executor notifying the listeners of the result (e.g. the event loop
+     *        of the channel).
+     * @return future result. It is UNAVAILABLE if the verification queue is full.
+     */
+    public Future<Result> verify(String proxyAuthorization, EventExecutor listenerExecutor) {
+        Promise<Result> promise = listenerExecutor.newPromise();
+        try {
+            executor.execute(() -> promise.trySuccess(verify(proxyAuthorization)));
+        } catch (RejectedExecutionException e) {
+            rejectedVerifications.increment();
+            promise.trySuccess(Result.UNAVAILABLE);
+        }
+        return promise;
+    }
+
+    private Result verify(String proxyAuthorization) {
+        Credentials current = credentials;
+
+        // Only the Basic scheme is supported. The scheme is case-insensitive.
+        if (!proxyAuthorization.regionMatches(true, 0, BASIC, 0, BASIC.length())) {
+            return Result.UNAUTHORIZED;
+        }
+        String userPass;
+        try {
+            byte[] decoded = Base64.getDecoder().decode(proxyAuthorization.substring(BASIC.length()).trim());
+            userPass = new String(decoded, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return Result.UNAUTHORIZED;
+        }
+        int colon = userPass.indexOf(':');
+        if (colon < 0) {
+            return Result.UNAUTHORIZED;
+        }
+
+        long startNanos = System.nanoTime();
+        boolean verified = current.verify(userPass.substring(0, colon),
+            userPass.substring(colon + 1).toCharArray());
+        verifyDuration.record(System.nanoTime() - startNanos);
+        if (!verified) {
+            LOG.debug("Invalid credentials of user {}.", userPass.substring(0, colon));
+            return Result.UNAUTHORIZED;
+        }
+
+        if (maxCacheSize > 0) {
+            makeRoom();
+            cache.put(proxyAuthorization, nanoClock.getAsLong() + cacheTtlNanos);
+            // Credentials replaced meanwhile: the entry may have been added after the cache
+            // was cleared.
+            if (credentials != current) {
+                cache.remove(proxyAuthorization);
+            }
+        }
+        return Result.AUTHENTICATED;
+    }
+
+    private void makeRoom() {
+        if (cache.size() < maxCacheSize) {
+            return;
+        }
+
+        long now = nanoClock.getAsLong();
+        Iterator<Long> it = cache.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next() >= 0) {
+                it.remove();
+            }
+        }
+        it = cache.values().iterator();
+        while (cache.size() >= maxCacheSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Replace the credentials. Cached verifications are dropped.
+     * @param credentials new credentials.
+     */
+    public void update(Credentials credentials) {
+        this.credentials = credentials;
+        cache.clear();
+    }
+
+    public Credentials getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * @return requests authenticated by the cache.
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return requests whose credentials had to be verified.
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * @return cached credentials. Expired ones may still be counted.
+     */
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * @return verifications waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return verifications rejected because the queue was full.
+     */
+    public long getRejectedVerifications() {
+        return rejectedVerifications.sum();
+    }
+
+    /**
+     * @return duration of the password hash verifications.
+     */
+    public Histogram getVerifyDuration() {
+        return verifyDuration;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
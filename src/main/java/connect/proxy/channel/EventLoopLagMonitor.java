@@ -0,0 +1,263 @@
+package connect.proxy.channel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.metrics.Histogram;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+/**
+ * Measures how late the event loops run their tasks, and detects stalled loops.
+ *
+ * A probe task is scheduled on every loop at a fixed interval; the lag of a loop is how late its
+ * last probe ran, or how late its next probe already is, if it is overdue. A loop busy with long
+ * tasks or a deep task queue runs its probe late, so its lag approximates the extra latency every
+ * channel of the loop is seeing; a stalled loop shows a growing lag while it is stalled. The lag
+ * of every probe is recorded in a histogram of the loop.
+ *
+ * With a stall threshold, a watchdog thread checks the overdue probes. When a loop is late by more
+ * than the threshold, the stall is counted and the stack of the loop thread is logged while it is
+ * still blocked, so the log shows what blocked it (e.g. a DNS lookup or a slow handshake task).
+ * Stack traces are logged at most once per log interval; the stalls in between are only counted.
+ *
+ * @author carlos
+ *
+ */
+public class EventLoopLagMonitor implements AutoCloseable {
+    private static Logger LOG = LogManager.getLogger();
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 100;
+    public static final long DEFAULT_STALL_LOG_INTERVAL_MILLIS = 60000;
+
+    /**
+     * Buckets for the lag of the probes, from 100 us to 5 s.
+     */
+    public static final double[] LAG_BUCKETS_SECONDS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5 };
+
+    private final EventLoop[] loops;
+    private final Map<EventLoop, Integer> indexes = new IdentityHashMap<>();
+    private final AtomicLongArray lagNanos;
+    private final AtomicLongArray nextProbeNanos;
+    private final Histogram[] lagHistograms;
+    private final AtomicReferenceArray<Thread> threads;
+    // Expected time of the last probe counted as a stall, so a stall is counted once.
+    private final AtomicLongArray stalledProbeNanos;
+    private final AtomicLongArray stalls;
+    private final long intervalNanos;
+    private volatile long stallThresholdNanos;
+    private volatile long stallLogIntervalNanos =
+        TimeUnit.MILLISECONDS.toNanos(DEFAULT_STALL_LOG_INTERVAL_MILLIS);
+    private ScheduledExecutorService watchdog;
+    // Only accessed by the watchdog thread.
+    private long nextStallLogNanos;
+    private long unloggedStalls;
+    private volatile boolean closed;
+
+    public EventLoopLagMonitor(EventLoopGroup group) {
+        this(group, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Constructor. Probes start right away.
+     * @param group event loops to monitor.
+     * @param intervalMillis interval between probes of a loop.
+     */
+    public EventLoopLagMonitor(EventLoopGroup group, long intervalMillis) {
+        List<EventLoop> loopList = new ArrayList<>();
+        for (EventExecutor executor : group) {
+            indexes.put((EventLoop) executor, loopList.size());
+            loopList.add((EventLoop) executor);
+        }
+        loops = loopList.toArray(new EventLoop[0]);
+        lagNanos = new AtomicLongArray(loops.length);
+        nextProbeNanos = new AtomicLongArray(loops.length);
+        lagHistograms = new Histogram[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            lagHistograms[i] = new Histogram(LAG_BUCKETS_SECONDS);
+        }
+        threads = new AtomicReferenceArray<>(loops.length);
+        stalledProbeNanos = new AtomicLongArray(loops.length);
+        stalls = new AtomicLongArray(loops.length);
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        nextStallLogNanos = System.nanoTime();
+
+        for (int i = 0; i < loops.length; i++) {
+            scheduleProbe(i);
+        }
+    }
+
+    /**
+     * Detect stalls. The watchdog thread starts with the first threshold set.
+     * @param stallThresholdMillis lag in milliseconds over which a loop is stalled. If 0, stalls
+     *        are not detected.
+     * @return this monitor.
+     */
+    public synchronized EventLoopLagMonitor stallThreshold(long stallThresholdMillis) {
+        this.stallThresholdNanos = TimeUnit.MILLISECONDS.toNanos(stallThresholdMillis);
+        if (stallThresholdNanos > 0 && watchdog == null && !closed) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(
+                new DefaultThreadFactory("event-loop-watchdog", true));
+            watchdog.scheduleWithFixedDelay(this::checkStalls, intervalNanos, intervalNanos,
+                TimeUnit.NANOSECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * @param stallLogIntervalMillis minimum time in milliseconds between stack traces of stalled
+     *        loops in the log.
+     * @return this monitor.
+     */
+    public EventLoopLagMonitor stallLogInterval(long stallLogIntervalMillis) {
+        this.stallLogIntervalNanos = TimeUnit.MILLISECONDS.toNanos(stallLogIntervalMillis);
+        return this;
+    }
+
+    private void scheduleProbe(int i) {
+        if (closed || loops[i].isShuttingDown()) {
+            return;
+        }
+        long expectedNanos = System.nanoTime() + intervalNanos;
+        nextProbeNanos.set(i, expectedNanos);
+        loops[i].schedule(() -> {
+            long lag = Math.max(0, System.nanoTime() - expectedNanos);
+            lagNanos.set(i, lag);
+            lagHistograms[i].record(lag);
+            if (threads.get(i) == null) {
+                threads.set(i, Thread.currentThread());
+            }
+            // Stalls shorter than a watchdog check are only seen once the probe runs.
+            if (stallThresholdNanos > 0 && lag > stallThresholdNanos) {
+                stalled(i, expectedNanos);
+            }
+            scheduleProbe(i);
+        }, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Count a stall once, whether it is seen by the watchdog or by the late probe.
+     * @return true if the stall had not been counted.
+     */
+    private boolean stalled(int i, long expectedNanos) {
+        if (stalledProbeNanos.getAndSet(i, expectedNanos) == expectedNanos) {
+            return false;
+        }
+        stalls.incrementAndGet(i);
+        return true;
+    }
+
+    private void checkStalls() {
+        long thresholdNanos = stallThresholdNanos;
+        if (thresholdNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < loops.length; i++) {
+            long expectedNanos = nextProbeNanos.get(i);
+            long overdueNanos = now - expectedNanos;
+            if (overdueNanos > thresholdNanos && stalled(i, expectedNanos)) {
+                logStall(i, overdueNanos, now);
+            }
+        }
+    }
+
+    private void logStall(int i, long overdueNanos, long now) {
+        Thread thread = threads.get(i);
+        if (thread == null || now - nextStallLogNanos < 0) {
+            unloggedStalls++;
+            return;
+        }
+        nextStallLogNanos = now + stallLogIntervalNanos;
+
+        StringBuilder stack = new StringBuilder();
+        for (StackTraceElement element : thread.getStackTrace()) {
+            stack.append("\n\tat ").append(element);
+        }
+        LOG.warn("Event loop {} stalled for {} ms. Pending tasks = {}. Stalls not logged since the last "
+            + "one = {}. Stack:{}", thread.getName(), TimeUnit.NANOSECONDS.toMillis(overdueNanos),
+            pendingTasks(loops[i]), unloggedStalls, stack);
+        unloggedStalls = 0;
+    }
+
+    private static int pendingTasks(EventLoop loop) {
+        return loop instanceof SingleThreadEventExecutor
+            ? ((SingleThreadEventExecutor) loop).pendingTasks() : -1;
+    }
+
+    /**
+     * @return monitored event loops, in the order of the group.
+     */
+    public List<EventLoop> getLoops() {
+        return Collections.unmodifiableList(Arrays.asList(loops));
+    }
+
+    /**
+     * @param loop an event loop of the group.
+     * @return lag of the loop in nanoseconds, or 0 if the loop is not monitored.
+     */
+    public long getLagNanos(EventLoop loop) {
+        Integer index = indexes.get(loop);
+        return index == null ? 0 : getLagNanos(index);
+    }
+
+    private long getLagNanos(int i) {
+        return Math.max(lagNanos.get(i), System.nanoTime() - nextProbeNanos.get(i));
+    }
+
+    /**
+     * @return highest lag of the loops in nanoseconds.
+     */
+    public long getMaxLagNanos() {
+        long max = 0;
+        for (int i = 0; i < loops.length; i++) {
+            max = Math.max(max, getLagNanos(i));
+        }
+        return max;
+    }
+
+    /**
+     * @param loop an event loop of the group.
+     * @return histogram of the lag of the probes of the loop, or null if it is not monitored.
+     */
+    public Histogram getLagHistogram(EventLoop loop) {
+        Integer index = indexes.get(loop);
+        return index == null ? null : lagHistograms[index];
+    }
+
+    /**
+     * @param loop an event loop of the group.
+     * @return stalls of the loop, or 0 if it is not monitored.
+     */
+    public long getStalls(EventLoop loop) {
+        Integer index = indexes.get(loop);
+        return index == null ? 0 : stalls.get(index);
+    }
+
+    /**
+     * Stop probing. Probes already scheduled run once more.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package connect.proxy.channel;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * Connection racing across the resolved addresses of a host (RFC 8305).
+ *
+ * Addresses are interleaved by family, starting with the family of the first address. A new
+ * attempt starts every time the attempt delay elapses or the previous attempt fails. The first
+ * established connection wins; the rest of attempts are cancelled.
+ *
+ * All the work is done in the event loop the channels are registered to.
+ *
+ * @author carlos
+ *
+ */
+final class HappyEyeballs {
+    private static Logger LOG = LogManager.getLogger();
+
+    private final Bootstrap bootstrap;
+    private final EventLoop evLoop;
+    private final Deque<InetSocketAddress> addresses;
+    private final long attemptDelayMillis;
+    private final Promise<Channel> promise;
+    private final List<ChannelFuture> attempts = new ArrayList<>();
+    private ScheduledFuture<?> nextAttemptFuture;
+    private Throwable lastCause;
+
+    /**
+     * Constructor.
+     * @param bootstrap bootstrap used for each attempt. It is registered to the event loop.
+     * @param evLoop event loop.
+     * @param addresses resolved addresses in order of preference.
+     * @param attemptDelayMillis time to wait for an attempt before starting the next one.
+     * @param promise promise completed with the winning channel.
+     */
+    HappyEyeballs(Bootstrap bootstrap, EventLoop evLoop, List<InetSocketAddress> addresses,
+            long attemptDelayMillis, Promise<Channel> promise) {
+        this.bootstrap = bootstrap;
+        this.evLoop = evLoop;
+        this.addresses = interleave(addresses);
+        this.attemptDelayMillis = attemptDelayMillis;
+        this.promise = promise;
+
+        // Cancelled or timed out: stop the attempts in flight.
+        promise.addListener(f -> {
+            if (!f.isSuccess()) {
+                cancelAttempts(null);
+            }
+        });
+    }
+
+    /**
+     * Start racing. MUST be called from the event loop.
+     */
+    void start() {
+        if (addresses.isEmpty()) {
+            promise.tryFailure(new IllegalArgumentException("No address to connect to"));
+            return;
+        }
+        nextAttempt();
+    }
+
+    private void nextAttempt() {
+        nextAttemptFuture = null;
+        if (promise.isDone()) {
+            return;
+        }
+
+        InetSocketAddress address = addresses.poll();
+        if (address == null) {
+            // No addresses left: fail when every attempt in flight has failed.
+            if (attempts.isEmpty()) {
+                promise.tryFailure(lastCause);
+            }
+            return;
+        }
+
+        ChannelFuture attempt = bootstrap.connect(address);
+        attempts.add(attempt);
+        attempt.addListener(f -> onAttemptComplete(attempt, address));
+
+        if (!attempt.isDone() && !addresses.isEmpty()) {
+            nextAttemptFuture = evLoop.schedule(this::nextAttempt, attemptDelayMillis,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onAttemptComplete(ChannelFuture attempt, InetSocketAddress address) {
+        attempts.remove(attempt);
+
+        if (attempt.isSuccess()) {
+            if (promise.trySuccess(attempt.channel())) {
+                cancelAttempts(attempt);
+            } else {
+                // Another attempt won or the race was cancelled.
+                attempt.channel().close();
+            }
+            return;
+        }
+
+        LOG.debug("Connection attempt to {} failed.", address, attempt.cause());
+        lastCause = attempt.cause();
+
+        // Do not wait for the attempt delay: start the next attempt right away.
+        if (nextAttemptFuture != null) {
+            nextAttemptFuture.cancel(false);
+        }
+        nextAttempt();
+    }
+
+    private void cancelAttempts(ChannelFuture winner) {
+        if (nextAttemptFuture != null) {
+            nextAttemptFuture.cancel(false);
+            nextAttemptFuture = null;
+        }
+        addresses.clear();
+
+        for (ChannelFuture attempt : new ArrayList<>(attempts)) {
+            if (attempt != winner) {
+                attempt.channel().close();
+            }
+        }
+        attempts.clear();
+    }
+
+    /**
+     * Interleave addresses by family, keeping the order within each family (RFC 8305 section 4).
+     * @param addresses addresses in order of preference.
+     * @return interleaved addresses.
+     */
+    static Deque<InetSocketAddress> interleave(List<InetSocketAddress> addresses) {
+        Deque<InetSocketAddress> preferred = new ArrayDeque<>();
+        Deque<InetSocketAddress> other = new ArrayDeque<>();
+        boolean preferredIsInet6 = !addresses.isEmpty() && isInet6(addresses.get(0));
+
+        for (InetSocketAddress address : addresses) {
+            if (isInet6(address) == preferredIsInet6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+
+        Deque<InetSocketAddress> interleaved = new ArrayDeque<>(addresses.size());
+        while (!preferred.isEmpty() || !other.isEmpty()) {
+            if (!preferred.isEmpty()) {
+                interleaved.add(preferred.poll());
+            }
+            if (!other.isEmpty()) {
+                interleaved.add(other.poll());
+            }
+        }
+        return interleaved;
+    }
+
+    private static boolean isInet6(InetSocketAddress address) {
+        return address.getAddress() instanceof Inet6Address;
+    }
+}
@@ -0,0 +1,82 @@
+package connect.proxy.channel;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+/**
+ * Chooses the event loop with the fewest open tunnels, so long-lived busy tunnels do not pile up
+ * on the loop that happened to accept them. Ties are broken by the pending tasks of the loops,
+ * then in favor of the loop of the client channel.
+ *
+ * Tunnels whose sides are on different loops cannot be spliced.
+ *
+ * @author carlos
+ *
+ */
+public class LeastLoadedLoopSelector implements UpstreamLoopSelector {
+    private final EventLoop[] loops;
+    private final Map<EventLoop, Integer> indexes = new IdentityHashMap<>();
+    private final AtomicIntegerArray tunnels;
+
+    /**
+     * Constructor.
+     * @param group event loops to choose from.
+     */
+    public LeastLoadedLoopSelector(EventLoopGroup group) {
+        List<EventLoop> loopList = new ArrayList<>();
+        for (EventExecutor executor : group) {
+            indexes.put((EventLoop) executor, loopList.size());
+            loopList.add((EventLoop) executor);
+        }
+        loops = loopList.toArray(new EventLoop[0]);
+        tunnels = new AtomicIntegerArray(loops.length);
+    }
+
+    @Override
+    public EventLoop select(Channel inChannel) {
+        Integer inIndex = indexes.get(inChannel.eventLoop());
+        int best = inIndex != null ? inIndex : 0;
+        for (int i = 0; i < loops.length; i++) {
+            if (isLessLoaded(i, best)) {
+                best = i;
+            }
+        }
+
+        // The tunnel lasts as long as the client channel.
+        int selected = best;
+        tunnels.incrementAndGet(selected);
+        inChannel.closeFuture().addListener(f -> tunnels.decrementAndGet(selected));
+        return loops[selected];
+    }
+
+    /**
+     * @param loop an event loop of the group.
+     * @return open tunnels whose upstream channel was assigned to the loop.
+     */
+    public int getTunnels(EventLoop loop) {
+        Integer index = indexes.get(loop);
+        return index == null ? 0 : tunnels.get(index);
+    }
+
+    private boolean isLessLoaded(int i, int j) {
+        int tunnelsI = tunnels.get(i);
+        int tunnelsJ = tunnels.get(j);
+        if (tunnelsI != tunnelsJ) {
+            return tunnelsI < tunnelsJ;
+        }
+        return pendingTasks(loops[i]) < pendingTasks(loops[j]);
+    }
+
+    private static int pendingTasks(EventLoop loop) {
+        return loop instanceof SingleThreadEventExecutor ? ((SingleThreadEventExecutor) loop).pendingTasks() : 0;
+    }
+}
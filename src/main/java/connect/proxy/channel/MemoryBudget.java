@@ -0,0 +1,169 @@
+package connect.proxy.channel;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultChannelPromise;
+
+/**
+ * Global limit of the buffer memory used by all tunnels.
+ *
+ * The memory is the bytes tunnels hold in flight: read from one side and not yet written to the
+ * other. Tunnel handlers reserve the bytes they read and release them once the write completes.
+ * Allocator usage is not used, as pooled allocators never give back some of their chunks: it may
+ * never go under a small budget again.
+ *
+ * When the memory goes over the budget, tunnels stop reading: their channels are paused instead of
+ * reading more data into new buffers. Once the memory goes under the low mark (a fraction of the
+ * budget), paused channels resume reading. As with the write-buffer watermarks, the gap between
+ * both marks avoids pausing and resuming constantly.
+ *
+ * The bytes in flight are sampled periodically (update()); checking the budget is a volatile
+ * read.
+ *
+ * @author carlos
+ *
+ */
+public class MemoryBudget {
+    private static Logger LOG = LogManager.getLogger();
+
+    public static final double LOW_MARK_RATIO = 0.8;
+
+    private final long maxBytes;
+    private final long lowMarkBytes;
+    private final LongAdder inFlightBytes = new LongAdder();
+    private final Queue<Channel> pausedChannels = new ConcurrentLinkedQueue<>();
+    private final LongAdder pausedReads = new LongAdder();
+    private volatile boolean exceeded;
+    private volatile long usedBytes;
+
+    /**
+     * Constructor.
+     * @param maxBytes bytes in flight over which tunnels stop reading.
+     */
+    public MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.lowMarkBytes = (long) (maxBytes * LOW_MARK_RATIO);
+    }
+
+    /**
+     * Count bytes read by a tunnel. It can be called from any thread.
+     * @param bytes bytes read, to be written to the other side.
+     */
+    public void reserve(long bytes) {
+        inFlightBytes.add(bytes);
+    }
+
+    /**
+     * Stop counting bytes reserved by a tunnel, once their write is complete (or has failed).
+     * @param bytes reserved bytes.
+     */
+    public void release(long bytes) {
+        inFlightBytes.add(-bytes);
+    }
+
+    /**
+     * Reserve the bytes of a write until it completes. The write promise releases them itself, so
+     * no listener is allocated per write; as with CLOSE_ON_FAILURE, it also closes the channel if
+     * the write fails.
+     * @param channel channel the bytes are written to.
+     * @param bytes bytes written.
+     * @return promise to pass to the write.
+     */
+    public ChannelPromise newWritePromise(Channel channel, int bytes) {
+        reserve(bytes);
+        return new ReservedWritePromise(channel, bytes);
+    }
+
+    /**
+     * @return whether tunnels must stop reading.
+     */
+    public boolean isExceeded() {
+        return exceeded;
+    }
+
+    /**
+     * Stop reading from a channel until the bytes in flight go under the low mark. The channel MUST NOT
+     * read in the meantime (auto-read disabled).
+     * @param channel channel.
+     */
+    public void pause(Channel channel) {
+        pausedChannels.add(channel);
+        pausedReads.increment();
+        // The budget may have recovered before the channel was queued.
+        if (!exceeded) {
+            resumePausedChannels();
+        }
+    }
+
+    /**
+     * Sample the bytes in flight, and resume paused channels if it is low enough.
+     */
+    public void update() {
+        usedBytes = inFlightBytes.sum();
+        if (!exceeded && usedBytes > maxBytes) {
+            exceeded = true;
+            LOG.warn("Memory budget exceeded. Used = {}. Budget = {}. Tunnels stop reading.",
+                usedBytes, maxBytes);
+        } else if (exceeded && usedBytes < lowMarkBytes) {
+            exceeded = false;
+            LOG.info("Memory under budget. Used = {}. Resuming {} channels.", usedBytes,
+                pausedChannels.size());
+        }
+
+        if (!exceeded) {
+            resumePausedChannels();
+        }
+    }
+
+    private void resumePausedChannels() {
+        Channel channel;
+        while ((channel = pausedChannels.poll()) != null) {
+            channel.read();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return bytes in flight at the last update.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return number of times a channel was paused.
+     */
+    public long getPausedReads() {
+        return pausedReads.sum();
+    }
+
+    private final class ReservedWritePromise extends DefaultChannelPromise implements ChannelFutureListener {
+        private final int bytes;
+
+        ReservedWritePromise(Channel channel, int bytes) {
+            super(channel);
+            this.bytes = bytes;
+            addListener(this);
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            release(bytes);
+            if (!future.isSuccess()) {
+                future.channel().close();
+            }
+        }
+    }
+}
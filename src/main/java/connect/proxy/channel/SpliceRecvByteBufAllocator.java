@@ -0,0 +1,95 @@
+package connect.proxy.channel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.util.UncheckedBooleanSupplier;
+
+/**
+ * Read buffer allocator of channels that may be spliced. Until a channel is spliced, its reads
+ * are sized by the wrapped allocator.
+ *
+ * Netty sizes each splice() read loop with the guess of the read handle, and a handle is created
+ * once per channel, on its first read. Spliced read loops do not allocate buffers nor count bytes,
+ * so an adaptive handle shrinks its guess to the minimum, and a level-triggered channel whose last
+ * read count equals its attempted count (e.g. 0 and 0) reschedules its read loop right away,
+ * spinning the event loop. Once a read loop completes without allocating, the channel is spliced:
+ * the handle guesses SPLICE_SIZE and reports a read loop that did not fill it, so the next one
+ * waits for the socket to be readable.
+ *
+ * @author carlos
+ *
+ */
+public final class SpliceRecvByteBufAllocator implements RecvByteBufAllocator {
+    /**
+     * Bytes spliced at most per read loop. It matches the default pipe capacity.
+     */
+    public static final int SPLICE_SIZE = 64 * 1024;
+
+    private final RecvByteBufAllocator allocator;
+
+    /**
+     * @param allocator allocator of the reads before the channel is spliced. Its handles must be
+     *        extended handles, like the ones of Netty's allocators.
+     */
+    public SpliceRecvByteBufAllocator(RecvByteBufAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    @Override
+    public Handle newHandle() {
+        return new SpliceHandle((ExtendedHandle) allocator.newHandle());
+    }
+
+    private static final class SpliceHandle extends DelegatingHandle implements ExtendedHandle {
+        private boolean allocated;
+        private boolean spliced;
+
+        SpliceHandle(ExtendedHandle delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void reset(ChannelConfig config) {
+            allocated = false;
+            super.reset(config);
+        }
+
+        @Override
+        public ByteBuf allocate(ByteBufAllocator alloc) {
+            allocated = true;
+            return super.allocate(alloc);
+        }
+
+        @Override
+        public int guess() {
+            return spliced ? SPLICE_SIZE : super.guess();
+        }
+
+        @Override
+        public int lastBytesRead() {
+            return spliced ? 0 : super.lastBytesRead();
+        }
+
+        @Override
+        public int attemptedBytesRead() {
+            return spliced ? SPLICE_SIZE : super.attemptedBytesRead();
+        }
+
+        @Override
+        public boolean continueReading(UncheckedBooleanSupplier maybeMoreDataSupplier) {
+            return ((ExtendedHandle) delegate()).continueReading(maybeMoreDataSupplier);
+        }
+
+        @Override
+        public void readComplete() {
+            if (!allocated) {
+                spliced = true;
+            }
+            if (!spliced) {
+                super.readComplete();
+            }
+        }
+    }
+}
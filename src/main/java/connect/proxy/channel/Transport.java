@@ -0,0 +1,135 @@
+package connect.proxy.channel;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Network transport used by the proxy server and its upstream connections.
+ *
+ * Server channels, upstream channels and event loops MUST belong to the same transport.
+ *
+ * @author carlos
+ *
+ */
+public enum Transport {
+    NIO {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new NioEventLoopGroup(nThreads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return NioDatagramChannel.class;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+    },
+
+    /**
+     * Native Linux transport. It supports zero-copy tunneling through splice().
+     */
+    EPOLL {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new EpollEventLoopGroup(nThreads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return EpollDatagramChannel.class;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+    };
+
+    /**
+     * Create a new group of event loops.
+     * @param nThreads number of threads. If it is 0, the Netty default is used.
+     * @return the event loop group.
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int nThreads);
+
+    public abstract Class<? extends ServerChannel> serverChannelClass();
+
+    public abstract Class<? extends SocketChannel> socketChannelClass();
+
+    /**
+     * @return channel class for UDP. It is used for DNS queries.
+     */
+    public abstract Class<? extends DatagramChannel> datagramChannelClass();
+
+    public abstract boolean isAvailable();
+
+    /**
+     * @return the native transport if available on this platform; otherwise, NIO.
+     */
+    public static Transport best() {
+        return EPOLL.isAvailable() ? EPOLL : NIO;
+    }
+
+    /**
+     * Find the transport an event loop belongs to.
+     * @param evLoop event loop.
+     * @return the transport of the event loop. NIO for loops of unknown groups (e.g. embedded).
+     */
+    public static Transport of(EventLoop evLoop) {
+        return evLoop.parent() instanceof EpollEventLoopGroup ? EPOLL : NIO;
+    }
+
+    /**
+     * Parse a transport name. "auto" selects the best available transport.
+     * @param name transport name (case insensitive).
+     * @return the transport.
+     * @throws IllegalArgumentException if the name is unknown or the transport is not available.
+     */
+    public static Transport parse(String name) {
+        if ("auto".equalsIgnoreCase(name)) {
+            return best();
+        }
+
+        Transport transport = valueOf(name.toUpperCase());
+        if (!transport.isAvailable()) {
+            throw new IllegalArgumentException("Transport NOT available: " + name);
+        }
+        return transport;
+    }
+}
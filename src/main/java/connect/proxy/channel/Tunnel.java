@@ -0,0 +1,139 @@
+package connect.proxy.channel;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import connect.proxy.accesslog.AccessRecord;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * Tunnel between a client channel and an upstream channel.
+ *
+ * It is set as an attribute (TUNNEL) in both channels when they are coupled. The forwarded bytes
+ * are counted by the TunnelHandler of each channel; spliced tunnels do not count them.
+ *
+ * @author carlos
+ *
+ */
+public class Tunnel {
+    public static final AttributeKey<Tunnel> TUNNEL = AttributeKey.valueOf("TUNNEL");
+
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private final long id = IDS.incrementAndGet();
+    private final Channel clientChannel;
+    private final Channel upstreamChannel;
+    private final String host;
+    private final int port;
+    private final long startMillis = System.currentTimeMillis();
+    // Each counter is only written by the event loop of its source channel.
+    private volatile long bytesToUpstream;
+    private volatile long bytesToClient;
+    private volatile boolean spliced;
+
+    /**
+     * Create a tunnel and set it in both channels.
+     * @param clientChannel channel of the client.
+     * @param upstreamChannel channel to the destination.
+     * @param host target host, as requested.
+     * @param port target port.
+     */
+    public Tunnel(Channel clientChannel, Channel upstreamChannel, String host, int port) {
+        this.clientChannel = clientChannel;
+        this.upstreamChannel = upstreamChannel;
+        this.host = host;
+        this.port = port;
+        clientChannel.attr(TUNNEL).set(this);
+        upstreamChannel.attr(TUNNEL).set(this);
+    }
+
+    /**
+     * @param channel a channel of the tunnel.
+     * @return the other channel of the tunnel.
+     */
+    public Channel coupleOf(Channel channel) {
+        return channel == clientChannel ? upstreamChannel : clientChannel;
+    }
+
+    /**
+     * Count bytes read from a channel of the tunnel. It MUST be called from the event loop of
+     * the channel.
+     * @param from channel the bytes were read from.
+     * @param bytes number of bytes.
+     */
+    public void forwarded(Channel from, long bytes) {
+        if (from == clientChannel) {
+            bytesToUpstream += bytes;
+        } else {
+            bytesToClient += bytes;
+        }
+    }
+
+    /**
+     * Mark the tunnel as spliced. Its bytes are no longer counted.
+     */
+    public void spliced() {
+        spliced = true;
+    }
+
+    /**
+     * Close both channels. Pending data is discarded.
+     */
+    public void close() {
+        AccessRecord.closing(clientChannel, "admin");
+        clientChannel.close();
+        upstreamChannel.close();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Channel getClientChannel() {
+        return clientChannel;
+    }
+
+    public Channel getUpstreamChannel() {
+        return upstreamChannel;
+    }
+
+    /**
+     * @return remote address of the client, or null if it is not an IP socket.
+     */
+    public InetSocketAddress getClientAddress() {
+        SocketAddress address = clientChannel.remoteAddress();
+        return address instanceof InetSocketAddress ? (InetSocketAddress) address : null;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return time the tunnel was established, in milliseconds since the epoch.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getBytesToUpstream() {
+        return bytesToUpstream;
+    }
+
+    public long getBytesToClient() {
+        return bytesToClient;
+    }
+
+    /**
+     * @return whether the tunnel is spliced. Spliced tunnels do not count bytes.
+     */
+    public boolean isSpliced() {
+        return spliced;
+    }
+}
@@ -0,0 +1,72 @@
+package connect.proxy.channel;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Registry of the open tunnels, for inspection and forced termination.
+ *
+ * A tunnel is removed when its client channel is closed.
+ *
+ * @author carlos
+ *
+ */
+public class TunnelRegistry {
+    private static Logger LOG = LogManager.getLogger();
+
+    private final ConcurrentHashMap<Long, Tunnel> tunnels = new ConcurrentHashMap<>();
+
+    /**
+     * Add a tunnel until its client channel is closed.
+     * @param tunnel tunnel.
+     */
+    public void register(Tunnel tunnel) {
+        tunnels.put(tunnel.getId(), tunnel);
+        tunnel.getClientChannel().closeFuture().addListener(f -> tunnels.remove(tunnel.getId()));
+    }
+
+    /**
+     * @param id id of a tunnel.
+     * @return the tunnel, or null if it is not open.
+     */
+    public Tunnel get(long id) {
+        return tunnels.get(id);
+    }
+
+    /**
+     * @return open tunnels. The view is weakly consistent.
+     */
+    public Collection<Tunnel> getTunnels() {
+        return Collections.unmodifiableCollection(tunnels.values());
+    }
+
+    /**
+     * @return number of open tunnels.
+     */
+    public int size() {
+        return tunnels.size();
+    }
+
+    /**
+     * Close the tunnels that match a filter.
+     * @param filter filter.
+     * @return number of closed tunnels.
+     */
+    public int close(Predicate<Tunnel> filter) {
+        int closed = 0;
+        for (Tunnel tunnel : tunnels.values()) {
+            if (filter.test(tunnel)) {
+                LOG.info("Closing tunnel {} from {} to {}:{}.", tunnel.getId(), tunnel.getClientAddress(),
+                    tunnel.getHost(), tunnel.getPort());
+                tunnel.close();
+                closed++;
+            }
+        }
+        return closed;
+    }
+}
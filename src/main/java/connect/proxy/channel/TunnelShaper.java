@@ -0,0 +1,196 @@
+package connect.proxy.channel;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.handler.traffic.AbstractTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+
+/**
+ * Bandwidth limits for tunnels: global, per client IP address and per tunnel. Limits are given in
+ * bytes per second, per direction: upload (client to upstream) and download (upstream to client).
+ *
+ * Tunnels read manually (auto-read disabled), so limits are enforced on writes: downloads are
+ * shaped on the client channel, and uploads on the upstream channel. Delayed writes are queued
+ * by the shaping handler; when the queue of a channel goes over the max queued bytes, the channel
+ * becomes unwritable and its TunnelHandler stops reading from the other side, as with the
+ * write-buffer watermarks.
+ *
+ * One GlobalChannelTrafficShapingHandler per direction holds the global and per-tunnel limits,
+ * and shares bandwidth fairly between tunnels. Each client with open tunnels gets one
+ * GlobalTrafficShapingHandler per direction for its limit. Traffic counters are checked by one
+ * task per handler, so there is no timer per tunnel.
+ *
+ * @author carlos
+ *
+ */
+public class TunnelShaper implements AutoCloseable {
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = AbstractTrafficShapingHandler.DEFAULT_CHECK_INTERVAL;
+    // Same as Netty's default.
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
+    private final ScheduledExecutorService executor;
+    private final long checkIntervalMillis;
+    private final GlobalChannelTrafficShapingHandler upload;
+    private final GlobalChannelTrafficShapingHandler download;
+    private long clientUploadLimit;
+    private long clientDownloadLimit;
+    private long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private final Map<InetAddress, ClientShapers> clients = new HashMap<>();
+
+    /**
+     * Constructor. There are no limits until they are set; traffic is counted anyway.
+     * @param executor executor of the traffic counter checks.
+     * @param checkIntervalMillis interval between traffic counter checks.
+     */
+    public TunnelShaper(ScheduledExecutorService executor, long checkIntervalMillis) {
+        this.executor = executor;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.upload = new GlobalChannelTrafficShapingHandler(executor, 0, 0, 0, 0, checkIntervalMillis);
+        this.download = new GlobalChannelTrafficShapingHandler(executor, 0, 0, 0, 0, checkIntervalMillis);
+    }
+
+    /**
+     * Set the limits of all tunnels together.
+     * @param uploadLimit upload bytes per second, or 0 for no limit.
+     * @param downloadLimit download bytes per second, or 0 for no limit.
+     * @return this shaper.
+     */
+    public TunnelShaper globalLimits(long uploadLimit, long downloadLimit) {
+        upload.configure(uploadLimit, 0);
+        download.configure(downloadLimit, 0);
+        return this;
+    }
+
+    /**
+     * Set the limits of each tunnel.
+     * @param uploadLimit upload bytes per second, or 0 for no limit.
+     * @param downloadLimit download bytes per second, or 0 for no limit.
+     * @return this shaper.
+     */
+    public TunnelShaper tunnelLimits(long uploadLimit, long downloadLimit) {
+        upload.configureChannel(uploadLimit, 0);
+        download.configureChannel(downloadLimit, 0);
+        return this;
+    }
+
+    /**
+     * Set the limits of the tunnels of each client IP address. Only applies to new clients.
+     * @param uploadLimit upload bytes per second, or 0 for no limit.
+     * @param downloadLimit download bytes per second, or 0 for no limit.
+     * @return this shaper.
+     */
+    public synchronized TunnelShaper clientLimits(long uploadLimit, long downloadLimit) {
+        this.clientUploadLimit = uploadLimit;
+        this.clientDownloadLimit = downloadLimit;
+        return this;
+    }
+
+    /**
+     * Set the delayed bytes a channel can queue before it becomes unwritable.
+     * @param maxQueuedBytes bytes; the high write-buffer watermark is a good fit.
+     * @return this shaper.
+     */
+    public synchronized TunnelShaper maxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+        upload.setMaxWriteSize(maxQueuedBytes);
+        download.setMaxWriteSize(maxQueuedBytes);
+        return this;
+    }
+
+    /**
+     * Add the shaping handlers to the channels of a tunnel. Handlers added to the client
+     * channel are returned, so they are kept when its pipeline is re-arranged for tunneling.
+     * @param inChannel client channel.
+     * @param outChannel upstream channel.
+     * @return handlers added to the client channel.
+     */
+    public ChannelHandler[] shape(Channel inChannel, Channel outChannel) {
+        ClientShapers client = acquireClient(inChannel);
+        if (client == null) {
+            inChannel.pipeline().addLast(download);
+            outChannel.pipeline().addFirst(upload);
+            return new ChannelHandler[] { download };
+        }
+
+        inChannel.pipeline().addLast(client.download, download);
+        outChannel.pipeline().addFirst(upload, client.upload);
+        return new ChannelHandler[] { client.download, download };
+    }
+
+    private synchronized ClientShapers acquireClient(Channel inChannel) {
+        if ((clientUploadLimit <= 0 && clientDownloadLimit <= 0)
+                || !(inChannel.remoteAddress() instanceof InetSocketAddress)) {
+            return null;
+        }
+
+        InetAddress address = ((InetSocketAddress) inChannel.remoteAddress()).getAddress();
+        ClientShapers client = clients.computeIfAbsent(address, k -> new ClientShapers());
+        client.tunnels++;
+        inChannel.closeFuture().addListener(f -> releaseClient(address, client));
+        return client;
+    }
+
+    private synchronized void releaseClient(InetAddress address, ClientShapers client) {
+        // The counters of clients without tunnels are stopped, so idle clients cost nothing.
+        if (--client.tunnels == 0) {
+            clients.remove(address);
+            client.release();
+        }
+    }
+
+    /**
+     * @return upload handler with the global and per-tunnel limits.
+     */
+    public GlobalChannelTrafficShapingHandler getUpload() {
+        return upload;
+    }
+
+    /**
+     * @return download handler with the global and per-tunnel limits.
+     */
+    public GlobalChannelTrafficShapingHandler getDownload() {
+        return download;
+    }
+
+    /**
+     * @return clients with shaped tunnels.
+     */
+    public synchronized int getClients() {
+        return clients.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        upload.release();
+        download.release();
+        for (ClientShapers client : clients.values()) {
+            client.release();
+        }
+        clients.clear();
+    }
+
+    private class ClientShapers {
+        private final GlobalTrafficShapingHandler upload;
+        private final GlobalTrafficShapingHandler download;
+        private int tunnels;
+
+        ClientShapers() {
+            upload = new GlobalTrafficShapingHandler(executor, clientUploadLimit, 0, checkIntervalMillis);
+            download = new GlobalTrafficShapingHandler(executor, clientDownloadLimit, 0, checkIntervalMillis);
+            upload.setMaxWriteSize(maxQueuedBytes);
+            download.setMaxWriteSize(maxQueuedBytes);
+        }
+
+        void release() {
+            upload.release();
+            download.release();
+        }
+    }
+}
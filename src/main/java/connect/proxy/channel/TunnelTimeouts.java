@@ -0,0 +1,215 @@
+package connect.proxy.channel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.accesslog.AccessRecord;
+import connect.proxy.channel.handlers.TunnelHandler;
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Timeouts of client connections and tunnels, driven by one shared timer wheel.
+ *
+ * A timer wheel takes O(1) to add or cancel a timeout, and runs all of them from a single
+ * thread; so no task is scheduled on the event loops per channel. Expired timeouts only close
+ * channels.
+ *
+ * Timeouts:
+ * <ul>
+ * <li>Handshake: the TLS handshake and the CONNECT request must complete within the handshake
+ * timeout after the connection is accepted.</li>
+ * <li>Connect: the upstream connection, including name resolution, must be established within
+ * the connect timeout (see UpstreamConnector).</li>
+ * <li>Idle: tunnels with no data in either direction for the idle timeout are closed.</li>
+ * </ul>
+ *
+ * @author carlos
+ *
+ */
+public class TunnelTimeouts implements AutoCloseable {
+    private static Logger LOG = LogManager.getLogger();
+
+    public static final long DEFAULT_TICK_MILLIS = 100;
+
+    public enum Reason {
+        HANDSHAKE, REQUEST, CONNECT, IDLE;
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final AttributeKey<Timeout> HANDSHAKE_TIMEOUT = AttributeKey.valueOf("HANDSHAKE_TIMEOUT");
+
+    private final HashedWheelTimer timer;
+    private long handshakeTimeoutMillis;
+    private long idleTimeoutNanos;
+    private final LongAdder[] timeouts = new LongAdder[Reason.values().length];
+
+    public TunnelTimeouts() {
+        this(DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * Constructor. The timer thread starts with the first timeout.
+     * @param tickMillis precision of the timeouts.
+     */
+    public TunnelTimeouts(long tickMillis) {
+        timer = new HashedWheelTimer(new DefaultThreadFactory("tunnel-timeouts", true), tickMillis,
+            TimeUnit.MILLISECONDS);
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Set the handshake timeout.
+     * @param handshakeTimeoutMillis timeout in milliseconds, or 0 to disable it.
+     * @return this object.
+     */
+    public TunnelTimeouts handshakeTimeout(long handshakeTimeoutMillis) {
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Set the idle timeout.
+     * @param idleTimeoutMillis timeout in milliseconds, or 0 to disable it.
+     * @return this object.
+     */
+    public TunnelTimeouts idleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * @return the timer wheel, for other timeouts (e.g. upstream connections).
+     */
+    public Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Close an accepted channel if it does not send a CONNECT request in time. The timeout
+     * replaces the handshake timeout of the SslHandler, if any.
+     * @param channel accepted channel.
+     * @param sslHandler SSL handler of the channel, or null.
+     */
+    public void watchHandshake(Channel channel, SslHandler sslHandler) {
+        if (handshakeTimeoutMillis <= 0) {
+            return;
+        }
+        if (sslHandler != null) {
+            sslHandler.setHandshakeTimeoutMillis(0);
+        }
+
+        Timeout timeout = timer.newTimeout(t -> {
+            if (channel.isActive()) {
+                Reason reason = sslHandler != null && !sslHandler.handshakeFuture().isDone()
+                    ? Reason.HANDSHAKE : Reason.REQUEST;
+                timedOut(channel, reason);
+            }
+        }, handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+        channel.attr(HANDSHAKE_TIMEOUT).set(timeout);
+        channel.closeFuture().addListener(f -> timeout.cancel());
+    }
+
+    /**
+     * Stop the handshake timeout of a channel, once its CONNECT request is received.
+     * @param channel accepted channel.
+     */
+    public void requestReceived(Channel channel) {
+        Timeout timeout = channel.attr(HANDSHAKE_TIMEOUT).getAndSet(null);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Close a tunnel when there is no data in either direction for the idle timeout.
+     * @param inChannel client channel.
+     * @param inHandler tunnel handler of the client channel.
+     * @param outHandler tunnel handler of the upstream channel.
+     */
+    public void watchIdle(Channel inChannel, TunnelHandler inHandler, TunnelHandler outHandler) {
+        if (idleTimeoutNanos > 0) {
+            new IdleWatch(inChannel, inHandler, outHandler).start();
+        }
+    }
+
+    /**
+     * Count an upstream connection that timed out.
+     */
+    public void connectTimedOut() {
+        timeouts[Reason.CONNECT.ordinal()].increment();
+    }
+
+    private void timedOut(Channel channel, Reason reason) {
+        LOG.debug("Channel {} timed out. Reason: {}.", channel.id(), reason);
+        timeouts[reason.ordinal()].increment();
+        AccessRecord.closing(channel, reason.label() + "_timeout");
+        // The TunnelHandler closes the coupled channel, if any.
+        channel.close();
+    }
+
+    /**
+     * @param reason timeout reason.
+     * @return channels closed for the reason.
+     */
+    public long getTimeouts(Reason reason) {
+        return timeouts[reason.ordinal()].sum();
+    }
+
+    @Override
+    public void close() {
+        timer.stop();
+    }
+
+    /**
+     * Idle check of a tunnel. The check is rescheduled at the time the tunnel would become idle,
+     * so reads never touch the timer.
+     */
+    private class IdleWatch {
+        private final Channel inChannel;
+        private final TunnelHandler inHandler;
+        private final TunnelHandler outHandler;
+        private volatile Timeout timeout;
+
+        IdleWatch(Channel inChannel, TunnelHandler inHandler, TunnelHandler outHandler) {
+            this.inChannel = inChannel;
+            this.inHandler = inHandler;
+            this.outHandler = outHandler;
+        }
+
+        void start() {
+            schedule(idleTimeoutNanos);
+            inChannel.closeFuture().addListener(f -> timeout.cancel());
+        }
+
+        void schedule(long delayNanos) {
+            timeout = timer.newTimeout(t -> check(), delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void check() {
+            if (!inChannel.isActive()) {
+                return;
+            }
+            long lastReadNanos = Math.max(inHandler.getLastReadNanos(), outHandler.getLastReadNanos());
+            long idleNanos = System.nanoTime() - lastReadNanos;
+            if (idleNanos >= idleTimeoutNanos) {
+                timedOut(inChannel, Reason.IDLE);
+            } else {
+                schedule(idleTimeoutNanos - idleNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package connect.proxy.channel;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import connect.proxy.health.CircuitOpenException;
+import connect.proxy.health.DestinationHealth;
+import connect.proxy.health.UpstreamHealth;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ConnectTimeoutException;
+import io.netty.channel.EventLoop;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * Opens the channels from the proxy to the remote hosts.
+ *
+ * The channel type is chosen according to the transport of the event loop the channel is
+ * registered to; so, upstream channels always use the same transport as the proxy server.
+ *
+ * When a host resolves to several addresses, connection attempts are raced (Happy Eyeballs).
+ *
+ * If a timer is set, the connect timeout covers the whole connection (resolution and every
+ * attempt) and is driven by the timer; otherwise, it applies to each attempt.
+ *
+ * If a pool is set, idle channels to hot destinations are used before opening new ones.
+ *
+ * If upstream health is set, the outcome of every connection is recorded per destination, and
+ * connections to destinations with an open circuit fail at once with a CircuitOpenException.
+ *
+ * @author carlos
+ *
+ */
+public class UpstreamConnector {
+    public static final long DEFAULT_ATTEMPT_DELAY_MILLIS = 250;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private final boolean spliceEnabled;
+    private final Map<ChannelOption<?>, Object> options = new LinkedHashMap<>();
+    private AddressResolverGroup<InetSocketAddress> resolver = DefaultAddressResolverGroup.INSTANCE;
+    private long attemptDelayMillis = DEFAULT_ATTEMPT_DELAY_MILLIS;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private Timer timer;
+    private UpstreamHealth health;
+    private UpstreamPool pool;
+
+    public UpstreamConnector() {
+        this(false);
+    }
+
+    /**
+     * Constructor.
+     * @param spliceEnabled whether upstream channels should be ready for splice() tunneling.
+     *        It only applies to the EPOLL transport.
+     */
+    public UpstreamConnector(boolean spliceEnabled) {
+        this.spliceEnabled = spliceEnabled;
+    }
+
+    public boolean isSpliceEnabled() {
+        return spliceEnabled;
+    }
+
+    /**
+     * Set an option for the upstream channels. Options set here take precedence over defaults.
+     * @param option channel option.
+     * @param value option value. If null, the option is removed.
+     * @return this connector.
+     */
+    public <T> UpstreamConnector option(ChannelOption<T> option, T value) {
+        if (value == null) {
+            options.remove(option);
+        } else {
+            options.put(option, value);
+        }
+        return this;
+    }
+
+    /**
+     * Set the resolver for host names. If it is not set, Netty's default (blocking) resolver
+     * is used.
+     * @param resolver address resolver group.
+     * @return this connector.
+     */
+    public UpstreamConnector resolver(AddressResolverGroup<InetSocketAddress> resolver) {
+        this.resolver = resolver;
+        return this;
+    }
+
+    /**
+     * Set the delay between connection attempts to the addresses of a host.
+     * @param attemptDelayMillis delay in milliseconds.
+     * @return this connector.
+     */
+    public UpstreamConnector attemptDelayMillis(long attemptDelayMillis) {
+        this.attemptDelayMillis = attemptDelayMillis;
+        return this;
+    }
+
+    /**
+     * Set the timeout of each connection attempt.
+     * @param connectTimeoutMillis timeout in milliseconds.
+     * @return this connector.
+     */
+    public UpstreamConnector connectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Set the timer of the connect timeouts. With a timer, the connect timeout covers the whole
+     * connection instead of each attempt, and no timeout task is scheduled on the event loops.
+     * @param timer shared timer.
+     * @return this connector.
+     */
+    public UpstreamConnector timer(Timer timer) {
+        this.timer = timer;
+        return this;
+    }
+
+    /**
+     * Set the health tracking of the destinations.
+     * @param health upstream health, or null to connect to every destination.
+     * @return this connector.
+     */
+    public UpstreamConnector health(UpstreamHealth health) {
+        this.health = health;
+        return this;
+    }
+
+    /**
+     * Set the pool of idle channels to hot destinations.
+     * @param pool upstream pool, or null to always open new channels.
+     * @return this connector.
+     */
+    public UpstreamConnector pool(UpstreamPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Connect to a host. A pooled channel is used if there is one and the circuit of the
+     * destination is closed. Otherwise, a new channel is opened, which fails fast if the circuit
+     * is open, or is the probe if it is half-open.
+     * @param host target host
+     * @param port target port of the host
+     * @param evLoop event loop the new channel is registered to. A pooled channel may be
+     *        registered to another one.
+     * @param handler handler of the new channel. It MUST be sharable; it may be added to the
+     *        channel of every connection attempt.
+     * @return A future for the connected channel.
+     */
+    public Future<Channel> connect(String host, int port, EventLoop evLoop, ChannelHandler handler) {
+        if (pool != null && isHealthy(host, port)) {
+            Future<Channel> pooled = pool.acquire(host, port, evLoop, handler);
+            if (pooled != null) {
+                return pooled;
+            }
+        }
+        return open(host, port, evLoop, handler);
+    }
+
+    /**
+     * @return whether the circuit of a destination is closed, or its health is not tracked. Pooled
+     *         channels were connected before the circuit opened: they do not tell whether the
+     *         destination is up.
+     */
+    private boolean isHealthy(String host, int port) {
+        if (health == null) {
+            return true;
+        }
+        DestinationHealth destinationHealth = health.get(host, port);
+        return destinationHealth == null || destinationHealth.getState() == DestinationHealth.State.CLOSED;
+    }
+
+    /**
+     * Open a new channel to a host, without the pool.
+     * @param host target host
+     * @param port target port of the host
+     * @param evLoop event loop the new channel is registered to.
+     * @param handler handler of the new channel. It MUST be sharable; it may be added to the
+     *        channel of every connection attempt.
+     * @return A future for the connected channel.
+     */
+    public Future<Channel> open(String host, int port, EventLoop evLoop, ChannelHandler handler) {
+        DestinationHealth destinationHealth = null;
+        if (health != null) {
+            destinationHealth = health.tryAcquire(host, port);
+            if (destinationHealth == null) {
+                return evLoop.newFailedFuture(new CircuitOpenException(host + ":" + port));
+            }
+        }
+
+        Bootstrap b = newBootstrap(evLoop, handler);
+        Promise<Channel> promise = evLoop.newPromise();
+
+        if (destinationHealth != null) {
+            recordOutcome(destinationHealth, promise);
+        }
+
+        if (timer != null && connectTimeoutMillis > 0) {
+            Timeout timeout = timer.newTimeout(t -> promise.tryFailure(new ConnectTimeoutException(
+                "Connection timed out: " + host + ":" + port)), connectTimeoutMillis, TimeUnit.MILLISECONDS);
+            promise.addListener(f -> timeout.cancel());
+        }
+
+        resolver.getResolver(evLoop)
+            .resolveAll(InetSocketAddress.createUnresolved(host, port))
+            .addListener((Future<List<InetSocketAddress>> future) -> {
+                if (future.isSuccess()) {
+                    new HappyEyeballs(b, evLoop, future.getNow(), attemptDelayMillis, promise).start();
+                } else {
+                    promise.tryFailure(future.cause());
+                }
+            });
+
+        return promise;
+    }
+
+    private void recordOutcome(DestinationHealth destinationHealth, Future<Channel> future) {
+        long startNanos = System.nanoTime();
+        future.addListener(f -> {
+            if (f.isSuccess()) {
+                health.succeeded(destinationHealth, System.nanoTime() - startNanos);
+            } else if (f.isCancelled()) {
+                health.cancelled(destinationHealth);
+            } else {
+                health.failed(destinationHealth);
+            }
+        });
+    }
+
+    private Bootstrap newBootstrap(EventLoop evLoop, ChannelHandler handler) {
+        Transport transport = Transport.of(evLoop);
+
+        Bootstrap b = new Bootstrap()
+            .group(evLoop)
+            .channel(transport.socketChannelClass())
+            .option(ChannelOption.SO_KEEPALIVE, true)
+            .option(ChannelOption.AUTO_READ, false)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timer == null ? connectTimeoutMillis : 0)
+            .handler(handler);
+
+        if (spliceEnabled && transport == Transport.EPOLL) {
+            // splice() requires level-triggered channels. It can only be set before registration.
+            b.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+
+        for (Entry<ChannelOption<?>, Object> option : options.entrySet()) {
+            setOption(b, option.getKey(), option.getValue());
+        }
+
+        return b;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void setOption(Bootstrap b, ChannelOption<T> option, Object value) {
+        b.option(option, (T) value);
+    }
+}
@@ -0,0 +1,48 @@
+package connect.proxy.channel;
+
+import io.netty.channel.EventLoopGroup;
+
+/**
+ * Policy for choosing the event loop of upstream channels.
+ *
+ * @author carlos
+ *
+ */
+public enum UpstreamLoopPolicy {
+    /**
+     * Same loop as the client channel: best locality, and tunnels can be spliced.
+     */
+    SAME {
+        @Override
+        public UpstreamLoopSelector newSelector(EventLoopGroup group) {
+            return UpstreamLoopSelector.SAME_LOOP;
+        }
+    },
+
+    /**
+     * Loop with the fewest open tunnels: spreads busy tunnels across cores.
+     */
+    LEAST_LOADED {
+        @Override
+        public UpstreamLoopSelector newSelector(EventLoopGroup group) {
+            return new LeastLoadedLoopSelector(group);
+        }
+    };
+
+    /**
+     * Create a selector for this policy.
+     * @param group event loops of the upstream channels.
+     * @return the selector.
+     */
+    public abstract UpstreamLoopSelector newSelector(EventLoopGroup group);
+
+    /**
+     * Parse a policy name (case insensitive, '-' or '_' as separator).
+     * @param name policy name (e.g. "same", "least-loaded").
+     * @return the policy.
+     * @throws IllegalArgumentException if the name is unknown.
+     */
+    public static UpstreamLoopPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,26 @@
+package connect.proxy.channel;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+
+/**
+ * Chooses the event loop of the upstream channel of a tunnel.
+ *
+ * @author carlos
+ *
+ */
+@FunctionalInterface
+public interface UpstreamLoopSelector {
+    /**
+     * Upstream channels use the event loop of the client channel. Both sides of the tunnel are
+     * handled by one thread, and they can be spliced.
+     */
+    UpstreamLoopSelector SAME_LOOP = Channel::eventLoop;
+
+    /**
+     * Choose the event loop for the upstream channel of a tunnel.
+     * @param inChannel client channel of the tunnel.
+     * @return the event loop.
+     */
+    EventLoop select(Channel inChannel);
+}
@@ -0,0 +1,423 @@
+package connect.proxy.channel;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * Pool of connected, idle upstream channels to hot destinations (host:port), so a new tunnel
+ * does not wait for a TCP handshake.
+ *
+ * A destination is hot if it is configured, or if it gets at least a number of requests per
+ * check interval; it cools down after the idle timeout without requests. The pool of each hot
+ * destination is refilled asynchronously up to its size, with channels spread over the event loops
+ * of a group. A channel is preferably taken from the event loop asked for; channels of other loops
+ * are only handed out if any loop is allowed (e.g. not with the "same" upstream loop policy).
+ *
+ * Idle channels are closed after the idle timeout, or as soon as the destination closes them or
+ * sends any data; so destinations that speak first (e.g. SMTP banners) are not pooled in practice.
+ *
+ * The check runs periodically (see check()).
+ *
+ * @author carlos
+ *
+ */
+public class UpstreamPool implements AutoCloseable {
+    private static Logger LOG = LogManager.getLogger();
+
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_HOT_REQUESTS = 10;
+    public static final int DEFAULT_MAX_DESTINATIONS = 16;
+
+    // Destinations whose requests are counted in a check interval.
+    private static final int MAX_COUNTED_DESTINATIONS = 10000;
+
+    private final UpstreamConnector connector;
+    private final EventLoopGroup group;
+    private final int size;
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final Map<String, RequestCounter> requests = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final ChannelHandler idleHandler = new IdleHandler();
+    private long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    private int hotRequests = DEFAULT_HOT_REQUESTS;
+    private int maxDestinations = DEFAULT_MAX_DESTINATIONS;
+    private boolean anyLoop = true;
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     * @param connector connector that opens the pooled channels.
+     * @param group event loops the pooled channels are registered to.
+     * @param size idle channels kept per hot destination.
+     */
+    public UpstreamPool(UpstreamConnector connector, EventLoopGroup group, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        this.connector = connector;
+        this.group = group;
+        this.size = size;
+    }
+
+    /**
+     * Set the idle timeout. Idle channels and destinations without requests are dropped after it.
+     * @param idleTimeoutMillis timeout in milliseconds.
+     * @return this object.
+     */
+    public UpstreamPool idleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * Set the requests per check interval that make a destination hot.
+     * @param hotRequests number of requests, or 0 to only pool configured destinations.
+     * @return this object.
+     */
+    public UpstreamPool hotRequests(int hotRequests) {
+        this.hotRequests = hotRequests;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of hot destinations learned from the requests.
+     * @param maxDestinations number of destinations.
+     * @return this object.
+     */
+    public UpstreamPool maxDestinations(int maxDestinations) {
+        this.maxDestinations = maxDestinations;
+        return this;
+    }
+
+    /**
+     * Set whether channels of another event loop than the one asked for can be handed out.
+     * @param anyLoop false to only hand out channels of the loop asked for.
+     * @return this object.
+     */
+    public UpstreamPool anyLoop(boolean anyLoop) {
+        this.anyLoop = anyLoop;
+        return this;
+    }
+
+    /**
+     * Pool a destination regardless of its requests.
+     * @param host target host.
+     * @param port target port.
+     * @return this object.
+     */
+    public UpstreamPool destination(String host, int port) {
+        destinations.computeIfAbsent(key(host, port), k -> new Destination(host, port, true));
+        return this;
+    }
+
+    /**
+     * Take an idle channel to a destination and add a handler to it.
+     * @param host target host.
+     * @param port target port.
+     * @param evLoop preferred event loop.
+     * @param handler handler of the channel, as in UpstreamConnector.connect().
+     * @return a future for the channel, or null if there is no idle channel.
+     */
+    public Future<Channel> acquire(String host, int port, EventLoop evLoop, ChannelHandler handler) {
+        String key = key(host, port);
+        countRequest(host, port, key);
+
+        Destination destination = destinations.get(key);
+        if (destination == null) {
+            return null;
+        }
+        destination.lastRequestNanos = System.nanoTime();
+        PooledChannel pooled = destination.poll(evLoop);
+        if (pooled == null) {
+            misses.increment();
+            destination.refill();
+            return null;
+        }
+        hits.increment();
+        destination.refill();
+
+        // The pipeline is changed in the event loop of the channel, as a new channel would be
+        // initialized. If it was closed meanwhile, a new connection is opened.
+        Channel channel = pooled.channel;
+        Promise<Channel> promise = channel.eventLoop().newPromise();
+        channel.eventLoop().execute(() -> {
+            if (!channel.isActive()) {
+                Future<Channel> openFuture = connector.open(host, port, evLoop, handler);
+                promise.addListener(f -> {
+                    if (f.isCancelled()) {
+                        openFuture.cancel(false);
+                    }
+                });
+                openFuture.addListener((Future<Channel> f) -> {
+                    if (f.isSuccess()) {
+                        if (!promise.trySuccess(f.getNow())) {
+                            f.getNow().close();
+                        }
+                    } else {
+                        promise.tryFailure(f.cause());
+                    }
+                });
+            } else if (!promise.setUncancellable()) {
+                // The request went away. The channel is still idle.
+                destination.idle.addFirst(pooled);
+            } else {
+                channel.pipeline().remove(idleHandler);
+                channel.pipeline().addLast(handler);
+                // The handler may not see channelActive. Reading is already requested.
+                channel.read();
+                promise.setSuccess(channel);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Learn hot destinations from the requests of the last interval, drop stale channels and cold
+     * destinations, and refill the pools. It is meant to run periodically.
+     */
+    public void check() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, RequestCounter> entry : requests.entrySet()) {
+            RequestCounter counter = entry.getValue();
+            if (hotRequests > 0 && counter.requests.sum() >= hotRequests
+                    && !destinations.containsKey(entry.getKey()) && learnedDestinations() < maxDestinations) {
+                LOG.info("Pooling connections to {}.", entry.getKey());
+                destinations.put(entry.getKey(), new Destination(counter.host, counter.port, false));
+            }
+        }
+        requests.clear();
+
+        Iterator<Destination> it = destinations.values().iterator();
+        while (it.hasNext()) {
+            Destination destination = it.next();
+            if (!destination.configured && now - destination.lastRequestNanos > idleTimeoutNanos) {
+                LOG.info("Connections to {} are no longer pooled.", key(destination.host, destination.port));
+                it.remove();
+                destination.clear();
+            } else {
+                destination.evictStale(now);
+                destination.refill();
+            }
+        }
+    }
+
+    /**
+     * @return idle channels in the pool.
+     */
+    public int getIdleChannels() {
+        return destinations.values().stream().mapToInt(d -> d.idle.size()).sum();
+    }
+
+    /**
+     * @return destinations with a pool.
+     */
+    public int getDestinations() {
+        return destinations.size();
+    }
+
+    /**
+     * @return requests served with a pooled channel.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return requests to pooled destinations without an idle channel.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return idle channels closed by timeout, by the destination or because data was received.
+     */
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Destination destination : destinations.values()) {
+            destination.clear();
+        }
+        destinations.clear();
+    }
+
+    private void countRequest(String host, int port, String key) {
+        if (hotRequests <= 0) {
+            return;
+        }
+        RequestCounter counter = requests.get(key);
+        if (counter == null && requests.size() < MAX_COUNTED_DESTINATIONS) {
+            counter = requests.computeIfAbsent(key, k -> new RequestCounter(host, port));
+        }
+        if (counter != null) {
+            counter.requests.increment();
+        }
+    }
+
+    private int learnedDestinations() {
+        return (int) destinations.values().stream().filter(d -> !d.configured).count();
+    }
+
+    private static String key(String host, int port) {
+        return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+    }
+
+    private static class RequestCounter {
+        private final String host;
+        private final int port;
+        private final LongAdder requests = new LongAdder();
+
+        RequestCounter(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    private class Destination {
+        private final String host;
+        private final int port;
+        private final boolean configured;
+        private final ConcurrentLinkedDeque<PooledChannel> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger connecting = new AtomicInteger();
+        private volatile long lastRequestNanos = System.nanoTime();
+        private volatile boolean removed;
+
+        Destination(String host, int port, boolean configured) {
+            this.host = host;
+            this.port = port;
+            this.configured = configured;
+        }
+
+        /**
+         * Take an idle channel, from the given event loop if possible.
+         */
+        PooledChannel poll(EventLoop evLoop) {
+            for (PooledChannel pooled : idle) {
+                if (pooled.channel.eventLoop() == evLoop && idle.remove(pooled)) {
+                    return pooled;
+                }
+            }
+            return anyLoop ? idle.pollFirst() : null;
+        }
+
+        void refill() {
+            while (!closed && !removed) {
+                int pending = connecting.get();
+                if (idle.size() + pending >= size) {
+                    return;
+                }
+                if (connecting.compareAndSet(pending, pending + 1)) {
+                    connect();
+                }
+            }
+        }
+
+        private void connect() {
+            PooledChannel pooled = new PooledChannel();
+            connector.open(host, port, group.next(), idleHandler).addListener((Future<Channel> f) -> {
+                connecting.decrementAndGet();
+                if (!f.isSuccess()) {
+                    // Retried on the next check.
+                    LOG.debug("Pooled connection to {}:{} failed.", host, port, f.cause());
+                    return;
+                }
+                pooled.channel = f.getNow();
+                if (closed || removed) {
+                    pooled.channel.close();
+                    return;
+                }
+                idle.add(pooled);
+                // Closed while idle: by the destination, or by the IdleHandler.
+                pooled.channel.closeFuture().addListener(cf -> {
+                    if (idle.remove(pooled)) {
+                        evicted.increment();
+                    }
+                });
+                // A pending read notices when the destination closes the channel.
+                pooled.channel.read();
+            });
+        }
+
+        void evictStale(long now) {
+            for (PooledChannel pooled : idle) {
+                if (now - pooled.idleSinceNanos > idleTimeoutNanos && idle.remove(pooled)) {
+                    evicted.increment();
+                    pooled.channel.close();
+                }
+            }
+        }
+
+        void clear() {
+            removed = true;
+            PooledChannel pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                pooled.channel.close();
+            }
+        }
+    }
+
+    private static class PooledChannel {
+        private final long idleSinceNanos = System.nanoTime();
+        private volatile Channel channel;
+    }
+
+    /**
+     * Handler of idle channels. Any event other than the channel being idle evicts it.
+     *
+     * It is sharable because it is added to every connection attempt and every pooled channel.
+     */
+    @Sharable
+    private static class IdleHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+            evict(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (evt instanceof ChannelInputShutdownEvent) {
+                evict(ctx);
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.debug("Pooled channel {} failed.", ctx.channel().id(), cause);
+            evict(ctx);
+        }
+
+        private void evict(ChannelHandlerContext ctx) {
+            // The channel is removed from the pool when it is closed.
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package connect.proxy.channel.handlers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.admission.AdmissionController;
+import connect.proxy.admission.AdmissionController.Rejection;
+import connect.proxy.metrics.ProxyMetrics;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+/**
+ * Handler to admit CONNECT requests before a connection to the remote host is opened.
+ *
+ * Rejected requests get a 503 response right away, and the channel is closed.
+ *
+ * @author carlos
+ *
+ */
+public class AdmissionHandler extends SimpleChannelInboundHandler<ConnectRequest> {
+    private static Logger LOG = LogManager.getLogger();
+
+    private final AdmissionController admissionController;
+    private final ProxyMetrics metrics;
+
+    public AdmissionHandler(AdmissionController admissionController) {
+        this(admissionController, ProxyMetrics.UNEXPORTED);
+    }
+
+    public AdmissionHandler(AdmissionController admissionController, ProxyMetrics metrics) {
+        this.admissionController = admissionController;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, ConnectRequest request) throws Exception {
+        Rejection rejection = admissionController.admit(ctx.channel());
+        if (rejection != null) {
+            LOG.debug("RejectedRequest: {}. Reason: {}.", request, rejection);
+            metrics.connectResponse(ConnectResponses.SERVICE_UNAVAILABLE);
+            ConnectResponses.writeAndClose(ctx, ConnectResponses.SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        ctx.fireChannelRead(request);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        LOG.warn("Exception: Channel {} will be closed.", ctx.channel().id(), cause);
+        ctx.close();
+    }
+}
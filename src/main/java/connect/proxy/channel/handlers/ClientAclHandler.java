@@ -0,0 +1,51 @@
+package connect.proxy.channel.handlers;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.metrics.ProxyMetrics;
+import connect.proxy.whitelist.CidrAcl;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * Handler of the listening channels that drops connections from clients not allowed by an ACL.
+ *
+ * It sees the accepted channels before they are registered to a worker event loop, so a denied
+ * client costs no pipeline and no TLS handshake. Allowed channels go on to the child handler.
+ *
+ * @author carlos
+ *
+ */
+@Sharable
+public class ClientAclHandler extends ChannelInboundHandlerAdapter {
+    private static Logger LOG = LogManager.getLogger();
+
+    private final CidrAcl clientAcl;
+    private final ProxyMetrics metrics;
+
+    public ClientAclHandler(CidrAcl clientAcl, ProxyMetrics metrics) {
+        this.clientAcl = clientAcl;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        Channel child = (Channel) msg;
+        SocketAddress address = child.remoteAddress();
+        if (address instanceof InetSocketAddress
+                && !clientAcl.allows(((InetSocketAddress) address).getAddress())) {
+            LOG.debug("Connection from {} denied.", address);
+            metrics.connectionDenied();
+            child.unsafe().closeForcibly();
+            return;
+        }
+
+        ctx.fireChannelRead(msg);
+    }
+}
@@ -0,0 +1,42 @@
+package connect.proxy.channel.handlers;
+
+/**
+ * A parsed CONNECT request. It is produced by the ConnectRequestDecoder.
+ *
+ * @author carlos
+ *
+ */
+public final class ConnectRequest {
+    private final String host;
+    private final int port;
+    private final String proxyAuthorization;
+
+    /**
+     * Constructor.
+     * @param host target host. IPv6 literals do not have brackets.
+     * @param port target port.
+     * @param proxyAuthorization value of the Proxy-Authorization header, or null if missing.
+     */
+    public ConnectRequest(String host, int port, String proxyAuthorization) {
+        this.host = host;
+        this.port = port;
+        this.proxyAuthorization = proxyAuthorization;
+    }
+
+    public String host() {
+        return host;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public String proxyAuthorization() {
+        return proxyAuthorization;
+    }
+
+    @Override
+    public String toString() {
+        return "CONNECT " + (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+    }
+}
@@ -0,0 +1,399 @@
+package connect.proxy.channel.handlers;
+
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.accesslog.AccessRecord;
+import connect.proxy.metrics.ProxyMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Decoder for CONNECT requests (https://tools.ietf.org/html/rfc7231#section-4.3.6).
+ *
+ * The request line and headers are parsed directly from the inbound buffer. Only the target
+ * authority and the headers the proxy cares about are extracted; the rest of headers are skipped
+ * without being copied. A ConnectRequest is fired once the header section is complete.
+ *
+ * Malformed requests are answered with an error response and the channel is closed:
+ * <ul>
+ *   <li>400 Bad Request - syntax errors, invalid target or request content headers.</li>
+ *   <li>501 Not Implemented - methods other than CONNECT.</li>
+ *   <li>431 Request Header Fields Too Large - header section longer than the maximum size.</li>
+ * </ul>
+ *
+ * Bytes received after the request (e.g. a TLS ClientHello sent before the 200 response) are kept
+ * buffered. While the upstream connection is being opened, the decoder keeps reading them up to a
+ * maximum (early data). ConnectRequestHandler takes them as soon as the upstream is connected; the
+ * rest are forwarded down the pipeline when the decoder is removed, as well as an input shutdown
+ * received meanwhile.
+ *
+ * @author carlos
+ *
+ */
+public class ConnectRequestDecoder extends ByteToMessageDecoder {
+    private static Logger LOG = LogManager.getLogger();
+
+    public static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+    public static final int DEFAULT_HTTPS_REMOTE_PORT = 443;
+    public static final int DEFAULT_MAX_EARLY_DATA = 16384;
+
+    private static final byte[] CONNECT = ascii("CONNECT");
+    private static final byte[] HTTP_1 = ascii("HTTP/1.");
+    private static final byte[] CONTENT_LENGTH = ascii("content-length");
+    private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+    private static final byte[] PROXY_AUTHORIZATION = ascii("proxy-authorization");
+
+    private enum State {
+        REQUEST_LINE, HEADERS, DONE, FAILED
+    }
+
+    private final int maxHeaderSize;
+    private final ProxyMetrics metrics;
+    private final int maxEarlyData;
+    private boolean inputShutdown;
+    private State state = State.REQUEST_LINE;
+    private int headerSize;
+    private String host;
+    private int port;
+    private String proxyAuthorization;
+
+    public ConnectRequestDecoder() {
+        this(DEFAULT_MAX_HEADER_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param maxHeaderSize maximum size in bytes of the request line plus headers.
+     */
+    public ConnectRequestDecoder(int maxHeaderSize) {
+        this(maxHeaderSize, ProxyMetrics.UNEXPORTED);
+    }
+
+    /**
+     * Constructor.
+     * @param maxHeaderSize maximum size in bytes of the request line plus headers.
+     * @param metrics metrics where rejected requests are counted.
+     */
+    public ConnectRequestDecoder(int maxHeaderSize, ProxyMetrics metrics) {
+        this(maxHeaderSize, metrics, DEFAULT_MAX_EARLY_DATA);
+    }
+
+    /**
+     * Constructor.
+     * @param maxHeaderSize maximum size in bytes of the request line plus headers.
+     * @param metrics metrics where rejected requests are counted.
+     * @param maxEarlyData bytes read after the request while the upstream connection is opened.
+     *        If 0, only the bytes received with the request are kept.
+     */
+    public ConnectRequestDecoder(int maxHeaderSize, ProxyMetrics metrics, int maxEarlyData) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.metrics = metrics;
+        this.maxEarlyData = maxEarlyData;
+    }
+
+    /**
+     * @return bytes received after the CONNECT request that have not been forwarded yet.
+     */
+    public int bufferedBytes() {
+        return state == State.DONE ? actualReadableBytes() : 0;
+    }
+
+    /**
+     * @return whether there are buffered bytes or an input shutdown to be forwarded.
+     */
+    public boolean hasPendingInput() {
+        return bufferedBytes() > 0 || inputShutdown;
+    }
+
+    /**
+     * Take the bytes received after the CONNECT request.
+     * @return buffered bytes, or null if there are none. The caller must release them.
+     */
+    public ByteBuf readBufferedBytes() {
+        int bufferedBytes = bufferedBytes();
+        return bufferedBytes > 0 ? internalBuffer().readRetainedSlice(bufferedBytes) : null;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (state == State.FAILED) {
+            in.skipBytes(in.readableBytes());
+            return;
+        }
+
+        while (state == State.REQUEST_LINE || state == State.HEADERS) {
+            int start = in.readerIndex();
+            int lf = in.indexOf(start, in.writerIndex(), (byte) '\n');
+            if (lf < 0) {
+                if (headerSize + in.readableBytes() > maxHeaderSize) {
+                    fail(ctx, in, ConnectResponses.REQUEST_HEADER_FIELDS_TOO_LARGE, "Header too large");
+                }
+                return;
+            }
+
+            headerSize += lf + 1 - start;
+            if (headerSize > maxHeaderSize) {
+                fail(ctx, in, ConnectResponses.REQUEST_HEADER_FIELDS_TOO_LARGE, "Header too large");
+                return;
+            }
+
+            int end = lf > start && in.getByte(lf - 1) == '\r' ? lf - 1 : lf;
+            in.readerIndex(lf + 1);
+
+            if (state == State.REQUEST_LINE) {
+                // Empty lines before the request line are ignored (RFC 7230 section 3.5).
+                if (end > start) {
+                    decodeRequestLine(ctx, in, start, end);
+                }
+            } else if (end > start) {
+                decodeHeader(ctx, in, start, end);
+            } else {
+                state = State.DONE;
+                AccessRecord.requested(ctx.channel(), host, port);
+                out.add(new ConnectRequest(host, port, proxyAuthorization));
+            }
+        }
+    }
+
+    private void decodeRequestLine(ChannelHandlerContext ctx, ByteBuf in, int start, int end) {
+        int methodEnd = in.indexOf(start, end, (byte) ' ');
+        int targetEnd = methodEnd < 0 ? -1 : in.indexOf(methodEnd + 1, end, (byte) ' ');
+        if (targetEnd < 0) {
+            fail(ctx, in, ConnectResponses.BAD_REQUEST, "Malformed request line");
+            return;
+        }
+
+        if (!equals(in, start, methodEnd, CONNECT)) {
+            fail(ctx, in, ConnectResponses.NOT_IMPLEMENTED, "Method NOT implemented");
+            return;
+        }
+
+        if (end - targetEnd - 1 != HTTP_1.length + 1
+                || !equals(in, targetEnd + 1, end - 1, HTTP_1)
+                || !isDigit(in.getByte(end - 1))) {
+            fail(ctx, in, ConnectResponses.BAD_REQUEST, "Unsupported HTTP version");
+            return;
+        }
+
+        ConnectRequest target = decodeTarget(in, methodEnd + 1, targetEnd, null);
+        if (target == null) {
+            fail(ctx, in, ConnectResponses.BAD_REQUEST, "Target NOT in authority form");
+            return;
+        }
+        host = target.host();
+        port = target.port();
+
+        state = State.HEADERS;
+    }
+
+    /**
+     * Decode a request target. It must be in authority form: host[:port], where host may be a
+     * name, an IPv4 address or an IPv6 address enclosed in brackets. It is also used for the
+     * :authority of HTTP/2 CONNECT requests.
+     * @return the request, or null if the target is not in authority form.
+     */
+    static ConnectRequest decodeTarget(ByteBuf in, int start, int end, String proxyAuthorization) {
+        int hostStart;
+        int hostEnd;
+        int portSeparator;
+        int port;
+
+        if (start < end && in.getByte(start) == '[') {
+            hostStart = start + 1;
+            hostEnd = in.indexOf(hostStart, end, (byte) ']');
+            if (hostEnd < 0) {
+                return null;
+            }
+            for (int i = hostStart; i < hostEnd; i++) {
+                byte b = in.getByte(i);
+                if (!isHexDigit(b) && b != ':' && b != '.') {
+                    return null;
+                }
+            }
+            portSeparator = hostEnd + 1;
+            if (portSeparator < end && in.getByte(portSeparator) != ':') {
+                return null;
+            }
+        } else {
+            hostStart = start;
+            hostEnd = in.indexOf(start, end, (byte) ':');
+            if (hostEnd < 0) {
+                hostEnd = end;
+            }
+            for (int i = hostStart; i < hostEnd; i++) {
+                byte b = in.getByte(i);
+                if (!isDigit(b) && !isAlpha(b) && b != '-' && b != '.' && b != '_') {
+                    return null;
+                }
+            }
+            portSeparator = hostEnd;
+        }
+
+        if (hostStart == hostEnd) {
+            return null;
+        }
+
+        if (portSeparator >= end) {
+            port = DEFAULT_HTTPS_REMOTE_PORT;
+        } else {
+            int portStart = portSeparator + 1;
+            if (portStart == end || end - portStart > 5) {
+                return null;
+            }
+            port = 0;
+            for (int i = portStart; i < end; i++) {
+                byte b = in.getByte(i);
+                if (!isDigit(b)) {
+                    return null;
+                }
+                port = port * 10 + (b - '0');
+            }
+            if (port == 0 || port > 0xFFFF) {
+                return null;
+            }
+        }
+
+        return new ConnectRequest(in.toString(hostStart, hostEnd - hostStart, CharsetUtil.US_ASCII), port,
+            proxyAuthorization);
+    }
+
+    private void decodeHeader(ChannelHandlerContext ctx, ByteBuf in, int start, int end) {
+        // Obsolete line folding is rejected (RFC 7230 section 3.2.4).
+        byte first = in.getByte(start);
+        if (first == ' ' || first == '\t') {
+            fail(ctx, in, ConnectResponses.BAD_REQUEST, "Obsolete line folding");
+            return;
+        }
+
+        int nameEnd = in.indexOf(start, end, (byte) ':');
+        if (nameEnd <= start || isWhitespace(in.getByte(nameEnd - 1))) {
+            fail(ctx, in, ConnectResponses.BAD_REQUEST, "Malformed header");
+            return;
+        }
+
+        // CONNECT should not have content.
+        if (equalsIgnoreCase(in, start, nameEnd, CONTENT_LENGTH)
+                || equalsIgnoreCase(in, start, nameEnd, TRANSFER_ENCODING)) {
+            fail(ctx, in, ConnectResponses.BAD_REQUEST, "Unexpected content headers");
+            return;
+        }
+
+        if (equalsIgnoreCase(in, start, nameEnd, PROXY_AUTHORIZATION)) {
+            int valueStart = nameEnd + 1;
+            int valueEnd = end;
+            while (valueStart < valueEnd && isWhitespace(in.getByte(valueStart))) {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && isWhitespace(in.getByte(valueEnd - 1))) {
+                valueEnd--;
+            }
+            proxyAuthorization = in.toString(valueStart, valueEnd - valueStart, CharsetUtil.US_ASCII);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (state != State.DONE) {
+            super.channelReadComplete(ctx);
+            return;
+        }
+
+        // Read early data while auto-read is off (the upstream connection is being opened). The
+        // default behavior would read without limit, as no more messages are decoded.
+        discardSomeReadBytes();
+        if (!ctx.channel().config().isAutoRead() && !inputShutdown
+                && actualReadableBytes() < maxEarlyData) {
+            ctx.read();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof ChannelInputShutdownEvent && state == State.DONE) {
+            // Forwarded after the early data, when the tunnel is set up.
+            inputShutdown = true;
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) {
+        if (inputShutdown) {
+            ctx.fireUserEventTriggered(ChannelInputShutdownEvent.INSTANCE);
+        }
+    }
+
+    /**
+     * Reject the request. The input buffer MUST NOT be used afterwards: closing the channel may
+     * release it.
+     */
+    private void fail(ChannelHandlerContext ctx, ByteBuf in, ByteBuf response, String reason) {
+        LOG.debug("RejectedRequest: Channel {}. Reason: {}.", ctx.channel().id(), reason);
+        state = State.FAILED;
+        in.skipBytes(in.readableBytes());
+        metrics.connectResponse(response);
+        ConnectResponses.writeAndClose(ctx, response);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        LOG.warn("Exception: Channel {} will be closed.", ctx.channel().id(), cause);
+        ctx.close();
+    }
+
+    private static boolean equals(ByteBuf buf, int start, int end, byte[] bytes) {
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buf.getByte(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(ByteBuf buf, int start, int end, byte[] lowerCaseBytes) {
+        if (end - start != lowerCaseBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseBytes.length; i++) {
+            byte b = buf.getByte(start + i);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isAlpha(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static boolean isHexDigit(byte b) {
+        return isDigit(b) || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(CharsetUtil.US_ASCII);
+    }
+}
@@ -1,6 +1,7 @@
 package connect.proxy.channel.handlers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map.Entry;
 
@@ -9,31 +10,34 @@ import javax.net.ssl.SSLException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import io.netty.bootstrap.Bootstrap;
+import connect.proxy.channel.MemoryBudget;
+import connect.proxy.channel.Tunnel;
+import connect.proxy.channel.TunnelRegistry;
+import connect.proxy.channel.TunnelShaper;
+import connect.proxy.channel.TunnelTimeouts;
+import connect.proxy.channel.UpstreamConnector;
+import connect.proxy.channel.UpstreamLoopSelector;
+import connect.proxy.health.CircuitOpenException;
+import connect.proxy.metrics.ProxyMetrics;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ConnectTimeoutException;
 import io.netty.channel.EventLoop;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoop;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.Future;
 
 /**
  * Handler for the CONNECT requests on the channel server side.
  * 
- * Validation for the incoming request should have been done in a previous handler. It assumes the
- * request URI is in authority form.
+ * Validation for the incoming request should have been done in previous handlers (e.g.
+ * ConnectRequestDecoder and ConnectRequestValidatorHandler).
  * 
  * It tries to open a new channel to the remote server. If successful, the incoming channel and the
  * new channel are coupled together using TunnelHandlers.
@@ -41,50 +45,145 @@ import io.netty.handler.codec.http.HttpVersion;
  * @author carlos
  *
  */
-public class ConnectRequestHandler extends SimpleChannelInboundHandler<HttpRequest> {
+public class ConnectRequestHandler extends SimpleChannelInboundHandler<ConnectRequest> {
     private static Logger LOG = LogManager.getLogger();
 
-    private static final FullHttpResponse RESPONSE_OK =
-        new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    private final UpstreamLoopSelector upstreamLoopSelector;
+    private final UpstreamConnector upstreamConnector;
+    private final ProxyMetrics metrics;
+    private final MemoryBudget memoryBudget;
+    private final TunnelShaper tunnelShaper;
+    private final TunnelTimeouts timeouts;
+    private final TunnelRegistry tunnelRegistry;
+    private List<ChannelHandler> mandatoryHandlers;
 
-    private static final FullHttpResponse RESPONSE_SERVICE_UNAVAILABLE =
-        new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE);
+    /**
+     * Options of the handlers, set once and shared by the handlers of all the channels. The
+     * handlers read them when they are created.
+     */
+    public static class Options {
+        private UpstreamConnector upstreamConnector = new UpstreamConnector();
+        private UpstreamLoopSelector upstreamLoopSelector = UpstreamLoopSelector.SAME_LOOP;
+        private ProxyMetrics metrics = ProxyMetrics.UNEXPORTED;
+        private MemoryBudget memoryBudget;
+        private TunnelShaper tunnelShaper;
+        private TunnelTimeouts timeouts;
+        private TunnelRegistry tunnelRegistry;
 
-    private final NioEventLoop preferredNioEventLoop;
-    private List<ChannelHandler> mandatoryHandlers;
+        /**
+         * Set the connector used to open the channel to the remote host.
+         * @param upstreamConnector connector.
+         * @return these options.
+         */
+        public Options upstreamConnector(UpstreamConnector upstreamConnector) {
+            this.upstreamConnector = upstreamConnector;
+            return this;
+        }
+
+        /**
+         * Set how the EventLoop used when connecting to the remote host is chosen. By default, it is
+         * the EventLoop of the incoming channel.
+         * @param upstreamLoopSelector selector.
+         * @return these options.
+         */
+        public Options upstreamLoopSelector(UpstreamLoopSelector upstreamLoopSelector) {
+            this.upstreamLoopSelector = upstreamLoopSelector;
+            return this;
+        }
+
+        /**
+         * Use always the same EventLoop when connecting to the remote host.
+         * @param upstreamEventLoop EventLoop.
+         * @return these options.
+         */
+        public Options upstreamEventLoop(EventLoop upstreamEventLoop) {
+            return upstreamLoopSelector(inChannel -> upstreamEventLoop);
+        }
+
+        /**
+         * Set the metrics where responses, upstream connections and tunnels are recorded.
+         * @param metrics metrics.
+         * @return these options.
+         */
+        public Options metrics(ProxyMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Set the global memory budget that pauses tunnels.
+         * @param memoryBudget memory budget, or null.
+         * @return these options.
+         */
+        public Options memoryBudget(MemoryBudget memoryBudget) {
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        /**
+         * Set the bandwidth limits of the tunnels. Shaped tunnels are not spliced.
+         * @param tunnelShaper tunnel shaper, or null.
+         * @return these options.
+         */
+        public Options tunnelShaper(TunnelShaper tunnelShaper) {
+            this.tunnelShaper = tunnelShaper;
+            return this;
+        }
+
+        /**
+         * Set the handshake timeouts and idle tunnel timeouts. Spliced tunnels are not reaped.
+         * @param timeouts tunnel timeouts, or null.
+         * @return these options.
+         */
+        public Options timeouts(TunnelTimeouts timeouts) {
+            this.timeouts = timeouts;
+            return this;
+        }
+
+        /**
+         * Set the registry where open tunnels are added.
+         * @param tunnelRegistry tunnel registry, or null.
+         * @return these options.
+         */
+        public Options tunnelRegistry(TunnelRegistry tunnelRegistry) {
+            this.tunnelRegistry = tunnelRegistry;
+            return this;
+        }
+    }
 
     /**
      * Constructor.
      * @param mandatoryHandlers handlers to be kept when the pipeline is re-arranged for tunneling.
      */
     public ConnectRequestHandler(List<ChannelHandler> mandatoryHandlers) {
-        this(mandatoryHandlers, null);
+        this(mandatoryHandlers, new Options());
     }
 
     /**
      * Constructor.
      * @param mandatoryHandlers handlers to be kept when the pipeline is re-arranged for tunneling.
-     * @param preferredNioEventLoop NioEventLoop to be used when connecting to the remote host.
-     *        If it is null, the NioEventLoop of the incoming channel will be used.
+     * @param options upstream connection, metrics and tunnel options.
      */
-    public ConnectRequestHandler(List<ChannelHandler> mandatoryHandlers,
-            NioEventLoop preferredNioEventLoop) {
+    public ConnectRequestHandler(List<ChannelHandler> mandatoryHandlers, Options options) {
         this.mandatoryHandlers = new ArrayList<>(mandatoryHandlers);
-        this.preferredNioEventLoop = preferredNioEventLoop;
+        this.upstreamConnector = options.upstreamConnector;
+        this.upstreamLoopSelector = options.upstreamLoopSelector;
+        this.metrics = options.metrics;
+        this.memoryBudget = options.memoryBudget;
+        this.tunnelShaper = options.tunnelShaper;
+        this.timeouts = options.timeouts;
+        this.tunnelRegistry = options.tunnelRegistry;
     }
 
-
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, HttpRequest msg) throws Exception {
+    protected void channelRead0(ChannelHandlerContext ctx, ConnectRequest msg) throws Exception {
         // Do not read automatically anymore. We might be switching to a TunnelHandler.
         ctx.channel().config().setAutoRead(false);
+        if (timeouts != null) {
+            timeouts.requestReceived(ctx.channel());
+        }
 
-        // URI is expected in authority form (https://tools.ietf.org/html/rfc7231#section-4.3.6)
-        // Validation should has been done in a previous handler (e.g. ConnectRequestValidatorHandler)
-        String[] uriParts = msg.uri().split(":");
-        String host = uriParts[0];
-        int port = Integer.parseInt(uriParts[1]);
-        tunnel(host, port, ctx);
+        tunnel(msg.host(), msg.port(), ctx);
     }
 
     /**
@@ -96,28 +195,97 @@ public class ConnectRequestHandler extends SimpleChannelInboundHandler<HttpReque
      */
     private void tunnel(String host, int port, ChannelHandlerContext ctx) throws SSLException  {
         Channel inChannel = ctx.channel();
-        ChannelFuture connectFuture = connect(host, port, ctx);
+        long connectStartNanos = System.nanoTime();
+        metrics.upstreamConnectStarted();
+        Future<Channel> connectFuture = connect(host, port, ctx);
+
+        // Stop connecting if the client goes away.
+        inChannel.closeFuture().addListener(f -> connectFuture.cancel(false));
 
         connectFuture.addListener(future -> {
-            // If connection to remote host is established.
-            if (future.isSuccess()) {
-                LOG.debug("Tunneled channel {} to {}:{}.", inChannel.id(), host, port);
+            metrics.upstreamConnectFinished(System.nanoTime() - connectStartNanos, future.isSuccess());
+            if (future.isCancelled()) {
+                return;
+            }
+
+            // The listener runs on the loop of the upstream channel, which may not be the loop of
+            // the client channel. The client pipeline (and the early data buffered in its decoder)
+            // is only touched from its own loop.
+            EventLoop inLoop = inChannel.eventLoop();
+            if (inLoop.inEventLoop()) {
+                connected(ctx, connectFuture, host, port);
+            } else {
+                inLoop.execute(() -> connected(ctx, connectFuture, host, port));
+            }
+        });
+    }
+
+    /**
+     * Couple the incoming channel to the upstream channel, or answer the error if the connection
+     * failed. It runs on the event loop of the incoming channel.
+     * @param ctx Context of the incoming channel.
+     * @param connectFuture completed future of the upstream channel.
+     * @param host target host
+     * @param port target port of the host
+     */
+    private void connected(ChannelHandlerContext ctx, Future<Channel> connectFuture, String host, int port) {
+        Channel inChannel = ctx.channel();
+        // If connection to remote host is established.
+        if (connectFuture.isSuccess()) {
+            Channel outChannel = connectFuture.getNow();
+            if (!inChannel.isActive()) {
+                outChannel.close();
+                return;
+            }
+
+            LOG.debug("Tunneled channel {} to {}:{}.", inChannel.id(), host, port);
+
+            // Couple the channels before any data is exchanged: the upstream may answer the
+            // early data before the tunnel pipeline is set up.
+            Tunnel tunnel = new Tunnel(inChannel, outChannel, host, port);
+            if (tunnelRegistry != null) {
+                tunnelRegistry.register(tunnel);
+            }
+            forwardEarlyData(tunnel);
 
-                ChannelFuture okResponseFuture = ctx.writeAndFlush(RESPONSE_OK);
+            metrics.connectResponse(ConnectResponses.OK);
+            metrics.tunnelOpened();
+            inChannel.closeFuture().addListener(f -> metrics.tunnelClosed());
+            ChannelFuture okResponseFuture = ConnectResponses.write(ctx, ConnectResponses.OK);
 
-                // Start reading from incoming channel once OK response has been sent.
-                okResponseFuture.addListener(f -> {
-                	setupTunnelPipeline(inChannel, connectFuture.channel());
-                	inChannel.read();
-                });
+            // Start reading from incoming channel once OK response has been sent.
+            okResponseFuture.addListener(f -> {
+                // Bytes received while the response was written are still buffered in the
+                // decoder. They are forwarded by the TunnelHandler when the decoder is removed.
+                if (upstreamConnector.isSpliceEnabled() && tunnelShaper == null
+                        && SpliceTunnel.canSplice(inChannel, outChannel)
+                        && !hasPendingInput(inChannel)) {
+                    tunnel.spliced();
+                    setupSplicePipeline(inChannel, outChannel);
+                } else {
+                    setupTunnelPipeline(inChannel, outChannel);
+                    inChannel.read();
+                }
+            });
 
+        } else {
+            if (connectFuture.cause() instanceof CircuitOpenException) {
+                LOG.debug("Failed to tunnel channel {} to {}:{}: {}.", inChannel.id(), host, port,
+                    connectFuture.cause().getMessage());
             } else {
                 LOG.warn("Failed to tunnel channel {} to {}:{}.", inChannel.id(), host, port,
-                    future.cause());
-                ctx.writeAndFlush(RESPONSE_SERVICE_UNAVAILABLE)
-                    .addListener(ChannelFutureListener.CLOSE);
+                    connectFuture.cause());
             }
-        });
+            ByteBuf response = ConnectResponses.SERVICE_UNAVAILABLE;
+            if (connectFuture.cause() instanceof ConnectTimeoutException) {
+                response = ConnectResponses.GATEWAY_TIMEOUT;
+                if (timeouts != null) {
+                    timeouts.connectTimedOut();
+                }
+            }
+            metrics.connectResponse(response);
+            ConnectResponses.writeAndClose(ctx, response);
+        }
     }
 
     /**
@@ -125,55 +293,103 @@ public class ConnectRequestHandler extends SimpleChannelInboundHandler<HttpReque
      * @param host target host
      * @param port target port of the host
      * @param ctx Context of the incoming pre-existing channel. Its configuration will be reused.
-     * @return A future for the result of the connection.
+     * @return A future for the connected channel.
      * @throws SSLException
      */
-    private ChannelFuture connect(String host, int port, ChannelHandlerContext ctx) throws SSLException {
-        EventLoop evLoop;
-
-        if (preferredNioEventLoop != null) {
-            evLoop = preferredNioEventLoop;
-        } else {
-            evLoop =  ctx.channel().eventLoop();
-        }
+    private Future<Channel> connect(String host, int port, ChannelHandlerContext ctx) throws SSLException {
+        EventLoop evLoop = upstreamLoopSelector.select(ctx.channel());
 
-        Bootstrap b = new Bootstrap()
-            .group(evLoop)
-            .channel(NioSocketChannel.class)
-            .option(ChannelOption.SO_KEEPALIVE, true)
-            .option(ChannelOption.AUTO_READ, false)
-            .handler(new ChannelInitializer<SocketChannel>() {
-                @Override
-                public void initChannel(SocketChannel ch) throws Exception {
-                    ch.pipeline()
-                        .addLast(new TunnelHandler());
-                }
-            });
-
-        return b.connect(host, port);
+        return upstreamConnector.connect(host, port, evLoop, new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline()
+                    .addLast(new TunnelHandler(metrics.bytesToClient(), memoryBudget));
+            }
+        });
     }
 
     /**
      * Setup channels and pipeline configuration for tunneling.
+     * Package-private for benchmarking.
      * @param inChannel
      * @param outChannel
      */
-    private void setupTunnelPipeline(Channel inChannel, Channel outChannel) {
-        // Set COUPLE_CHANNEL attribute. It is used by the TunnelHandler to know where to
-        // redirect channel incoming data. The new outgoing client channel data is to be
-        // redirected to the incoming channel, and viceversa.
-        outChannel.attr(TunnelHandler.COUPLE_CHANNEL).set(inChannel);
-        inChannel.attr(TunnelHandler.COUPLE_CHANNEL).set(outChannel);
+    void setupTunnelPipeline(Channel inChannel, Channel outChannel) {
+        // Set COUPLE_CHANNEL attribute, unless the channels are coupled by a Tunnel. It is used
+        // by the TunnelHandler to know where to redirect channel incoming data. The new outgoing
+        // client channel data is to be redirected to the incoming channel, and viceversa.
+        if (!inChannel.hasAttr(Tunnel.TUNNEL)) {
+            outChannel.attr(TunnelHandler.COUPLE_CHANNEL).set(inChannel);
+            inChannel.attr(TunnelHandler.COUPLE_CHANNEL).set(outChannel);
+        }
+
+        // Add bandwidth limits. Writes to each channel are shaped.
+        if (tunnelShaper != null) {
+            mandatoryHandlers.addAll(Arrays.asList(tunnelShaper.shape(inChannel, outChannel)));
+        }
 
         // Add tunnel handler.
-        ChannelHandler tunnelHandler = new TunnelHandler();
+        TunnelHandler tunnelHandler = new TunnelHandler(metrics.bytesToUpstream(), memoryBudget);
         inChannel.pipeline().addLast(tunnelHandler);
         mandatoryHandlers.add(tunnelHandler);
 
+        if (timeouts != null) {
+            timeouts.watchIdle(inChannel, tunnelHandler, outChannel.pipeline().get(TunnelHandler.class));
+        }
+
         // For incoming channel, remove handlers except for the mandatory handlers.
-        ChannelPipeline pipeline = inChannel.pipeline();
+        removeHandlers(inChannel.pipeline(), mandatoryHandlers);
+    }
+
+    /**
+     * Setup channels for zero-copy tunneling. No handler processes tunneled data.
+     * @param inChannel
+     * @param outChannel
+     */
+    private void setupSplicePipeline(Channel inChannel, Channel outChannel) {
+        removeHandlers(inChannel.pipeline(), mandatoryHandlers);
+        removeHandlers(outChannel.pipeline(), mandatoryHandlers);
+        SpliceTunnel.splice(inChannel, outChannel);
+    }
+
+    /**
+     * Write the bytes the client sent after the request (e.g. a TLS ClientHello) without waiting
+     * for the 200 response. With TCP Fast Open, they are the first write, so they go in the SYN.
+     * @param tunnel
+     */
+    private void forwardEarlyData(Tunnel tunnel) {
+        Channel inChannel = tunnel.getClientChannel();
+        Channel outChannel = tunnel.getUpstreamChannel();
+        ConnectRequestDecoder decoder = inChannel.pipeline().get(ConnectRequestDecoder.class);
+        ByteBuf earlyData = decoder != null ? decoder.readBufferedBytes() : null;
+        if (earlyData != null) {
+            LOG.debug("Forwarding {} bytes of early data from channel {}.", earlyData.readableBytes(),
+                inChannel.id());
+            int bytes = earlyData.readableBytes();
+            metrics.bytesToUpstream().add(bytes);
+            tunnel.forwarded(inChannel, bytes);
+            // Buffered before the tunnel exists, the early data is in flight as tunneled data is.
+            if (memoryBudget != null) {
+                outChannel.writeAndFlush(earlyData, memoryBudget.newWritePromise(outChannel, bytes));
+            } else {
+                outChannel.writeAndFlush(earlyData).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            }
+        }
+    }
+
+    private static boolean hasPendingInput(Channel inChannel) {
+        ConnectRequestDecoder decoder = inChannel.pipeline().get(ConnectRequestDecoder.class);
+        return decoder != null && decoder.hasPendingInput();
+    }
+
+    /**
+     * Remove pipeline handlers except for the given handlers.
+     * @param pipeline
+     * @param keptHandlers
+     */
+    private static void removeHandlers(ChannelPipeline pipeline, List<ChannelHandler> keptHandlers) {
         pipeline.forEach((Entry<String, ChannelHandler> entry) -> {
-            if (!mandatoryHandlers.contains(entry.getValue())) {
+            if (!keptHandlers.contains(entry.getValue())) {
                 pipeline.remove(entry.getValue());
             }
         });
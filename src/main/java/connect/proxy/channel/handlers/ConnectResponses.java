@@ -0,0 +1,99 @@
+package connect.proxy.channel.handlers;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import connect.proxy.accesslog.AccessRecord;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Pre-encoded responses to CONNECT requests. They are encoded once and shared by all channels.
+ *
+ * On HTTP/2 streams, the response is sent as a HEADERS frame instead. Error responses end the
+ * stream.
+ *
+ * @author carlos
+ *
+ */
+public final class ConnectResponses {
+    // Status of each response, for the access log. Filled in once, while the responses are encoded.
+    private static final Map<ByteBuf, Integer> STATUS = new IdentityHashMap<>();
+    // HTTP/2 headers of each response. They are never modified.
+    private static final Map<ByteBuf, Http2Headers> HTTP2_HEADERS = new IdentityHashMap<>();
+
+    public static final ByteBuf OK = encode(HttpResponseStatus.OK);
+    public static final ByteBuf BAD_REQUEST = encode(HttpResponseStatus.BAD_REQUEST);
+    public static final ByteBuf FORBIDDEN = encode(HttpResponseStatus.FORBIDDEN);
+    public static final ByteBuf PROXY_AUTHENTICATION_REQUIRED = encode(
+        HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED,
+        "Proxy-Authenticate: Basic realm=\"connect-proxy\", charset=\"UTF-8\"\r\n");
+    public static final ByteBuf NOT_IMPLEMENTED = encode(HttpResponseStatus.NOT_IMPLEMENTED);
+    public static final ByteBuf REQUEST_HEADER_FIELDS_TOO_LARGE =
+        encode(HttpResponseStatus.REQUEST_HEADER_FIELDS_TOO_LARGE);
+    public static final ByteBuf SERVICE_UNAVAILABLE = encode(HttpResponseStatus.SERVICE_UNAVAILABLE);
+    public static final ByteBuf GATEWAY_TIMEOUT = encode(HttpResponseStatus.GATEWAY_TIMEOUT);
+
+    private ConnectResponses() {
+    }
+
+    private static ByteBuf encode(HttpResponseStatus status) {
+        return encode(status, "");
+    }
+
+    private static ByteBuf encode(HttpResponseStatus status, String headers) {
+        // Error responses close the connection, so they do not need a Content-Length.
+        String response = "HTTP/1.1 " + status + "\r\n"
+            + headers
+            + (status == HttpResponseStatus.OK ? "" : "Connection: close\r\n")
+            + "\r\n";
+        ByteBuf encoded = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes(response.getBytes(CharsetUtil.US_ASCII)));
+        STATUS.put(encoded, status.code());
+
+        Http2Headers http2Headers = new DefaultHttp2Headers().status(status.codeAsText());
+        for (String header : headers.split("\r\n")) {
+            int colon = header.indexOf(':');
+            if (colon > 0) {
+                http2Headers.add(AsciiString.of(header.substring(0, colon)).toLowerCase(),
+                    header.substring(colon + 1).trim());
+            }
+        }
+        HTTP2_HEADERS.put(encoded, http2Headers);
+        return encoded;
+    }
+
+    /**
+     * Write a response.
+     * @param ctx handler context.
+     * @param response one of the responses of this class.
+     * @return the write future.
+     */
+    public static ChannelFuture write(ChannelHandlerContext ctx, ByteBuf response) {
+        AccessRecord.responded(ctx.channel(), STATUS.get(response));
+        if (ctx.channel() instanceof Http2StreamChannel) {
+            return ctx.writeAndFlush(
+                new DefaultHttp2HeadersFrame(HTTP2_HEADERS.get(response), response != OK));
+        }
+        return ctx.writeAndFlush(response.duplicate());
+    }
+
+    /**
+     * Write a response and close the channel.
+     * @param ctx handler context.
+     * @param response one of the responses of this class.
+     */
+    public static void writeAndClose(ChannelHandlerContext ctx, ByteBuf response) {
+        write(ctx, response).addListener(ChannelFutureListener.CLOSE);
+    }
+}
@@ -0,0 +1,166 @@
+package connect.proxy.channel.handlers;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.accesslog.AccessRecord;
+import connect.proxy.metrics.ProxyMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Decoder for CONNECT requests on HTTP/2 streams (https://tools.ietf.org/html/rfc7540#section-8.3).
+ *
+ * The request is the first HEADERS frame of the stream. Its :authority is parsed like the target of
+ * an HTTP/1 request, and a ConnectRequest is fired. Malformed requests are answered with an error
+ * response, which ends the stream:
+ * <ul>
+ *   <li>400 Bad Request - missing or invalid :authority, or a request that ends the stream.</li>
+ *   <li>501 Not Implemented - methods other than CONNECT.</li>
+ * </ul>
+ * Extended CONNECT (:protocol, RFC 8441) is not advertised, so clients do not send it.
+ *
+ * Stream reads are driven by the handlers (auto-read is off), so the stream flow control window
+ * is only updated as tunneled data is forwarded. Data read after the request is kept and
+ * forwarded down the pipeline when the decoder is removed, as well as the end of the stream.
+ *
+ * Http2DataCodec must be before this decoder.
+ *
+ * @author carlos
+ *
+ */
+public class Http2ConnectRequestDecoder extends ChannelInboundHandlerAdapter {
+    private static Logger LOG = LogManager.getLogger();
+
+    private static final AsciiString PROXY_AUTHORIZATION = AsciiString.cached("proxy-authorization");
+
+    private enum State {
+        REQUEST, DONE, FAILED
+    }
+
+    private final ProxyMetrics metrics;
+    private final Queue<Object> pendingData = new ArrayDeque<>();
+    private boolean inputShutdown;
+    private State state = State.REQUEST;
+
+    public Http2ConnectRequestDecoder() {
+        this(ProxyMetrics.UNEXPORTED);
+    }
+
+    /**
+     * Constructor.
+     * @param metrics metrics where rejected requests are counted.
+     */
+    public Http2ConnectRequestDecoder(ProxyMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        ctx.channel().config().setAutoRead(false);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        ctx.read();
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (state == State.DONE) {
+            pendingData.add(msg);
+        } else if (state == State.REQUEST && msg instanceof Http2HeadersFrame) {
+            decodeRequest(ctx, (Http2HeadersFrame) msg);
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void decodeRequest(ChannelHandlerContext ctx, Http2HeadersFrame frame) {
+        Http2Headers headers = frame.headers();
+        if (!HttpMethod.CONNECT.asciiName().contentEquals(headers.method())) {
+            fail(ctx, ConnectResponses.NOT_IMPLEMENTED, "Method NOT implemented");
+            return;
+        }
+        if (frame.isEndStream()) {
+            fail(ctx, ConnectResponses.BAD_REQUEST, "Request ends the stream");
+            return;
+        }
+
+        CharSequence authority = headers.authority();
+        ConnectRequest request = null;
+        if (authority != null) {
+            AsciiString target = AsciiString.of(authority);
+            ByteBuf in = Unpooled.wrappedBuffer(target.array(), target.arrayOffset(), target.length());
+            CharSequence proxyAuthorization = headers.get(PROXY_AUTHORIZATION);
+            request = ConnectRequestDecoder.decodeTarget(in, in.readerIndex(), in.writerIndex(),
+                proxyAuthorization != null ? proxyAuthorization.toString().trim() : null);
+        }
+        if (request == null) {
+            fail(ctx, ConnectResponses.BAD_REQUEST, "Authority NOT valid");
+            return;
+        }
+
+        state = State.DONE;
+        AccessRecord.requested(ctx.channel(), request.host(), request.port());
+        ctx.fireChannelRead(request);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // Keep reading until the request is received. Then, the handlers read when they are ready.
+        if (state == State.REQUEST) {
+            ctx.read();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof ChannelInputShutdownEvent && state == State.DONE) {
+            // Forwarded after the pending data, when the tunnel is set up.
+            inputShutdown = true;
+            return;
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (!pendingData.isEmpty()) {
+            Object msg;
+            while ((msg = pendingData.poll()) != null) {
+                ctx.fireChannelRead(msg);
+            }
+            ctx.fireChannelReadComplete();
+        }
+        if (inputShutdown) {
+            ctx.fireUserEventTriggered(ChannelInputShutdownEvent.INSTANCE);
+        }
+    }
+
+    private void fail(ChannelHandlerContext ctx, ByteBuf response, String reason) {
+        LOG.debug("RejectedRequest: Channel {}. Reason: {}.", ctx.channel().id(), reason);
+        state = State.FAILED;
+        metrics.connectResponse(response);
+        ConnectResponses.writeAndClose(ctx, response);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        LOG.warn("Exception: Channel {} will be closed.", ctx.channel().id(), cause);
+        ctx.close();
+    }
+}
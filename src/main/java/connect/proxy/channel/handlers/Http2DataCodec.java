@@ -0,0 +1,117 @@
+package connect.proxy.channel.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Codec between the frames of an HTTP/2 stream and the bytes of a tunnel, so the tunnel handlers
+ * work on streams as they do on TCP connections.
+ *
+ * Inbound, the content of DATA frames is fired as ByteBufs. The first HEADERS frame (the request)
+ * is passed on; trailers are dropped. The end of the stream is fired as a ChannelInputShutdownEvent
+ * if half-close is allowed; otherwise, the stream is closed.
+ *
+ * Outbound, ByteBufs are written as DATA frames; frames are written as they are. When the stream is
+ * closed after a response, the stream is ended with an empty DATA frame first, so the client sees
+ * a clean end of the tunnel instead of a reset.
+ *
+ * With half-close, the stream is closed once both ends are done: the inbound stream has ended and
+ * an end of stream has been written.
+ *
+ * @author carlos
+ *
+ */
+public class Http2DataCodec extends ChannelDuplexHandler {
+    private final boolean halfClose;
+    private boolean requestRead;
+    private boolean responseWritten;
+    private boolean inputEnded;
+    private boolean outputEnded;
+
+    public Http2DataCodec() {
+        this(true);
+    }
+
+    /**
+     * Constructor.
+     * @param halfClose whether the end of the inbound stream is propagated as a half-close.
+     *        If false, the stream is closed.
+     */
+    public Http2DataCodec(boolean halfClose) {
+        this.halfClose = halfClose;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof Http2DataFrame) {
+            Http2DataFrame frame = (Http2DataFrame) msg;
+            ByteBuf content = frame.content();
+            if (content.isReadable()) {
+                ctx.fireChannelRead(content);
+            } else {
+                content.release();
+            }
+            if (frame.isEndStream()) {
+                inputEnded(ctx);
+            }
+        } else if (msg instanceof Http2HeadersFrame && !requestRead) {
+            requestRead = true;
+            ctx.fireChannelRead(msg);
+        } else {
+            if (msg instanceof Http2HeadersFrame && ((Http2HeadersFrame) msg).isEndStream()) {
+                inputEnded(ctx);
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void inputEnded(ChannelHandlerContext ctx) {
+        inputEnded = true;
+        if (!halfClose) {
+            ctx.close();
+            return;
+        }
+        ctx.fireUserEventTriggered(ChannelInputShutdownEvent.INSTANCE);
+        if (outputEnded) {
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof ByteBuf) {
+            ctx.write(new DefaultHttp2DataFrame((ByteBuf) msg), promise);
+            return;
+        }
+        boolean endStream = msg instanceof Http2HeadersFrame && ((Http2HeadersFrame) msg).isEndStream()
+            || msg instanceof Http2DataFrame && ((Http2DataFrame) msg).isEndStream();
+        responseWritten |= msg instanceof Http2HeadersFrame;
+        if (endStream && !outputEnded) {
+            outputEnded = true;
+            if (inputEnded) {
+                promise = promise.unvoid();
+                promise.addListener((ChannelFutureListener) f -> ctx.close());
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+        if (responseWritten && !outputEnded && ctx.channel().isActive()) {
+            outputEnded = true;
+            ctx.writeAndFlush(new DefaultHttp2DataFrame(true))
+                .addListener((ChannelFutureListener) f -> ctx.close(promise));
+            return;
+        }
+        ctx.close(promise);
+    }
+}
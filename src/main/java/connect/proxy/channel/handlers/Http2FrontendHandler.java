@@ -0,0 +1,98 @@
+package connect.proxy.channel.handlers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.accesslog.AccessRecord;
+import connect.proxy.metrics.ProxyMetrics;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+
+/**
+ * Chooses the protocol of a TLS client connection, as negotiated with ALPN. It goes right after
+ * the SslHandler, and removes itself once the handshake is complete.
+ *
+ * With HTTP/1.1 (or no ALPN), the pipeline is left as it is. With HTTP/2, the HTTP/1 handlers
+ * after this one are replaced by the HTTP/2 codec, and each stream gets its own pipeline from the
+ * stream initializer; one connection then carries up to the maximum concurrent streams, each of
+ * them a CONNECT request and its tunnel.
+ *
+ * Each stream has its own flow control window, so a slow upstream only stops its stream. The
+ * connection window is raised to the window of all the streams, so that data buffered for a
+ * stopped stream does not block the rest.
+ *
+ * @author carlos
+ *
+ */
+public class Http2FrontendHandler extends ApplicationProtocolNegotiationHandler {
+    private static Logger LOG = LogManager.getLogger();
+
+    private final ChannelHandler streamInitializer;
+    private final int maxConcurrentStreams;
+    private final int initialWindowSize;
+    private final ProxyMetrics metrics;
+
+    /**
+     * Constructor.
+     * @param streamInitializer handler that sets up the pipeline of each stream.
+     * @param maxConcurrentStreams streams a client can open at once.
+     * @param initialWindowSize flow control window in bytes of each stream.
+     * @param metrics metrics where HTTP/2 connections are counted.
+     */
+    public Http2FrontendHandler(ChannelHandler streamInitializer, int maxConcurrentStreams,
+            int initialWindowSize, ProxyMetrics metrics) {
+        super(ApplicationProtocolNames.HTTP_1_1);
+        this.streamInitializer = streamInitializer;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.initialWindowSize = initialWindowSize;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+        if (!ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+            return;
+        }
+
+        LOG.debug("Channel {} negotiated HTTP/2.", ctx.channel().id());
+        metrics.http2ConnectionAccepted();
+        // Each stream is logged on its own.
+        AccessRecord.multiplexed(ctx.channel());
+
+        ChannelPipeline pipeline = ctx.pipeline();
+        while (pipeline.last() != this) {
+            pipeline.removeLast();
+        }
+        Http2Settings settings = Http2Settings.defaultSettings()
+            .maxConcurrentStreams(maxConcurrentStreams)
+            .initialWindowSize(initialWindowSize);
+        pipeline.addLast(Http2FrameCodecBuilder.forServer().initialSettings(settings).build(),
+            new Http2MultiplexHandler(streamInitializer));
+
+        long connectionWindow = (long) initialWindowSize * maxConcurrentStreams;
+        int increment = (int) Math.min(connectionWindow, Http2CodecUtil.MAX_INITIAL_WINDOW_SIZE)
+            - Http2CodecUtil.DEFAULT_WINDOW_SIZE;
+        if (increment > 0) {
+            ctx.channel().writeAndFlush(new DefaultHttp2WindowUpdateFrame(increment));
+        }
+    }
+
+    @Override
+    protected void handshakeFailure(ChannelHandlerContext ctx, Throwable cause) {
+        // Failed handshakes are counted by the TLS session stats.
+        ctx.close();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.fireExceptionCaught(cause);
+    }
+}
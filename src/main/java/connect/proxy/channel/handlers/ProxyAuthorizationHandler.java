@@ -0,0 +1,81 @@
+package connect.proxy.channel.handlers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.auth.ProxyAuthenticator;
+import connect.proxy.auth.ProxyAuthenticator.Result;
+import connect.proxy.metrics.ProxyMetrics;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+/**
+ * Handler to authenticate CONNECT requests by their Proxy-Authorization header.
+ *
+ * Requests without valid credentials get a 407 response, and the channel is closed. Credentials
+ * that are not cached are verified off the event loop; meanwhile, the channel stops reading,
+ * except for the early data buffered by the ConnectRequestDecoder. If the verification queue is
+ * full, the request gets a 503 response.
+ *
+ * It goes before the ConnectRequestValidatorHandler, so clients without credentials learn nothing
+ * about the whitelist.
+ *
+ * @author carlos
+ *
+ */
+public class ProxyAuthorizationHandler extends SimpleChannelInboundHandler<ConnectRequest> {
+    private static Logger LOG = LogManager.getLogger();
+
+    private final ProxyAuthenticator authenticator;
+    private final ProxyMetrics metrics;
+
+    public ProxyAuthorizationHandler(ProxyAuthenticator authenticator) {
+        this(authenticator, ProxyMetrics.UNEXPORTED);
+    }
+
+    public ProxyAuthorizationHandler(ProxyAuthenticator authenticator, ProxyMetrics metrics) {
+        this.authenticator = authenticator;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, ConnectRequest request) throws Exception {
+        Result result = authenticator.cached(request.proxyAuthorization());
+        if (result != null) {
+            authenticated(ctx, request, result);
+            return;
+        }
+
+        ctx.channel().config().setAutoRead(false);
+        authenticator.verify(request.proxyAuthorization(), ctx.executor()).addListener(future -> {
+            if (ctx.channel().isActive()) {
+                Result verified = future.isSuccess() ? (Result) future.getNow() : Result.UNAVAILABLE;
+                authenticated(ctx, request, verified);
+            }
+        });
+    }
+
+    private void authenticated(ChannelHandlerContext ctx, ConnectRequest request, Result result) {
+        switch (result) {
+        case AUTHENTICATED:
+            ctx.fireChannelRead(request);
+            break;
+        case UNAVAILABLE:
+            LOG.debug("RejectedRequest: {}. Reason: Authentication queue full.", request);
+            metrics.connectResponse(ConnectResponses.SERVICE_UNAVAILABLE);
+            ConnectResponses.writeAndClose(ctx, ConnectResponses.SERVICE_UNAVAILABLE);
+            break;
+        default:
+            LOG.debug("RejectedRequest: {}. Reason: {} credentials.", request,
+                request.proxyAuthorization() == null ? "Missing" : "Invalid");
+            metrics.connectResponse(ConnectResponses.PROXY_AUTHENTICATION_REQUIRED);
+            ConnectResponses.writeAndClose(ctx, ConnectResponses.PROXY_AUTHENTICATION_REQUIRED);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        LOG.warn("Exception: Channel {} will be closed.", ctx.channel().id(), cause);
+        ctx.close();
+    }
+}
@@ -0,0 +1,160 @@
+package connect.proxy.channel.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.channel.SpliceRecvByteBufAllocator;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.epoll.EpollTcpInfo;
+import io.netty.handler.ssl.SslHandler;
+
+/**
+ * Zero-copy alternative to TunnelHandler. Data is moved between the coupled channels by the
+ * kernel (splice()), so it is never copied to user space.
+ *
+ * It is only possible when both channels are native epoll channels in level-triggered mode,
+ * registered to the same event loop, and no channel needs to process the data (e.g. SSL).
+ * Their reads should be sized by a SpliceRecvByteBufAllocator, so spliced read loops are driven
+ * by the readiness of the sockets.
+ *
+ * @author carlos
+ *
+ */
+public final class SpliceTunnel {
+    private static Logger LOG = LogManager.getLogger();
+
+    // Linux TCP state: the peer has closed its side of the connection.
+    private static final int TCP_CLOSE_WAIT = 8;
+
+    private SpliceTunnel() {
+    }
+
+    /**
+     * Check whether two channels can be spliced together.
+     * @param channel a channel
+     * @param coupleChannel the other channel
+     * @return true if splice() can be used between the channels.
+     */
+    public static boolean canSplice(Channel channel, Channel coupleChannel) {
+        return isSpliceable(channel) && isSpliceable(coupleChannel)
+            && channel.eventLoop() == coupleChannel.eventLoop();
+    }
+
+    private static boolean isSpliceable(Channel channel) {
+        return channel instanceof EpollSocketChannel
+            && ((EpollSocketChannel) channel).config().getEpollMode() == EpollMode.LEVEL_TRIGGERED
+            && channel.pipeline().get(SslHandler.class) == null;
+    }
+
+    /**
+     * Splice both directions of the coupled channels. Pipeline handlers do not see any data after
+     * this call. If one of the channels is closed, the other is closed too.
+     * @param channel a channel
+     * @param coupleChannel the other channel
+     */
+    public static void splice(Channel channel, Channel coupleChannel) {
+        EpollSocketChannel epollChannel = (EpollSocketChannel) channel;
+        EpollSocketChannel epollCoupleChannel = (EpollSocketChannel) coupleChannel;
+
+        epollChannel.pipeline().addLast(new EofHandler(coupleChannel));
+        epollCoupleChannel.pipeline().addLast(new EofHandler(channel));
+
+        epollChannel.spliceTo(epollCoupleChannel, Integer.MAX_VALUE)
+            .addListener(closeOnFailure(coupleChannel));
+        epollCoupleChannel.spliceTo(epollChannel, Integer.MAX_VALUE)
+            .addListener(closeOnFailure(channel));
+
+        channel.closeFuture().addListener(f -> closeOnFlush(coupleChannel));
+        coupleChannel.closeFuture().addListener(f -> closeOnFlush(channel));
+
+        LOG.debug("Channel {} spliced to {}.", channel.id(), coupleChannel.id());
+
+        // Splicing is driven by the read loop of the source channel.
+        channel.config().setAutoRead(true);
+        coupleChannel.config().setAutoRead(true);
+    }
+
+    private static ChannelFutureListener closeOnFailure(Channel coupleChannel) {
+        return future -> {
+            if (!future.isSuccess()) {
+                future.channel().close();
+                closeOnFlush(coupleChannel);
+            }
+        };
+    }
+
+    /**
+     * Close a channel once the data already spliced to it has been written.
+     * @param channel
+     */
+    private static void closeOnFlush(Channel channel) {
+        if (channel.isActive()) {
+            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * splice() cannot tell an EOF from an empty socket, so the channel would keep spinning on
+     * its readable socket after the peer closes. The TCP state is checked once per read loop
+     * instead: read loops only run when the socket is readable, so it is checked once per
+     * arrival of data. Auto-read is disabled while spliced data is pending, so if it is enabled,
+     * the pipe is empty and the rest of the socket data can be read directly before closing.
+     */
+    private static final class EofHandler extends ChannelInboundHandlerAdapter {
+        private final Channel coupleChannel;
+        private final EpollTcpInfo tcpInfo = new EpollTcpInfo();
+
+        EofHandler(Channel coupleChannel) {
+            this.coupleChannel = coupleChannel;
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            EpollSocketChannel channel = (EpollSocketChannel) ctx.channel();
+            if (channel.config().isAutoRead() && channel.tcpInfo(tcpInfo).state() == TCP_CLOSE_WAIT) {
+                LOG.debug("Channel {} reached EOF.", channel.id());
+                drain(channel);
+                channel.close();
+                closeOnFlush(coupleChannel);
+            }
+        }
+
+        /**
+         * Forward the data left in the socket of a closing channel.
+         * @param channel
+         */
+        private void drain(EpollSocketChannel channel) {
+            ByteBuf buf = null;
+            try {
+                for (;;) {
+                    buf = channel.alloc().directBuffer(SpliceRecvByteBufAllocator.SPLICE_SIZE);
+                    ByteBuffer nioBuf = buf.internalNioBuffer(0, buf.writableBytes());
+                    int bytesRead = channel.fd().read(nioBuf, nioBuf.position(), nioBuf.limit());
+                    if (bytesRead <= 0) {
+                        break;
+                    }
+                    coupleChannel.write(buf.writerIndex(bytesRead));
+                    buf = null;
+                }
+            } catch (IOException e) {
+                LOG.debug("Channel {} could not be drained.", channel.id(), e);
+            } finally {
+                if (buf != null) {
+                    buf.release();
+                }
+            }
+            coupleChannel.flush();
+        }
+    }
+}
@@ -3,19 +3,45 @@ package connect.proxy.channel.handlers;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import connect.proxy.accesslog.AccessRecord;
+import connect.proxy.channel.MemoryBudget;
+import connect.proxy.channel.Tunnel;
+import connect.proxy.metrics.Counter;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.util.AttributeKey;
 
 /**
  * TunnelHandler reads from the primary channel and forwards (writes) to the coupled channel.
- * 
- * The couple channel MUST be set as an attribute (COUPLE_CHANNEL) in the primary channel.
- * 
+ *
+ * The couple channel MUST be set as an attribute (COUPLE_CHANNEL) in the primary channel, or
+ * given by a Tunnel (TUNNEL attribute), before any data is read. It is looked up once and kept.
+ * The bytes read are counted in the Tunnel, if any.
+ *
+ * Reading goes on while the coupled channel is writable; that is, while its outbound buffer is
+ * below the high write-buffer watermark. When the coupled channel becomes writable again, it
+ * resumes reading from the primary channel. Writes are flushed once per read burst.
+ *
+ * Forwarded bytes are added to a counter, if given.
+ *
+ * If a memory budget is given, the bytes read are reserved in it until they are written, and
+ * reading also stops while the bytes in flight are over budget. The budget resumes reading once
+ * they go down.
+ *
+ * Half-close is propagated if the channels allow it (ALLOW_HALF_CLOSURE): when a peer shuts
+ * down its output, the output of the coupled channel is shut down once pending data is written.
+ * A channel is closed when both directions are shut down. HTTP/2 streams are ended with an empty
+ * DATA frame instead.
+ *
  * @author carlos
  *
  */
@@ -24,6 +50,34 @@ public class TunnelHandler extends ChannelInboundHandlerAdapter {
 
     public static final AttributeKey<Channel> COUPLE_CHANNEL = AttributeKey.valueOf("COUPLE_CHANNEL");
 
+    private final Counter forwardedBytes;
+    private final MemoryBudget memoryBudget;
+    private volatile long lastReadNanos = System.nanoTime();
+    private Channel coupleChannel;
+    private Tunnel tunnel;
+
+    public TunnelHandler() {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     * @param forwardedBytes counter of bytes read from the primary channel, or null.
+     */
+    public TunnelHandler(Counter forwardedBytes) {
+        this(forwardedBytes, null);
+    }
+
+    /**
+     * Constructor.
+     * @param forwardedBytes counter of bytes read from the primary channel, or null.
+     * @param memoryBudget global memory budget, or null.
+     */
+    public TunnelHandler(Counter forwardedBytes, MemoryBudget memoryBudget) {
+        this.forwardedBytes = forwardedBytes;
+        this.memoryBudget = memoryBudget;
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
         ctx.read();
@@ -31,26 +85,130 @@ public class TunnelHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void channelRead(final ChannelHandlerContext ctx, Object msg) {
-        Channel coupleChannel = ctx.channel().attr(COUPLE_CHANNEL).get();
-        // Write what I read.
-        coupleChannel.writeAndFlush(msg).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) {
-                if (future.isSuccess()) {
-                    LOG.debug("Channel {} forwarded to {}.", ctx.channel().id(), future.channel().id());
-                    // Once I have written, read again.
-                    ctx.channel().read();
-                } else {
-                	System.out.println(future.cause());
-                    future.channel().close();
-                }
+        Channel coupleChannel = coupleChannel(ctx.channel());
+        int bytes = 0;
+        if (msg instanceof ByteBuf) {
+            bytes = ((ByteBuf) msg).readableBytes();
+            if (forwardedBytes != null) {
+                forwardedBytes.add(bytes);
+            }
+            if (tunnel != null) {
+                tunnel.forwarded(ctx.channel(), bytes);
+            }
+        }
+        // Write what I read. It is flushed when the read burst is complete.
+        if (memoryBudget != null && bytes > 0) {
+            // In flight until written (or failed).
+            coupleChannel.write(msg, memoryBudget.newWritePromise(coupleChannel, bytes));
+        } else {
+            coupleChannel.write(msg).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        lastReadNanos = System.nanoTime();
+        Channel coupleChannel = coupleChannel(ctx.channel());
+        coupleChannel.flush();
+
+        // Keep reading unless the coupled channel has too much pending data. In that case,
+        // reading is resumed by the coupled channel once it is writable again.
+        if (coupleChannel.isWritable()) {
+            read(ctx.channel());
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            Channel coupleChannel = coupleChannel(ctx.channel());
+            if (coupleChannel != null) {
+                read(coupleChannel);
             }
-        });
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    /**
+     * Look up the coupled channel, once it is set. Handlers are not shared, so it is only
+     * accessed from the event loop of the channel.
+     * @param channel primary channel.
+     * @return the coupled channel, or null if it is not set yet.
+     */
+    private Channel coupleChannel(Channel channel) {
+        if (coupleChannel == null) {
+            tunnel = channel.attr(Tunnel.TUNNEL).get();
+            coupleChannel = tunnel != null ? tunnel.coupleOf(channel) : channel.attr(COUPLE_CHANNEL).get();
+        }
+        return coupleChannel;
+    }
+
+    private void read(Channel channel) {
+        if (memoryBudget != null && memoryBudget.isExceeded()) {
+            memoryBudget.pause(channel);
+        } else {
+            channel.read();
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof ChannelInputShutdownEvent) {
+            LOG.debug("Channel {} input is shut down.", ctx.channel().id());
+            // An upstream channel may be closed before it is coupled (e.g. the client went away).
+            Channel coupleChannel = coupleChannel(ctx.channel());
+            if (coupleChannel != null) {
+                coupleChannel.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                    .addListener(f -> shutdownOutput(coupleChannel));
+            }
+            closeIfShutdown(ctx.channel());
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    private static void shutdownOutput(Channel channel) {
+        if (channel instanceof Http2StreamChannel && channel.isActive()) {
+            // Closing a stream would reset it, and cut off the other direction. The stream is
+            // ended instead; it is closed once both ends are done (Http2DataCodec).
+            channel.writeAndFlush(new DefaultHttp2DataFrame(true));
+            return;
+        }
+        if (!(channel instanceof DuplexChannel) || !channel.isActive()) {
+            channel.close();
+            return;
+        }
+
+        // A TLS peer expects close_notify before the FIN.
+        SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+        if (sslHandler != null) {
+            sslHandler.closeOutbound().addListener(f -> shutdownOutput((DuplexChannel) channel));
+        } else {
+            shutdownOutput((DuplexChannel) channel);
+        }
+    }
+
+    private static void shutdownOutput(DuplexChannel channel) {
+        channel.shutdownOutput().addListener(f -> closeIfShutdown(channel));
+    }
+
+    private static void closeIfShutdown(Channel channel) {
+        if (channel instanceof DuplexChannel && ((DuplexChannel) channel).isInputShutdown()
+                && ((DuplexChannel) channel).isOutputShutdown()) {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return time of the last read burst, as given by System.nanoTime().
+     */
+    public long getLastReadNanos() {
+        return lastReadNanos;
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         LOG.warn("Exception: Channel {} will be closed.", ctx.channel().id(), cause);
+        AccessRecord.closing(ctx.channel(), "error");
         if (ctx.channel().isActive()) {
             // Try to flush, before closing channel.
             ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
@@ -60,10 +218,10 @@ public class TunnelHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         LOG.debug("Channel {} is inactive.", ctx.channel().id());
-        Channel coupleChannel = ctx.channel().attr(COUPLE_CHANNEL).get();
-        if (coupleChannel.isActive()) {
-            // This channel has been closed; Closing the coupled channel.
-            coupleChannel.close();
+        Channel coupleChannel = coupleChannel(ctx.channel());
+        if (coupleChannel != null && coupleChannel.isActive()) {
+            // This channel has been closed; Closing the coupled channel once pending data is written.
+            coupleChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
         }
     }
-}
\ No newline at end of file
+}
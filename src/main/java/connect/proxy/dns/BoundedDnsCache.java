@@ -0,0 +1,107 @@
+package connect.proxy.dns;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.resolver.dns.DefaultDnsCache;
+import io.netty.resolver.dns.DnsCache;
+import io.netty.resolver.dns.DnsCacheEntry;
+
+/**
+ * DNS cache with a limited number of host names.
+ *
+ * Entries respect the TTL of the DNS answers (bounded by a min and max TTL). Failed resolutions
+ * (e.g. NXDOMAIN) are cached for the negative TTL. When the cache is full, an arbitrary host name
+ * is evicted to make room for a new one.
+ *
+ * @author carlos
+ *
+ */
+public class BoundedDnsCache implements DnsCache {
+    private final DefaultDnsCache cache;
+    private final Set<String> hostnames = ConcurrentHashMap.newKeySet();
+    private final int maxHostnames;
+
+    /**
+     * Constructor.
+     * @param maxHostnames maximum number of cached host names.
+     * @param minTtl minimum TTL in seconds.
+     * @param maxTtl maximum TTL in seconds.
+     * @param negativeTtl TTL in seconds for failed resolutions.
+     */
+    public BoundedDnsCache(int maxHostnames, int minTtl, int maxTtl, int negativeTtl) {
+        if (maxHostnames <= 0) {
+            throw new IllegalArgumentException("maxHostnames must be positive: " + maxHostnames);
+        }
+        this.cache = new DefaultDnsCache(minTtl, maxTtl, negativeTtl);
+        this.maxHostnames = maxHostnames;
+    }
+
+    /**
+     * @return number of cached host names. Host names with expired entries may still be counted.
+     */
+    public int size() {
+        return hostnames.size();
+    }
+
+    @Override
+    public void clear() {
+        cache.clear();
+        hostnames.clear();
+    }
+
+    @Override
+    public boolean clear(String hostname) {
+        hostnames.remove(hostname);
+        return cache.clear(hostname);
+    }
+
+    @Override
+    public List<? extends DnsCacheEntry> get(String hostname, DnsRecord[] additionals) {
+        List<? extends DnsCacheEntry> entries = cache.get(hostname, additionals);
+        if (entries == null || entries.isEmpty()) {
+            // Entries have expired.
+            hostnames.remove(hostname);
+        }
+        return entries;
+    }
+
+    @Override
+    public DnsCacheEntry cache(String hostname, DnsRecord[] additionals, InetAddress address,
+            long originalTtl, EventLoop loop) {
+        makeRoom(hostname);
+        return cache.cache(hostname, additionals, address, originalTtl, loop);
+    }
+
+    @Override
+    public DnsCacheEntry cache(String hostname, DnsRecord[] additionals, Throwable cause,
+            EventLoop loop) {
+        makeRoom(hostname);
+        return cache.cache(hostname, additionals, cause, loop);
+    }
+
+    private void makeRoom(String hostname) {
+        if (!hostnames.add(hostname)) {
+            return;
+        }
+
+        Iterator<String> it = hostnames.iterator();
+        while (hostnames.size() > maxHostnames && it.hasNext()) {
+            String evicted = it.next();
+            if (!evicted.equals(hostname)) {
+                it.remove();
+                cache.clear(evicted);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BoundedDnsCache(maxHostnames: " + maxHostnames + ", " + cache + ")";
+    }
+}
@@ -0,0 +1,51 @@
+package connect.proxy.dns;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Locale;
+
+import io.netty.resolver.HostsFileEntries;
+import io.netty.resolver.HostsFileEntriesResolver;
+import io.netty.resolver.HostsFileParser;
+import io.netty.resolver.ResolvedAddressTypes;
+
+/**
+ * Static host name source backed by a file in hosts file format (e.g. /etc/hosts).
+ *
+ * Host names found in the file are resolved without querying any DNS server.
+ *
+ * @author carlos
+ *
+ */
+public class HostsFileResolver implements HostsFileEntriesResolver {
+    private final HostsFileEntries entries;
+
+    /**
+     * Constructor. The file is only read once.
+     * @param file hosts file.
+     * @throws IOException
+     */
+    public HostsFileResolver(File file) throws IOException {
+        this.entries = HostsFileParser.parse(file);
+    }
+
+    @Override
+    public InetAddress address(String inetHost, ResolvedAddressTypes resolvedAddressTypes) {
+        String hostname = inetHost.toLowerCase(Locale.ENGLISH);
+
+        switch (resolvedAddressTypes) {
+        case IPV4_ONLY:
+            return entries.inet4Entries().get(hostname);
+        case IPV6_ONLY:
+            return entries.inet6Entries().get(hostname);
+        case IPV6_PREFERRED:
+            InetAddress inet6Address = entries.inet6Entries().get(hostname);
+            return inet6Address != null ? inet6Address : entries.inet4Entries().get(hostname);
+        case IPV4_PREFERRED:
+        default:
+            InetAddress inet4Address = entries.inet4Entries().get(hostname);
+            return inet4Address != null ? inet4Address : entries.inet6Entries().get(hostname);
+        }
+    }
+}
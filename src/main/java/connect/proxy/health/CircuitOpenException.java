@@ -0,0 +1,24 @@
+package connect.proxy.health;
+
+import java.net.ConnectException;
+
+/**
+ * A connection was not attempted because the circuit of the destination is open.
+ *
+ * It has no stack trace: it is thrown on every request to an unhealthy destination.
+ *
+ * @author carlos
+ *
+ */
+public class CircuitOpenException extends ConnectException {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String destination) {
+        super("Circuit open: " + destination);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
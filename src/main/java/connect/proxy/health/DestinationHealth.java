@@ -0,0 +1,139 @@
+package connect.proxy.health;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Health of an upstream destination (host:port), with a circuit breaker.
+ *
+ * <ul>
+ * <li>CLOSED: connections are allowed. After a number of consecutive failures, the circuit
+ * opens.</li>
+ * <li>OPEN: connections fail fast. Once the open duration elapses, the circuit is half-open.</li>
+ * <li>HALF_OPEN: one connection at a time is allowed as a probe. If it succeeds, the circuit
+ * closes; if it fails, it opens again.</li>
+ * </ul>
+ *
+ * The connect latency of successful connections is averaged with an EWMA.
+ *
+ * @author carlos
+ *
+ */
+public class DestinationHealth {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // Weight of a new sample in the latency average.
+    private static final double LATENCY_EWMA_ALPHA = 0.2;
+
+    private final String destination;
+    private final LongSupplier nanoClock;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean probing;
+    private double latencyEwmaNanos;
+    private long successes;
+    private long failures;
+
+    DestinationHealth(String destination, LongSupplier nanoClock) {
+        this.destination = destination;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Ask for a connection to the destination. Every allowed connection MUST be followed by a
+     * call to succeeded, failed or cancelled.
+     * @param openDurationNanos time the circuit stays open before a probe is allowed.
+     * @return whether the connection is allowed.
+     */
+    synchronized boolean tryAcquire(long openDurationNanos) {
+        long now = nanoClock.getAsLong();
+        switch (state) {
+        case OPEN:
+            if (now - openedAtNanos < openDurationNanos) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probing = true;
+            return true;
+        case HALF_OPEN:
+            if (probing) {
+                return false;
+            }
+            probing = true;
+            return true;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Record a successful connection.
+     * @param connectNanos time to resolve and connect.
+     * @return whether the circuit was closed by this connection.
+     */
+    synchronized boolean succeeded(long connectNanos) {
+        successes++;
+        consecutiveFailures = 0;
+        latencyEwmaNanos = latencyEwmaNanos == 0 ? connectNanos
+            : latencyEwmaNanos + LATENCY_EWMA_ALPHA * (connectNanos - latencyEwmaNanos);
+        probing = false;
+        if (state == State.CLOSED) {
+            return false;
+        }
+        state = State.CLOSED;
+        return true;
+    }
+
+    /**
+     * Record a failed connection.
+     * @param failureThreshold consecutive failures that open the circuit.
+     * @return whether the circuit was opened by this connection.
+     */
+    synchronized boolean failed(int failureThreshold) {
+        failures++;
+        consecutiveFailures++;
+        probing = false;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAtNanos = nanoClock.getAsLong();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record a connection that was abandoned before it completed. A probe can be sent again.
+     */
+    synchronized void cancelled() {
+        probing = false;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return average time to resolve and connect, in nanoseconds. 0 if no connection succeeded.
+     */
+    public synchronized long getLatencyEwmaNanos() {
+        return (long) latencyEwmaNanos;
+    }
+
+    public synchronized long getSuccesses() {
+        return successes;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,198 @@
+package connect.proxy.health;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Health of the upstream destinations, with a circuit breaker per destination (see
+ * DestinationHealth). While the circuit of a destination is open, connections to it fail fast
+ * instead of waiting for the connect timeout.
+ *
+ * The number of tracked destinations is limited. When it is full, a destination with a closed
+ * circuit is evicted to make room for a new one.
+ *
+ * @author carlos
+ *
+ */
+public class UpstreamHealth {
+    private static Logger LOG = LogManager.getLogger();
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION_MILLIS = 10000;
+    public static final int DEFAULT_MAX_DESTINATIONS = 10000;
+
+    private final ConcurrentHashMap<String, DestinationHealth> destinations = new ConcurrentHashMap<>();
+    private final LongSupplier nanoClock;
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder openedCircuits = new LongAdder();
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long openDurationNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_OPEN_DURATION_MILLIS);
+    private int maxDestinations = DEFAULT_MAX_DESTINATIONS;
+
+    public UpstreamHealth() {
+        this(System::nanoTime);
+    }
+
+    UpstreamHealth(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Set the consecutive connection failures that open the circuit of a destination.
+     * @param failureThreshold number of failures.
+     * @return this object.
+     */
+    public UpstreamHealth failureThreshold(int failureThreshold) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive: " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        return this;
+    }
+
+    /**
+     * Set the time an open circuit fails connections before a probe is allowed.
+     * @param openDurationMillis duration in milliseconds.
+     * @return this object.
+     */
+    public UpstreamHealth openDurationMillis(long openDurationMillis) {
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of tracked destinations.
+     * @param maxDestinations number of destinations.
+     * @return this object.
+     */
+    public UpstreamHealth maxDestinations(int maxDestinations) {
+        if (maxDestinations <= 0) {
+            throw new IllegalArgumentException("maxDestinations must be positive: " + maxDestinations);
+        }
+        this.maxDestinations = maxDestinations;
+        return this;
+    }
+
+    /**
+     * Ask for a connection to a destination. Every allowed connection MUST be followed by a call
+     * to succeeded, failed or cancelled.
+     * @param host target host.
+     * @param port target port.
+     * @return health of the destination, or null if its circuit is open.
+     */
+    public DestinationHealth tryAcquire(String host, int port) {
+        String destination = destination(host, port);
+        DestinationHealth health = destinations.get(destination);
+        if (health == null) {
+            makeRoom();
+            health = destinations.computeIfAbsent(destination, d -> new DestinationHealth(d, nanoClock));
+        }
+
+        if (!health.tryAcquire(openDurationNanos)) {
+            rejectedConnections.increment();
+            return null;
+        }
+        return health;
+    }
+
+    /**
+     * Record a successful connection.
+     * @param health health returned by tryAcquire.
+     * @param connectNanos time to resolve and connect.
+     */
+    public void succeeded(DestinationHealth health, long connectNanos) {
+        if (health.succeeded(connectNanos)) {
+            LOG.info("Circuit of {} closed.", health.getDestination());
+        }
+    }
+
+    /**
+     * Record a failed connection.
+     * @param health health returned by tryAcquire.
+     */
+    public void failed(DestinationHealth health) {
+        if (health.failed(failureThreshold)) {
+            openedCircuits.increment();
+            LOG.warn("Circuit of {} opened after {} consecutive failures.", health.getDestination(),
+                health.getConsecutiveFailures());
+        }
+    }
+
+    /**
+     * Record a connection abandoned before it completed (e.g. the client went away).
+     * @param health health returned by tryAcquire.
+     */
+    public void cancelled(DestinationHealth health) {
+        health.cancelled();
+    }
+
+    /**
+     * @param host target host.
+     * @param port target port.
+     * @return health of the destination, or null if it is not tracked.
+     */
+    public DestinationHealth get(String host, int port) {
+        return destinations.get(destination(host, port));
+    }
+
+    /**
+     * @return tracked destinations.
+     */
+    public Collection<DestinationHealth> getDestinations() {
+        return Collections.unmodifiableCollection(destinations.values());
+    }
+
+    /**
+     * @return destinations whose circuit is not closed. It iterates all the destinations.
+     */
+    public long getOpenCircuits() {
+        return destinations.values().stream()
+            .filter(health -> health.getState() != DestinationHealth.State.CLOSED)
+            .count();
+    }
+
+    /**
+     * @return times a circuit has been opened.
+     */
+    public long getOpenedCircuits() {
+        return openedCircuits.sum();
+    }
+
+    /**
+     * @return connections failed fast because the circuit was open.
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    private void makeRoom() {
+        if (destinations.size() < maxDestinations) {
+            return;
+        }
+
+        // Evicting an open circuit would let the traffic through to an unhealthy destination.
+        Iterator<DestinationHealth> it = destinations.values().iterator();
+        while (destinations.size() >= maxDestinations && it.hasNext()) {
+            if (it.next().getState() == DestinationHealth.State.CLOSED) {
+                it.remove();
+            }
+        }
+        it = destinations.values().iterator();
+        while (destinations.size() >= maxDestinations && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static String destination(String host, int port) {
+        return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+    }
+}
@@ -0,0 +1,97 @@
+package connect.proxy.loadgen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram for percentiles.
+ *
+ * Buckets are log-linear: values under 64 ns are exact, and every higher power of two of
+ * nanoseconds is split into 32 linear buckets, so reported percentiles are within 3.2% of the
+ * recorded values. Recording is lock-free and does not allocate.
+ *
+ * @author carlos
+ *
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // SUB_BUCKETS exact buckets, then SUB_BUCKETS / 2 buckets for each of the remaining powers of two.
+    private final AtomicLongArray counts = new AtomicLongArray(
+        SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS / 2);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a latency.
+     * @param nanos latency in nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sumNanos.add(value);
+        maxNanos.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanMillis() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) sumNanos.sum() / n / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Get a percentile.
+     * @param percentile percentile in (0, 100].
+     * @return upper bound of the bucket holding the percentile, in nanoseconds. 0 if empty.
+     */
+    public long percentileNanos(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(bucketUpperBound(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    public double percentileMillis(double percentile) {
+        return (double) percentileNanos(percentile) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Position of the highest bit, relative to the first power of two with sub-buckets.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS / 2;
+        return SUB_BUCKETS + (shift - 1) * SUB_BUCKETS / 2 + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / (SUB_BUCKETS / 2) + 1;
+        long subBucket = (index - SUB_BUCKETS) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
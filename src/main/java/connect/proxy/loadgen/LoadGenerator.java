@@ -0,0 +1,334 @@
+package connect.proxy.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.loadgen.LoadGeneratorConfig.Mode;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * End-to-end load generator. It opens concurrent CONNECT tunnels through a running proxy to an
+ * upstream, pushes payloads through them, and reports the tunnel setup rate, the throughput and
+ * latency percentiles.
+ *
+ * By default, the upstream is a LoopbackUpstream started in this process, which can inject
+ * latency and loss. When a tunnel closes before the end of the run, a new one replaces it.
+ *
+ * Usage: LoadGenerator [key=value...] (see LoadGeneratorConfig.fromProperties).
+ *
+ * @author carlos
+ *
+ */
+public class LoadGenerator {
+    private static Logger LOG = LogManager.getLogger();
+
+    private static final long RECONNECT_DELAY_MILLIS = 100;
+    private static final int MAX_RESPONSE_HEADER_SIZE = 8192;
+    private static final ByteBuf HEADER_END = Unpooled.unreleasableBuffer(
+        Unpooled.copiedBuffer("\r\n\r\n", CharsetUtil.US_ASCII));
+
+    private final LoadGeneratorConfig config;
+    private final Set<Channel> channels = ConcurrentHashMap.newKeySet();
+    private LoadGeneratorResult result;
+    private volatile boolean running;
+    private Bootstrap bootstrap;
+    private SslContext sslContext;
+    private ByteBuf payload;
+    private ByteBuf connectRequest;
+
+    public LoadGenerator(LoadGeneratorConfig config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected key=value argument: " + arg);
+            }
+            properties.setProperty(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        LoadGeneratorResult result = new LoadGenerator(LoadGeneratorConfig.fromProperties(properties)).run();
+        System.out.print(result);
+    }
+
+    /**
+     * Run the load. Blocks for the configured duration.
+     * @return the results. They are also written to the output file, if configured.
+     * @throws Exception
+     */
+    public LoadGeneratorResult run() throws Exception {
+        result = new LoadGeneratorResult(config);
+
+        LoopbackUpstream loopbackUpstream = null;
+        InetSocketAddress upstream = config.getUpstream();
+        if (upstream == null) {
+            loopbackUpstream = new LoopbackUpstream(config.getTransport(), config.getThreads(),
+                config.getMode() == Mode.ECHO, config.getUpstreamLatencyMillis(),
+                config.getUpstreamLossRate(), config.getUpstreamLossDelayMillis());
+            upstream = loopbackUpstream.getAddress();
+        }
+
+        sslContext = config.isSsl() ? newSslContext() : null;
+        payload = config.getPayloadPattern().newPayload(config.getPayloadSize());
+        connectRequest = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(
+            "CONNECT " + upstream.getHostString() + ":" + upstream.getPort() + " HTTP/1.1\r\n"
+            + "Host: " + upstream.getHostString() + ":" + upstream.getPort() + "\r\n\r\n",
+            CharsetUtil.US_ASCII));
+
+        EventLoopGroup evLoopGroup = config.getTransport().newEventLoopGroup(config.getThreads());
+        bootstrap = new Bootstrap()
+            .group(evLoopGroup)
+            .channel(config.getTransport().socketChannelClass())
+            .remoteAddress(config.getProxyHost(), config.getProxyPort())
+            .handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                public void initChannel(SocketChannel ch) {
+                    if (sslContext != null) {
+                        ch.pipeline().addLast(sslContext.newHandler(ch.alloc(),
+                            config.getProxyHost(), config.getProxyPort()));
+                    }
+                    ch.pipeline().addLast(new TunnelClientHandler());
+                }
+            });
+
+        LOG.info("Load started. Proxy = {}:{}. Upstream = {}. Tunnels = {}. Mode = {}. Duration = {} s.",
+            config.getProxyHost(), config.getProxyPort(), upstream, config.getTunnels(),
+            config.getMode(), config.getDurationSeconds());
+
+        try {
+            running = true;
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < config.getTunnels(); i++) {
+                openTunnel();
+            }
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(config.getDurationSeconds()));
+            running = false;
+            result.setElapsedNanos(System.nanoTime() - startNanos);
+        } finally {
+            running = false;
+            for (Channel channel : channels) {
+                channel.close();
+            }
+            evLoopGroup.shutdownGracefully().syncUninterruptibly();
+            if (loopbackUpstream != null) {
+                loopbackUpstream.close();
+            }
+        }
+
+        if (config.getOutput() != null) {
+            writeOutput();
+        }
+        return result;
+    }
+
+    private void writeOutput() throws IOException {
+        Files.write(config.getOutput(), result.toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static SslContext newSslContext() throws SSLException {
+        // The proxy uses a self-signed certificate.
+        return SslContextBuilder.forClient()
+            .trustManager(InsecureTrustManagerFactory.INSTANCE)
+            .build();
+    }
+
+    private void openTunnel() {
+        if (!running) {
+            return;
+        }
+        bootstrap.connect().addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                result.tunnelsFailed.increment();
+                LOG.debug("Failed to connect to the proxy.", future.cause());
+                reopenTunnelLater(future.channel());
+            }
+        });
+    }
+
+    private void reopenTunnelLater(Channel channel) {
+        if (running) {
+            channel.eventLoop().schedule(this::openTunnel, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Client side of a tunnel: it sends the CONNECT request, waits for the 200 response and then
+     * drives the payload in the configured mode.
+     */
+    private class TunnelClientHandler extends ChannelInboundHandlerAdapter {
+        private final long connectNanos = System.nanoTime();
+        private ByteBuf responseHeader;
+        private boolean established;
+        private boolean failed;
+        private long sendNanos;
+        private int pendingEchoBytes;
+        private int roundTrips;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            channels.add(ctx.channel());
+            responseHeader = ctx.alloc().buffer(256);
+            // The SslHandler holds the request until the handshake is done.
+            ctx.writeAndFlush(connectRequest.duplicate());
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf data = (ByteBuf) msg;
+            try {
+                if (established) {
+                    onTunnelData(ctx, data.readableBytes());
+                } else {
+                    onResponseData(ctx, data);
+                }
+            } finally {
+                ReferenceCountUtil.release(data);
+            }
+        }
+
+        private void onResponseData(ChannelHandlerContext ctx, ByteBuf data) {
+            responseHeader.writeBytes(data);
+            int headerEnd = ByteBufUtil.indexOf(HEADER_END, responseHeader);
+            if (headerEnd < 0) {
+                if (responseHeader.readableBytes() > MAX_RESPONSE_HEADER_SIZE) {
+                    fail(ctx, "Response header too large");
+                }
+                return;
+            }
+
+            String statusLine = responseHeader.toString(0, responseHeader.indexOf(0,
+                responseHeader.writerIndex(), (byte) '\r'), CharsetUtil.US_ASCII);
+            if (!statusLine.startsWith("HTTP/1.1 200")) {
+                fail(ctx, statusLine);
+                return;
+            }
+
+            established = true;
+            result.tunnelsEstablished.increment();
+            result.setupLatency.record(System.nanoTime() - connectNanos);
+            // Nothing is sent through the tunnel before the response, so it has no trailing data.
+            responseHeader.release();
+            responseHeader = null;
+
+            if (config.getMode() == Mode.ECHO) {
+                sendEcho(ctx);
+            } else {
+                sendSink(ctx);
+            }
+        }
+
+        private void onTunnelData(ChannelHandlerContext ctx, int bytes) {
+            result.bytesReceived.add(bytes);
+            if (config.getMode() != Mode.ECHO) {
+                return;
+            }
+
+            pendingEchoBytes -= bytes;
+            if (pendingEchoBytes > 0) {
+                return;
+            }
+
+            result.roundTripLatency.record(System.nanoTime() - sendNanos);
+            roundTrips++;
+            if (!running || (config.getRoundTripsPerTunnel() > 0
+                    && roundTrips >= config.getRoundTripsPerTunnel())) {
+                ctx.close();
+            } else {
+                sendEcho(ctx);
+            }
+        }
+
+        private void sendEcho(ChannelHandlerContext ctx) {
+            pendingEchoBytes = payload.readableBytes();
+            sendNanos = System.nanoTime();
+            ctx.writeAndFlush(payload.duplicate());
+            result.bytesSent.add(pendingEchoBytes);
+        }
+
+        private void sendSink(ChannelHandlerContext ctx) {
+            // Keep the socket buffer full. Writing resumes when the channel is writable again.
+            while (running && ctx.channel().isWritable()) {
+                ctx.write(payload.duplicate());
+                result.bytesSent.add(payload.readableBytes());
+            }
+            ctx.flush();
+            if (!running) {
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (established && config.getMode() == Mode.SINK && ctx.channel().isWritable()) {
+                sendSink(ctx);
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        private void fail(ChannelHandlerContext ctx, String reason) {
+            LOG.debug("Tunnel {} failed: {}.", ctx.channel().id(), reason);
+            failed = true;
+            ctx.close();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.debug("Exception: Tunnel {} will be closed.", ctx.channel().id(), cause);
+            failed = true;
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            channels.remove(ctx.channel());
+            if (responseHeader != null) {
+                responseHeader.release();
+                responseHeader = null;
+            }
+
+            if (running) {
+                if (!established) {
+                    result.tunnelsFailed.increment();
+                    reopenTunnelLater(ctx.channel());
+                    return;
+                }
+                if (failed || config.getRoundTripsPerTunnel() == 0) {
+                    result.tunnelErrors.increment();
+                    reopenTunnelLater(ctx.channel());
+                    return;
+                }
+                openTunnel();
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package connect.proxy.loadgen;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import connect.proxy.ProxyServerConfig;
+import connect.proxy.channel.Transport;
+
+/**
+ * Configuration of the load generator.
+ *
+ * @author carlos
+ *
+ */
+public class LoadGeneratorConfig {
+    /**
+     * What each tunnel does once it is established.
+     */
+    public enum Mode {
+        /**
+         * Send one payload and wait for the upstream to echo it back. Round trips are timed.
+         */
+        ECHO,
+        /**
+         * Send payloads as fast as the tunnel accepts them. The upstream discards them.
+         */
+        SINK
+    }
+
+    public static final String DEFAULT_PROXY_HOST = "localhost";
+    public static final int DEFAULT_TUNNELS = 10;
+    public static final int DEFAULT_DURATION_SECONDS = 10;
+    public static final int DEFAULT_PAYLOAD_SIZE = 16 * 1024;
+    public static final long DEFAULT_UPSTREAM_LOSS_DELAY_MILLIS = 200;
+
+    private String proxyHost = DEFAULT_PROXY_HOST;
+    private int proxyPort = ProxyServerConfig.DEFAULT_PORT;
+    private boolean ssl = true;
+    private Transport transport = Transport.best();
+    private int threads;
+    private int tunnels = DEFAULT_TUNNELS;
+    private int durationSeconds = DEFAULT_DURATION_SECONDS;
+    private Mode mode = Mode.ECHO;
+    private int payloadSize = DEFAULT_PAYLOAD_SIZE;
+    private PayloadPattern payloadPattern = PayloadPattern.RANDOM;
+    private int roundTripsPerTunnel;
+    private InetSocketAddress upstream;
+    private long upstreamLatencyMillis;
+    private double upstreamLossRate;
+    private long upstreamLossDelayMillis = DEFAULT_UPSTREAM_LOSS_DELAY_MILLIS;
+    private Path output;
+
+    /**
+     * Build configuration from properties. The names are the ones of the setters (e.g.
+     * "proxy.port", "payload.size", "upstream.loss.rate").
+     * @param properties configuration properties.
+     * @return the configuration.
+     */
+    public static LoadGeneratorConfig fromProperties(Properties properties) {
+        LoadGeneratorConfig config = new LoadGeneratorConfig();
+
+        config.proxyHost = properties.getProperty("proxy.host", config.proxyHost).trim();
+        config.proxyPort = intProperty(properties, "proxy.port", config.proxyPort);
+        if (properties.containsKey("ssl")) {
+            config.ssl = Boolean.parseBoolean(properties.getProperty("ssl").trim());
+        }
+        if (properties.containsKey("transport")) {
+            config.transport = Transport.parse(properties.getProperty("transport").trim());
+        }
+        config.threads = intProperty(properties, "threads", config.threads);
+        config.tunnels = intProperty(properties, "tunnels", config.tunnels);
+        config.durationSeconds = intProperty(properties, "duration", config.durationSeconds);
+        if (properties.containsKey("mode")) {
+            config.mode = Mode.valueOf(properties.getProperty("mode").trim().toUpperCase());
+        }
+        config.payloadSize = intProperty(properties, "payload.size", config.payloadSize);
+        if (properties.containsKey("payload.pattern")) {
+            config.payloadPattern = PayloadPattern.valueOf(
+                properties.getProperty("payload.pattern").trim().toUpperCase());
+        }
+        config.roundTripsPerTunnel = intProperty(properties, "round.trips.per.tunnel",
+            config.roundTripsPerTunnel);
+        if (properties.containsKey("upstream")) {
+            config.upstream = ProxyServerConfig.parseSocketAddress(
+                properties.getProperty("upstream").trim(), 80);
+        }
+        if (properties.containsKey("upstream.latency")) {
+            config.upstreamLatencyMillis = Long.parseLong(properties.getProperty("upstream.latency").trim());
+        }
+        if (properties.containsKey("upstream.loss.rate")) {
+            config.upstreamLossRate = Double.parseDouble(properties.getProperty("upstream.loss.rate").trim());
+        }
+        if (properties.containsKey("upstream.loss.delay")) {
+            config.upstreamLossDelayMillis = Long.parseLong(
+                properties.getProperty("upstream.loss.delay").trim());
+        }
+        if (properties.containsKey("output")) {
+            config.output = Paths.get(properties.getProperty("output").trim());
+        }
+
+        return config;
+    }
+
+    private static int intProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public String getProxyHost() {
+        return proxyHost;
+    }
+
+    public LoadGeneratorConfig setProxyHost(String proxyHost) {
+        this.proxyHost = proxyHost;
+        return this;
+    }
+
+    public int getProxyPort() {
+        return proxyPort;
+    }
+
+    public LoadGeneratorConfig setProxyPort(int proxyPort) {
+        this.proxyPort = proxyPort;
+        return this;
+    }
+
+    /**
+     * @return whether the proxy uses SSL/TLS on client connections.
+     */
+    public boolean isSsl() {
+        return ssl;
+    }
+
+    public LoadGeneratorConfig setSsl(boolean ssl) {
+        this.ssl = ssl;
+        return this;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public LoadGeneratorConfig setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * @return event loop threads of the clients and the upstream. If 0, the Netty default is used.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public LoadGeneratorConfig setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @return number of concurrent tunnels.
+     */
+    public int getTunnels() {
+        return tunnels;
+    }
+
+    public LoadGeneratorConfig setTunnels(int tunnels) {
+        this.tunnels = tunnels;
+        return this;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public LoadGeneratorConfig setDurationSeconds(int durationSeconds) {
+        this.durationSeconds = durationSeconds;
+        return this;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public LoadGeneratorConfig setMode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    public LoadGeneratorConfig setPayloadSize(int payloadSize) {
+        this.payloadSize = payloadSize;
+        return this;
+    }
+
+    public PayloadPattern getPayloadPattern() {
+        return payloadPattern;
+    }
+
+    public LoadGeneratorConfig setPayloadPattern(PayloadPattern payloadPattern) {
+        this.payloadPattern = payloadPattern;
+        return this;
+    }
+
+    /**
+     * @return round trips before a tunnel is closed and replaced by a new one. If 0, tunnels are
+     *         kept open for the whole run. Low values measure the tunnel setup rate.
+     */
+    public int getRoundTripsPerTunnel() {
+        return roundTripsPerTunnel;
+    }
+
+    public LoadGeneratorConfig setRoundTripsPerTunnel(int roundTripsPerTunnel) {
+        this.roundTripsPerTunnel = roundTripsPerTunnel;
+        return this;
+    }
+
+    /**
+     * @return external upstream (unresolved). If null, a loopback upstream is started.
+     */
+    public InetSocketAddress getUpstream() {
+        return upstream;
+    }
+
+    public LoadGeneratorConfig setUpstream(InetSocketAddress upstream) {
+        this.upstream = upstream;
+        return this;
+    }
+
+    /**
+     * @return latency in milliseconds added by the loopback upstream to each response.
+     */
+    public long getUpstreamLatencyMillis() {
+        return upstreamLatencyMillis;
+    }
+
+    public LoadGeneratorConfig setUpstreamLatencyMillis(long upstreamLatencyMillis) {
+        this.upstreamLatencyMillis = upstreamLatencyMillis;
+        return this;
+    }
+
+    /**
+     * @return probability [0, 1] that the loopback upstream delays a response as if a segment
+     *         had been lost and retransmitted.
+     */
+    public double getUpstreamLossRate() {
+        return upstreamLossRate;
+    }
+
+    public LoadGeneratorConfig setUpstreamLossRate(double upstreamLossRate) {
+        this.upstreamLossRate = upstreamLossRate;
+        return this;
+    }
+
+    /**
+     * @return extra delay in milliseconds of a "lost" response (the retransmission timeout).
+     */
+    public long getUpstreamLossDelayMillis() {
+        return upstreamLossDelayMillis;
+    }
+
+    public LoadGeneratorConfig setUpstreamLossDelayMillis(long upstreamLossDelayMillis) {
+        this.upstreamLossDelayMillis = upstreamLossDelayMillis;
+        return this;
+    }
+
+    /**
+     * @return file where results are written in JSON. If null, they are only printed.
+     */
+    public Path getOutput() {
+        return output;
+    }
+
+    public LoadGeneratorConfig setOutput(Path output) {
+        this.output = output;
+        return this;
+    }
+}
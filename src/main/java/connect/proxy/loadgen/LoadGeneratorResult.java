@@ -0,0 +1,169 @@
+package connect.proxy.loadgen;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of a load generator run.
+ *
+ * @author carlos
+ *
+ */
+public class LoadGeneratorResult {
+    private static final double[] PERCENTILES = { 50, 99, 99.9 };
+
+    private final LoadGeneratorConfig config;
+    final LongAdder tunnelsEstablished = new LongAdder();
+    final LongAdder tunnelsFailed = new LongAdder();
+    final LongAdder tunnelErrors = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LatencyHistogram setupLatency = new LatencyHistogram();
+    final LatencyHistogram roundTripLatency = new LatencyHistogram();
+    private long elapsedNanos;
+
+    LoadGeneratorResult(LoadGeneratorConfig config) {
+        this.config = config;
+    }
+
+    void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public double getElapsedSeconds() {
+        return (double) elapsedNanos / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * @return tunnels that got a 200 response.
+     */
+    public long getTunnelsEstablished() {
+        return tunnelsEstablished.sum();
+    }
+
+    /**
+     * @return tunnels that could not be established (connection error or non-200 response).
+     */
+    public long getTunnelsFailed() {
+        return tunnelsFailed.sum();
+    }
+
+    /**
+     * @return established tunnels closed by an error before the end of the run.
+     */
+    public long getTunnelErrors() {
+        return tunnelErrors.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public double getTunnelsPerSecond() {
+        return getTunnelsEstablished() / getElapsedSeconds();
+    }
+
+    /**
+     * @return bits per second sent plus received by the clients, in Gbps.
+     */
+    public double getThroughputGbps() {
+        return (getBytesSent() + getBytesReceived()) * 8 / getElapsedSeconds() / 1e9;
+    }
+
+    /**
+     * @return latency from the connection to the proxy to the 200 response.
+     */
+    public LatencyHistogram getSetupLatency() {
+        return setupLatency;
+    }
+
+    /**
+     * @return latency of payload round trips (ECHO mode).
+     */
+    public LatencyHistogram getRoundTripLatency() {
+        return roundTripLatency;
+    }
+
+    /**
+     * @return results as a JSON object, for regression comparisons.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        jsonField(json, "mode", "\"" + config.getMode() + "\"");
+        jsonField(json, "ssl", config.isSsl());
+        jsonField(json, "transport", "\"" + config.getTransport() + "\"");
+        jsonField(json, "tunnels", config.getTunnels());
+        jsonField(json, "payloadSize", config.getPayloadSize());
+        jsonField(json, "payloadPattern", "\"" + config.getPayloadPattern() + "\"");
+        jsonField(json, "roundTripsPerTunnel", config.getRoundTripsPerTunnel());
+        jsonField(json, "upstreamLatencyMillis", config.getUpstreamLatencyMillis());
+        jsonField(json, "upstreamLossRate", config.getUpstreamLossRate());
+        jsonField(json, "elapsedSeconds", format(getElapsedSeconds()));
+        jsonField(json, "tunnelsEstablished", getTunnelsEstablished());
+        jsonField(json, "tunnelsFailed", getTunnelsFailed());
+        jsonField(json, "tunnelErrors", getTunnelErrors());
+        jsonField(json, "tunnelsPerSecond", format(getTunnelsPerSecond()));
+        jsonField(json, "bytesSent", getBytesSent());
+        jsonField(json, "bytesReceived", getBytesReceived());
+        jsonField(json, "throughputGbps", format(getThroughputGbps()));
+        jsonLatency(json, "setupLatencyMillis", setupLatency);
+        json.append(",\n");
+        jsonLatency(json, "roundTripLatencyMillis", roundTripLatency);
+        return json.append("\n}\n").toString();
+    }
+
+    private static void jsonField(StringBuilder json, String name, Object value) {
+        json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    private static void jsonLatency(StringBuilder json, String name, LatencyHistogram histogram) {
+        json.append("  \"").append(name).append("\": { \"count\": ").append(histogram.getCount())
+            .append(", \"mean\": ").append(format(histogram.getMeanMillis()));
+        for (double percentile : PERCENTILES) {
+            json.append(", \"p").append(percentileName(percentile)).append("\": ")
+                .append(format(histogram.percentileMillis(percentile)));
+        }
+        json.append(", \"max\": ")
+            .append(format((double) histogram.getMaxNanos() / TimeUnit.MILLISECONDS.toNanos(1)))
+            .append(" }");
+    }
+
+    private static String percentileName(double percentile) {
+        // 99.9 -> "999"
+        return Double.toString(percentile).replace(".0", "").replace(".", "");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.ROOT,
+            "Tunnels: %d established (%.1f/s), %d failed, %d errors.%n",
+            getTunnelsEstablished(), getTunnelsPerSecond(), getTunnelsFailed(), getTunnelErrors()));
+        summary.append(String.format(Locale.ROOT,
+            "Throughput: %.3f Gbps (%d bytes sent, %d bytes received in %.1f s).%n",
+            getThroughputGbps(), getBytesSent(), getBytesReceived(), getElapsedSeconds()));
+        appendLatency(summary, "Setup latency", setupLatency);
+        appendLatency(summary, "Round trip latency", roundTripLatency);
+        return summary.toString();
+    }
+
+    private static void appendLatency(StringBuilder summary, String name, LatencyHistogram histogram) {
+        summary.append(String.format(Locale.ROOT, "%s (ms): n=%d mean=%.3f", name,
+            histogram.getCount(), histogram.getMeanMillis()));
+        for (double percentile : PERCENTILES) {
+            summary.append(String.format(Locale.ROOT, " p%s=%.3f", percentileName(percentile),
+                histogram.percentileMillis(percentile)));
+        }
+        summary.append(String.format(Locale.ROOT, " max=%.3f%n",
+            (double) histogram.getMaxNanos() / TimeUnit.MILLISECONDS.toNanos(1)));
+    }
+}
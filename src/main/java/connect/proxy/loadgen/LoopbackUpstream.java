@@ -0,0 +1,164 @@
+package connect.proxy.loadgen;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import connect.proxy.channel.Transport;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Stand-in upstream server on the loopback interface. It echoes or discards what it receives.
+ *
+ * WAN conditions can be emulated on one machine: echoed data can be delayed by a fixed latency,
+ * and randomly chosen reads can be delayed further as if a segment had been lost and retransmitted
+ * after a timeout. Delays keep the order of the data, like TCP head-of-line blocking.
+ *
+ * @author carlos
+ *
+ */
+public class LoopbackUpstream implements AutoCloseable {
+    private static Logger LOG = LogManager.getLogger();
+
+    private final boolean echo;
+    private final long latencyNanos;
+    private final double lossRate;
+    private final long lossDelayNanos;
+    private final EventLoopGroup evLoopGroup;
+    private final Channel serverChannel;
+
+    /**
+     * Start the upstream on an ephemeral loopback port.
+     * @param transport transport of the event loops.
+     * @param threads event loop threads. If 0, the Netty default is used.
+     * @param echo if true, echo received data; otherwise, discard it.
+     * @param latencyMillis delay of echoed data in milliseconds.
+     * @param lossRate probability [0, 1] that a read is delayed as lost.
+     * @param lossDelayMillis extra delay of lost reads in milliseconds.
+     * @throws InterruptedException
+     */
+    public LoopbackUpstream(Transport transport, int threads, boolean echo, long latencyMillis,
+            double lossRate, long lossDelayMillis) throws InterruptedException {
+        this.echo = echo;
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        this.lossRate = lossRate;
+        this.lossDelayNanos = TimeUnit.MILLISECONDS.toNanos(lossDelayMillis);
+
+        evLoopGroup = transport.newEventLoopGroup(threads);
+        try {
+            serverChannel = new ServerBootstrap()
+                .group(evLoopGroup)
+                .channel(transport.serverChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new UpstreamHandler());
+                    }
+                })
+                .bind("localhost", 0).sync().channel();
+        } catch (Throwable t) {
+            evLoopGroup.shutdownGracefully();
+            throw t;
+        }
+
+        LOG.info("Loopback upstream started. Address = {}. Echo = {}. Latency = {} ms. Loss = {}.",
+            serverChannel.localAddress(), echo, latencyMillis, lossRate);
+    }
+
+    /**
+     * @return unresolved address "localhost:port", as the proxy whitelists "localhost" by default.
+     */
+    public InetSocketAddress getAddress() {
+        return InetSocketAddress.createUnresolved("localhost",
+            ((InetSocketAddress) serverChannel.localAddress()).getPort());
+    }
+
+    @Override
+    public void close() {
+        serverChannel.close();
+        evLoopGroup.shutdownGracefully();
+    }
+
+    private class UpstreamHandler extends ChannelInboundHandlerAdapter {
+        // Delayed data and the time it is due, in order. Later data is never written before it.
+        private final Deque<ByteBuf> delayedData = new ArrayDeque<>();
+        private final Deque<Long> delayedDeadlines = new ArrayDeque<>();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (!echo) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+
+            long delayNanos = latencyNanos;
+            if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+                delayNanos += lossDelayNanos;
+            }
+            if (delayNanos == 0 && delayedData.isEmpty()) {
+                ctx.write(msg);
+                return;
+            }
+
+            long deadline = System.nanoTime() + delayNanos;
+            if (!delayedDeadlines.isEmpty()) {
+                deadline = Math.max(deadline, delayedDeadlines.peekLast());
+            }
+            delayedData.add((ByteBuf) msg);
+            delayedDeadlines.add(deadline);
+            if (delayedData.size() == 1) {
+                scheduleDelayedWrites(ctx);
+            }
+        }
+
+        private void scheduleDelayedWrites(ChannelHandlerContext ctx) {
+            ctx.executor().schedule(() -> writeDelayedData(ctx),
+                delayedDeadlines.peekFirst() - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        private void writeDelayedData(ChannelHandlerContext ctx) {
+            long now = System.nanoTime();
+            while (!delayedData.isEmpty() && delayedDeadlines.peekFirst() - now <= 0) {
+                delayedDeadlines.poll();
+                ctx.write(delayedData.poll()).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            }
+            ctx.flush();
+            if (!delayedData.isEmpty()) {
+                scheduleDelayedWrites(ctx);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            delayedData.forEach(ReferenceCountUtil::release);
+            delayedData.clear();
+            delayedDeadlines.clear();
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.debug("Exception: Upstream channel {} will be closed.", ctx.channel().id(), cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package connect.proxy.loadgen;
+
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Content of the payload sent through the tunnels.
+ *
+ * @author carlos
+ *
+ */
+public enum PayloadPattern {
+    /**
+     * All bytes are zero.
+     */
+    ZERO,
+    /**
+     * Random bytes. They are not compressible.
+     */
+    RANDOM,
+    /**
+     * Printable ASCII text, as in HTTP/1 bodies.
+     */
+    TEXT;
+
+    private static final byte[] TEXT_BYTES =
+        "The quick brown fox jumps over the lazy dog.\r\n".getBytes();
+
+    /**
+     * Create a payload. It is read-only and cannot be released, so it can be written many times
+     * through duplicates.
+     * @param size payload size in bytes.
+     * @return the payload.
+     */
+    public ByteBuf newPayload(int size) {
+        byte[] bytes = new byte[size];
+        switch (this) {
+        case RANDOM:
+            new Random(size).nextBytes(bytes);
+            break;
+        case TEXT:
+            for (int i = 0; i < size; i++) {
+                bytes[i] = TEXT_BYTES[i % TEXT_BYTES.length];
+            }
+            break;
+        default:
+            break;
+        }
+        return Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer(size).writeBytes(bytes).asReadOnly());
+    }
+}
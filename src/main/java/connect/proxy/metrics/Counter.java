@@ -0,0 +1,30 @@
+package connect.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter. Increments are lock-free and scale with the number of threads.
+ *
+ * @author carlos
+ *
+ */
+public class Counter implements Metric {
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long n) {
+        value.add(n);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public void writeSamples(String name, String labels, StringBuilder out) {
+        out.append(name).append(labels).append(' ').append(get()).append('\n');
+    }
+}
@@ -0,0 +1,30 @@
+package connect.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Value that goes up and down (e.g. open tunnels). Updates are lock-free.
+ *
+ * @author carlos
+ *
+ */
+public class Gauge implements Metric {
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void decrement() {
+        value.decrement();
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public void writeSamples(String name, String labels, StringBuilder out) {
+        out.append(name).append(labels).append(' ').append(get()).append('\n');
+    }
+}
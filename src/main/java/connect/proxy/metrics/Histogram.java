@@ -0,0 +1,99 @@
+package connect.proxy.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed buckets.
+ *
+ * Recording finds the bucket with a binary search and increments one counter: it takes no lock
+ * and does not allocate. Durations are recorded in nanoseconds and exported in seconds.
+ *
+ * @author carlos
+ *
+ */
+public class Histogram implements Metric {
+    /**
+     * Buckets for network latencies, from 1 ms to 10 s.
+     */
+    public static final double[] LATENCY_BUCKETS_SECONDS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    private final double[] bucketsSeconds;
+    private final long[] bucketsNanos;
+    // One more counter than buckets, for +Inf.
+    private final LongAdder[] counts;
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+        this(LATENCY_BUCKETS_SECONDS);
+    }
+
+    /**
+     * Constructor.
+     * @param bucketsSeconds upper bounds of the buckets in seconds, sorted in increasing order.
+     */
+    public Histogram(double... bucketsSeconds) {
+        this.bucketsSeconds = bucketsSeconds.clone();
+        this.bucketsNanos = new long[bucketsSeconds.length];
+        for (int i = 0; i < bucketsSeconds.length; i++) {
+            bucketsNanos[i] = (long) (bucketsSeconds[i] * TimeUnit.SECONDS.toNanos(1));
+            if (i > 0 && bucketsNanos[i] <= bucketsNanos[i - 1]) {
+                throw new IllegalArgumentException("Buckets must be increasing: "
+                    + Arrays.toString(bucketsSeconds));
+            }
+        }
+
+        this.counts = new LongAdder[bucketsSeconds.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a duration.
+     * @param nanos duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        int i = Arrays.binarySearch(bucketsNanos, nanos);
+        // Buckets are inclusive upper bounds.
+        counts[i >= 0 ? i : -i - 1].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @return number of recorded durations.
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucketCount : counts) {
+            count += bucketCount.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of recorded durations in nanoseconds.
+     */
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    @Override
+    public void writeSamples(String name, String labels, StringBuilder out) {
+        // Labels of each bucket are the metric labels plus "le".
+        String bucketLabelsPrefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+
+        long cumulativeCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i].sum();
+            out.append(name).append("_bucket").append(bucketLabelsPrefix).append("le=\"")
+                .append(i < bucketsSeconds.length ? Double.toString(bucketsSeconds[i]) : "+Inf")
+                .append("\"} ").append(cumulativeCount).append('\n');
+        }
+        out.append(name).append("_sum").append(labels).append(' ')
+            .append((double) getSumNanos() / TimeUnit.SECONDS.toNanos(1)).append('\n');
+        out.append(name).append("_count").append(labels).append(' ').append(cumulativeCount).append('\n');
+    }
+}
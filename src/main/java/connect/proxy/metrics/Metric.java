@@ -0,0 +1,17 @@
+package connect.proxy.metrics;
+
+/**
+ * A metric that can be exported in Prometheus text format.
+ *
+ * @author carlos
+ *
+ */
+public interface Metric {
+    /**
+     * Write the samples of the metric, one per line.
+     * @param name metric name.
+     * @param labels formatted labels (e.g. {status="200"}), or an empty string.
+     * @param out output.
+     */
+    void writeSamples(String name, String labels, StringBuilder out);
+}
@@ -0,0 +1,139 @@
+package connect.proxy.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * Set of metrics exported together.
+ *
+ * Metrics are grouped in families by name; every metric of a family has a different set of
+ * labels. Labels are given as name/value pairs (e.g. "status", "200").
+ *
+ * Registration is expected at startup. Recording values never touches the registry.
+ *
+ * @author carlos
+ *
+ */
+public class MetricRegistry {
+    public enum Type {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public Counter counter(String name, String help, String... labels) {
+        return register(name, help, Type.COUNTER, new Counter(), labels);
+    }
+
+    public Gauge gauge(String name, String help, String... labels) {
+        return register(name, help, Type.GAUGE, new Gauge(), labels);
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return register(name, help, Type.HISTOGRAM, new Histogram(), labels);
+    }
+
+    /**
+     * Register a metric whose value is read when exported.
+     * @param name metric name.
+     * @param help description.
+     * @param type COUNTER or GAUGE.
+     * @param value value supplier. It is called from the exporting thread.
+     * @param labels label name/value pairs.
+     */
+    public void registerSupplier(String name, String help, Type type, LongSupplier value,
+            String... labels) {
+        register(name, help, type, (n, l, out) -> {
+            out.append(n).append(l).append(' ').append(value.getAsLong()).append('\n');
+        }, labels);
+    }
+
+    /**
+     * Register a metric.
+     * @param name metric name.
+     * @param help description.
+     * @param type metric type.
+     * @param metric metric.
+     * @param labels label name/value pairs.
+     * @return the metric.
+     * @throws IllegalArgumentException if the family exists with a different type, or the labels
+     *         are not pairs.
+     */
+    public synchronized <T extends Metric> T register(String name, String help, Type type, T metric,
+            String... labels) {
+        Family family = families.computeIfAbsent(name, k -> new Family(help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " already registered as " + family.type);
+        }
+        family.metrics.add(new LabeledMetric(formatLabels(labels), metric));
+        return metric;
+    }
+
+    /**
+     * Write all metrics in Prometheus text format (version 0.0.4).
+     * @param out output.
+     */
+    public void writePrometheus(StringBuilder out) {
+        List<Map.Entry<String, Family>> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(families.entrySet());
+        }
+
+        for (Map.Entry<String, Family> entry : entries) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ')
+                .append(family.type.name().toLowerCase()).append('\n');
+            for (LabeledMetric labeledMetric : family.metrics) {
+                labeledMetric.metric.writeSamples(name, labeledMetric.labels, out);
+            }
+        }
+    }
+
+    private static String formatLabels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+
+        StringBuilder formatted = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                formatted.append(',');
+            }
+            formatted.append(labels[i]).append("=\"")
+                .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                .append('"');
+        }
+        return formatted.append('}').toString();
+    }
+
+    private static class Family {
+        private final String help;
+        private final Type type;
+        // Copy on write: metrics can be registered while exporting.
+        private final List<LabeledMetric> metrics = new CopyOnWriteArrayList<>();
+
+        Family(String help, Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static class LabeledMetric {
+        private final String labels;
+        private final Metric metric;
+
+        LabeledMetric(String labels, Metric metric) {
+            this.labels = labels;
+            this.metric = metric;
+        }
+    }
+}
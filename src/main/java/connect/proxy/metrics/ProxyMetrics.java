@@ -0,0 +1,383 @@
+package connect.proxy.metrics;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import connect.proxy.accesslog.AccessLog;
+import connect.proxy.admission.AdmissionController;
+import connect.proxy.admission.AdmissionController.Rejection;
+import connect.proxy.auth.ProxyAuthenticator;
+import connect.proxy.channel.EventLoopLagMonitor;
+import connect.proxy.channel.MemoryBudget;
+import connect.proxy.channel.TunnelShaper;
+import connect.proxy.channel.TunnelTimeouts;
+import connect.proxy.channel.UpstreamPool;
+import connect.proxy.channel.handlers.ConnectResponses;
+import connect.proxy.health.UpstreamHealth;
+import connect.proxy.metrics.MetricRegistry.Type;
+import connect.proxy.tls.HandshakeExecutor;
+import connect.proxy.tls.TlsSessionStats;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+/**
+ * Metrics of the proxy. One instance is shared by all channels.
+ *
+ * @author carlos
+ *
+ */
+public class ProxyMetrics {
+    /**
+     * Metrics that are not exported. Used by handlers created without metrics.
+     */
+    public static final ProxyMetrics UNEXPORTED = new ProxyMetrics();
+
+    private final MetricRegistry registry;
+    private final Counter acceptedConnections;
+    private final Counter deniedConnections;
+    private final Counter http2Connections;
+    private final Gauge activeTunnels;
+    private final Map<ByteBuf, Counter> connectResponses = new IdentityHashMap<>();
+    private final Counter bytesToUpstream;
+    private final Counter bytesToClient;
+    private final Histogram upstreamConnectDuration;
+    private final Gauge pendingUpstreamConnects;
+
+    /**
+     * Constructor. Metrics are not exported.
+     */
+    public ProxyMetrics() {
+        this(new MetricRegistry());
+    }
+
+    /**
+     * Constructor.
+     * @param registry registry where the metrics are exported.
+     */
+    public ProxyMetrics(MetricRegistry registry) {
+        this.registry = registry;
+
+        acceptedConnections = registry.counter("connect_proxy_connections_accepted_total",
+            "Accepted client connections.");
+        deniedConnections = registry.counter("connect_proxy_connections_denied_total",
+            "Client connections dropped by the client ACL. They are not counted as accepted.");
+        http2Connections = registry.counter("connect_proxy_http2_connections_total",
+            "Accepted client connections that negotiated HTTP/2. Each CONNECT stream is a tunnel.");
+        activeTunnels = registry.gauge("connect_proxy_tunnels_active",
+            "Established tunnels.");
+
+        String requestsName = "connect_proxy_connect_requests_total";
+        String requestsHelp = "CONNECT requests by response status.";
+        connectResponses.put(ConnectResponses.OK,
+            registry.counter(requestsName, requestsHelp, "status", "200"));
+        connectResponses.put(ConnectResponses.BAD_REQUEST,
+            registry.counter(requestsName, requestsHelp, "status", "400"));
+        connectResponses.put(ConnectResponses.FORBIDDEN,
+            registry.counter(requestsName, requestsHelp, "status", "403"));
+        connectResponses.put(ConnectResponses.PROXY_AUTHENTICATION_REQUIRED,
+            registry.counter(requestsName, requestsHelp, "status", "407"));
+        connectResponses.put(ConnectResponses.REQUEST_HEADER_FIELDS_TOO_LARGE,
+            registry.counter(requestsName, requestsHelp, "status", "431"));
+        connectResponses.put(ConnectResponses.NOT_IMPLEMENTED,
+            registry.counter(requestsName, requestsHelp, "status", "501"));
+        connectResponses.put(ConnectResponses.SERVICE_UNAVAILABLE,
+            registry.counter(requestsName, requestsHelp, "status", "503"));
+        connectResponses.put(ConnectResponses.GATEWAY_TIMEOUT,
+            registry.counter(requestsName, requestsHelp, "status", "504"));
+
+        String bytesName = "connect_proxy_tunnel_bytes_total";
+        String bytesHelp = "Bytes forwarded by tunnels, by direction. Spliced bytes are not counted.";
+        bytesToUpstream = registry.counter(bytesName, bytesHelp, "direction", "upstream");
+        bytesToClient = registry.counter(bytesName, bytesHelp, "direction", "downstream");
+
+        upstreamConnectDuration = registry.histogram("connect_proxy_upstream_connect_seconds",
+            "Time to resolve and connect to upstream hosts.");
+        pendingUpstreamConnects = registry.gauge("connect_proxy_upstream_connects_pending",
+            "Upstream connections being resolved or connected.");
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Export the pending tasks of each event loop of a group.
+     * @param group event loop group.
+     * @param groupName value of the "group" label.
+     */
+    public void registerEventLoops(EventLoopGroup group, String groupName) {
+        int i = 0;
+        for (EventExecutor executor : group) {
+            if (executor instanceof SingleThreadEventExecutor) {
+                SingleThreadEventExecutor evLoop = (SingleThreadEventExecutor) executor;
+                registry.registerSupplier("connect_proxy_event_loop_pending_tasks",
+                    "Tasks waiting to be run by an event loop.", Type.GAUGE,
+                    () -> (long) evLoop.pendingTasks(), "group", groupName, "loop", Integer.toString(i));
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Export the lag and the stalls of each event loop of a group.
+     * @param monitor lag monitor of the group.
+     * @param groupName value of the "group" label.
+     */
+    public void registerEventLoopLag(EventLoopLagMonitor monitor, String groupName) {
+        int i = 0;
+        for (EventLoop loop : monitor.getLoops()) {
+            String index = Integer.toString(i++);
+            registry.register("connect_proxy_event_loop_lag_seconds",
+                "How late an event loop ran its periodic probe task.", Type.HISTOGRAM,
+                monitor.getLagHistogram(loop), "group", groupName, "loop", index);
+            registry.registerSupplier("connect_proxy_event_loop_stalls_total",
+                "Times an event loop was late by more than the stall threshold.", Type.COUNTER,
+                () -> monitor.getStalls(loop), "group", groupName, "loop", index);
+        }
+    }
+
+    /**
+     * Export client TLS handshake metrics.
+     * @param stats handshake counters.
+     * @param handshakeExecutor executor of handshake tasks, or null if they run on the event loops.
+     */
+    public void registerTls(TlsSessionStats stats, HandshakeExecutor handshakeExecutor) {
+        registry.registerSupplier("connect_proxy_tls_handshakes_total", "Successful client TLS handshakes.",
+            Type.COUNTER, stats::getHandshakes);
+        registry.registerSupplier("connect_proxy_tls_handshakes_resumed_total",
+            "Client TLS handshakes that resumed a previous session.", Type.COUNTER,
+            stats::getResumedHandshakes);
+        registry.registerSupplier("connect_proxy_tls_handshakes_failed_total", "Failed client TLS handshakes.",
+            Type.COUNTER, stats::getFailedHandshakes);
+        registry.register("connect_proxy_tls_handshake_seconds", "Client TLS handshake duration.",
+            Type.HISTOGRAM, stats.getHandshakeDuration());
+
+        if (handshakeExecutor != null) {
+            registry.registerSupplier("connect_proxy_tls_handshake_queue_depth",
+                "Handshake tasks waiting for a handshake thread.", Type.GAUGE,
+                () -> (long) handshakeExecutor.getQueueDepth());
+            registry.registerSupplier("connect_proxy_tls_handshake_tasks_rejected_total",
+                "Handshake tasks rejected because the handshake queue was full.", Type.COUNTER,
+                handshakeExecutor::getRejectedTasks);
+        }
+    }
+
+    /**
+     * Export the buffer memory and the reads paused by the memory budget.
+     * @param budget memory budget.
+     */
+    public void registerMemoryBudget(MemoryBudget budget) {
+        registry.registerSupplier("connect_proxy_buffer_memory_bytes",
+            "Bytes tunnels held in flight (read, not yet written) at the last budget check.", Type.GAUGE, budget::getUsedBytes);
+        registry.registerSupplier("connect_proxy_buffer_memory_budget_bytes",
+            "Buffer memory over which tunnels stop reading.", Type.GAUGE, budget::getMaxBytes);
+        registry.registerSupplier("connect_proxy_buffer_memory_exceeded",
+            "1 while tunnels are paused by the memory budget.", Type.GAUGE,
+            () -> budget.isExceeded() ? 1 : 0);
+        registry.registerSupplier("connect_proxy_tunnel_reads_paused_total",
+            "Tunnel reads paused because the memory budget was exceeded.", Type.COUNTER,
+            budget::getPausedReads);
+    }
+
+    /**
+     * Export the connections and requests rejected by admission control.
+     * @param admissionController admission controller.
+     */
+    public void registerAdmission(AdmissionController admissionController) {
+        registry.registerSupplier("connect_proxy_admission_tunnels",
+            "Tunnels holding an admission slot.", Type.GAUGE, () -> (long) admissionController.getTunnels());
+        for (Rejection rejection : Rejection.values()) {
+            registry.registerSupplier("connect_proxy_admission_shed_total",
+                "Client connections closed on accept, before the TLS handshake, by reason.", Type.COUNTER,
+                () -> admissionController.getShedConnections(rejection), "reason", rejection.label());
+        }
+        for (Rejection rejection : Rejection.values()) {
+            registry.registerSupplier("connect_proxy_admission_rejected_total",
+                "CONNECT requests rejected with 503 by admission control, by reason.", Type.COUNTER,
+                () -> admissionController.getRejectedRequests(rejection), "reason", rejection.label());
+        }
+    }
+
+    /**
+     * Export the traffic counters of bandwidth shaping.
+     * @param shaper tunnel shaper.
+     */
+    public void registerShaping(TunnelShaper shaper) {
+        registerShapingDirection(shaper.getUpload(), "upstream");
+        registerShapingDirection(shaper.getDownload(), "downstream");
+        registry.registerSupplier("connect_proxy_shaping_clients",
+            "Client IP addresses with shaped tunnels.", Type.GAUGE, () -> (long) shaper.getClients());
+    }
+
+    private void registerShapingDirection(GlobalChannelTrafficShapingHandler handler, String direction) {
+        registry.registerSupplier("connect_proxy_shaping_written_bytes_total",
+            "Bytes written by shaped tunnels, by direction.", Type.COUNTER,
+            () -> handler.trafficCounter().cumulativeWrittenBytes(), "direction", direction);
+        registry.registerSupplier("connect_proxy_shaping_throughput_bytes",
+            "Bytes per second written by shaped tunnels in the last check interval, by direction.",
+            Type.GAUGE, () -> handler.trafficCounter().lastWriteThroughput(), "direction", direction);
+        registry.registerSupplier("connect_proxy_shaping_queued_bytes",
+            "Bytes delayed by bandwidth limits, by direction.", Type.GAUGE, handler::queuesSize,
+            "direction", direction);
+    }
+
+    /**
+     * Export the channels closed by timeouts.
+     * @param timeouts tunnel timeouts.
+     */
+    public void registerTimeouts(TunnelTimeouts timeouts) {
+        for (TunnelTimeouts.Reason reason : TunnelTimeouts.Reason.values()) {
+            registry.registerSupplier("connect_proxy_timeouts_total",
+                "Client connections and tunnels closed by timeouts, by reason.", Type.COUNTER,
+                () -> timeouts.getTimeouts(reason), "reason", reason.label());
+        }
+    }
+
+    /**
+     * Export the circuit breaker of the upstream destinations.
+     * @param health upstream health.
+     */
+    public void registerUpstreamHealth(UpstreamHealth health) {
+        registry.registerSupplier("connect_proxy_upstream_destinations",
+            "Upstream destinations whose health is tracked.", Type.GAUGE,
+            () -> (long) health.getDestinations().size());
+        registry.registerSupplier("connect_proxy_upstream_circuits_open",
+            "Upstream destinations with an open or half-open circuit.", Type.GAUGE,
+            health::getOpenCircuits);
+        registry.registerSupplier("connect_proxy_upstream_circuits_opened_total",
+            "Times the circuit of an upstream destination has been opened.", Type.COUNTER,
+            health::getOpenedCircuits);
+        registry.registerSupplier("connect_proxy_upstream_circuit_rejected_total",
+            "Upstream connections failed fast because the circuit was open.", Type.COUNTER,
+            health::getRejectedConnections);
+    }
+
+    /**
+     * Export the pool of upstream channels.
+     * @param pool upstream pool.
+     */
+    public void registerUpstreamPool(UpstreamPool pool) {
+        registry.registerSupplier("connect_proxy_pool_idle_channels",
+            "Idle upstream channels in the pool.", Type.GAUGE, () -> (long) pool.getIdleChannels());
+        registry.registerSupplier("connect_proxy_pool_destinations",
+            "Upstream destinations with pooled channels.", Type.GAUGE, () -> (long) pool.getDestinations());
+        registry.registerSupplier("connect_proxy_pool_requests_total",
+            "Requests to pooled destinations, by result.", Type.COUNTER, pool::getHits, "result", "hit");
+        registry.registerSupplier("connect_proxy_pool_requests_total",
+            "Requests to pooled destinations, by result.", Type.COUNTER, pool::getMisses, "result", "miss");
+        registry.registerSupplier("connect_proxy_pool_evicted_total",
+            "Idle upstream channels closed by timeout, by the destination or because they received data.",
+            Type.COUNTER, pool::getEvicted);
+    }
+
+    /**
+     * Export the authentication cache and the password verifications.
+     * @param authenticator proxy authenticator.
+     */
+    public void registerAuthenticator(ProxyAuthenticator authenticator) {
+        registry.registerSupplier("connect_proxy_auth_cache_requests_total",
+            "Requests with credentials, by result of the verified-credential cache.", Type.COUNTER,
+            authenticator::getCacheHits, "result", "hit");
+        registry.registerSupplier("connect_proxy_auth_cache_requests_total",
+            "Requests with credentials, by result of the verified-credential cache.", Type.COUNTER,
+            authenticator::getCacheMisses, "result", "miss");
+        registry.registerSupplier("connect_proxy_auth_cache_entries",
+            "Cached verified credentials.", Type.GAUGE, () -> (long) authenticator.getCacheSize());
+        registry.register("connect_proxy_auth_verify_seconds", "Password hash verification duration.",
+            Type.HISTOGRAM, authenticator.getVerifyDuration());
+        registry.registerSupplier("connect_proxy_auth_verify_queue_depth",
+            "Password verifications waiting for a thread.", Type.GAUGE,
+            () -> (long) authenticator.getQueueDepth());
+        registry.registerSupplier("connect_proxy_auth_verify_rejected_total",
+            "Password verifications rejected with 503 because the queue was full.", Type.COUNTER,
+            authenticator::getRejectedVerifications);
+    }
+
+    /**
+     * Export the records of the access log.
+     * @param accessLog access log.
+     */
+    public void registerAccessLog(AccessLog accessLog) {
+        registry.registerSupplier("connect_proxy_access_log_records_total",
+            "Access log records, by result. Records are dropped when the buffer is full.", Type.COUNTER,
+            accessLog::getWrittenRecords, "result", "written");
+        registry.registerSupplier("connect_proxy_access_log_records_total",
+            "Access log records, by result. Records are dropped when the buffer is full.", Type.COUNTER,
+            accessLog::getDroppedRecords, "result", "dropped");
+        registry.registerSupplier("connect_proxy_access_log_queued_records",
+            "Access log records waiting to be written.", Type.GAUGE,
+            () -> (long) accessLog.getQueuedRecords());
+    }
+
+    public void connectionDenied() {
+        deniedConnections.increment();
+    }
+
+    public void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    public void http2ConnectionAccepted() {
+        http2Connections.increment();
+    }
+
+    public void tunnelOpened() {
+        activeTunnels.increment();
+    }
+
+    public void tunnelClosed() {
+        activeTunnels.decrement();
+    }
+
+    /**
+     * Count a response to a CONNECT request.
+     * @param response one of the responses of ConnectResponses.
+     */
+    public void connectResponse(ByteBuf response) {
+        Counter counter = connectResponses.get(response);
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    /**
+     * @return counter of bytes read from clients and written to upstream hosts.
+     */
+    public Counter bytesToUpstream() {
+        return bytesToUpstream;
+    }
+
+    /**
+     * @return counter of bytes read from upstream hosts and written to clients.
+     */
+    public Counter bytesToClient() {
+        return bytesToClient;
+    }
+
+    public void upstreamConnectStarted() {
+        pendingUpstreamConnects.increment();
+    }
+
+    /**
+     * Record the end of an upstream connection, successful or not.
+     * @param nanos time since it started.
+     * @param success whether it connected.
+     */
+    public void upstreamConnectFinished(long nanos, boolean success) {
+        pendingUpstreamConnects.decrement();
+        if (success) {
+            upstreamConnectDuration.record(nanos);
+        }
+    }
+
+    /**
+     * @return upstream connections being resolved or connected.
+     */
+    public long getPendingUpstreamConnects() {
+        return pendingUpstreamConnects.get();
+    }
+}
@@ -0,0 +1,80 @@
+package connect.proxy.tls;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Bounded executor for SSL/TLS delegated tasks (handshake signatures, key exchange...).
+ *
+ * Running these tasks outside the event loops keeps established tunnels forwarding data while
+ * many clients connect at once. When the queue is full, tasks are rejected and the handshakes
+ * that needed them fail: the event loops are never used as a fallback.
+ *
+ * Delegated tasks are produced by the JDK provider. The OPENSSL provider does most of its work
+ * inline, so it barely uses this executor.
+ *
+ * @author carlos
+ *
+ */
+public class HandshakeExecutor implements Executor, AutoCloseable {
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejectedTasks = new LongAdder();
+
+    /**
+     * Constructor.
+     * @param threads number of threads.
+     * @param queueSize maximum number of tasks waiting for a thread.
+     */
+    public HandshakeExecutor(int threads, int queueSize) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize), new DefaultThreadFactory("tls-handshake", true));
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejectedTasks.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * @return tasks waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return tasks run (approximate).
+     */
+    public long getCompletedTasks() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * @return tasks rejected because the queue was full.
+     */
+    public long getRejectedTasks() {
+        return rejectedTasks.sum();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Handshake queue depth = %d. Rejected tasks = %d.", getQueueDepth(),
+            getRejectedTasks());
+    }
+}
@@ -0,0 +1,86 @@
+package connect.proxy.tls;
+
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.handler.ssl.OpenSslServerSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Rotates the keys used to encrypt session tickets.
+ *
+ * New tickets are encrypted with the newest key. The previous key is kept, so tickets issued
+ * during the last interval can still be resumed. Tickets older than two intervals are rejected
+ * and their clients do a full handshake.
+ *
+ * Only OpenSSL contexts expose their ticket keys. The JDK provider manages its own keys.
+ *
+ * @author carlos
+ *
+ */
+public class TicketKeyRotator implements AutoCloseable {
+    private static Logger LOG = LogManager.getLogger();
+
+    private static final int KEY_PART_LENGTH = 16;
+
+    private final OpenSslServerSessionContext sessionContext;
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService executor;
+    private OpenSslSessionTicketKey currentKey;
+
+    /**
+     * Constructor. The first key is set before it returns.
+     * @param sslContext server context. It MUST support ticket keys (see isSupported).
+     * @param intervalMillis time between rotations.
+     */
+    public TicketKeyRotator(SslContext sslContext, long intervalMillis) {
+        this.sessionContext = (OpenSslServerSessionContext) sslContext.sessionContext();
+
+        rotate();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+            new DefaultThreadFactory("ticket-key-rotator", true));
+        this.executor.scheduleAtFixedRate(this::rotate, intervalMillis, intervalMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param sslContext server context.
+     * @return whether ticket keys of the context can be set.
+     */
+    public static boolean isSupported(SslContext sslContext) {
+        return sslContext.sessionContext() instanceof OpenSslServerSessionContext;
+    }
+
+    private synchronized void rotate() {
+        OpenSslSessionTicketKey newKey = new OpenSslSessionTicketKey(
+            randomBytes(), randomBytes(), randomBytes());
+
+        if (currentKey == null) {
+            sessionContext.setTicketKeys(newKey);
+        } else {
+            sessionContext.setTicketKeys(newKey, currentKey);
+        }
+        currentKey = newKey;
+
+        LOG.debug("Session ticket keys rotated.");
+    }
+
+    private byte[] randomBytes() {
+        byte[] bytes = new byte[KEY_PART_LENGTH];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
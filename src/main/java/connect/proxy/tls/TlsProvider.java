@@ -0,0 +1,60 @@
+package connect.proxy.tls;
+
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslProvider;
+
+/**
+ * TLS implementation used for client connections.
+ *
+ * OPENSSL requires netty-tcnative in the classpath. It does handshakes noticeably faster than the
+ * JDK implementation and supports session ticket key rotation.
+ *
+ * @author carlos
+ *
+ */
+public enum TlsProvider {
+    JDK(SslProvider.JDK),
+    OPENSSL(SslProvider.OPENSSL);
+
+    private final SslProvider sslProvider;
+
+    private TlsProvider(SslProvider sslProvider) {
+        this.sslProvider = sslProvider;
+    }
+
+    public SslProvider sslProvider() {
+        return sslProvider;
+    }
+
+    /**
+     * @return whether the provider can be used on this platform.
+     */
+    public boolean isAvailable() {
+        return this == JDK || OpenSsl.isAvailable();
+    }
+
+    /**
+     * @return OPENSSL if available. Otherwise, JDK.
+     */
+    public static TlsProvider best() {
+        return OPENSSL.isAvailable() ? OPENSSL : JDK;
+    }
+
+    /**
+     * Parse a provider name. "auto" selects the best available provider.
+     * @param name provider name (case insensitive).
+     * @return the provider.
+     * @throws IllegalArgumentException if the name is unknown or the provider is not available.
+     */
+    public static TlsProvider parse(String name) {
+        if ("auto".equalsIgnoreCase(name)) {
+            return best();
+        }
+
+        TlsProvider provider = valueOf(name.toUpperCase());
+        if (!provider.isAvailable()) {
+            throw new IllegalArgumentException("TLS provider NOT available: " + name);
+        }
+        return provider;
+    }
+}
@@ -0,0 +1,113 @@
+package connect.proxy.tls;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLSession;
+
+import connect.proxy.metrics.Histogram;
+import io.netty.handler.ssl.SslHandler;
+
+/**
+ * Counters of client TLS handshakes. It is shared by all channels.
+ *
+ * A handshake is counted as resumed when the negotiated session was created before the handshake
+ * started, i.e. it was restored from the session cache or from a session ticket. This works the
+ * same way for every TLS provider.
+ *
+ * Handshake latency is measured from the creation of the handler (i.e. the connection is
+ * accepted) until the handshake succeeds.
+ *
+ * @author carlos
+ *
+ */
+public class TlsSessionStats {
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final Histogram handshakeDuration = new Histogram();
+    private final LongAccumulator maxHandshakeNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Count the handshake of a handler. MUST be called before the handshake starts (e.g. when the
+     * handler is created).
+     * @param sslHandler handler.
+     */
+    public void track(SslHandler sslHandler) {
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        sslHandler.handshakeFuture().addListener(f -> {
+            if (!f.isSuccess()) {
+                failedHandshakes.increment();
+                return;
+            }
+
+            long nanos = System.nanoTime() - startNanos;
+            handshakeDuration.record(nanos);
+            maxHandshakeNanos.accumulate(nanos);
+
+            SSLSession session = sslHandler.engine().getSession();
+            handshakes.increment();
+            if (session.getCreationTime() < startMillis) {
+                resumedHandshakes.increment();
+            }
+        });
+    }
+
+    /**
+     * @return successful handshakes.
+     */
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    /**
+     * @return successful handshakes that resumed a previous session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    public long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+
+    /**
+     * @return histogram of the time of successful handshakes.
+     */
+    public Histogram getHandshakeDuration() {
+        return handshakeDuration;
+    }
+
+    /**
+     * @return mean time of successful handshakes in milliseconds. 0 if there were no handshakes.
+     */
+    public double getMeanHandshakeMillis() {
+        long total = getHandshakes();
+        return total == 0 ? 0 : (double) handshakeDuration.getSumNanos() / total / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return maximum time of a successful handshake in milliseconds.
+     */
+    public double getMaxHandshakeMillis() {
+        return (double) maxHandshakeNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return resumed handshakes / successful handshakes. 0 if there were no handshakes.
+     */
+    public double getResumptionRatio() {
+        long total = getHandshakes();
+        return total == 0 ? 0 : (double) getResumedHandshakes() / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Handshakes = %d. Resumed = %d (%.1f%%). Failed = %d. "
+            + "Latency mean = %.1f ms, max = %.1f ms.", getHandshakes(), getResumedHandshakes(),
+            getResumptionRatio() * 100, getFailedHandshakes(), getMeanHandshakeMillis(),
+            getMaxHandshakeMillis());
+    }
+}
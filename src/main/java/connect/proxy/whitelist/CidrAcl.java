@@ -0,0 +1,61 @@
+package connect.proxy.whitelist;
+
+import java.net.InetAddress;
+import java.util.Collection;
+
+import connect.proxy.whitelist.CidrMatcher.Action;
+
+/**
+ * IP address access list shared by all channels.
+ *
+ * The compiled rules can be replaced at any time. Readers never block: they see either the
+ * previous rules or the new ones, never a mix.
+ *
+ * @author carlos
+ *
+ */
+public class CidrAcl {
+    private volatile CidrMatcher matcher;
+
+    public CidrAcl(CidrMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    public CidrAcl(Collection<String> rules) {
+        this(CidrMatcher.compile(rules));
+    }
+
+    /**
+     * Match a host if it is an IP literal.
+     * @param host host name or IP literal.
+     * @return action of the longest matching rule, or null if no rule matches or the host is not
+     *         an IP literal.
+     */
+    public Action match(CharSequence host) {
+        return matcher.match(host);
+    }
+
+    /**
+     * Check whether an address is allowed. If no rule matches, it is allowed only if there are no
+     * allow rules; that is, allow rules turn the list into a whitelist.
+     * @param address address.
+     * @return true if the address is allowed.
+     */
+    public boolean allows(InetAddress address) {
+        CidrMatcher current = matcher;
+        Action action = current.match(address);
+        return action == Action.ALLOW || (action == null && !current.hasAllowRules());
+    }
+
+    public CidrMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * Replace the rules.
+     * @param matcher new compiled rules.
+     */
+    public void update(CidrMatcher matcher) {
+        this.matcher = matcher;
+    }
+}
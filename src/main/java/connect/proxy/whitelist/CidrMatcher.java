@@ -0,0 +1,408 @@
+package connect.proxy.whitelist;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compiled IP address rules. It is immutable, so it can be shared by all event loops.
+ *
+ * Rules have the form [!]address[/prefix]:
+ * <ul>
+ *   <li>10.0.0.0/8, 2001:db8::/32 - allow the addresses in the range.</li>
+ *   <li>!10.1.0.0/16 - deny the addresses in the range.</li>
+ *   <li>192.0.2.1, ::1 - a single address (/32 or /128).</li>
+ * </ul>
+ * The longest matching prefix decides. If an allow rule and a deny rule have the same prefix, the
+ * deny rule wins. IPv4 and IPv6 rules never match addresses of the other family, except for
+ * IPv4-mapped IPv6 addresses (::ffff:a.b.c.d): they are IPv4 addresses, so that a client cannot
+ * get around IPv4 rules by writing the address in IPv6 form. Rules within ::ffff:0:0/96 are
+ * IPv4 rules as well.
+ *
+ * Rules are stored in a binary trie per family, with the nodes in flat arrays. A lookup walks at
+ * most one node per bit of the address. IP literals are parsed in place, so a lookup does not
+ * allocate.
+ *
+ * @author carlos
+ *
+ */
+public final class CidrMatcher {
+    public enum Action {
+        ALLOW, DENY
+    }
+
+    private static final byte NONE = 0;
+    private static final byte ALLOW = 1;
+    private static final byte DENY = 2;
+
+    private static final int ROOT_V4 = 0;
+    private static final int ROOT_V6 = 1;
+
+    private static final CidrMatcher EMPTY = new Builder().build(0, false);
+
+    // Children of node i are children[2 * i] (bit 0) and children[2 * i + 1] (bit 1). 0 is no
+    // child: the roots are never children.
+    private final int[] children;
+    private final byte[] actions;
+    private final int size;
+    private final boolean allowRules;
+    private final Ipv6Sink<Action> ipv6Lookup = this::lookupIpv6;
+
+    private CidrMatcher(int[] children, byte[] actions, int size, boolean allowRules) {
+        this.children = children;
+        this.actions = actions;
+        this.size = size;
+        this.allowRules = allowRules;
+    }
+
+    /**
+     * @return a matcher without rules. It matches nothing.
+     */
+    public static CidrMatcher empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Compile rules into a matcher.
+     * @param rules address rules.
+     * @return the matcher.
+     * @throws IllegalArgumentException if a rule is malformed.
+     */
+    public static CidrMatcher compile(Collection<String> rules) {
+        Builder builder = new Builder();
+        int size = 0;
+        boolean allowRules = false;
+
+        for (String rule : rules) {
+            String trimmed = rule.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            allowRules |= builder.addRule(trimmed) == ALLOW;
+            size++;
+        }
+
+        return builder.build(size, allowRules);
+    }
+
+    /**
+     * @return number of rules.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return whether some rule allows addresses.
+     */
+    public boolean hasAllowRules() {
+        return allowRules;
+    }
+
+    /**
+     * Match a host if it is an IP literal. IPv6 literals may be enclosed in brackets.
+     * @param host host name or IP literal.
+     * @return action of the longest matching rule, or null if no rule matches or the host is not
+     *         an IP literal.
+     */
+    public Action match(CharSequence host) {
+        int begin = 0;
+        int end = host.length();
+        if (end > 1 && host.charAt(0) == '[' && host.charAt(end - 1) == ']') {
+            begin++;
+            end--;
+        }
+
+        long ipv4 = parseIpv4(host, begin, end);
+        if (ipv4 >= 0) {
+            return lookup(ROOT_V4, ipv4 << 32, 0, 32);
+        }
+        return parseIpv6(host, begin, end, ipv6Lookup);
+    }
+
+    /**
+     * Match an address.
+     * @param address address.
+     * @return action of the longest matching rule, or null if no rule matches.
+     */
+    public Action match(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return lookup(ROOT_V4, (toLong(bytes, 0, 4)) << 32, 0, 32);
+        }
+        return lookupIpv6(toLong(bytes, 0, 8), toLong(bytes, 8, 16));
+    }
+
+    private Action lookupIpv6(long high, long low) {
+        if (isIpv4Mapped(high, low)) {
+            return lookup(ROOT_V4, low << 32, 0, 32);
+        }
+        return lookup(ROOT_V6, high, low, 128);
+    }
+
+    private static boolean isIpv4Mapped(long high, long low) {
+        return high == 0 && (low >>> 32) == 0xFFFFL;
+    }
+
+    private Action lookup(int root, long high, long low, int bits) {
+        int node = root;
+        byte action = actions[node];
+        for (int i = 0; i < bits; i++) {
+            long bit = i < 64 ? high >>> (63 - i) : low >>> (127 - i);
+            node = children[2 * node + (int) (bit & 1)];
+            if (node == 0) {
+                break;
+            }
+            if (actions[node] != NONE) {
+                action = actions[node];
+            }
+        }
+        return action == ALLOW ? Action.ALLOW : action == DENY ? Action.DENY : null;
+    }
+
+    /**
+     * Receives the bits of a parsed IPv6 address.
+     */
+    @FunctionalInterface
+    private interface Ipv6Sink<R> {
+        R accept(long high, long low);
+    }
+
+    /**
+     * Parse an IPv6 literal, with optional "::" and embedded IPv4 address. Zone ids are not
+     * valid.
+     * @return result of the sink, or null if the literal is not valid.
+     */
+    private static <R> R parseIpv6(CharSequence host, int begin, int end, Ipv6Sink<R> sink) {
+        // 128-bit accumulators of the groups before and after "::". Groups are shifted in.
+        long beforeHigh = 0;
+        long beforeLow = 0;
+        long afterHigh = 0;
+        long afterLow = 0;
+        int beforeGroups = 0;
+        int afterGroups = 0;
+        boolean compressed = false;
+
+        int i = begin;
+        if (end - begin >= 2 && host.charAt(i) == ':' && host.charAt(i + 1) == ':') {
+            compressed = true;
+            i += 2;
+        }
+        while (i < end) {
+            int start = i;
+            int group = 0;
+            while (i < end && i - start < 5 && hexDigit(host.charAt(i)) >= 0) {
+                group = (group << 4) | hexDigit(host.charAt(i));
+                i++;
+            }
+            int groupCount;
+            if (i < end && host.charAt(i) == '.') {
+                // Embedded IPv4 address: the last two groups.
+                long ipv4 = parseIpv4(host, start, end);
+                if (ipv4 < 0) {
+                    return null;
+                }
+                i = end;
+                groupCount = 2;
+                group = (int) ipv4;
+            } else if (i == start || i - start > 4) {
+                return null;
+            } else {
+                groupCount = 1;
+            }
+
+            // Shift in the group(s).
+            for (int g = groupCount - 1; g >= 0; g--) {
+                long value = groupCount == 2 ? (group >>> (16 * g)) & 0xFFFF : group;
+                if (compressed) {
+                    afterHigh = (afterHigh << 16) | (afterLow >>> 48);
+                    afterLow = (afterLow << 16) | value;
+                    afterGroups++;
+                } else {
+                    beforeHigh = (beforeHigh << 16) | (beforeLow >>> 48);
+                    beforeLow = (beforeLow << 16) | value;
+                    beforeGroups++;
+                }
+            }
+
+            if (i == end) {
+                break;
+            }
+            if (host.charAt(i) != ':' || ++i == end) {
+                return null;
+            }
+            if (host.charAt(i) == ':') {
+                if (compressed) {
+                    return null;
+                }
+                compressed = true;
+                i++;
+            }
+        }
+
+        int groupCount = beforeGroups + afterGroups;
+        if (compressed ? groupCount > 7 : groupCount != 8) {
+            return null;
+        }
+
+        // Move the groups before "::" to the top.
+        int shift = 16 * (8 - beforeGroups);
+        long high;
+        long low;
+        if (beforeGroups == 0) {
+            high = 0;
+            low = 0;
+        } else if (shift >= 64) {
+            high = beforeLow << (shift - 64);
+            low = 0;
+        } else if (shift > 0) {
+            high = (beforeHigh << shift) | (beforeLow >>> (64 - shift));
+            low = beforeLow << shift;
+        } else {
+            high = beforeHigh;
+            low = beforeLow;
+        }
+        return sink.accept(high | afterHigh, low | afterLow);
+    }
+
+    /**
+     * Parse a dotted-quad IPv4 literal.
+     * @return the address as an unsigned 32-bit value, or -1 if it is not valid.
+     */
+    private static long parseIpv4(CharSequence host, int begin, int end) {
+        long address = 0;
+        int octets = 0;
+        int i = begin;
+        while (i < end) {
+            int start = i;
+            int octet = 0;
+            while (i < end && i - start < 4 && host.charAt(i) >= '0' && host.charAt(i) <= '9') {
+                octet = octet * 10 + (host.charAt(i) - '0');
+                i++;
+            }
+            if (i == start || i - start > 3 || octet > 255 || ++octets > 4) {
+                return -1;
+            }
+            address = (address << 8) | octet;
+            if (i < end && (host.charAt(i) != '.' || ++i == end)) {
+                return -1;
+            }
+        }
+        return octets == 4 ? address : -1;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static long toLong(byte[] bytes, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Trie under construction. Nodes are appended to growing arrays.
+     */
+    private static final class Builder {
+        private int[] children = new int[64];
+        private byte[] actions = new byte[32];
+        private int nodes = 2;
+
+        /**
+         * @return action of the rule.
+         */
+        byte addRule(String rule) {
+            byte action = ALLOW;
+            String cidr = rule;
+            if (cidr.startsWith("!")) {
+                action = DENY;
+                cidr = cidr.substring(1).trim();
+            }
+
+            String address = cidr;
+            int prefix = -1;
+            int slash = cidr.indexOf('/');
+            if (slash >= 0) {
+                address = cidr.substring(0, slash);
+                try {
+                    prefix = Integer.parseInt(cidr.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid prefix in address rule: " + rule);
+                }
+            }
+
+            // Addresses are parsed as in the lookups.
+            long ipv4 = parseIpv4(address, 0, address.length());
+            if (ipv4 >= 0) {
+                int bits = prefix == -1 ? 32 : checkPrefix(rule, prefix, 32);
+                add(ROOT_V4, ipv4 << 32, 0, bits, action);
+                return action;
+            }
+
+            int bits = prefix == -1 ? 128 : checkPrefix(rule, prefix, 128);
+            byte ipv6Action = action;
+            if (parseIpv6(address, 0, address.length(), (high, low) -> {
+                if (bits >= 96 && isIpv4Mapped(high, low)) {
+                    add(ROOT_V4, low << 32, 0, bits - 96, ipv6Action);
+                } else {
+                    add(ROOT_V6, high, low, bits, ipv6Action);
+                }
+                return Boolean.TRUE;
+            }) == null) {
+                throw new IllegalArgumentException("Invalid address in address rule: " + rule);
+            }
+            return action;
+        }
+
+        private static int checkPrefix(String rule, int prefix, int maxPrefix) {
+            if (prefix < 0 || prefix > maxPrefix) {
+                throw new IllegalArgumentException("Invalid prefix in address rule: " + rule);
+            }
+            return prefix;
+        }
+
+        private void add(int root, long high, long low, int bits, byte action) {
+            int node = root;
+            for (int i = 0; i < bits; i++) {
+                long bit = i < 64 ? high >>> (63 - i) : low >>> (127 - i);
+                int index = 2 * node + (int) (bit & 1);
+                if (children[index] == 0) {
+                    // The arrays may grow: the new node is created before the write.
+                    int child = newNode();
+                    children[index] = child;
+                }
+                node = children[index];
+            }
+            // Deny wins over allow for the same prefix.
+            if (actions[node] != DENY) {
+                actions[node] = action;
+            }
+        }
+
+        private int newNode() {
+            if (nodes == actions.length) {
+                actions = Arrays.copyOf(actions, nodes * 2);
+                children = Arrays.copyOf(children, nodes * 4);
+            }
+            return nodes++;
+        }
+
+        CidrMatcher build(int size, boolean allowRules) {
+            return new CidrMatcher(Arrays.copyOf(children, 2 * nodes), Arrays.copyOf(actions, nodes),
+                size, allowRules);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package connect.proxy.whitelist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Compiled host whitelist. It is immutable, so it can be shared by all event loops.
+ *
+ * Rules have the form host[:port]:
+ * <ul>
+ *   <li>example.com - the host itself, any port.</li>
+ *   <li>*.example.com - any subdomain of example.com (not example.com itself), any port.</li>
+ *   <li>example.com:443, *.example.com:443 - same as above, only for the given port.</li>
+ * </ul>
+ * IPv6 literals in rules must be enclosed in brackets (e.g. [::1]:443); hosts are matched with or
+ * without brackets. Host names are case insensitive.
+ *
+ * Rules are stored in a trie of reversed labels (com -> example -> www). A lookup costs one
+ * hash probe per label of the host and does not allocate.
+ *
+ * @author carlos
+ *
+ */
+public final class HostMatcher {
+    public static final int ANY_PORT = -1;
+
+    private static final HostMatcher EMPTY = new HostMatcher(new NodeBuilder().build(), 0);
+
+    private final Node root;
+    private final int size;
+
+    private HostMatcher(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @return a matcher without rules. It matches nothing.
+     */
+    public static HostMatcher empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Compile rules into a matcher.
+     * @param rules whitelist rules.
+     * @return the matcher.
+     * @throws IllegalArgumentException if a rule is malformed.
+     */
+    public static HostMatcher compile(Collection<String> rules) {
+        NodeBuilder root = new NodeBuilder();
+        int size = 0;
+
+        for (String rule : rules) {
+            String trimmed = rule.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            addRule(root, trimmed);
+            size++;
+        }
+
+        return new HostMatcher(root.build(), size);
+    }
+
+    private static void addRule(NodeBuilder root, String rule) {
+        String host = rule;
+        int port = ANY_PORT;
+
+        // Split port. IPv6 literals contain ':', but they are enclosed in brackets.
+        int portSeparator = rule.lastIndexOf(':');
+        if (portSeparator > rule.lastIndexOf(']')) {
+            host = rule.substring(0, portSeparator);
+            try {
+                port = Integer.parseInt(rule.substring(portSeparator + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in whitelist rule: " + rule);
+            }
+            if (port < 0 || port > 0xFFFF) {
+                throw new IllegalArgumentException("Invalid port in whitelist rule: " + rule);
+            }
+        }
+
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+
+        boolean wildcard = host.startsWith("*.");
+        if (wildcard) {
+            host = host.substring(2);
+        }
+        if (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        if (host.isEmpty() || host.contains("*") || host.contains("..")) {
+            throw new IllegalArgumentException("Invalid host in whitelist rule: " + rule);
+        }
+
+        String[] labels = host.toLowerCase(Locale.ENGLISH).split("\\.");
+        NodeBuilder node = root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            node = node.children.computeIfAbsent(labels[i], k -> new NodeBuilder());
+        }
+
+        if (wildcard) {
+            node.wildcardPorts.add(port);
+        } else {
+            node.exactPorts.add(port);
+        }
+    }
+
+    /**
+     * @return number of rules.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check whether a host and port are whitelisted.
+     * @param host host name or IP literal.
+     * @param port port, or ANY_PORT to match rules of any port.
+     * @return true if some rule matches.
+     */
+    public boolean matches(CharSequence host, int port) {
+        int begin = 0;
+        int end = host.length();
+        if (end > 1 && host.charAt(0) == '[' && host.charAt(end - 1) == ']') {
+            begin++;
+            end--;
+        } else if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        if (end == begin) {
+            return false;
+        }
+
+        Node node = root;
+        while (true) {
+            int start = end - 1;
+            while (start >= begin && host.charAt(start) != '.') {
+                start--;
+            }
+            // Label is [start + 1, end)
+            node = node.child(host, start + 1, end);
+            if (node == null) {
+                return false;
+            }
+
+            if (start < begin) {
+                // All labels consumed.
+                return matchesPort(node.exactPorts, port);
+            }
+            if (matchesPort(node.wildcardPorts, port)) {
+                return true;
+            }
+            end = start;
+        }
+    }
+
+    private static boolean matchesPort(int[] ports, int port) {
+        if (ports == null) {
+            return false;
+        }
+        // Ports are sorted, so ANY_PORT is first.
+        return port == ANY_PORT || ports[0] == ANY_PORT || Arrays.binarySearch(ports, port) >= 0;
+    }
+
+    /**
+     * Trie node. Children are kept in an open-addressing hash table of labels.
+     */
+    private static final class Node {
+        private final String[] labels;
+        private final Node[] children;
+        private final int mask;
+        private final int[] exactPorts;
+        private final int[] wildcardPorts;
+
+        Node(String[] labels, Node[] children, int[] exactPorts, int[] wildcardPorts) {
+            this.labels = labels;
+            this.children = children;
+            this.mask = labels.length - 1;
+            this.exactPorts = exactPorts;
+            this.wildcardPorts = wildcardPorts;
+        }
+
+        Node child(CharSequence host, int start, int end) {
+            if (labels.length == 0) {
+                return null;
+            }
+            int i = hash(host, start, end) & mask;
+            while (labels[i] != null) {
+                if (equalsLabel(labels[i], host, start, end)) {
+                    return children[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+    }
+
+    private static final class NodeBuilder {
+        private final Map<String, NodeBuilder> children = new HashMap<>();
+        private final TreeSet<Integer> exactPorts = new TreeSet<>();
+        private final TreeSet<Integer> wildcardPorts = new TreeSet<>();
+
+        Node build() {
+            // Load factor <= 0.5
+            int capacity = children.isEmpty() ? 0 : Integer.highestOneBit(children.size() * 4 - 1);
+            String[] labels = new String[capacity];
+            Node[] nodes = new Node[capacity];
+
+            List<Map.Entry<String, NodeBuilder>> entries = new ArrayList<>(children.entrySet());
+            for (Map.Entry<String, NodeBuilder> entry : entries) {
+                String label = entry.getKey();
+                int i = hash(label, 0, label.length()) & (capacity - 1);
+                while (labels[i] != null) {
+                    i = (i + 1) & (capacity - 1);
+                }
+                labels[i] = label;
+                nodes[i] = entry.getValue().build();
+            }
+
+            return new Node(labels, nodes, toArray(exactPorts), toArray(wildcardPorts));
+        }
+
+        private static int[] toArray(TreeSet<Integer> ports) {
+            if (ports.isEmpty()) {
+                return null;
+            }
+            if (ports.first() == ANY_PORT) {
+                return new int[] { ANY_PORT };
+            }
+            return ports.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private static int hash(CharSequence s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + toLowerCase(s.charAt(i));
+        }
+        // Spread bits, as the table index only takes the lower ones.
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equalsLabel(String label, CharSequence s, int start, int end) {
+        if (label.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < label.length(); i++) {
+            if (label.charAt(i) != toLowerCase(s.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+}
@@ -0,0 +1,55 @@
+package connect.proxy.whitelist;
+
+import java.util.Collection;
+
+/**
+ * Host whitelist shared by all channels.
+ *
+ * The compiled rules can be replaced at any time. Readers never block: they see either the
+ * previous rules or the new ones, never a mix.
+ *
+ * @author carlos
+ *
+ */
+public class HostWhitelist {
+    private volatile HostMatcher matcher;
+
+    public HostWhitelist(HostMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    public HostWhitelist(Collection<String> rules) {
+        this(HostMatcher.compile(rules));
+    }
+
+    /**
+     * Check whether a host and port are whitelisted.
+     * @param host host name or IP literal.
+     * @param port port.
+     * @return true if some rule matches.
+     */
+    public boolean matches(CharSequence host, int port) {
+        return matcher.matches(host, port);
+    }
+
+    /**
+     * Check whether some rule names a host, whatever its port.
+     * @param host host name or IP literal.
+     * @return true if some rule matches the host.
+     */
+    public boolean matchesHost(CharSequence host) {
+        return matcher.matches(host, HostMatcher.ANY_PORT);
+    }
+
+    public HostMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * Replace the whitelist rules.
+     * @param matcher new compiled rules.
+     */
+    public void update(HostMatcher matcher) {
+        this.matcher = matcher;
+    }
+}
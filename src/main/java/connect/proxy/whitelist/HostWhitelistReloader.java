@@ -0,0 +1,30 @@
+package connect.proxy.whitelist;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Keeps a HostWhitelist in sync with a rule file (see RuleFileReloader).
+ *
+ * @author carlos
+ *
+ */
+public class HostWhitelistReloader extends RuleFileReloader {
+    /**
+     * Constructor. Rules are loaded from the file before it returns.
+     * @param whitelist whitelist to update.
+     * @param file rule file.
+     * @param fixedRules rules that are always added to the rules in the file.
+     * @param intervalMillis polling interval of the file.
+     * @throws IOException if the file cannot be loaded the first time.
+     */
+    public HostWhitelistReloader(HostWhitelist whitelist, Path file, Collection<String> fixedRules,
+            long intervalMillis) throws IOException {
+        super("Whitelist", rules -> {
+            HostMatcher matcher = HostMatcher.compile(rules);
+            whitelist.update(matcher);
+            return matcher.size();
+        }, file, fixedRules, intervalMillis);
+    }
+}
@@ -0,0 +1,118 @@
+package connect.proxy.whitelist;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Keeps rules in sync with a rule file.
+ *
+ * The file has one rule per line. Empty lines and lines starting with '#' are ignored. The file
+ * is polled from a dedicated thread; new rules are compiled there and swapped in atomically, so
+ * event loops are never paused. If the file cannot be read or has an invalid rule, the current
+ * rules are kept.
+ *
+ * @author carlos
+ *
+ */
+public class RuleFileReloader implements AutoCloseable {
+    private static Logger LOG = LogManager.getLogger();
+
+    /**
+     * Compiles rules and swaps them in.
+     */
+    @FunctionalInterface
+    public interface RuleLoader {
+        /**
+         * @param rules rules of the file and fixed rules.
+         * @return number of loaded rules.
+         * @throws IllegalArgumentException if a rule is invalid.
+         */
+        int load(List<String> rules);
+    }
+
+    private final String name;
+    private final RuleLoader loader;
+    private final Path file;
+    private final Collection<String> fixedRules;
+    private final ScheduledExecutorService executor;
+    private FileTime lastModified;
+
+    /**
+     * Constructor. Rules are loaded from the file before it returns.
+     * @param name name of the rules, for logging.
+     * @param loader loader of the rules.
+     * @param file rule file.
+     * @param fixedRules rules that are always added to the rules in the file.
+     * @param intervalMillis polling interval of the file.
+     * @throws IOException if the file cannot be loaded the first time.
+     */
+    public RuleFileReloader(String name, RuleLoader loader, Path file, Collection<String> fixedRules,
+            long intervalMillis) throws IOException {
+        this.name = name;
+        this.loader = loader;
+        this.file = file;
+        this.fixedRules = new ArrayList<>(fixedRules);
+
+        reload();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+            new DefaultThreadFactory("rule-reloader", true));
+        this.executor.scheduleWithFixedDelay(this::reloadIfModified, intervalMillis, intervalMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void reloadIfModified() {
+        FileTime modified = null;
+        try {
+            modified = Files.getLastModifiedTime(file);
+            if (!modified.equals(lastModified)) {
+                reload();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.warn("{} file {} could not be reloaded. Keeping current rules.", name, file, e);
+            // Do not retry until the file is modified again.
+            if (modified != null) {
+                lastModified = modified;
+            }
+        }
+    }
+
+    /**
+     * Load rules from the file and replace the current rules.
+     * @throws IOException
+     */
+    public synchronized void reload() throws IOException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        List<String> rules = new ArrayList<>(fixedRules);
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String rule = line.trim();
+            if (!rule.isEmpty() && !rule.startsWith("#")) {
+                rules.add(rule);
+            }
+        }
+
+        int size = loader.load(rules);
+        lastModified = modified;
+
+        LOG.info("{} loaded from {}. Rules = {}.", name, file, size);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
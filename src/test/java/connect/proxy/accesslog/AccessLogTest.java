@@ -0,0 +1,118 @@
+package connect.proxy.accesslog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class AccessLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void closedChannels_loggedAsJsonLines() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("access.log");
+        try (AccessLog accessLog = new AccessLog(file, 16, 1 << 20, 2)) {
+            EmbeddedChannel tunneled = new EmbeddedChannel();
+            accessLog.watch(tunneled);
+            AccessRecord.requested(tunneled, "example.com", 443);
+            AccessRecord.responded(tunneled, 200);
+            AccessRecord.closing(tunneled, "idle_timeout");
+            AccessRecord.closing(tunneled, "error");
+            tunneled.close();
+
+            EmbeddedChannel rejected = new EmbeddedChannel();
+            accessLog.watch(rejected);
+            AccessRecord.requested(rejected, "evil\"host", 80);
+            AccessRecord.responded(rejected, 403);
+            rejected.close();
+
+            EmbeddedChannel silent = new EmbeddedChannel();
+            accessLog.watch(silent);
+            silent.close();
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0), lines.get(0).matches("\\{\"time\":\"[0-9T:.-]+Z\",\"client\":null,"
+            + "\"host\":\"example.com\",\"port\":443,\"status\":200,\"setup_us\":\\d+,"
+            + "\"duration_ms\":\\d+,\"bytes_up\":0,\"bytes_down\":0,\"spliced\":false,\"tunnel\":null,"
+            + "\"close\":\"idle_timeout\"\\}"));
+        assertTrue(lines.get(1), lines.get(1).contains(
+            "\"host\":\"evil\\\"host\",\"port\":80,\"status\":403,"));
+        assertTrue(lines.get(1), lines.get(1).endsWith("\"close\":\"rejected\"}"));
+        assertTrue(lines.get(2), lines.get(2).contains("\"status\":null,\"setup_us\":null,"));
+        assertTrue(lines.get(2), lines.get(2).endsWith("\"close\":\"closed\"}"));
+    }
+
+    @Test
+    public void clientAddress_logged() {
+        AccessRecord record = new AccessRecord(new InetSocketAddress("10.0.0.7", 40000));
+        StringBuilder json = new StringBuilder();
+        record.appendJson(json);
+
+        assertTrue(json.toString(), json.toString().contains("\"client\":\"10.0.0.7\","));
+        assertTrue(json.toString().endsWith("}\n"));
+        assertNull(record.getCloseReason());
+    }
+
+    @Test
+    public void bufferFull_recordsDropped() throws IOException {
+        RecordRing<AccessRecord> ring = new RecordRing<>(3);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(new AccessRecord(null)));
+        }
+        assertFalse(ring.offer(new AccessRecord(null)));
+        assertEquals(4, ring.size());
+
+        // A freed slot is reused.
+        assertTrue(ring.poll() != null);
+        assertTrue(ring.offer(new AccessRecord(null)));
+        assertEquals(4, ring.size());
+
+        Path file = folder.getRoot().toPath().resolve("closed.log");
+        AccessLog accessLog = new AccessLog(file, 4, 1 << 20, 2);
+        accessLog.close();
+        assertFalse(accessLog.log(new AccessRecord(null)));
+        assertEquals(1, accessLog.getDroppedRecords());
+        assertEquals(0, accessLog.getWrittenRecords());
+    }
+
+    @Test
+    public void maxSizeExceeded_fileRotated() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("access.log");
+        // Each record is over 125 bytes, so each one goes to a new file.
+        try (AccessLog accessLog = new AccessLog(file, 16, 250, 2)) {
+            for (int i = 0; i < 4; i++) {
+                accessLog.log(new AccessRecord(null));
+                waitWritten(accessLog, i + 1);
+            }
+        }
+
+        assertEquals(1, Files.readAllLines(file).size());
+        assertEquals(1, Files.readAllLines(file.resolveSibling("access.log.1")).size());
+        assertEquals(1, Files.readAllLines(file.resolveSibling("access.log.2")).size());
+        assertFalse(Files.exists(file.resolveSibling("access.log.3")));
+    }
+
+    private static void waitWritten(AccessLog accessLog, long records) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (accessLog.getWrittenRecords() < records && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(records, accessLog.getWrittenRecords());
+    }
+}
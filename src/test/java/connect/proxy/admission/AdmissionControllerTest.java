@@ -0,0 +1,121 @@
+package connect.proxy.admission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import connect.proxy.admission.AdmissionController.Rejection;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void tokenBucket_burstThenRate() {
+        AtomicLong nanos = new AtomicLong();
+        TokenBucket bucket = new TokenBucket(10, 2, nanos::get);
+
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+
+        // 10 per second: one token every 100 ms.
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertFalse(bucket.tryAcquire());
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(bucket.tryAcquire());
+
+        // Idle time does not go over the burst.
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void tunnelLimit_slotReleasedOnClose() {
+        AdmissionController controller = new AdmissionController().maxTunnels(1);
+        EmbeddedChannel first = new ClientChannel("10.0.0.1");
+        EmbeddedChannel second = new ClientChannel("10.0.0.2");
+
+        assertNull(controller.admit(first));
+        assertEquals(Rejection.TUNNEL_LIMIT, controller.shed(second));
+        assertEquals(Rejection.TUNNEL_LIMIT, controller.admit(second));
+        assertEquals(1, controller.getShedConnections(Rejection.TUNNEL_LIMIT));
+        assertEquals(1, controller.getRejectedRequests(Rejection.TUNNEL_LIMIT));
+
+        first.close();
+        assertNull(controller.shed(second));
+        assertNull(controller.admit(second));
+        second.close();
+        assertEquals(0, controller.getTunnels());
+    }
+
+    @Test
+    public void clientTunnelLimit_otherClientsAdmitted() throws Exception {
+        AdmissionController controller = new AdmissionController().maxTunnelsPerClient(2);
+        EmbeddedChannel a1 = new ClientChannel("10.0.0.1");
+        EmbeddedChannel a2 = new ClientChannel("10.0.0.1");
+        EmbeddedChannel a3 = new ClientChannel("10.0.0.1");
+        EmbeddedChannel b1 = new ClientChannel("10.0.0.2");
+
+        assertNull(controller.admit(a1));
+        assertNull(controller.admit(a2));
+        assertEquals(Rejection.CLIENT_TUNNEL_LIMIT, controller.admit(a3));
+        assertNull(controller.admit(b1));
+        assertEquals(3, controller.getTunnels());
+
+        a1.close();
+        assertNull(controller.admit(a3));
+
+        a2.close();
+        a3.close();
+        b1.close();
+        assertEquals(0, controller.getClientTunnels(((InetSocketAddress) a1.remoteAddress()).getAddress()));
+        assertEquals(0, controller.getTunnels());
+    }
+
+    @Test
+    public void connectRateExceeded_rejected() {
+        AdmissionController controller = new AdmissionController().connectRate(1, 1);
+
+        assertNull(controller.admit(new ClientChannel("10.0.0.1")));
+        assertEquals(Rejection.RATE_LIMITED, controller.admit(new ClientChannel("10.0.0.1")));
+        // Rate limits do not shed connections on accept.
+        assertNull(controller.shed(new ClientChannel("10.0.0.1")));
+    }
+
+    @Test
+    public void pendingConnectsOverLimit_overloaded() {
+        AtomicLong pendingConnects = new AtomicLong();
+        AdmissionController controller = new AdmissionController()
+            .maxPendingConnects(pendingConnects::get, 10);
+
+        pendingConnects.set(9);
+        assertNull(controller.shed(new ClientChannel("10.0.0.1")));
+        pendingConnects.set(10);
+        assertEquals(Rejection.OVERLOADED, controller.shed(new ClientChannel("10.0.0.1")));
+        assertEquals(Rejection.OVERLOADED, controller.admit(new ClientChannel("10.0.0.1")));
+        assertEquals(0, controller.getTunnels());
+    }
+
+    private static class ClientChannel extends EmbeddedChannel {
+        private final InetSocketAddress remoteAddress;
+
+        ClientChannel(String ip) {
+            remoteAddress = new InetSocketAddress(ip, 40000);
+        }
+
+        @Override
+        protected SocketAddress remoteAddress0() {
+            return remoteAddress;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package connect.proxy.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import connect.proxy.auth.ProxyAuthenticator.Result;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+public class ProxyAuthenticatorTest {
+    private static final int ITERATIONS = 1000;
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final ProxyAuthenticator authenticator = new ProxyAuthenticator(
+        credentials("alice", "secret", ITERATIONS), 1, 16, nanos::get)
+        .cacheTtlMillis(1000);
+
+    @After
+    public void close() {
+        authenticator.close();
+    }
+
+    @Test
+    public void validCredentials_verifiedOnceThenCached() throws Exception {
+        String header = basic("alice", "secret");
+
+        assertNull(authenticator.cached(header));
+        assertEquals(Result.AUTHENTICATED, verify(header));
+        assertEquals(Result.AUTHENTICATED, authenticator.cached(header));
+        assertEquals(Result.AUTHENTICATED, authenticator.cached(header));
+
+        assertEquals(2, authenticator.getCacheHits());
+        assertEquals(1, authenticator.getCacheMisses());
+        assertEquals(1, authenticator.getVerifyDuration().getCount());
+        assertEquals(1, authenticator.getCacheSize());
+    }
+
+    @Test
+    public void wrongPasswordOrUnknownUser_unauthorizedAndNotCached() throws Exception {
+        assertEquals(Result.UNAUTHORIZED, verify(basic("alice", "guess")));
+        assertEquals(Result.UNAUTHORIZED, verify(basic("bob", "secret")));
+
+        assertNull(authenticator.cached(basic("alice", "guess")));
+        assertEquals(0, authenticator.getCacheSize());
+        // Unknown users are verified against a dummy hash.
+        assertEquals(2, authenticator.getVerifyDuration().getCount());
+    }
+
+    @Test
+    public void missingOrMalformedHeader_unauthorized() throws Exception {
+        assertEquals(Result.UNAUTHORIZED, authenticator.cached(null));
+        assertEquals(Result.UNAUTHORIZED, verify("Bearer token"));
+        assertEquals(Result.UNAUTHORIZED, verify("Basic !not-base64!"));
+        assertEquals(Result.UNAUTHORIZED, verify("Basic " + base64("alice")));
+        assertEquals(Result.AUTHENTICATED, verify("basic " + base64("alice:secret")));
+        assertEquals(1, authenticator.getVerifyDuration().getCount());
+    }
+
+    @Test
+    public void cachedCredentials_expireAfterTtl() throws Exception {
+        String header = basic("alice", "secret");
+        assertEquals(Result.AUTHENTICATED, verify(header));
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertEquals(Result.AUTHENTICATED, authenticator.cached(header));
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertNull(authenticator.cached(header));
+        assertEquals(0, authenticator.getCacheSize());
+    }
+
+    @Test
+    public void cacheFull_entriesEvicted() throws Exception {
+        authenticator.update(Credentials.parse(Arrays.asList(
+            "alice:" + PasswordHash.create("secret".toCharArray(), ITERATIONS),
+            "bob:" + PasswordHash.create("secret".toCharArray(), ITERATIONS))));
+        authenticator.cacheSize(1);
+
+        assertEquals(Result.AUTHENTICATED, verify(basic("alice", "secret")));
+        assertEquals(Result.AUTHENTICATED, verify(basic("bob", "secret")));
+
+        assertEquals(1, authenticator.getCacheSize());
+        assertEquals(Result.AUTHENTICATED, authenticator.cached(basic("bob", "secret")));
+    }
+
+    @Test
+    public void credentialsUpdated_cacheCleared() throws Exception {
+        String header = basic("alice", "secret");
+        assertEquals(Result.AUTHENTICATED, verify(header));
+
+        authenticator.update(credentials("alice", "changed", ITERATIONS));
+
+        assertNull(authenticator.cached(header));
+        assertEquals(Result.UNAUTHORIZED, verify(header));
+        assertEquals(Result.AUTHENTICATED, verify(basic("alice", "changed")));
+    }
+
+    @Test
+    public void verificationQueueFull_unavailable() throws Exception {
+        // One thread busy with a slow hash, and one verification queued.
+        Credentials credentials = Credentials.parse(Arrays.asList(
+            "alice:" + PasswordHash.unmatchable(2000000)));
+        try (ProxyAuthenticator slow = new ProxyAuthenticator(credentials, 1, 1)) {
+            String header = basic("alice", "secret");
+            slow.verify(header, GlobalEventExecutor.INSTANCE);
+            slow.verify(header, GlobalEventExecutor.INSTANCE);
+
+            assertEquals(Result.UNAVAILABLE, slow.verify(header, GlobalEventExecutor.INSTANCE).getNow());
+            assertEquals(1, slow.getRejectedVerifications());
+        }
+    }
+
+    @Test
+    public void passwordHash_encodedAndParsed() {
+        String encoded = PasswordHash.create("p:ss".toCharArray(), ITERATIONS).toString();
+        PasswordHash hash = PasswordHash.parse(encoded);
+
+        assertEquals(encoded, hash.toString());
+        assertTrue(encoded.startsWith("pbkdf2-sha256$1000$"));
+        assertTrue(hash.matches("p:ss".toCharArray()));
+        assertFalse(hash.matches("p:s".toCharArray()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedHash_rejected() {
+        Credentials.parse(Arrays.asList("alice:sha1$1000$c2FsdA$aGFzaA"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void repeatedUser_rejected() {
+        String hash = PasswordHash.create("secret".toCharArray(), ITERATIONS).toString();
+        Credentials.parse(Arrays.asList("alice:" + hash, "alice:" + hash));
+    }
+
+    private Result verify(String header) throws Exception {
+        return authenticator.verify(header, GlobalEventExecutor.INSTANCE).get(10, TimeUnit.SECONDS);
+    }
+
+    private static Credentials credentials(String user, String password, int iterations) {
+        return Credentials.parse(Arrays.asList(
+            user + ":" + PasswordHash.create(password.toCharArray(), iterations)));
+    }
+
+    private static String basic(String user, String password) {
+        return "Basic " + base64(user + ":" + password);
+    }
+
+    private static String base64(String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,73 @@
+package connect.proxy.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+public class EventLoopLagMonitorTest {
+
+    @Test
+    public void stalledLoop_lagGrowsUntilItRecovers() throws Exception {
+        NioEventLoopGroup group = new NioEventLoopGroup(2);
+        NioEventLoopGroup otherGroup = new NioEventLoopGroup(1);
+        try (EventLoopLagMonitor monitor = new EventLoopLagMonitor(group, 10)) {
+            EventLoop stalled = group.next();
+            EventLoop free = group.next();
+
+            CountDownLatch release = new CountDownLatch(1);
+            stalled.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Thread.sleep(200);
+
+            // Stalled: the overdue probe is counted.
+            long stalledLagNanos = monitor.getLagNanos(stalled);
+            assertTrue(stalledLagNanos > TimeUnit.MILLISECONDS.toNanos(100));
+            assertTrue(monitor.getMaxLagNanos() >= stalledLagNanos);
+            assertTrue(monitor.getLagNanos(free) < TimeUnit.MILLISECONDS.toNanos(100));
+            assertEquals(0, monitor.getLagNanos(otherGroup.next()));
+
+            // Recovered: probes run on time again.
+            release.countDown();
+            Thread.sleep(100);
+            assertTrue(monitor.getLagNanos(stalled) < TimeUnit.MILLISECONDS.toNanos(100));
+        } finally {
+            group.shutdownGracefully();
+            otherGroup.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void loopBlockedOverThreshold_stallCountedOnce() throws Exception {
+        NioEventLoopGroup group = new NioEventLoopGroup(1);
+        try (EventLoopLagMonitor monitor = new EventLoopLagMonitor(group, 10).stallThreshold(50)) {
+            EventLoop loop = group.next();
+            Thread.sleep(50);
+            assertEquals(0, monitor.getStalls(loop));
+
+            // Seen by the watchdog while blocked, and by the late probe once it runs.
+            loop.submit(() -> {
+                Thread.sleep(300);
+                return null;
+            }).sync();
+            Thread.sleep(50);
+
+            assertEquals(1, monitor.getStalls(loop));
+            assertTrue(monitor.getLagHistogram(loop).getCount() > 1);
+            assertTrue(monitor.getLagHistogram(loop).getSumNanos() >= TimeUnit.MILLISECONDS.toNanos(200));
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+}
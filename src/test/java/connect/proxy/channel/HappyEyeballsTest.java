@@ -0,0 +1,139 @@
+package connect.proxy.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.resolver.AbstractAddressResolver;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+public class HappyEyeballsTest {
+    private static final ChannelHandler NO_OP_HANDLER = new ChannelInitializer<Channel>() {
+        @Override
+        protected void initChannel(Channel ch) {
+        }
+    };
+
+    @Test
+    public void mixedFamilies_interleavedStartingWithFirstFamily() throws Exception {
+        InetSocketAddress v6a = address("::1", 1);
+        InetSocketAddress v6b = address("::2", 2);
+        InetSocketAddress v6c = address("::3", 3);
+        InetSocketAddress v4a = address("10.0.0.1", 4);
+
+        List<InetSocketAddress> interleaved = Arrays.asList(
+                HappyEyeballs.interleave(Arrays.asList(v6a, v6b, v6c, v4a))
+                    .toArray(new InetSocketAddress[0]));
+
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v6c), interleaved);
+    }
+
+    @Test
+    public void deadFirstAddress_secondAddressConnected() throws Exception {
+        EventLoopGroup evLoopGroup = new NioEventLoopGroup(1);
+        ServerSocket liveServer = new ServerSocket(0);
+        // Nobody listens on this port.
+        ServerSocket deadServer = new ServerSocket(0);
+        int deadPort = deadServer.getLocalPort();
+        deadServer.close();
+
+        try {
+            EventLoop evLoop = evLoopGroup.next();
+            UpstreamConnector connector = new UpstreamConnector()
+                .attemptDelayMillis(50)
+                .connectTimeoutMillis(1000)
+                .resolver(staticResolver(
+                    address("127.0.0.1", deadPort),
+                    address("127.0.0.1", liveServer.getLocalPort())));
+
+            Future<Channel> connectFuture = connector.connect("multi.test", 0, evLoop,
+                    NO_OP_HANDLER);
+
+            assertTrue(connectFuture.await(5, TimeUnit.SECONDS));
+            assertTrue(connectFuture.isSuccess());
+            assertEquals(liveServer.getLocalPort(),
+                    ((InetSocketAddress) connectFuture.getNow().remoteAddress()).getPort());
+            connectFuture.getNow().close();
+        } finally {
+            liveServer.close();
+            evLoopGroup.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void allAddressesDead_connectionFailed() throws Exception {
+        EventLoopGroup evLoopGroup = new NioEventLoopGroup(1);
+        ServerSocket deadServer = new ServerSocket(0);
+        int deadPort = deadServer.getLocalPort();
+        deadServer.close();
+
+        try {
+            UpstreamConnector connector = new UpstreamConnector()
+                .attemptDelayMillis(50)
+                .resolver(staticResolver(
+                    address("127.0.0.1", deadPort),
+                    address("127.0.0.1", deadPort)));
+
+            Future<Channel> connectFuture = connector.connect("dead.test", 0, evLoopGroup.next(),
+                    NO_OP_HANDLER);
+
+            assertTrue(connectFuture.await(5, TimeUnit.SECONDS));
+            assertFalse(connectFuture.isSuccess());
+        } finally {
+            evLoopGroup.shutdownGracefully();
+        }
+    }
+
+    private static InetSocketAddress address(String ip, int port) throws Exception {
+        return new InetSocketAddress(InetAddress.getByName(ip), port);
+    }
+
+    /**
+     * Resolver that resolves any host name to the given addresses.
+     */
+    private static AddressResolverGroup<InetSocketAddress> staticResolver(
+            InetSocketAddress... addresses) {
+        return new AddressResolverGroup<InetSocketAddress>() {
+            @Override
+            protected AddressResolver<InetSocketAddress> newResolver(EventExecutor executor) {
+                return new AbstractAddressResolver<InetSocketAddress>(executor) {
+                    @Override
+                    protected boolean doIsResolved(InetSocketAddress address) {
+                        return !address.isUnresolved();
+                    }
+
+                    @Override
+                    protected void doResolve(InetSocketAddress unresolvedAddress,
+                            Promise<InetSocketAddress> promise) {
+                        promise.setSuccess(addresses[0]);
+                    }
+
+                    @Override
+                    protected void doResolveAll(InetSocketAddress unresolvedAddress,
+                            Promise<List<InetSocketAddress>> promise) {
+                        promise.setSuccess(Arrays.asList(addresses));
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,40 @@
+package connect.proxy.channel;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+public class LeastLoadedLoopSelectorTest {
+    @Test
+    public void openTunnels_spreadAcrossLoops() {
+        EventLoopGroup group = new NioEventLoopGroup(3);
+        try {
+            LeastLoadedLoopSelector selector = new LeastLoadedLoopSelector(group);
+            EmbeddedChannel[] inChannels = new EmbeddedChannel[3];
+            Set<EventLoop> selected = new HashSet<>();
+            for (int i = 0; i < inChannels.length; i++) {
+                inChannels[i] = new EmbeddedChannel();
+                selected.add(selector.select(inChannels[i]));
+            }
+            Assert.assertEquals(3, selected.size());
+
+            // Closed tunnels no longer count: the loop with a fourth tunnel stays the busiest.
+            EventLoop busiestLoop = selector.select(new EmbeddedChannel());
+            Assert.assertEquals(2, selector.getTunnels(busiestLoop));
+            inChannels[0].close();
+            inChannels[1].close();
+            inChannels[2].close();
+            Assert.assertEquals(1, selector.getTunnels(busiestLoop));
+            Assert.assertNotEquals(busiestLoop, selector.select(new EmbeddedChannel()));
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+}
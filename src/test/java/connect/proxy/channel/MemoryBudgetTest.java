@@ -0,0 +1,102 @@
+package connect.proxy.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void bytesOverBudget_pausedUntilReleasedUnderLowMark() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        AtomicInteger reads = new AtomicInteger();
+        EmbeddedChannel channel = readCountingChannel(reads);
+
+        budget.reserve(600);
+        budget.reserve(500);
+        budget.update();
+        assertTrue(budget.isExceeded());
+        assertEquals(1100, budget.getUsedBytes());
+
+        budget.pause(channel);
+        assertEquals(0, reads.get());
+        assertEquals(1, budget.getPausedReads());
+
+        // Under budget, but over the low mark.
+        budget.release(200);
+        budget.update();
+        assertTrue(budget.isExceeded());
+        assertEquals(0, reads.get());
+
+        // Under the low mark: paused channels read again.
+        budget.release(500);
+        budget.update();
+        assertFalse(budget.isExceeded());
+        assertEquals(400, budget.getUsedBytes());
+        assertEquals(1, reads.get());
+
+        // Everything released: the budget is back to empty, not to an allocator floor.
+        budget.release(400);
+        budget.update();
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(1, reads.get());
+
+        channel.close();
+    }
+
+    @Test
+    public void pausedAfterRecovery_resumedRightAway() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        AtomicInteger reads = new AtomicInteger();
+        EmbeddedChannel channel = readCountingChannel(reads);
+
+        budget.pause(channel);
+        assertEquals(1, reads.get());
+
+        channel.close();
+    }
+
+    @Test
+    public void writePromise_releasesBytesAndClosesOnFailure() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        EmbeddedChannel channel = new EmbeddedChannel();
+
+        ChannelPromise written = budget.newWritePromise(channel, 300);
+        ChannelPromise failed = budget.newWritePromise(channel, 200);
+        budget.update();
+        assertEquals(500, budget.getUsedBytes());
+
+        written.setSuccess();
+        budget.update();
+        assertEquals(200, budget.getUsedBytes());
+        assertTrue(channel.isOpen());
+
+        failed.setFailure(new IOException("Reset"));
+        budget.update();
+        assertEquals(0, budget.getUsedBytes());
+        assertFalse(channel.isOpen());
+    }
+
+    private static EmbeddedChannel readCountingChannel(AtomicInteger reads) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void read(ChannelHandlerContext ctx) {
+                reads.incrementAndGet();
+                ctx.read();
+            }
+        });
+        channel.config().setAutoRead(false);
+        reads.set(0);
+        return channel;
+    }
+}
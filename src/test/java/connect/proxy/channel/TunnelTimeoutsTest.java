@@ -0,0 +1,78 @@
+package connect.proxy.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import connect.proxy.channel.TunnelTimeouts.Reason;
+import connect.proxy.channel.handlers.TunnelHandler;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class TunnelTimeoutsTest {
+    private final TunnelTimeouts timeouts = new TunnelTimeouts(10);
+
+    @After
+    public void tearDown() {
+        timeouts.close();
+    }
+
+    @Test
+    public void noRequestInTime_closed() throws Exception {
+        timeouts.handshakeTimeout(50);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        timeouts.watchHandshake(channel, null);
+
+        assertTrue(awaitClosed(channel, 2000));
+        assertEquals(1, timeouts.getTimeouts(Reason.REQUEST));
+    }
+
+    @Test
+    public void requestReceived_notClosed() throws Exception {
+        timeouts.handshakeTimeout(50);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        timeouts.watchHandshake(channel, null);
+        timeouts.requestReceived(channel);
+
+        assertFalse(awaitClosed(channel, 300));
+        assertEquals(0, timeouts.getTimeouts(Reason.REQUEST));
+        channel.close();
+    }
+
+    @Test
+    public void tunnelWithoutData_closedWhenIdle() throws Exception {
+        timeouts.idleTimeout(300);
+        TunnelHandler inHandler = new TunnelHandler();
+        TunnelHandler outHandler = new TunnelHandler();
+        EmbeddedChannel in = new EmbeddedChannel(inHandler);
+        EmbeddedChannel out = new EmbeddedChannel(outHandler);
+        in.attr(TunnelHandler.COUPLE_CHANNEL).set(out);
+        out.attr(TunnelHandler.COUPLE_CHANNEL).set(in);
+        timeouts.watchIdle(in, inHandler, outHandler);
+
+        // Data in either direction keeps the tunnel open.
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(100);
+            (i % 2 == 0 ? in : out).writeInbound(Unpooled.wrappedBuffer(new byte[] { 1 }));
+        }
+        assertTrue(in.isActive());
+        assertEquals(0, timeouts.getTimeouts(Reason.IDLE));
+
+        assertTrue(awaitClosed(in, 2000));
+        assertEquals(1, timeouts.getTimeouts(Reason.IDLE));
+        assertFalse(out.isActive());
+    }
+
+    // EmbeddedChannel futures cannot be awaited: the test thread is its event loop.
+    private static boolean awaitClosed(Channel channel, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (channel.isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return !channel.isOpen();
+    }
+}
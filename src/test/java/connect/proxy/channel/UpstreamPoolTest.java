@@ -0,0 +1,158 @@
+package connect.proxy.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import connect.proxy.health.CircuitOpenException;
+import connect.proxy.health.UpstreamHealth;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.Future;
+
+public class UpstreamPoolTest {
+    private EventLoopGroup evLoopGroup;
+    private ServerSocket server;
+    private UpstreamPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        evLoopGroup = new NioEventLoopGroup(2);
+        // Connections complete in the backlog; they are only accepted to be closed.
+        server = new ServerSocket(0, 50);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+        server.close();
+        evLoopGroup.shutdownGracefully().sync();
+    }
+
+    @Test
+    public void configuredDestination_filledUpToSize() throws Exception {
+        pool = new UpstreamPool(new UpstreamConnector(), evLoopGroup, 2)
+            .destination("localhost", server.getLocalPort());
+
+        pool.check();
+
+        await(() -> pool.getIdleChannels() == 2);
+        assertEquals(1, pool.getDestinations());
+    }
+
+    @Test
+    public void acquire_pooledChannelHandedOverAndRefilled() throws Exception {
+        pool = new UpstreamPool(new UpstreamConnector(), evLoopGroup, 1)
+            .destination("localhost", server.getLocalPort());
+        pool.check();
+        await(() -> pool.getIdleChannels() == 1);
+
+        ChannelHandler handler = new ChannelInboundHandlerAdapter();
+        Future<Channel> future = pool.acquire("localhost", server.getLocalPort(), evLoopGroup.next(), handler);
+
+        assertNotNull(future);
+        await(future::isDone);
+        Channel channel = future.getNow();
+        assertTrue(channel.isActive());
+        assertSame(handler, channel.pipeline().last());
+        assertEquals(1, pool.getHits());
+        // The taken channel is replaced.
+        await(() -> pool.getIdleChannels() == 1);
+        channel.close();
+    }
+
+    @Test
+    public void acquire_unknownDestinationBecomesHot() throws Exception {
+        pool = new UpstreamPool(new UpstreamConnector(), evLoopGroup, 1).hotRequests(2);
+
+        for (int i = 0; i < 2; i++) {
+            assertNull(pool.acquire("localhost", server.getLocalPort(), evLoopGroup.next(),
+                new ChannelInboundHandlerAdapter()));
+        }
+        assertEquals(0, pool.getDestinations());
+
+        pool.check();
+
+        assertEquals(1, pool.getDestinations());
+        await(() -> pool.getIdleChannels() == 1);
+    }
+
+    @Test
+    public void idleChannelClosedByDestination_evicted() throws Exception {
+        pool = new UpstreamPool(new UpstreamConnector(), evLoopGroup, 1)
+            .destination("localhost", server.getLocalPort());
+        pool.check();
+        await(() -> pool.getIdleChannels() == 1);
+
+        Socket accepted = server.accept();
+        accepted.close();
+        await(() -> pool.getEvicted() == 1);
+        assertEquals(0, pool.getIdleChannels());
+        assertNull(pool.acquire("localhost", server.getLocalPort(), evLoopGroup.next(),
+            new ChannelInboundHandlerAdapter()));
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void sameLoopOnly_channelOfOtherLoopNotHandedOut() throws Exception {
+        EventLoopGroup otherGroup = new NioEventLoopGroup(1);
+        try {
+            pool = new UpstreamPool(new UpstreamConnector(), evLoopGroup, 1)
+                .anyLoop(false)
+                .destination("localhost", server.getLocalPort());
+            pool.check();
+            await(() -> pool.getIdleChannels() == 1);
+
+            assertNull(pool.acquire("localhost", server.getLocalPort(), otherGroup.next(),
+                new ChannelInboundHandlerAdapter()));
+            assertEquals(1, pool.getMisses());
+            assertEquals(1, pool.getIdleChannels());
+        } finally {
+            otherGroup.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void openCircuit_pooledChannelNotUsed() throws Exception {
+        UpstreamHealth health = new UpstreamHealth().failureThreshold(1);
+        UpstreamConnector connector = new UpstreamConnector().health(health);
+        pool = new UpstreamPool(connector, evLoopGroup, 1)
+            .destination("localhost", server.getLocalPort());
+        connector.pool(pool);
+        pool.check();
+        await(() -> pool.getIdleChannels() == 1);
+
+        health.failed(health.tryAcquire("localhost", server.getLocalPort()));
+        Future<Channel> future = connector.connect("localhost", server.getLocalPort(), evLoopGroup.next(),
+            new ChannelInboundHandlerAdapter());
+
+        await(future::isDone);
+        assertTrue(future.cause() instanceof CircuitOpenException);
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getIdleChannels());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package connect.proxy.channel.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import connect.proxy.metrics.ProxyMetrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+public class ConnectRequestDecoderTest {
+
+    @Test
+    public void validConnectRequest_connectRequestDecoded() {
+        EmbeddedChannel decoder = new EmbeddedChannel(new ConnectRequestDecoder());
+
+        decoder.writeInbound(ascii("CONNECT example.com:8443 HTTP/1.1\r\n"
+            + "Host: example.com:8443\r\n"
+            + "proxy-authorization:  Basic dXNlcjpwYXNz \r\n\r\n"));
+        ConnectRequest output = decoder.readInbound();
+        assertEquals("example.com", output.host());
+        assertEquals(8443, output.port());
+        assertEquals("Basic dXNlcjpwYXNz", output.proxyAuthorization());
+    }
+
+    @Test
+    public void connectRequestInSeveralReads_connectRequestDecoded() {
+        EmbeddedChannel decoder = new EmbeddedChannel(new ConnectRequestDecoder());
+
+        decoder.writeInbound(ascii("\r\nCONNECT exam"));
+        decoder.writeInbound(ascii("ple.com HTTP/1.0\nHost: example.com\n"));
+        assertNull(decoder.readInbound());
+        decoder.writeInbound(ascii("\n"));
+        ConnectRequest output = decoder.readInbound();
+        assertEquals("example.com", output.host());
+        assertEquals(ConnectRequestDecoder.DEFAULT_HTTPS_REMOTE_PORT, output.port());
+        assertNull(output.proxyAuthorization());
+    }
+
+    @Test
+    public void ipv6Target_hostWithoutBrackets() {
+        EmbeddedChannel decoder = new EmbeddedChannel(new ConnectRequestDecoder());
+
+        decoder.writeInbound(ascii("CONNECT [::1]:443 HTTP/1.1\r\n\r\n"));
+        ConnectRequest output = decoder.readInbound();
+        assertEquals("::1", output.host());
+        assertEquals(443, output.port());
+    }
+
+    @Test
+    public void notConnectRequest_NotImplementedResponse() {
+        assertResponse("GET / HTTP/1.1\r\n\r\n", "HTTP/1.1 501 Not Implemented");
+    }
+
+    @Test
+    public void connectRequestWithContentLength_BadRequestResponse() {
+        assertResponse("CONNECT host:443 HTTP/1.1\r\nContent-Length: 1\r\n\r\n", "HTTP/1.1 400 Bad Request");
+    }
+
+    @Test
+    public void connectRequestWithTransferEncoding_BadRequestResponse() {
+        assertResponse("CONNECT host:443 HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n",
+            "HTTP/1.1 400 Bad Request");
+    }
+
+    @Test
+    public void connectRequestWithInvalidTarget_BadRequestResponse() {
+        assertResponse("CONNECT  HTTP/1.1\r\n\r\n", "HTTP/1.1 400 Bad Request");
+        assertResponse("CONNECT / HTTP/1.1\r\n\r\n", "HTTP/1.1 400 Bad Request");
+        assertResponse("CONNECT host: HTTP/1.1\r\n\r\n", "HTTP/1.1 400 Bad Request");
+        assertResponse("CONNECT host:65536 HTTP/1.1\r\n\r\n", "HTTP/1.1 400 Bad Request");
+        assertResponse("CONNECT [::1 HTTP/1.1\r\n\r\n", "HTTP/1.1 400 Bad Request");
+        assertResponse("CONNECT host:443\r\n\r\n", "HTTP/1.1 400 Bad Request");
+    }
+
+    @Test
+    public void connectRequestWithMalformedHeader_BadRequestResponse() {
+        assertResponse("CONNECT host:443 HTTP/1.1\r\nHost\r\n\r\n", "HTTP/1.1 400 Bad Request");
+        assertResponse("CONNECT host:443 HTTP/1.1\r\nHost : host\r\n\r\n", "HTTP/1.1 400 Bad Request");
+        assertResponse("CONNECT host:443 HTTP/1.1\r\nHost: host\r\n folded\r\n\r\n",
+            "HTTP/1.1 400 Bad Request");
+    }
+
+    @Test
+    public void connectRequestTooLarge_RequestHeaderFieldsTooLargeResponse() {
+        EmbeddedChannel decoder = new EmbeddedChannel(new ConnectRequestDecoder(64));
+
+        decoder.writeInbound(ascii("CONNECT host:443 HTTP/1.1\r\nX-Padding: "));
+        assertNull(decoder.readOutbound());
+        decoder.writeInbound(ascii("0123456789012345678901234567890123456789"));
+        ByteBuf output = decoder.readOutbound();
+        assertTrue(output.toString(CharsetUtil.US_ASCII)
+            .startsWith("HTTP/1.1 431 Request Header Fields Too Large"));
+        assertFalse(decoder.isOpen());
+    }
+
+    @Test
+    public void bytesAfterConnectRequest_forwardedWhenDecoderRemoved() {
+        ConnectRequestDecoder connectDecoder = new ConnectRequestDecoder();
+        EmbeddedChannel decoder = new EmbeddedChannel(connectDecoder,
+            new ChannelInboundHandlerAdapter() {
+                @Override
+                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    ctx.fireChannelRead(msg);
+                    if (msg instanceof ConnectRequest) {
+                        ctx.pipeline().remove(connectDecoder);
+                    }
+                }
+            });
+
+        decoder.writeInbound(ascii("CONNECT host:443 HTTP/1.1\r\n\r\nEARLY DATA"));
+        assertTrue(decoder.readInbound() instanceof ConnectRequest);
+        ByteBuf earlyData = decoder.readInbound();
+        assertEquals("EARLY DATA", earlyData.toString(CharsetUtil.US_ASCII));
+    }
+
+    @Test
+    public void earlyDataWhileConnecting_readUpToMaximum() {
+        ConnectRequestDecoder connectDecoder = new ConnectRequestDecoder(
+            ConnectRequestDecoder.DEFAULT_MAX_HEADER_SIZE, ProxyMetrics.UNEXPORTED, 8);
+        AtomicInteger reads = new AtomicInteger();
+        EmbeddedChannel decoder = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+                @Override
+                public void read(ChannelHandlerContext ctx) {
+                    reads.incrementAndGet();
+                }
+            }, connectDecoder);
+        // The CONNECT handler disables auto-read while the upstream connection is opened.
+        decoder.config().setAutoRead(false);
+        reads.set(0);
+
+        decoder.writeInbound(ascii("CONNECT host:443 HTTP/1.1\r\n\r\nEARLY"));
+        assertTrue(decoder.readInbound() instanceof ConnectRequest);
+        assertEquals(1, reads.get());
+        decoder.writeInbound(ascii(" DATA"));
+        assertEquals(1, reads.get());
+        assertEquals(10, connectDecoder.bufferedBytes());
+
+        ByteBuf earlyData = connectDecoder.readBufferedBytes();
+        assertEquals("EARLY DATA", earlyData.toString(CharsetUtil.US_ASCII));
+        earlyData.release();
+        assertNull(connectDecoder.readBufferedBytes());
+    }
+
+    @Test
+    public void inputShutdownAfterConnectRequest_forwardedWhenDecoderRemoved() {
+        ConnectRequestDecoder connectDecoder = new ConnectRequestDecoder();
+        List<Object> events = new ArrayList<>();
+        EmbeddedChannel decoder = new EmbeddedChannel(connectDecoder,
+            new ChannelInboundHandlerAdapter() {
+                @Override
+                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    events.add(msg instanceof ByteBuf ? ((ByteBuf) msg).toString(CharsetUtil.US_ASCII) : msg);
+                    ReferenceCountUtil.release(msg);
+                }
+
+                @Override
+                public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                    events.add(evt);
+                }
+            });
+
+        decoder.writeInbound(ascii("CONNECT host:443 HTTP/1.1\r\n\r\nLAST DATA"));
+        decoder.pipeline().fireUserEventTriggered(ChannelInputShutdownEvent.INSTANCE);
+        assertEquals(1, events.size());
+        assertTrue(connectDecoder.hasPendingInput());
+
+        decoder.pipeline().remove(connectDecoder);
+        assertEquals(Arrays.asList(events.get(0), "LAST DATA", ChannelInputShutdownEvent.INSTANCE), events);
+    }
+
+    private static void assertResponse(String request, String expectedStatusLine) {
+        EmbeddedChannel decoder = new EmbeddedChannel(new ConnectRequestDecoder());
+
+        decoder.writeInbound(ascii(request));
+        ByteBuf output = decoder.readOutbound();
+        assertTrue(request, output.toString(CharsetUtil.US_ASCII).startsWith(expectedStatusLine + "\r\n"));
+        assertNull(decoder.readInbound());
+        assertFalse(decoder.isOpen());
+    }
+
+    private static ByteBuf ascii(String s) {
+        return Unpooled.copiedBuffer(s, CharsetUtil.US_ASCII);
+    }
+}
@@ -1,6 +1,7 @@
 package connect.proxy.channel.handlers;
 
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.Charset;
@@ -8,22 +9,22 @@ import java.util.Collections;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.embedded.EmbeddedChannel;
-import io.netty.channel.nio.NioEventLoop;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.handler.codec.http.DefaultFullHttpRequest;
-import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpVersion;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.CharsetUtil;
 
 
 public class ConnectRequestHandlerTest {
@@ -34,42 +35,20 @@ public class ConnectRequestHandlerTest {
         EventLoopGroup evLoopGroup = new NioEventLoopGroup(1);
 
         try {
-            String unreachableUri = "unreachable:31173";
             EmbeddedChannel inChannel = new EmbeddedChannel(
                     new ConnectRequestHandler(Collections.emptyList(),
-                    (NioEventLoop) evLoopGroup.next()));
-            FullHttpRequest inConnectReq = new DefaultFullHttpRequest(
-                    HttpVersion.HTTP_1_1, HttpMethod.CONNECT, unreachableUri);
+                    new ConnectRequestHandler.Options().upstreamEventLoop(evLoopGroup.next())));
+            ConnectRequest inConnectReq = new ConnectRequest("unreachable", 31173, null);
 
             inChannel.writeInbound(inConnectReq);
-            FullHttpResponse outConnectReq = syncReadOutbound(inChannel, READ_TIMEOUT);
-            Assert.assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, outConnectReq.status());
+            ByteBuf outConnectResp = syncReadOutbound(inChannel, READ_TIMEOUT);
+            Assert.assertTrue(outConnectResp.toString(CharsetUtil.US_ASCII).startsWith("HTTP/1.1 503"));
 
         } finally {
             evLoopGroup.shutdownGracefully();
         }
     }
 
-    @Test
-    public void invalidUri_channelIsClosed() throws Exception {
-        EventLoopGroup evLoopGroup = new NioEventLoopGroup(1);
-
-        try {
-            String invalidUri = "unreachable";
-            EmbeddedChannel inChannel = new EmbeddedChannel(
-                    new ConnectRequestHandler(Collections.emptyList(),
-                    (NioEventLoop) evLoopGroup.next()));
-            FullHttpRequest inConnectReq = new DefaultFullHttpRequest(
-                    HttpVersion.HTTP_1_1, HttpMethod.CONNECT, invalidUri);
-
-            Assert.assertTrue(inChannel.isOpen());
-            inChannel.writeInbound(inConnectReq);
-            Assert.assertFalse(inChannel.isOpen());
-        } finally {
-            evLoopGroup.shutdownGracefully();
-        }
-    }
-
     // This test may fail sometimes; it seems there is a bug on EmbeddedChannel which is used for
     // testing. Still, this behavior is also tested on ProxyServerTest.
     @Test
@@ -84,16 +63,15 @@ public class ConnectRequestHandlerTest {
         try {
             EmbeddedChannel inChannel = new EmbeddedChannel(
                     new ConnectRequestHandler(Collections.emptyList(),
-                    (NioEventLoop) evLoopGroup.next()));
-            FullHttpRequest inConnectReq = new DefaultFullHttpRequest(
-                    HttpVersion.HTTP_1_1, HttpMethod.CONNECT, "localhost:" + dstServerPort);
+                    new ConnectRequestHandler.Options().upstreamEventLoop(evLoopGroup.next())));
+            ConnectRequest inConnectReq = new ConnectRequest("localhost", dstServerPort, null);
             ByteBuf inTunnelMessage = Unpooled.buffer().writeBytes((dstRequest + "\r\n").getBytes());
 
             // Connect
             inChannel.writeInbound(inConnectReq);
             inChannel.flush();
-            FullHttpResponse outConnectReq = syncReadOutbound(inChannel, READ_TIMEOUT);
-            Assert.assertEquals(HttpResponseStatus.OK, outConnectReq.status());
+            ByteBuf outConnectResp = syncReadOutbound(inChannel, READ_TIMEOUT);
+            Assert.assertTrue(outConnectResp.toString(CharsetUtil.US_ASCII).startsWith("HTTP/1.1 200"));
 
             // Server accepting connection
             Socket dstClientSocket = dstServerSocket.accept();
@@ -117,6 +95,52 @@ public class ConnectRequestHandlerTest {
         }
     }
 
+    @Test
+    public void upstreamOnOtherLoop_earlyDataTakenOnClientLoop() throws Exception {
+        EventLoopGroup clientGroup = new NioEventLoopGroup(1);
+        EventLoopGroup upstreamGroup = new NioEventLoopGroup(1);
+        ServerSocket dstServerSocket = new ServerSocket(0);
+        AtomicReference<Boolean> onClientLoop = new AtomicReference<>();
+
+        try {
+            Channel serverChannel = new ServerBootstrap()
+                .group(clientGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new ConnectRequestDecoder() {
+                            @Override
+                            public ByteBuf readBufferedBytes() {
+                                onClientLoop.compareAndSet(null, ch.eventLoop().inEventLoop());
+                                return super.readBufferedBytes();
+                            }
+                        }, new ConnectRequestHandler(Collections.emptyList(),
+                            new ConnectRequestHandler.Options().upstreamEventLoop(upstreamGroup.next())));
+                    }
+                })
+                .bind(0).sync().channel();
+            int proxyPort = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+
+            try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+                clientSocket.getOutputStream().write(String.format(
+                    "CONNECT localhost:%d HTTP/1.1\r\n\r\nEARLY\n", dstServerSocket.getLocalPort()).getBytes());
+                try (Socket dstClientSocket = dstServerSocket.accept()) {
+                    Scanner dstClientSocketIn = new Scanner(dstClientSocket.getInputStream());
+                    Assert.assertEquals("EARLY", dstClientSocketIn.nextLine());
+                }
+                Scanner clientSocketIn = new Scanner(clientSocket.getInputStream());
+                Assert.assertTrue(clientSocketIn.nextLine().startsWith("HTTP/1.1 200"));
+            }
+            Assert.assertEquals(Boolean.TRUE, onClientLoop.get());
+            serverChannel.close().sync();
+        } finally {
+            dstServerSocket.close();
+            clientGroup.shutdownGracefully();
+            upstreamGroup.shutdownGracefully();
+        }
+    }
+
     private <T> T syncReadOutbound(EmbeddedChannel channel, int timeoutMs) throws Exception  {
         final int stepMs = 10;
         int elapsedMs = 0;
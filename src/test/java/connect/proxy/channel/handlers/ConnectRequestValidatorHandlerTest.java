@@ -1,106 +1,97 @@
 package connect.proxy.channel.handlers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Collections;
 
 import org.junit.Test;
 
-import io.netty.buffer.Unpooled;
+import connect.proxy.metrics.ProxyMetrics;
+import connect.proxy.whitelist.CidrAcl;
+import connect.proxy.whitelist.HostWhitelist;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.embedded.EmbeddedChannel;
-import io.netty.handler.codec.http.DefaultHttpContent;
-import io.netty.handler.codec.http.DefaultHttpRequest;
-import io.netty.handler.codec.http.HttpContent;
-import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.HttpResponse;
-import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpUtil;
-import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
 
 public class ConnectRequestValidatorHandlerTest {
 
     @Test
-    public void httpContentInbound_BadRequestResponse() {
+    public void connectRequestWithHostNotWhitelistedInbound_ForbiddenResponse() {
         EmbeddedChannel validator = new EmbeddedChannel(
                 new ConnectRequestValidatorHandler(Collections.emptySet()));
 
-        HttpContent input = new DefaultHttpContent(Unpooled.buffer());
-        validator.writeInbound(input);
-        HttpResponse output = validator.readOutbound();
-        assertEquals(HttpResponseStatus.BAD_REQUEST, output.status());
+        validator.writeInbound(new ConnectRequest("host", 443, null));
+        ByteBuf output = validator.readOutbound();
+        assertTrue(output.toString(CharsetUtil.US_ASCII).startsWith("HTTP/1.1 403 Forbidden\r\n"));
+        assertFalse(validator.isOpen());
     }
 
     @Test
-    public void notConnectRequestInbound_NotImplementedResponse() {
+    public void connectRequestWithPortNotWhitelistedInbound_ForbiddenResponse() {
         EmbeddedChannel validator = new EmbeddedChannel(
-                new ConnectRequestValidatorHandler(Collections.emptySet()));
+                new ConnectRequestValidatorHandler(Collections.singleton("host:443")));
 
-        HttpRequest input = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
-        validator.writeInbound(input);
-        HttpResponse output = validator.readOutbound();
-        assertEquals(HttpResponseStatus.NOT_IMPLEMENTED, output.status());
+        validator.writeInbound(new ConnectRequest("host", 80, null));
+        ByteBuf output = validator.readOutbound();
+        assertTrue(output.toString(CharsetUtil.US_ASCII).startsWith("HTTP/1.1 403 Forbidden\r\n"));
     }
 
     @Test
-    public void connectRequestWithContentLengthInbound_BadRequestResponse() {
-        EmbeddedChannel validator = new EmbeddedChannel(
-                new ConnectRequestValidatorHandler(Collections.emptySet()));
+    public void aclAllowedAddress_whitelistPortsStillEnforced() {
+        HostWhitelist whitelist = new HostWhitelist(Collections.singleton("10.1.2.3:443"));
+        CidrAcl acl = new CidrAcl(Collections.singleton("10.0.0.0/8"));
 
-        HttpRequest input = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, "/");
-        HttpUtil.setContentLength(input, 1);
-        validator.writeInbound(input);
-        HttpResponse output = validator.readOutbound();
-        assertEquals(HttpResponseStatus.BAD_REQUEST, output.status());
-    }
-
-    @Test
-    public void connectRequestWithTransferEncodingInbound_BadRequestResponse() {
+        // Named by a whitelist rule: only its port.
         EmbeddedChannel validator = new EmbeddedChannel(
-                new ConnectRequestValidatorHandler(Collections.emptySet()));
-
-        HttpRequest input = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, "/");
-        HttpUtil.setTransferEncodingChunked(input, true);
-        validator.writeInbound(input);
-        HttpResponse output = validator.readOutbound();
-        assertEquals(HttpResponseStatus.BAD_REQUEST, output.status());
+                new ConnectRequestValidatorHandler(whitelist, acl, ProxyMetrics.UNEXPORTED));
+        validator.writeInbound(new ConnectRequest("10.1.2.3", 22, null));
+        ByteBuf output = validator.readOutbound();
+        assertTrue(output.toString(CharsetUtil.US_ASCII).startsWith("HTTP/1.1 403 Forbidden\r\n"));
+
+        validator = new EmbeddedChannel(
+                new ConnectRequestValidatorHandler(whitelist, acl, ProxyMetrics.UNEXPORTED));
+        validator.writeInbound(new ConnectRequest("10.1.2.3", 443, null));
+        assertTrue(validator.readInbound() instanceof ConnectRequest);
+
+        // Not named by the whitelist: admitted by the ACL.
+        validator = new EmbeddedChannel(
+                new ConnectRequestValidatorHandler(whitelist, acl, ProxyMetrics.UNEXPORTED));
+        validator.writeInbound(new ConnectRequest("10.9.9.9", 22, null));
+        assertTrue(validator.readInbound() instanceof ConnectRequest);
     }
 
     @Test
-    public void connectRequestWithNoUri_BadRequestResponse() {
-        EmbeddedChannel validator = new EmbeddedChannel(
-                new ConnectRequestValidatorHandler(Collections.emptySet()));
-
-        String aUri = "";
-        HttpRequest input = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, aUri);
-        validator.writeInbound(input);
-        HttpResponse output = validator.readOutbound();
-        assertEquals(HttpResponseStatus.BAD_REQUEST, output.status());
-    }
+    public void ipv4MappedAddress_deniedByIpv4Rule() {
+        HostWhitelist whitelist = new HostWhitelist(Collections.singleton("localhost"));
+        CidrAcl acl = new CidrAcl(Arrays.asList("!10.0.0.0/8", "::/0"));
 
-    @Test
-    public void connectRequestWithHostNotWhitelistedInbound_ForbiddenResponse() {
         EmbeddedChannel validator = new EmbeddedChannel(
-                new ConnectRequestValidatorHandler(Collections.emptySet()));
-
-        String aUri = "uri";
-        HttpRequest input = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, aUri);
-        validator.writeInbound(input);
-        HttpResponse output = validator.readOutbound();
-        assertEquals(HttpResponseStatus.FORBIDDEN, output.status());
+                new ConnectRequestValidatorHandler(whitelist, acl, ProxyMetrics.UNEXPORTED));
+        validator.writeInbound(new ConnectRequest("::ffff:10.0.0.1", 443, null));
+        ByteBuf output = validator.readOutbound();
+        assertTrue(output.toString(CharsetUtil.US_ASCII).startsWith("HTTP/1.1 403 Forbidden\r\n"));
+        assertNull(validator.readInbound());
+
+        validator = new EmbeddedChannel(
+                new ConnectRequestValidatorHandler(whitelist, acl, ProxyMetrics.UNEXPORTED));
+        validator.writeInbound(new ConnectRequest("2001:db8::1", 443, null));
+        assertTrue(validator.readInbound() instanceof ConnectRequest);
     }
 
     @Test
     public void validConnectRequestInbound_connectRequestForwarded() {
-        String aUri = "uri";
-        String expectedUri = aUri + ":" + ConnectRequestValidatorHandler.DEFAULT_HTTPS_REMOTE_PORT;
         EmbeddedChannel validator = new EmbeddedChannel(
-                new ConnectRequestValidatorHandler(Collections.singleton(aUri)));
+                new ConnectRequestValidatorHandler(Collections.singleton("host")));
 
-        HttpRequest input = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, aUri);
+        ConnectRequest input = new ConnectRequest("host", 443, null);
         validator.writeInbound(input);
-        HttpRequest output = validator.readInbound();
-        assertEquals(HttpMethod.CONNECT, output.method());
-        assertEquals(expectedUri, output.uri());
+        ConnectRequest output = validator.readInbound();
+        assertSame(input, output);
+        assertEquals(null, validator.readOutbound());
     }
 }
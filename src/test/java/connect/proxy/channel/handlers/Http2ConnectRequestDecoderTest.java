@@ -0,0 +1,111 @@
+package connect.proxy.channel.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.CharsetUtil;
+
+public class Http2ConnectRequestDecoderTest {
+
+    @Test
+    public void connectHeaders_connectRequestDecoded() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2DataCodec(), new Http2ConnectRequestDecoder());
+
+        channel.writeInbound(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers()
+            .method("CONNECT").authority("[::1]:8443").add("proxy-authorization", "Basic dXNlcjpwYXNz")));
+        ConnectRequest request = channel.readInbound();
+        assertEquals("::1", request.host());
+        assertEquals(8443, request.port());
+        assertEquals("Basic dXNlcjpwYXNz", request.proxyAuthorization());
+        assertFalse(channel.config().isAutoRead());
+    }
+
+    @Test
+    public void dataAfterRequest_forwardedWhenDecoderRemoved() {
+        List<Object> events = new ArrayList<>();
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2DataCodec(), new Http2ConnectRequestDecoder(),
+            new ChannelInboundHandlerAdapter() {
+                @Override
+                public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                    events.add(evt);
+                }
+            });
+
+        channel.writeInbound(new DefaultHttp2HeadersFrame(connectHeaders("example.com:443")));
+        channel.writeInbound(new DefaultHttp2DataFrame(ascii("early"), true));
+        assertTrue(channel.readInbound() instanceof ConnectRequest);
+        assertNull(channel.readInbound());
+        assertTrue(events.isEmpty());
+
+        channel.pipeline().remove(Http2ConnectRequestDecoder.class);
+        ByteBuf data = channel.readInbound();
+        assertEquals("early", data.toString(CharsetUtil.US_ASCII));
+        data.release();
+        assertEquals(1, events.size());
+        assertTrue(events.get(0) instanceof ChannelInputShutdownEvent);
+    }
+
+    @Test
+    public void otherMethod_notImplemented() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2DataCodec(), new Http2ConnectRequestDecoder());
+
+        channel.writeInbound(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers()
+            .method("GET").authority("example.com")));
+        assertNull(channel.readInbound());
+        assertResponse(channel, "HTTP/1.1 501");
+    }
+
+    @Test
+    public void invalidAuthority_badRequest() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2DataCodec(), new Http2ConnectRequestDecoder());
+
+        channel.writeInbound(new DefaultHttp2HeadersFrame(connectHeaders("example.com:99999")));
+        assertNull(channel.readInbound());
+        assertResponse(channel, "HTTP/1.1 400");
+    }
+
+    @Test
+    public void requestEndingStream_badRequest() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2DataCodec(), new Http2ConnectRequestDecoder());
+
+        channel.writeInbound(new DefaultHttp2HeadersFrame(connectHeaders("example.com:443"), true));
+        assertNull(channel.readInbound());
+        assertResponse(channel, "HTTP/1.1 400");
+    }
+
+    /**
+     * The channel is not an HTTP/2 stream, so the response is written in HTTP/1 form, as a DATA
+     * frame by the codec.
+     */
+    private static void assertResponse(EmbeddedChannel channel, String statusLine) {
+        DefaultHttp2DataFrame response = channel.readOutbound();
+        assertTrue(response.content().toString(CharsetUtil.US_ASCII).startsWith(statusLine));
+        response.release();
+        assertFalse(channel.isOpen());
+    }
+
+    private static Http2Headers connectHeaders(String authority) {
+        return new DefaultHttp2Headers().method("CONNECT").authority(authority);
+    }
+
+    private static ByteBuf ascii(String s) {
+        return Unpooled.copiedBuffer(s, CharsetUtil.US_ASCII);
+    }
+}
@@ -9,18 +9,33 @@ import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -29,6 +44,7 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Rule;
 import org.junit.Test;
 
@@ -37,6 +53,45 @@ import com.github.tomakehurst.wiremock.core.Options.ChunkedEncodingPolicy;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 
 import connect.proxy.ProxyServer;
+import connect.proxy.ProxyServerConfig;
+import connect.proxy.auth.PasswordHash;
+import connect.proxy.channel.Transport;
+import connect.proxy.channel.TunnelTimeouts;
+import connect.proxy.loadgen.LoopbackUpstream;
+import connect.proxy.channel.UpstreamLoopPolicy;
+import connect.proxy.tls.TlsProvider;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 
 public class ProxyServerTest {
     @Rule
@@ -79,8 +134,1049 @@ public class ProxyServerTest {
         }
     }
 
+    @Test
+    public void handshakeTasksOffloaded_Tunnel() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSslProvider(TlsProvider.JDK)
+                .setSslHandshakeThreads(2)
+                .setSslHandshakeQueueSize(16));
+        proxy.start();
+
+        stubFor(get(WireMock.anyUrl())
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "text/test")));
+
+        try {
+            testConnection(proxyPort);
+            testConnection(proxyPort);
+
+            Assert.assertEquals(2, proxy.getTlsSessionStats().getHandshakes());
+            Assert.assertTrue(proxy.getHandshakeExecutor().getCompletedTasks() > 0);
+            Assert.assertEquals(0, proxy.getHandshakeExecutor().getRejectedTasks());
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void adminServer_metricsScraped() throws Exception {
+        final int proxyPort = getRandomPort();
+        final int adminPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setAdminPort(adminPort));
+        proxy.start();
+
+        stubFor(get(WireMock.anyUrl())
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "text/test")));
+
+        try {
+            testConnection(proxyPort);
+
+            HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://127.0.0.1:" + adminPort + "/metrics").openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            Assert.assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+            String metrics;
+            try (Scanner in = new Scanner(connection.getInputStream(), "UTF-8")) {
+                metrics = in.useDelimiter("\\A").next();
+            }
+
+            Assert.assertTrue(metrics.contains("connect_proxy_connections_accepted_total 1\n"));
+            Assert.assertTrue(metrics.contains("connect_proxy_connect_requests_total{status=\"200\"} 1\n"));
+            Assert.assertTrue(metrics.contains("connect_proxy_upstream_connect_seconds_count 1\n"));
+            Assert.assertTrue(metrics.contains("connect_proxy_tls_handshake_seconds_count 1\n"));
+            Assert.assertTrue(metrics.contains("connect_proxy_event_loop_pending_tasks{group=\"worker\",loop=\"0\"}"));
+            Assert.assertTrue(metrics.contains("connect_proxy_event_loop_lag_seconds_count{group=\"acceptor\",loop=\"0\"}"));
+            Assert.assertTrue(metrics.contains("connect_proxy_event_loop_stalls_total{group=\"worker\",loop=\"0\"}"));
+            Assert.assertTrue(proxy.getMetrics().bytesToUpstream().get() > 0);
+            Assert.assertTrue(proxy.getMetrics().bytesToClient().get() > 0);
+
+            HttpURLConnection notFound = (HttpURLConnection)
+                new URL("http://127.0.0.1:" + adminPort + "/unknown").openConnection();
+            Assert.assertEquals(404, notFound.getResponseCode());
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void adminServer_tunnelListedAndClosed() throws Exception {
+        final int proxyPort = getRandomPort();
+        final int adminPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSsl(false)
+                .setSplice(false)
+                .setAdminPort(adminPort));
+        proxy.start();
+
+        try (LoopbackUpstream upstream = new LoopbackUpstream(Transport.NIO, 1, true, 0, 0, 0);
+                Socket clientSocket = new Socket("localhost", proxyPort)) {
+            clientSocket.setSoTimeout(5000);
+            InputStream in = clientSocket.getInputStream();
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(String.format("CONNECT localhost:%d HTTP/1.1\r\n\r\n",
+                upstream.getAddress().getPort()).getBytes());
+            Assert.assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK"));
+            out.write("PING".getBytes());
+            byte[] echoed = new byte[4];
+            for (int read = 0; read < echoed.length; ) {
+                int n = in.read(echoed, read, echoed.length - read);
+                Assert.assertTrue(n > 0);
+                read += n;
+            }
+
+            HttpURLConnection list = (HttpURLConnection) new URL("http://127.0.0.1:" + adminPort
+                + "/tunnels?host=localhost&min_bytes=8").openConnection();
+            Assert.assertEquals(200, list.getResponseCode());
+            String tunnels;
+            try (Scanner listIn = new Scanner(list.getInputStream(), "UTF-8")) {
+                tunnels = listIn.useDelimiter("\\A").next();
+            }
+            Assert.assertTrue(tunnels, tunnels.contains("\"matched\": 1"));
+            Assert.assertTrue(tunnels, tunnels.contains("\"bytesToUpstream\": 4"));
+            Assert.assertTrue(tunnels, tunnels.contains("\"bytesToClient\": 4"));
+
+            HttpURLConnection unfiltered = (HttpURLConnection) new URL("http://127.0.0.1:" + adminPort
+                + "/tunnels/close").openConnection();
+            unfiltered.setRequestMethod("POST");
+            Assert.assertEquals(400, unfiltered.getResponseCode());
+
+            HttpURLConnection close = (HttpURLConnection) new URL("http://127.0.0.1:" + adminPort
+                + "/tunnels/close?host=localhost").openConnection();
+            close.setRequestMethod("POST");
+            Assert.assertEquals(200, close.getResponseCode());
+            Assert.assertEquals(-1, in.read());
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (proxy.getTunnelRegistry().size() > 0) {
+                Assert.assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void reusePortAcceptorsAndLeastLoadedUpstreams_Tunnel() throws Exception {
+        Assume.assumeTrue(Transport.EPOLL.isAvailable());
+
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setTransport(Transport.EPOLL)
+                .setAcceptors(2)
+                .setWorkerThreads(2)
+                .setSoBacklog(4096)
+                .setUpstreamLoopPolicy(UpstreamLoopPolicy.LEAST_LOADED));
+        proxy.start();
+
+        stubFor(get(WireMock.anyUrl())
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "text/test")));
+
+        try {
+            for (int i = 0; i < 4; i++) {
+                testConnection(proxyPort);
+            }
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void socketOptionsAndMemoryBudget_Tunnel() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setRecvBufferMin(128)
+                .setRecvBufferInitial(1024)
+                .setRecvBufferMax(16 * 1024)
+                .setSocketRcvBuf(256 * 1024)
+                .setSocketSndBuf(256 * 1024)
+                .setMemoryBudget(Long.MAX_VALUE)
+                .setMemoryBudgetCheckIntervalMillis(10));
+        proxy.start();
+
+        stubFor(get(WireMock.anyUrl())
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "text/test")));
+
+        try {
+            testConnection(proxyPort);
+            Assert.assertFalse(proxy.getMemoryBudget().isExceeded());
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void tunnelLimitReached_connectionShedBeforeRequest() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSsl(false)
+                .setMaxTunnels(1));
+        proxy.start();
+
+        try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+            Scanner in = new Scanner(clientSocket.getInputStream());
+            PrintWriter out = new PrintWriter(clientSocket.getOutputStream());
+            out.printf("CONNECT localhost:%d HTTP/1.1\r\n\r\n", wireMockRule.port()).flush();
+            Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 200 OK"));
+
+            // The tunnel slot is taken: the next connection is closed without reading a request.
+            try (Socket shedSocket = new Socket("localhost", proxyPort)) {
+                Assert.assertEquals(-1, shedSocket.getInputStream().read());
+            }
+            StringBuilder metrics = new StringBuilder();
+            proxy.getMetrics().getRegistry().writePrometheus(metrics);
+            Assert.assertTrue(metrics.toString()
+                .contains("connect_proxy_admission_shed_total{reason=\"tunnel_limit\"} 1\n"));
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void downloadLimit_tunnelThrottled() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSsl(false)
+                .setTunnelDownloadLimit(32 * 1024)
+                .setClientDownloadLimit(64 * 1024)
+                .setShapingCheckIntervalMillis(100));
+        proxy.start();
+
+        byte[] data = new byte[64 * 1024];
+        new Random().nextBytes(data);
+        try (LoopbackUpstream upstream = new LoopbackUpstream(Transport.NIO, 1, true, 0, 0, 0);
+                Socket clientSocket = new Socket("localhost", proxyPort)) {
+            InputStream in = clientSocket.getInputStream();
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(String.format("CONNECT localhost:%d HTTP/1.1\r\n\r\n",
+                upstream.getAddress().getPort()).getBytes());
+            String response = readHead(in);
+            Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+
+            // Upload is not limited; the echoed data is downloaded at 32 KiB/s.
+            long start = System.nanoTime();
+            out.write(data);
+            byte[] echoed = new byte[data.length];
+            for (int read = 0; read < echoed.length; ) {
+                int n = in.read(echoed, read, echoed.length - read);
+                Assert.assertTrue(n > 0);
+                read += n;
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            Assert.assertArrayEquals(data, echoed);
+            Assert.assertTrue("Elapsed " + elapsedMillis + " ms", elapsedMillis >= 1000);
+            StringBuilder metrics = new StringBuilder();
+            proxy.getMetrics().getRegistry().writePrometheus(metrics);
+            Assert.assertTrue(metrics.toString().contains("connect_proxy_shaping_clients 1\n"));
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void clientShutsDownOutput_responseStillReceived() throws Exception {
+        // Spliced tunnels close on EOF.
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSsl(false)
+                .setSplice(false));
+        proxy.start();
+
+        // The upstream answers once the request is complete, that is, on EOF.
+        ServerSocket upstream = new ServerSocket(0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit(() -> {
+            try (Socket upstreamSocket = upstream.accept()) {
+                InputStream in = upstreamSocket.getInputStream();
+                int n = 0;
+                while (in.read() >= 0) {
+                    n++;
+                }
+                upstreamSocket.getOutputStream().write(("read " + n).getBytes());
+            }
+            return null;
+        });
+
+        try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+            InputStream in = clientSocket.getInputStream();
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(String.format("CONNECT localhost:%d HTTP/1.1\r\n\r\n",
+                upstream.getLocalPort()).getBytes());
+            Assert.assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK"));
+
+            out.write("request".getBytes());
+            clientSocket.shutdownOutput();
+            try (Scanner response = new Scanner(in)) {
+                Assert.assertEquals("read 7", response.useDelimiter("\\A").next());
+            }
+        } finally {
+            executor.shutdownNow();
+            upstream.close();
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void silentClientAndIdleTunnel_closedByTimeouts() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSsl(false)
+                .setHandshakeTimeoutMillis(300)
+                .setIdleTimeoutMillis(300));
+        proxy.start();
+
+        try (Socket silentSocket = new Socket("localhost", proxyPort);
+                Socket clientSocket = new Socket("localhost", proxyPort)) {
+            silentSocket.setSoTimeout(5000);
+            clientSocket.setSoTimeout(5000);
+            InputStream in = clientSocket.getInputStream();
+            clientSocket.getOutputStream().write(String.format("CONNECT localhost:%d HTTP/1.1\r\n\r\n",
+                wireMockRule.port()).getBytes());
+            Assert.assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK"));
+
+            Assert.assertEquals(-1, silentSocket.getInputStream().read());
+            Assert.assertEquals(-1, in.read());
+            Assert.assertEquals(1, proxy.getTunnelTimeouts().getTimeouts(TunnelTimeouts.Reason.REQUEST));
+            Assert.assertEquals(1, proxy.getTunnelTimeouts().getTimeouts(TunnelTimeouts.Reason.IDLE));
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void upstreamNotResolvedInTime_gatewayTimeout() throws Exception {
+        // Nobody answers DNS queries on this port.
+        DatagramSocket deadDnsServer = new DatagramSocket();
+
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("unknown.test")
+                .setSsl(false)
+                .setDnsServers("127.0.0.1:" + deadDnsServer.getLocalPort())
+                .setDnsQueryTimeoutMillis(10000)
+                .setConnectTimeoutMillis(300));
+        proxy.start();
+
+        try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+            clientSocket.setSoTimeout(5000);
+            Scanner in = new Scanner(clientSocket.getInputStream());
+            PrintWriter out = new PrintWriter(clientSocket.getOutputStream());
+            out.printf("CONNECT unknown.test:%d HTTP/1.1\r\n\r\n", wireMockRule.port()).flush();
+            Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 504"));
+            Assert.assertEquals(1, proxy.getTunnelTimeouts().getTimeouts(TunnelTimeouts.Reason.CONNECT));
+        } finally {
+            proxy.close();
+            deadDnsServer.close();
+        }
+    }
+
+    @Test
+    public void destinationDown_failsFastOnceCircuitOpen() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSsl(false)
+                .setCircuitFailureThreshold(2));
+        proxy.start();
+
+        // Nobody listens on this port: connections are refused.
+        ServerSocket closedSocket = new ServerSocket(0);
+        int closedPort = closedSocket.getLocalPort();
+        closedSocket.close();
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+                    Scanner in = new Scanner(clientSocket.getInputStream());
+                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream());
+                    out.printf("CONNECT localhost:%d HTTP/1.1\r\n\r\n", closedPort).flush();
+                    Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 503"));
+                }
+            }
+            Assert.assertEquals(1, proxy.getUpstreamHealth().getRejectedConnections());
+            Assert.assertEquals(2, proxy.getUpstreamHealth().get("localhost", closedPort).getFailures());
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void pooledDestination_tunneledOverIdleChannel() throws Exception {
+        final int proxyPort = getRandomPort();
+        try (LoopbackUpstream upstream = new LoopbackUpstream(Transport.NIO, 1, true, 0, 0, 0)) {
+            int upstreamPort = upstream.getAddress().getPort();
+            ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                    .setPort(proxyPort)
+                    .setHostWhitelist("localhost")
+                    .setSsl(false)
+                    .setPoolSize(1)
+                    .setPoolDestinations("localhost:" + upstreamPort)
+                    // With the "same" loop policy, only a channel on the loop of the client is a hit.
+                    .setWorkerThreads(1));
+            proxy.start();
+
+            try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+                clientSocket.setSoTimeout(5000);
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (proxy.getUpstreamPool().getIdleChannels() < 1) {
+                    Assert.assertTrue(System.nanoTime() < deadline);
+                    Thread.sleep(10);
+                }
+
+                InputStream in = clientSocket.getInputStream();
+                OutputStream out = clientSocket.getOutputStream();
+                out.write(String.format("CONNECT localhost:%d HTTP/1.1\r\n\r\n", upstreamPort).getBytes());
+                Assert.assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK"));
+                out.write("PING".getBytes());
+                byte[] echoed = new byte[4];
+                for (int read = 0; read < echoed.length; ) {
+                    int n = in.read(echoed, read, echoed.length - read);
+                    Assert.assertTrue(n > 0);
+                    read += n;
+                }
+                Assert.assertEquals("PING", new String(echoed));
+                Assert.assertEquals(1, proxy.getUpstreamPool().getHits());
+            } finally {
+                proxy.close();
+            }
+        }
+    }
+
+    @Test
+    public void destinationAcl_ipLiteralsAllowedOrDeniedByRange() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost", "127.0.0.2")
+                .setSsl(false)
+                .setDestinationAcl("127.0.0.0/24", "!127.0.0.2"));
+        proxy.start();
+
+        try (LoopbackUpstream upstream = new LoopbackUpstream(Transport.NIO, 1, true, 0, 0, 0)) {
+            int upstreamPort = upstream.getAddress().getPort();
+            // Not whitelisted, but in an allowed range.
+            try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+                clientSocket.getOutputStream().write(String.format(
+                    "CONNECT 127.0.0.1:%d HTTP/1.1\r\n\r\n", upstreamPort).getBytes());
+                Assert.assertTrue(readHead(clientSocket.getInputStream()).startsWith("HTTP/1.1 200 OK"));
+            }
+            // Whitelisted, but denied.
+            try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+                clientSocket.getOutputStream().write(String.format(
+                    "CONNECT 127.0.0.2:%d HTTP/1.1\r\n\r\n", upstreamPort).getBytes());
+                Assert.assertTrue(readHead(clientSocket.getInputStream()).startsWith("HTTP/1.1 403"));
+            }
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void clientAcl_deniedClientDroppedOnAccept() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setClientAcl("10.0.0.0/8"));
+        proxy.start();
+
+        try (Socket clientSocket = new Socket("127.0.0.1", proxyPort)) {
+            clientSocket.setSoTimeout(5000);
+            try {
+                Assert.assertEquals(-1, clientSocket.getInputStream().read());
+            } catch (SocketException e) {
+                // Reset by the proxy.
+            }
+            StringBuilder metrics = new StringBuilder();
+            proxy.getMetrics().getRegistry().writePrometheus(metrics);
+            Assert.assertTrue(metrics.toString().contains("connect_proxy_connections_denied_total 1\n"));
+            Assert.assertTrue(metrics.toString().contains("connect_proxy_connections_accepted_total 0\n"));
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void proxyAuthorization_requiredAndCached() throws Exception {
+        Path authFile = Files.createTempFile("credentials", ".txt");
+        Files.write(authFile, Arrays.asList("# Test users",
+            "alice:" + PasswordHash.create("secret".toCharArray(), 1000)));
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSsl(false)
+                .setAuthFile(authFile));
+        proxy.start();
+
+        String authorization = "Basic " + Base64.getEncoder().encodeToString("alice:secret".getBytes());
+        try (LoopbackUpstream upstream = new LoopbackUpstream(Transport.NIO, 1, true, 0, 0, 0)) {
+            int upstreamPort = upstream.getAddress().getPort();
+            try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+                clientSocket.getOutputStream().write(String.format(
+                    "CONNECT localhost:%d HTTP/1.1\r\n\r\n", upstreamPort).getBytes());
+                String head = readHead(clientSocket.getInputStream());
+                Assert.assertTrue(head.startsWith("HTTP/1.1 407"));
+                Assert.assertTrue(head.contains("Proxy-Authenticate: Basic realm="));
+            }
+            // Verified once, then authenticated by the cache.
+            for (int i = 0; i < 2; i++) {
+                try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+                    clientSocket.getOutputStream().write(String.format(
+                        "CONNECT localhost:%d HTTP/1.1\r\nProxy-Authorization: %s\r\n\r\n", upstreamPort,
+                        authorization).getBytes());
+                    Assert.assertTrue(readHead(clientSocket.getInputStream()).startsWith("HTTP/1.1 200 OK"));
+                }
+            }
+
+            Assert.assertEquals(1, proxy.getProxyAuthenticator().getCacheHits());
+            Assert.assertEquals(1, proxy.getProxyAuthenticator().getCacheMisses());
+            StringBuilder metrics = new StringBuilder();
+            proxy.getMetrics().getRegistry().writePrometheus(metrics);
+            Assert.assertTrue(metrics.toString().contains("connect_proxy_connect_requests_total{status=\"407\"} 1\n"));
+            Assert.assertTrue(metrics.toString().contains("connect_proxy_auth_verify_seconds_count 1\n"));
+        } finally {
+            proxy.close();
+            Files.delete(authFile);
+        }
+    }
+
+    @Test
+    public void accessLog_tunnelAndRejectedRequestLogged() throws Exception {
+        Path accessLogFile = Files.createTempFile("access", ".log");
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSsl(false)
+                .setSplice(false)
+                .setAccessLogFile(accessLogFile));
+        proxy.start();
+
+        try (LoopbackUpstream upstream = new LoopbackUpstream(Transport.NIO, 1, true, 0, 0, 0)) {
+            int upstreamPort = upstream.getAddress().getPort();
+            try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+                clientSocket.getOutputStream().write(String.format(
+                    "CONNECT localhost:%d HTTP/1.1\r\n\r\nping", upstreamPort).getBytes());
+                Assert.assertTrue(readHead(clientSocket.getInputStream()).startsWith("HTTP/1.1 200 OK"));
+                byte[] echo = new byte[4];
+                new DataInputStream(clientSocket.getInputStream()).readFully(echo);
+                Assert.assertEquals("ping", new String(echo));
+            }
+            try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+                clientSocket.getOutputStream().write("CONNECT example.com:443 HTTP/1.1\r\n\r\n".getBytes());
+                Assert.assertTrue(readHead(clientSocket.getInputStream()).startsWith("HTTP/1.1 403"));
+            }
+
+            // Records are written by the access log thread.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (proxy.getAccessLog().getWrittenRecords() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            String tunnel = null;
+            String rejected = null;
+            for (String line : Files.readAllLines(accessLogFile)) {
+                if (line.contains("\"host\":\"localhost\"")) {
+                    tunnel = line;
+                } else if (line.contains("\"host\":\"example.com\"")) {
+                    rejected = line;
+                }
+            }
+            Assert.assertNotNull(tunnel);
+            Assert.assertTrue(tunnel, tunnel.contains("\"client\":\"127.0.0.1\""));
+            Assert.assertTrue(tunnel, tunnel.contains("\"status\":200"));
+            Assert.assertTrue(tunnel, tunnel.contains("\"bytes_up\":4,\"bytes_down\":4"));
+            Assert.assertNotNull(rejected);
+            Assert.assertTrue(rejected, rejected.contains("\"port\":443,\"status\":403"));
+            Assert.assertTrue(rejected, rejected.contains("\"tunnel\":null,\"close\":\"rejected\""));
+        } finally {
+            proxy.close();
+            Files.delete(accessLogFile);
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (head.length() < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) {
+                break;
+            }
+            head.append((char) c);
+        }
+        return head.toString();
+    }
+
+    @Test
+    public void plainConnectionFlowWithSplice_Tunnel() throws Exception {
+        Assume.assumeTrue(Transport.EPOLL.isAvailable());
+
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setTransport(Transport.EPOLL)
+                .setSsl(false)
+                .setSplice(true));
+        proxy.start();
+
+        stubFor(get(WireMock.anyUrl())
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "text/test")));
+
+        try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+            testConnection(clientSocket);
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void smallRoundTripsWithSplice_notDelayed() throws Exception {
+        Assume.assumeTrue(Transport.EPOLL.isAvailable());
+
+        // Spliced tunnels only wait for the sockets: they are not slower than copying tunnels.
+        averageRoundTripMicros(false);
+        long copiedMicros = averageRoundTripMicros(false);
+        long splicedMicros = averageRoundTripMicros(true);
+        Assert.assertTrue("Average round trip of " + splicedMicros + "us spliced, " + copiedMicros
+            + "us copied", splicedMicros < 2 * copiedMicros + 200);
+    }
+
+    /**
+     * Ping-pong small messages through a tunnel to an echo upstream: each one is only sent once
+     * the previous one is echoed.
+     * @return the average round trip time, in microseconds.
+     */
+    private long averageRoundTripMicros(boolean splice) throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setTransport(Transport.EPOLL)
+                .setWorkerThreads(1)
+                .setSsl(false)
+                .setSplice(splice));
+        proxy.start();
+
+        try (LoopbackUpstream upstream = new LoopbackUpstream(Transport.EPOLL, 1, true, 0, 0, 0);
+                Socket clientSocket = new Socket("localhost", proxyPort)) {
+            clientSocket.setSoTimeout(5000);
+            clientSocket.setTcpNoDelay(true);
+            InputStream in = clientSocket.getInputStream();
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(String.format("CONNECT localhost:%d HTTP/1.1\r\n\r\n",
+                upstream.getAddress().getPort()).getBytes());
+            Assert.assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK"));
+
+            byte[] message = new byte[64];
+            byte[] echoed = new byte[message.length];
+            int roundTrips = 500;
+            long start = System.nanoTime();
+            for (int i = 0; i < roundTrips; i++) {
+                out.write(message);
+                for (int read = 0; read < echoed.length; ) {
+                    int n = in.read(echoed, read, echoed.length - read);
+                    Assert.assertTrue(n > 0);
+                    read += n;
+                }
+            }
+            long averageMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / roundTrips;
+            Assert.assertEquals(splice, proxy.getTunnelRegistry().getTunnels().iterator().next().isSpliced());
+            return averageMicros;
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void dataSentWithConnectRequest_Tunneled() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSsl(false));
+        proxy.start();
+
+        stubFor(get(WireMock.anyUrl())
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "text/test")));
+
+        try (Socket clientSocket = new Socket("localhost", proxyPort)) {
+            Scanner in = new Scanner(clientSocket.getInputStream());
+            PrintWriter out = new PrintWriter(clientSocket.getOutputStream());
+
+            // The GET request does not wait for the CONNECT response.
+            out.printf("CONNECT localhost:%d HTTP/1.1\r\n\r\nGET /early HTTP/1.1\r\nHost: localhost\r\n\r\n",
+                wireMockRule.port()).flush();
+            Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 200 OK"));
+            in.nextLine();
+            Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 200 OK"));
+            Assert.assertTrue(in.nextLine().startsWith("Content-Type: text/test"));
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void earlyDataWithFastOpen_Tunneled() throws Exception {
+        Assume.assumeTrue(Transport.EPOLL.isAvailable());
+
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setTransport(Transport.EPOLL)
+                .setSsl(false)
+                .setUpstreamFastOpen(true));
+        proxy.start();
+
+        try (LoopbackUpstream upstream = new LoopbackUpstream(Transport.NIO, 1, true, 0, 0, 0);
+                Socket clientSocket = new Socket("localhost", proxyPort)) {
+            clientSocket.setSoTimeout(5000);
+            InputStream in = clientSocket.getInputStream();
+            OutputStream out = clientSocket.getOutputStream();
+
+            // The early data does not wait for the CONNECT response.
+            out.write(String.format("CONNECT localhost:%d HTTP/1.1\r\n\r\n",
+                upstream.getAddress().getPort()).getBytes());
+            out.write("EARLY DATA".getBytes());
+            Assert.assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK"));
+            byte[] echoed = new byte[10];
+            for (int read = 0; read < echoed.length; ) {
+                int n = in.read(echoed, read, echoed.length - read);
+                Assert.assertTrue(n > 0);
+                read += n;
+            }
+            Assert.assertEquals("EARLY DATA", new String(echoed));
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void reconnectingClient_tlsSessionResumed() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost"));
+        proxy.start();
+
+        stubFor(get(WireMock.anyUrl())
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "text/test")));
+
+        try {
+            // The client caches the session of the first connection.
+            SSLContext sslCtx = newTrustAllSslContext();
+            testConnection(proxyPort, sslCtx);
+            testConnection(proxyPort, sslCtx);
+
+            Assert.assertEquals(2, proxy.getTlsSessionStats().getHandshakes());
+            Assert.assertEquals(1, proxy.getTlsSessionStats().getResumedHandshakes());
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void http2ConnectStreams_tunneledOverOneConnection() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost"));
+        proxy.start();
+
+        SslContext clientSslContext = SslContextBuilder.forClient()
+            .sslProvider(SslProvider.JDK)
+            .trustManager(InsecureTrustManagerFactory.INSTANCE)
+            .applicationProtocolConfig(new ApplicationProtocolConfig(Protocol.ALPN,
+                SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT,
+                ApplicationProtocolNames.HTTP_2))
+            .build();
+        EventLoopGroup clientGroup = new NioEventLoopGroup(1);
+        try (LoopbackUpstream upstream = new LoopbackUpstream(Transport.NIO, 1, true, 0, 0, 0)) {
+            Channel connection = new Bootstrap()
+                .group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(clientSslContext.newHandler(ch.alloc()),
+                            Http2FrameCodecBuilder.forClient().build(),
+                            new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                    }
+                })
+                .connect("localhost", proxyPort).sync().channel();
+            SslHandler sslHandler = connection.pipeline().get(SslHandler.class);
+            Assert.assertTrue(sslHandler.handshakeFuture().await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(ApplicationProtocolNames.HTTP_2, sslHandler.applicationProtocol());
+
+            // Two tunnels on the same connection, each one on its own stream.
+            BlockingQueue<Object> firstFrames = new LinkedBlockingQueue<>();
+            BlockingQueue<Object> secondFrames = new LinkedBlockingQueue<>();
+            Http2StreamChannel first = openStream(connection, firstFrames);
+            Http2StreamChannel second = openStream(connection, secondFrames);
+            String target = "localhost:" + upstream.getAddress().getPort();
+            first.writeAndFlush(connectHeaders(target));
+            second.writeAndFlush(connectHeaders(target));
+            Assert.assertEquals("200", pollHeaders(firstFrames).headers().status().toString());
+            Assert.assertEquals("200", pollHeaders(secondFrames).headers().status().toString());
+
+            first.writeAndFlush(dataFrame("ping"));
+            second.writeAndFlush(dataFrame("pong"));
+            Assert.assertEquals("ping", pollData(firstFrames, 4));
+            Assert.assertEquals("pong", pollData(secondFrames, 4));
+
+            // A rejected stream ends with its response. The other streams go on.
+            BlockingQueue<Object> rejectedFrames = new LinkedBlockingQueue<>();
+            Http2StreamChannel rejected = openStream(connection, rejectedFrames);
+            rejected.writeAndFlush(connectHeaders("forbidden.test:443"));
+            Http2HeadersFrame response = pollHeaders(rejectedFrames);
+            Assert.assertEquals("403", response.headers().status().toString());
+            Assert.assertTrue(response.isEndStream());
+
+            first.writeAndFlush(dataFrame("again"));
+            Assert.assertEquals("again", pollData(firstFrames, 5));
+
+            Assert.assertTrue(connection.isActive());
+            Assert.assertEquals(1, proxy.getTlsSessionStats().getHandshakes());
+            connection.close().sync();
+        } finally {
+            clientGroup.shutdownGracefully();
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void http2UpstreamEndsFirst_clientStillUploads() throws Exception {
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost"));
+        proxy.start();
+
+        // The upstream answers and shuts down its output right away, then reads the whole upload.
+        ServerSocket upstream = new ServerSocket(0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> upload = executor.submit(() -> {
+            try (Socket upstreamSocket = upstream.accept()) {
+                upstreamSocket.getOutputStream().write("bye".getBytes());
+                upstreamSocket.shutdownOutput();
+                try (Scanner in = new Scanner(upstreamSocket.getInputStream())) {
+                    return in.useDelimiter("\\A").next();
+                }
+            }
+        });
+
+        SslContext clientSslContext = SslContextBuilder.forClient()
+            .sslProvider(SslProvider.JDK)
+            .trustManager(InsecureTrustManagerFactory.INSTANCE)
+            .applicationProtocolConfig(new ApplicationProtocolConfig(Protocol.ALPN,
+                SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT,
+                ApplicationProtocolNames.HTTP_2))
+            .build();
+        EventLoopGroup clientGroup = new NioEventLoopGroup(1);
+        try {
+            Channel connection = new Bootstrap()
+                .group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(clientSslContext.newHandler(ch.alloc()),
+                            Http2FrameCodecBuilder.forClient().build(),
+                            new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                    }
+                })
+                .connect("localhost", proxyPort).sync().channel();
+
+            BlockingQueue<Object> frames = new LinkedBlockingQueue<>();
+            Http2StreamChannel stream = openStream(connection, frames);
+            stream.writeAndFlush(connectHeaders("localhost:" + upstream.getLocalPort()));
+            Assert.assertEquals("200", pollHeaders(frames).headers().status().toString());
+
+            // The upstream FIN ends the stream, without resetting it.
+            Assert.assertEquals("bye", pollData(frames, 3));
+            Object end = frames.poll(5, TimeUnit.SECONDS);
+            Assert.assertTrue(String.valueOf(end), end instanceof Http2DataFrame);
+            Assert.assertTrue(((Http2DataFrame) end).isEndStream());
+            ReferenceCountUtil.release(end);
+            Assert.assertTrue(stream.isActive());
+
+            // The client keeps sending until it ends its side; then the stream is closed.
+            stream.writeAndFlush(dataFrame("still "));
+            stream.writeAndFlush(new DefaultHttp2DataFrame(
+                Unpooled.copiedBuffer("uploading", CharsetUtil.US_ASCII), true));
+            Assert.assertEquals("still uploading", upload.get(5, TimeUnit.SECONDS));
+            Assert.assertTrue(stream.closeFuture().await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(connection.isActive());
+            connection.close().sync();
+        } finally {
+            clientGroup.shutdownGracefully();
+            executor.shutdownNow();
+            upstream.close();
+            proxy.close();
+        }
+    }
+
+    private static Http2StreamChannel openStream(Channel connection, BlockingQueue<Object> frames)
+            throws InterruptedException {
+        return new Http2StreamChannelBootstrap(connection)
+            .handler(new ChannelInboundHandlerAdapter() {
+                @Override
+                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    frames.add(msg);
+                }
+            })
+            .open().sync().getNow();
+    }
+
+    private static DefaultHttp2DataFrame dataFrame(String data) {
+        return new DefaultHttp2DataFrame(Unpooled.copiedBuffer(data, CharsetUtil.US_ASCII));
+    }
+
+    private static DefaultHttp2HeadersFrame connectHeaders(String authority) {
+        return new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().method("CONNECT").authority(authority));
+    }
+
+    private static Http2HeadersFrame pollHeaders(BlockingQueue<Object> frames) throws InterruptedException {
+        Object frame = frames.poll(5, TimeUnit.SECONDS);
+        Assert.assertTrue(String.valueOf(frame), frame instanceof Http2HeadersFrame);
+        return (Http2HeadersFrame) frame;
+    }
+
+    private static String pollData(BlockingQueue<Object> frames, int length) throws InterruptedException {
+        StringBuilder data = new StringBuilder();
+        while (data.length() < length) {
+            Object frame = frames.poll(5, TimeUnit.SECONDS);
+            Assert.assertTrue(String.valueOf(frame), frame instanceof Http2DataFrame);
+            ByteBuf content = ((Http2DataFrame) frame).content();
+            data.append(content.toString(CharsetUtil.US_ASCII));
+            ReferenceCountUtil.release(frame);
+        }
+        return data.toString();
+    }
+
+    @Test
+    public void malformedAclFile_startFailsAndReleasesResources() throws Exception {
+        Path whitelistFile = Files.createTempFile("whitelist", ".txt");
+        Path aclFile = Files.createTempFile("acl", ".txt");
+        Files.write(whitelistFile, "localhost\n".getBytes());
+        Files.write(aclFile, "10.0.0.0/99\n".getBytes());
+        long reloaderThreads = liveThreads("rule-reloader");
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(getRandomPort())
+                .setHostWhitelistFile(whitelistFile)
+                .setDestinationAclFile(aclFile));
+        try {
+            proxy.start();
+            Assert.fail("Malformed ACL file accepted");
+        } catch (IllegalArgumentException e) {
+            // The whitelist reloader was already running.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (liveThreads("rule-reloader") > reloaderThreads && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(reloaderThreads, liveThreads("rule-reloader"));
+        } finally {
+            Files.delete(whitelistFile);
+            Files.delete(aclFile);
+        }
+    }
+
+    private static long liveThreads(String namePrefix) {
+        return Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> thread.isAlive() && thread.getName().startsWith(namePrefix))
+            .count();
+    }
+
+    @Test
+    public void hostsFileHost_resolvedWithoutDnsServer() throws Exception {
+        Path hostsFile = Files.createTempFile("hosts", ".txt");
+        Files.write(hostsFile, "127.0.0.1 upstream.test\n".getBytes());
+
+        // Nobody answers DNS queries on this port.
+        DatagramSocket deadDnsServer = new DatagramSocket();
+
+        final int proxyPort = getRandomPort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("upstream.test", "unknown.test")
+                .setSsl(false)
+                .setDnsHostsFile(hostsFile)
+                .setDnsServers("127.0.0.1:" + deadDnsServer.getLocalPort())
+                .setDnsQueryTimeoutMillis(200));
+        proxy.start();
+
+        try (Socket clientSocket = new Socket("localhost", proxyPort);
+                Socket unknownClientSocket = new Socket("localhost", proxyPort)) {
+            Scanner in = new Scanner(clientSocket.getInputStream());
+            PrintWriter out = new PrintWriter(clientSocket.getOutputStream());
+            out.printf("CONNECT upstream.test:%d HTTP/1.1\r\n\r\n", wireMockRule.port()).flush();
+            Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 200 OK"));
+
+            in = new Scanner(unknownClientSocket.getInputStream());
+            out = new PrintWriter(unknownClientSocket.getOutputStream());
+            out.printf("CONNECT unknown.test:%d HTTP/1.1\r\n\r\n", wireMockRule.port()).flush();
+            Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 503"));
+        } finally {
+            proxy.close();
+            deadDnsServer.close();
+            Files.delete(hostsFile);
+        }
+    }
+
     private void testConnection(int proxyPort) {
-    	// Client Setup
+        testConnection(proxyPort, newTrustAllSslContext());
+    }
+
+    private void testConnection(int proxyPort, SSLContext sslCtx) {
+        try {
+            SSLSocketFactory sslSocketFactory = sslCtx.getSocketFactory();
+            try (SSLSocket clientSocket = (SSLSocket) sslSocketFactory.createSocket("localhost", proxyPort)) {
+                clientSocket.startHandshake();
+                testConnection(clientSocket);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static SSLContext newTrustAllSslContext() {
+        // Client Setup
         TrustManager[] allCertTruster = new TrustManager[] {
             new X509TrustManager() {
                 public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
@@ -90,34 +1186,33 @@ public class ProxyServerTest {
         };
 
         try {
-            SSLContext sslCtx = SSLContext.getInstance("SSL");
+            SSLContext sslCtx = SSLContext.getInstance("TLS");
             sslCtx.init(null, allCertTruster, new SecureRandom());
-            SSLSocketFactory sslSocketFactory = sslCtx.getSocketFactory();
-            SSLSocket clientSocket = (SSLSocket) sslSocketFactory.createSocket("localhost", proxyPort);
-            clientSocket.startHandshake();
-            Scanner in = new Scanner(clientSocket.getInputStream());
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream());
+            return sslCtx;
+        } catch (KeyManagementException e) {
+            throw new RuntimeException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            // Connect
-            out.printf("CONNECT localhost:%d HTTP/1.1\r\n\r\n", wireMockRule.port()).flush();
-            Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 200 OK"));
-            in.nextLine();
+    private void testConnection(Socket clientSocket) throws IOException {
+        Scanner in = new Scanner(clientSocket.getInputStream());
+        PrintWriter out = new PrintWriter(clientSocket.getOutputStream());
 
-            // Get
-            String url = "/test" + (new Random()).nextInt();
-            out.printf("GET %s HTTP/1.1\r\nHost: localhost\r\n\r\n", url).flush();
-            Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 200 OK"));
-            Assert.assertTrue(in.nextLine().startsWith("Content-Type: text/test"));
+        // Connect
+        out.printf("CONNECT localhost:%d HTTP/1.1\r\n\r\n", wireMockRule.port()).flush();
+        Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 200 OK"));
+        in.nextLine();
 
-            verify(getRequestedFor(urlMatching(url))
-                    .withHeader("Host", matching("localhost")));
-        } catch (KeyManagementException e) {
-        	throw new RuntimeException(e);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		}
+        // Get
+        String url = "/test" + (new Random()).nextInt();
+        out.printf("GET %s HTTP/1.1\r\nHost: localhost\r\n\r\n", url).flush();
+        Assert.assertTrue(in.nextLine().startsWith("HTTP/1.1 200 OK"));
+        Assert.assertTrue(in.nextLine().startsWith("Content-Type: text/test"));
+
+        verify(getRequestedFor(urlMatching(url))
+                .withHeader("Host", matching("localhost")));
     }
 
     private static int getRandomPort() {
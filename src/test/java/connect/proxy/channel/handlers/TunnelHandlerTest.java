@@ -3,13 +3,24 @@ package connect.proxy.channel.handlers;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import connect.proxy.channel.MemoryBudget;
+import connect.proxy.channel.Tunnel;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.util.ReferenceCountUtil;
 
 public class TunnelHandlerTest {
     private static final Random rand = new Random();
@@ -29,6 +40,38 @@ public class TunnelHandlerTest {
         in.close();
     }
 
+    @Test
+    public void tunnelSet_forwardedBytesCounted() {
+        EmbeddedChannel in = new EmbeddedChannel(new TunnelHandler());
+        EmbeddedChannel out = new EmbeddedChannel(new TunnelHandler());
+        Tunnel tunnel = new Tunnel(in, out, "localhost", 443);
+
+        in.writeInbound(Unpooled.wrappedBuffer(getRandomBytes(128)));
+        out.writeInbound(Unpooled.wrappedBuffer(getRandomBytes(64)));
+
+        assertEquals(128, ((ByteBuf) out.readOutbound()).readableBytes());
+        assertEquals(64, ((ByteBuf) in.readOutbound()).readableBytes());
+        assertEquals(128, tunnel.getBytesToUpstream());
+        assertEquals(64, tunnel.getBytesToClient());
+
+        in.close();
+    }
+
+    @Test
+    public void uncoupledChannelShutDownAndClosed_noException() {
+        AtomicInteger exceptions = new AtomicInteger();
+        EmbeddedChannel upstream = new EmbeddedChannel(new TunnelHandler() {
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                exceptions.incrementAndGet();
+            }
+        });
+
+        upstream.pipeline().fireUserEventTriggered(ChannelInputShutdownEvent.INSTANCE);
+        upstream.close();
+        assertEquals(0, exceptions.get());
+    }
+
     @Test
     public void channelClosed_coupleChannelClosed() {
         EmbeddedChannel in = new EmbeddedChannel(new TunnelHandler());
@@ -40,6 +83,117 @@ public class TunnelHandlerTest {
         assertTrue(!out.isActive());
     }
 
+    @Test
+    public void coupleChannelNotWritable_readPausedUntilWritable() {
+        AtomicInteger reads = new AtomicInteger();
+        EmbeddedChannel in = new EmbeddedChannel(new ReadCounter(reads), new TunnelHandler());
+        EmbeddedChannel out = new EmbeddedChannel(new TunnelHandler());
+        in.config().setAutoRead(false);
+        in.attr(TunnelHandler.COUPLE_CHANNEL).set(out);
+        out.attr(TunnelHandler.COUPLE_CHANNEL).set(in);
+
+        // Writable couple: keep reading after the read burst.
+        reads.set(0);
+        in.writeInbound(Unpooled.wrappedBuffer(getRandomBytes(128)));
+        assertEquals(1, reads.get());
+        assertEquals(128, ((ByteBuf) out.readOutbound()).readableBytes());
+
+        // Not writable couple: stop reading.
+        reads.set(0);
+        out.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        in.writeInbound(Unpooled.wrappedBuffer(getRandomBytes(128)));
+        assertEquals(0, reads.get());
+
+        // Writable again: the couple resumes reading.
+        out.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+        out.runPendingTasks();
+        in.runPendingTasks();
+        assertEquals(1, reads.get());
+
+        in.close();
+    }
+
+    @Test
+    public void memoryBudgetExceeded_readPausedUntilUnderLowMark() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        AtomicInteger reads = new AtomicInteger();
+        EmbeddedChannel in = new EmbeddedChannel(new ReadCounter(reads), new TunnelHandler(null, budget));
+        EmbeddedChannel out = new EmbeddedChannel();
+        in.config().setAutoRead(false);
+        in.attr(TunnelHandler.COUPLE_CHANNEL).set(out);
+
+        // Over budget (bytes held by other tunnels): data is still forwarded, but reading stops.
+        budget.reserve(1001);
+        budget.update();
+        reads.set(0);
+        in.writeInbound(Unpooled.wrappedBuffer(getRandomBytes(128)));
+        assertEquals(128, ((ByteBuf) out.readOutbound()).readableBytes());
+        assertEquals(0, reads.get());
+        assertEquals(1, budget.getPausedReads());
+
+        // Under budget, but over the low mark: still paused.
+        budget.release(101);
+        budget.update();
+        assertTrue(budget.isExceeded());
+        assertEquals(0, reads.get());
+
+        // Under the low mark: reading resumes.
+        budget.release(400);
+        budget.update();
+        assertEquals(500, budget.getUsedBytes());
+        assertTrue(!budget.isExceeded());
+        assertEquals(1, reads.get());
+
+        // Nothing left to resume.
+        budget.update();
+        assertEquals(1, reads.get());
+
+        in.close();
+    }
+
+    @Test
+    public void memoryBudget_forwardedBytesInFlightUntilWritten() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        List<ChannelPromise> pendingWrites = new ArrayList<>();
+        EmbeddedChannel in = new EmbeddedChannel(new TunnelHandler(null, budget));
+        EmbeddedChannel out = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                ReferenceCountUtil.release(msg);
+                pendingWrites.add(promise);
+            }
+        });
+        in.attr(TunnelHandler.COUPLE_CHANNEL).set(out);
+
+        in.writeInbound(Unpooled.wrappedBuffer(getRandomBytes(600)));
+        in.writeInbound(Unpooled.wrappedBuffer(getRandomBytes(600)));
+        budget.update();
+        assertEquals(1200, budget.getUsedBytes());
+        assertTrue(budget.isExceeded());
+
+        pendingWrites.get(0).setSuccess();
+        pendingWrites.get(1).setFailure(new IOException("Reset"));
+        budget.update();
+        assertEquals(0, budget.getUsedBytes());
+        assertTrue(!budget.isExceeded());
+
+        in.close();
+    }
+
+    private static class ReadCounter extends ChannelOutboundHandlerAdapter {
+        private final AtomicInteger reads;
+
+        ReadCounter(AtomicInteger reads) {
+            this.reads = reads;
+        }
+
+        @Override
+        public void read(ChannelHandlerContext ctx) throws Exception {
+            reads.incrementAndGet();
+            super.read(ctx);
+        }
+    }
+
     private byte[] getRandomBytes(int length) {
         byte[] data = new byte[length];
         rand.nextBytes(data);
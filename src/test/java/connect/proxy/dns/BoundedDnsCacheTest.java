@@ -0,0 +1,85 @@
+package connect.proxy.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.resolver.dns.DnsCacheEntry;
+
+public class BoundedDnsCacheTest {
+    private static final DnsRecord[] NO_ADDITIONALS = new DnsRecord[0];
+
+    private final EventLoop evLoop = new DefaultEventLoop();
+
+    @After
+    public void shutdown() {
+        evLoop.shutdownGracefully();
+    }
+
+    @Test
+    public void cachedAddress_returned() throws Exception {
+        BoundedDnsCache cache = new BoundedDnsCache(10, 0, 60, 10);
+        InetAddress address = InetAddress.getByAddress("a.test", new byte[] { 10, 0, 0, 1 });
+
+        cache.cache("a.test", NO_ADDITIONALS, address, 30, evLoop);
+        List<? extends DnsCacheEntry> entries = cache.get("a.test", NO_ADDITIONALS);
+
+        assertEquals(1, entries.size());
+        assertEquals(address, entries.get(0).address());
+    }
+
+    @Test
+    public void failedResolution_negativelyCached() {
+        BoundedDnsCache cache = new BoundedDnsCache(10, 0, 60, 10);
+        UnknownHostException nxdomain = new UnknownHostException("nx.test");
+
+        cache.cache("nx.test", NO_ADDITIONALS, nxdomain, evLoop);
+        List<? extends DnsCacheEntry> entries = cache.get("nx.test", NO_ADDITIONALS);
+
+        assertEquals(1, entries.size());
+        assertSame(nxdomain, entries.get(0).cause());
+    }
+
+    @Test
+    public void cacheFull_hostnameEvicted() throws Exception {
+        int maxHostnames = 3;
+        BoundedDnsCache cache = new BoundedDnsCache(maxHostnames, 0, 60, 10);
+
+        for (int i = 0; i < 10; i++) {
+            String hostname = "h" + i + ".test";
+            cache.cache(hostname, NO_ADDITIONALS,
+                    InetAddress.getByAddress(hostname, new byte[] { 10, 0, 0, (byte) i }), 30, evLoop);
+        }
+
+        assertEquals(maxHostnames, cache.size());
+        int cached = 0;
+        for (int i = 0; i < 10; i++) {
+            List<? extends DnsCacheEntry> entries = cache.get("h" + i + ".test", NO_ADDITIONALS);
+            cached += entries == null || entries.isEmpty() ? 0 : 1;
+        }
+        assertEquals(maxHostnames, cached);
+        assertEquals(1, cache.get("h9.test", NO_ADDITIONALS).size());
+    }
+
+    @Test
+    public void clearedHostname_notReturned() throws Exception {
+        BoundedDnsCache cache = new BoundedDnsCache(10, 0, 60, 10);
+        cache.cache("a.test", NO_ADDITIONALS,
+                InetAddress.getByAddress("a.test", new byte[] { 10, 0, 0, 1 }), 30, evLoop);
+
+        cache.clear("a.test");
+
+        assertNull(cache.get("a.test", NO_ADDITIONALS));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,83 @@
+package connect.proxy.health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import connect.proxy.health.DestinationHealth.State;
+
+public class UpstreamHealthTest {
+    private final AtomicLong nanos = new AtomicLong();
+    private final UpstreamHealth health = new UpstreamHealth(nanos::get)
+        .failureThreshold(2)
+        .openDurationMillis(1000);
+
+    @Test
+    public void consecutiveFailures_circuitOpenedThenProbed() {
+        health.failed(health.tryAcquire("host", 443));
+        health.succeeded(health.tryAcquire("host", 443), 1);
+        health.failed(health.tryAcquire("host", 443));
+        assertEquals(State.CLOSED, health.get("host", 443).getState());
+        health.failed(health.tryAcquire("host", 443));
+        assertEquals(State.OPEN, health.get("host", 443).getState());
+        assertEquals(1, health.getOpenedCircuits());
+
+        // Other destinations are not affected.
+        assertNotNull(health.tryAcquire("host", 8443));
+        assertNull(health.tryAcquire("host", 443));
+        assertEquals(1, health.getRejectedConnections());
+
+        // One probe at a time once the open duration elapses. A failed probe opens it again.
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        DestinationHealth probe = health.tryAcquire("host", 443);
+        assertNotNull(probe);
+        assertEquals(State.HALF_OPEN, probe.getState());
+        assertNull(health.tryAcquire("host", 443));
+        health.failed(probe);
+        assertEquals(State.OPEN, probe.getState());
+        assertEquals(2, health.getOpenedCircuits());
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        health.succeeded(health.tryAcquire("host", 443), 1);
+        assertEquals(State.CLOSED, probe.getState());
+        assertNotNull(health.tryAcquire("host", 443));
+        assertEquals(0, health.getOpenCircuits());
+    }
+
+    @Test
+    public void cancelledProbe_nextRequestProbes() {
+        health.failed(health.tryAcquire("host", 443));
+        health.failed(health.tryAcquire("host", 443));
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        health.cancelled(health.tryAcquire("host", 443));
+        assertNotNull(health.tryAcquire("host", 443));
+    }
+
+    @Test
+    public void connectLatency_averaged() {
+        health.succeeded(health.tryAcquire("host", 443), 1000);
+        assertEquals(1000, health.get("host", 443).getLatencyEwmaNanos());
+        health.succeeded(health.tryAcquire("host", 443), 2000);
+        assertEquals(1200, health.get("host", 443).getLatencyEwmaNanos());
+    }
+
+    @Test
+    public void maxDestinations_openCircuitsKept() {
+        health.maxDestinations(2);
+        health.failed(health.tryAcquire("down", 443));
+        health.failed(health.tryAcquire("down", 443));
+        health.tryAcquire("up1", 443);
+        health.tryAcquire("up2", 443);
+
+        assertEquals(2, health.getDestinations().size());
+        assertEquals(State.OPEN, health.get("down", 443).getState());
+        assertNull(health.get("up1", 443));
+        assertNotNull(health.get("up2", 443));
+    }
+}
@@ -0,0 +1,97 @@
+package connect.proxy.loadgen;
+
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import connect.proxy.ProxyServer;
+import connect.proxy.ProxyServerConfig;
+import connect.proxy.loadgen.LoadGeneratorConfig.Mode;
+
+public class LoadGeneratorTest {
+    @Test
+    public void latencyHistogram_percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        assertWithin(TimeUnit.MICROSECONDS.toNanos(500), histogram.percentileNanos(50));
+        assertWithin(TimeUnit.MICROSECONDS.toNanos(990), histogram.percentileNanos(99));
+        assertWithin(TimeUnit.MICROSECONDS.toNanos(999), histogram.percentileNanos(99.9));
+        Assert.assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.percentileNanos(100));
+    }
+
+    @Test
+    public void echoThroughProxy_roundTripsMeasured() throws Exception {
+        int proxyPort = getFreePort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost"));
+        proxy.start();
+
+        try {
+            LoadGeneratorResult result = new LoadGenerator(new LoadGeneratorConfig()
+                    .setProxyPort(proxyPort)
+                    .setTunnels(2)
+                    .setDurationSeconds(1)
+                    .setPayloadSize(1024)
+                    .setUpstreamLatencyMillis(20)).run();
+
+            Assert.assertEquals(2, result.getTunnelsEstablished());
+            Assert.assertEquals(0, result.getTunnelsFailed());
+            Assert.assertTrue(result.getRoundTripLatency().getCount() > 0);
+            // Injected latency is part of every round trip.
+            Assert.assertTrue(result.getRoundTripLatency().percentileMillis(50) >= 20);
+            Assert.assertTrue(result.toJson().contains("\"tunnelsEstablished\": 2,"));
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void plainProxy_shortTunnelsReplacedAndSinkDiscarded() throws Exception {
+        int proxyPort = getFreePort();
+        ProxyServer proxy = new ProxyServer(new ProxyServerConfig()
+                .setPort(proxyPort)
+                .setHostWhitelist("localhost")
+                .setSsl(false));
+        proxy.start();
+
+        try {
+            LoadGeneratorResult echo = new LoadGenerator(new LoadGeneratorConfig()
+                    .setProxyPort(proxyPort)
+                    .setSsl(false)
+                    .setTunnels(1)
+                    .setDurationSeconds(1)
+                    .setPayloadSize(16)
+                    .setRoundTripsPerTunnel(1)).run();
+            Assert.assertTrue(echo.getTunnelsEstablished() > 1);
+
+            LoadGeneratorResult sink = new LoadGenerator(new LoadGeneratorConfig()
+                    .setProxyPort(proxyPort)
+                    .setSsl(false)
+                    .setTunnels(1)
+                    .setDurationSeconds(1)
+                    .setMode(Mode.SINK)).run();
+            Assert.assertTrue(sink.getBytesSent() > 0);
+            Assert.assertEquals(0, sink.getBytesReceived());
+        } finally {
+            proxy.close();
+        }
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        Assert.assertTrue("Expected ~" + expected + ", got " + actual,
+            Math.abs(actual - expected) <= expected * 0.033);
+    }
+
+    private static int getFreePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package connect.proxy.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import connect.proxy.metrics.MetricRegistry.Type;
+
+public class MetricRegistryTest {
+    @Test
+    public void counterWithLabels_exported() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("requests_total", "Requests.", "status", "200").add(3);
+        registry.counter("requests_total", "Requests.", "status", "403").increment();
+
+        String text = export(registry);
+        Assert.assertEquals("# HELP requests_total Requests.\n"
+            + "# TYPE requests_total counter\n"
+            + "requests_total{status=\"200\"} 3\n"
+            + "requests_total{status=\"403\"} 1\n", text);
+    }
+
+    @Test
+    public void gaugeAndSupplier_exported() {
+        MetricRegistry registry = new MetricRegistry();
+        Gauge gauge = registry.gauge("open", "Open.");
+        gauge.increment();
+        gauge.increment();
+        gauge.decrement();
+        registry.registerSupplier("pending", "Pending.", Type.GAUGE, () -> 7L, "loop", "0");
+
+        String text = export(registry);
+        Assert.assertTrue(text.contains("\nopen 1\n"));
+        Assert.assertTrue(text.contains("\npending{loop=\"0\"} 7\n"));
+    }
+
+    @Test
+    public void labelValue_escaped() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("c", "C.", "path", "a\"b\\c");
+
+        Assert.assertTrue(export(registry).contains("c{path=\"a\\\"b\\\\c\"} 0\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void familyWithDifferentType_rejected() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("m", "M.");
+        registry.gauge("m", "M.");
+    }
+
+    @Test
+    public void histogram_cumulativeBuckets() {
+        MetricRegistry registry = new MetricRegistry();
+        Histogram histogram = registry.histogram("latency_seconds", "Latency.", "op", "connect");
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.record(TimeUnit.SECONDS.toNanos(20));
+
+        Assert.assertEquals(3, histogram.getCount());
+        String text = export(registry);
+        Assert.assertTrue(text.contains("# TYPE latency_seconds histogram\n"));
+        // Bucket bounds are inclusive.
+        Assert.assertTrue(text.contains("latency_seconds_bucket{op=\"connect\",le=\"0.001\"} 1\n"));
+        Assert.assertTrue(text.contains("latency_seconds_bucket{op=\"connect\",le=\"0.0025\"} 1\n"));
+        Assert.assertTrue(text.contains("latency_seconds_bucket{op=\"connect\",le=\"0.005\"} 2\n"));
+        Assert.assertTrue(text.contains("latency_seconds_bucket{op=\"connect\",le=\"10.0\"} 2\n"));
+        Assert.assertTrue(text.contains("latency_seconds_bucket{op=\"connect\",le=\"+Inf\"} 3\n"));
+        Assert.assertTrue(text.contains("latency_seconds_sum{op=\"connect\"} 20.004\n"));
+        Assert.assertTrue(text.contains("latency_seconds_count{op=\"connect\"} 3\n"));
+    }
+
+    private static String export(MetricRegistry registry) {
+        StringBuilder out = new StringBuilder();
+        registry.writePrometheus(out);
+        return out.toString();
+    }
+}
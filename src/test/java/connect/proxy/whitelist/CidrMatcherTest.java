@@ -0,0 +1,122 @@
+package connect.proxy.whitelist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import connect.proxy.whitelist.CidrMatcher.Action;
+
+public class CidrMatcherTest {
+
+    @Test
+    public void ipv4Rules_longestPrefixWins() {
+        CidrMatcher matcher = CidrMatcher.compile(Arrays.asList("10.0.0.0/8", "!10.1.0.0/16", "10.1.2.3"));
+
+        assertEquals(Action.ALLOW, matcher.match("10.200.0.1"));
+        assertEquals(Action.DENY, matcher.match("10.1.0.1"));
+        assertEquals(Action.ALLOW, matcher.match("10.1.2.3"));
+        assertNull(matcher.match("11.0.0.1"));
+        assertEquals(3, matcher.size());
+        assertTrue(matcher.hasAllowRules());
+    }
+
+    @Test
+    public void ipv6Rules_matchCompressedAndFullLiterals() {
+        CidrMatcher matcher = CidrMatcher.compile(Arrays.asList("2001:db8::/32", "!2001:db8:0:1::/64", "::1"));
+
+        assertEquals(Action.ALLOW, matcher.match("2001:db8::1"));
+        assertEquals(Action.ALLOW, matcher.match("[2001:DB8:ffff::]"));
+        assertEquals(Action.ALLOW, matcher.match("2001:0db8:0000:0000:0000:0000:0000:0001"));
+        assertEquals(Action.DENY, matcher.match("2001:db8:0:1:abcd::"));
+        assertEquals(Action.ALLOW, matcher.match("::1"));
+        assertEquals(Action.ALLOW, matcher.match("0:0:0:0:0:0:0:1"));
+        assertNull(matcher.match("::2"));
+        assertNull(matcher.match("2001:db9::1"));
+    }
+
+    @Test
+    public void embeddedIpv4_matchesIpv6Rules() {
+        CidrMatcher matcher = CidrMatcher.compile(Arrays.asList("!64:ff9b::/96", "0.0.0.0/0"));
+
+        assertEquals(Action.DENY, matcher.match("64:ff9b::127.0.0.1"));
+        assertEquals(Action.DENY, matcher.match("64:ff9b::7f00:1"));
+        assertEquals(Action.ALLOW, matcher.match("127.0.0.1"));
+    }
+
+    @Test
+    public void ipv4MappedAddresses_matchIpv4Rules() throws Exception {
+        CidrMatcher matcher = CidrMatcher.compile(Arrays.asList("!10.0.0.0/8", "::ffff:192.0.2.0/120"));
+
+        assertEquals(Action.DENY, matcher.match("::ffff:10.0.0.1"));
+        assertEquals(Action.DENY, matcher.match("[::ffff:a00:1]"));
+        assertEquals(Action.DENY, matcher.match("0:0:0:0:0:ffff:10.1.2.3"));
+        assertEquals(Action.ALLOW, matcher.match("192.0.2.10"));
+        assertNull(matcher.match("::10.0.0.1"));
+        byte[] mapped = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, 10, 0, 0, 1};
+        assertEquals(Action.DENY, matcher.match(Inet6Address.getByAddress(null, mapped, -1)));
+    }
+
+    @Test
+    public void notIpLiterals_noMatch() {
+        CidrMatcher matcher = CidrMatcher.compile(Arrays.asList("0.0.0.0/0", "::/0"));
+
+        assertNull(matcher.match("example.com"));
+        assertNull(matcher.match("1.2.3"));
+        assertNull(matcher.match("1.2.3.256"));
+        assertNull(matcher.match("1.2.3.4."));
+        assertNull(matcher.match("1:2:3:4:5:6:7"));
+        assertNull(matcher.match("1:2:3:4:5:6:7:8:9"));
+        assertNull(matcher.match("1::2::3"));
+        assertNull(matcher.match("12345::"));
+        assertNull(matcher.match(":1::"));
+        assertNull(matcher.match("fe80::1%eth0"));
+        assertEquals(Action.ALLOW, matcher.match("::"));
+        assertEquals(Action.ALLOW, matcher.match("1:2:3:4:5:6:7::"));
+    }
+
+    @Test
+    public void sameRuleAllowedAndDenied_denyWins() {
+        CidrMatcher matcher = CidrMatcher.compile(Arrays.asList("!192.0.2.0/24", "192.0.2.0/24"));
+
+        assertEquals(Action.DENY, matcher.match("192.0.2.10"));
+    }
+
+    @Test
+    public void inetAddress_matchedAsLiteral() throws Exception {
+        CidrMatcher matcher = CidrMatcher.compile(Arrays.asList("127.0.0.0/8", "!::1"));
+
+        assertEquals(Action.ALLOW, matcher.match(InetAddress.getByName("127.0.0.2")));
+        assertEquals(Action.DENY, matcher.match(InetAddress.getByName("::1")));
+        assertNull(matcher.match(InetAddress.getByName("192.0.2.1")));
+    }
+
+    @Test
+    public void denyRulesOnly_otherClientsAllowed() throws Exception {
+        CidrAcl acl = new CidrAcl(Arrays.asList("!192.0.2.0/24"));
+
+        assertFalse(acl.allows(InetAddress.getByName("192.0.2.1")));
+        assertTrue(acl.allows(InetAddress.getByName("198.51.100.1")));
+
+        acl.update(CidrMatcher.compile(Arrays.asList("198.51.100.0/24")));
+
+        assertTrue(acl.allows(InetAddress.getByName("198.51.100.1")));
+        assertFalse(acl.allows(InetAddress.getByName("192.0.2.1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPrefix_rejected() {
+        CidrMatcher.compile(Arrays.asList("10.0.0.0/33"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidAddress_rejected() {
+        CidrMatcher.compile(Arrays.asList("example.com/8"));
+    }
+}
@@ -0,0 +1,117 @@
+package connect.proxy.whitelist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class HostMatcherTest {
+
+    @Test
+    public void exactRule_matchesHostOnly() {
+        HostMatcher matcher = HostMatcher.compile(Arrays.asList("example.com"));
+
+        assertTrue(matcher.matches("example.com", 443));
+        assertTrue(matcher.matches("example.com", 80));
+        assertFalse(matcher.matches("www.example.com", 443));
+        assertFalse(matcher.matches("com", 443));
+        assertFalse(matcher.matches("example.org", 443));
+        assertFalse(matcher.matches("xexample.com", 443));
+    }
+
+    @Test
+    public void wildcardRule_matchesSubdomainsOnly() {
+        HostMatcher matcher = HostMatcher.compile(Arrays.asList("*.example.com"));
+
+        assertTrue(matcher.matches("www.example.com", 443));
+        assertTrue(matcher.matches("a.b.example.com", 443));
+        assertFalse(matcher.matches("example.com", 443));
+        assertFalse(matcher.matches("www.example.org", 443));
+    }
+
+    @Test
+    public void portRule_matchesGivenPortOnly() {
+        HostMatcher matcher = HostMatcher.compile(Arrays.asList("example.com:443", "*.example.org:8443",
+            "[::1]:443", "127.0.0.1"));
+
+        assertTrue(matcher.matches("example.com", 443));
+        assertFalse(matcher.matches("example.com", 80));
+        assertTrue(matcher.matches("www.example.org", 8443));
+        assertFalse(matcher.matches("www.example.org", 443));
+        assertTrue(matcher.matches("[::1]", 443));
+        assertTrue(matcher.matches("::1", 443));
+        assertFalse(matcher.matches("::1", 80));
+        assertTrue(matcher.matches("127.0.0.1", 22));
+        assertFalse(matcher.matches("127.0.0.2", 22));
+
+        // Any port: whether some rule names the host.
+        assertTrue(matcher.matches("example.com", HostMatcher.ANY_PORT));
+        assertTrue(matcher.matches("www.example.org", HostMatcher.ANY_PORT));
+        assertFalse(matcher.matches("example.net", HostMatcher.ANY_PORT));
+    }
+
+    @Test
+    public void hostCaseAndTrailingDot_ignored() {
+        HostMatcher matcher = HostMatcher.compile(Arrays.asList("Example.COM", "*.example.org."));
+
+        assertTrue(matcher.matches("EXAMPLE.com", 443));
+        assertTrue(matcher.matches("example.com.", 443));
+        assertTrue(matcher.matches("WWW.Example.Org.", 443));
+        assertFalse(matcher.matches(".", 443));
+        assertFalse(matcher.matches("", 443));
+    }
+
+    @Test
+    public void emptyMatcher_matchesNothing() {
+        assertFalse(HostMatcher.empty().matches("localhost", 443));
+        assertEquals(0, HostMatcher.compile(Arrays.asList(" ", "")).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPort_rejected() {
+        HostMatcher.compile(Arrays.asList("example.com:http"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidWildcard_rejected() {
+        HostMatcher.compile(Arrays.asList("www.*.example.com"));
+    }
+
+    @Test
+    public void ruleFileModified_whitelistReloaded() throws IOException, InterruptedException {
+        Path file = Files.createTempFile("whitelist", ".txt");
+        Files.write(file, Arrays.asList("# Comment", "example.com", ""));
+        HostWhitelist whitelist = new HostWhitelist(HostMatcher.empty());
+
+        HostWhitelistReloader reloader = new HostWhitelistReloader(whitelist, file,
+            Collections.singleton("localhost"), 10);
+        try {
+            assertTrue(whitelist.matches("example.com", 443));
+            assertTrue(whitelist.matches("localhost", 443));
+
+            // Invalid rules are not loaded.
+            Files.write(file, Arrays.asList("example.com:x"));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+            Thread.sleep(100);
+            assertTrue(whitelist.matches("example.com", 443));
+
+            Files.write(file, Arrays.asList("*.example.org"));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+            Thread.sleep(100);
+            assertFalse(whitelist.matches("example.com", 443));
+            assertTrue(whitelist.matches("www.example.org", 443));
+            assertTrue(whitelist.matches("localhost", 443));
+        } finally {
+            reloader.close();
+            Files.delete(file);
+        }
+    }
+}